@@ -352,6 +352,7 @@ public class AjaxFileUpload extends WOComponent {
 
 				if (renameFile && !streamToFile.isDirectory()) {
 					renameTo(progress.tempFile(), streamToFile);
+					progress.releaseTempFile();
 					renamedFile = true;
 				}
 				else {
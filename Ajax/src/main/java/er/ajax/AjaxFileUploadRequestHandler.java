@@ -1,9 +1,21 @@
 package er.ajax;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,17 +28,45 @@ import com.webobjects.appserver.WORequestHandler;
 import com.webobjects.appserver.WOResponse;
 import com.webobjects.appserver.WOSession;
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
 
 import er.extensions.formatters.ERXUnitAwareDecimalFormat;
 import er.extensions.foundation.ERXProperties;
+import er.extensions.foundation.ERXUtilities;
 
 /**
  * Provides the backend for Ajax uploads. This has to be implemented differently than a normal file upload because we
  * can't block the session while uploading.
+ * <p>
+ * The file is streamed straight to a temp file through a FileChannel. An upload that is larger than the maximum
+ * size is rejected before any of it is read. The temp file is deleted when the upload fails or is canceled, when
+ * the session times out before the application picked up the upload, and otherwise on shutdown unless the
+ * application took the file over.
+ * <p>
+ * Uploads can also be sent in chunks (AjaxFlexibleFileUpload does this where the browser supports it), so a dropped
+ * connection doesn't restart a large upload from the beginning. The parameters are passed in the query string:
+ * <ul>
+ * <li><code>?chunked=offset&amp;id=...&amp;total=...&amp;filename=...&amp;type=...</code> starts the upload (or continues
+ * an unfinished upload of the same file with the same id) and answers <code>{"offset":n}</code>, the number of bytes
+ * received without gaps so far</li>
+ * <li><code>?chunked=chunk&amp;id=...&amp;offset=...</code> with the bytes of the chunk as the body writes them at the offset
+ * and answers with the new offset. Chunks can be sent in any order and over several connections at once.</li>
+ * </ul>
+ * The chunks are written straight into the upload's temp file, and the upload is done when all bytes were received.
+ * When the connection drops in the middle of a chunk, the bytes received so far are kept and the request is answered with
+ * <code>Interrupted: ...</code> (a failed upload is answered with <code>Failed: ...</code>), so the client sends the chunk again.
+ * Only the request starting the upload checks out the session. Unfinished uploads that didn't receive a chunk for a while
+ * are dropped.
+ * <p>
+ * <code>?progress=...</code> (with the id of the upload) answers the progress of an upload as
+ * <code>{"progress":percent,"done":true|false}</code> from the {@link AjaxProgressRegistry}, without checking out the session.
  * 
  * @property er.ajax.AjaxFileRequestHandler.tempFileFolder the location of the temp file folder. If not specified, this
  *           will go to Java's default temporary folder (/tmp on Mac OS X)
  * @property er.ajax.AjaxFileRequestHandler.maxUploadSize the maximum size in bytes of the file 
+ * @property er.ajax.AjaxFileRequestHandler.chunkedUploadTimeout the number of seconds after which an unfinished chunked upload
+ *           that doesn't receive chunks anymore is dropped (default 3600)
  * @author mschrag
  */
 public class AjaxFileUploadRequestHandler extends WORequestHandler {
@@ -37,6 +77,16 @@ public class AjaxFileUploadRequestHandler extends WORequestHandler {
 	private File _tempFileFolder;
 	private long _maxUploadSize;
 
+	/**
+	 * The uploads of each session, disposed of when the session times out
+	 */
+	private final Map<String, Set<AjaxUploadProgress>> _uploads = new ConcurrentHashMap<>();
+
+	/**
+	 * The unfinished chunked uploads, by session id and upload id
+	 */
+	private final Map<String, Map<String, ChunkedUpload>> _chunkedUploads = new ConcurrentHashMap<>();
+
 	public AjaxFileUploadRequestHandler() {
 		this(ERXProperties.stringForKey("er.ajax.AjaxFileRequestHandler.tempFileFolder"), ERXProperties.longForKeyWithDefault("er.ajax.AjaxFileRequestHandler.maxUploadSize", -1));
 	}
@@ -48,10 +98,43 @@ public class AjaxFileUploadRequestHandler extends WORequestHandler {
 	public AjaxFileUploadRequestHandler(File tempFileFolder, long maxUploadSize) {
 		_tempFileFolder = tempFileFolder;
 		_maxUploadSize = maxUploadSize;
+		NSNotificationCenter.defaultCenter().addObserver(this, ERXUtilities.notificationSelector("sessionDidTimeOut"), WOSession.SessionDidTimeOutNotification, null);
+	}
+
+	/**
+	 * Deletes the temp files of the uploads the session didn't pick up before it timed out.
+	 * 
+	 * @param n the session timeout notification
+	 */
+	public void sessionDidTimeOut(NSNotification n) {
+		Map<String, ChunkedUpload> chunkedUploads = _chunkedUploads.remove(n.object());
+		if (chunkedUploads != null) {
+			for (ChunkedUpload upload : chunkedUploads.values()) {
+				upload.close();
+			}
+		}
+		Set<AjaxUploadProgress> uploads = _uploads.remove(n.object());
+		if (uploads != null) {
+			for (AjaxUploadProgress progress : uploads) {
+				if (!progress.completionEventsFired()) {
+					progress.dispose();
+				}
+			}
+		}
 	}
 
 	@Override
 	public WOResponse handleRequest(WORequest request) {
+		// don't touch the form values, that would read the whole multipart body
+		Map<String, String> parameters = queryParameters(request);
+		String progressID = parameters.get("progress");
+		if (progressID != null) {
+			return handleProgressRequest(request, progressID, parameters);
+		}
+		String chunked = parameters.get("chunked");
+		if (chunked != null) {
+			return handleChunkedRequest(request, chunked, parameters);
+		}
 		WOApplication application = WOApplication.application();
 		application.awake();
 		try {
@@ -95,9 +178,24 @@ public class AjaxFileUploadRequestHandler extends WORequestHandler {
 					if (session == null) {
 						throw new Exception("No valid session!");
 					}
-					File tempFile = File.createTempFile("AjaxFileUpload", ".tmp", _tempFileFolder);
-					tempFile.deleteOnExit();
+					String contentType = null;
+					if (formData != null) {
+						NSArray<String> contentTypes = (NSArray<String>)formData.headers().valueForKey("content-type");
+						if (contentTypes != null) {
+							contentType = contentTypes.objectAtIndex(0);
+						}
+					}
+
+					IOException tooLarge = null;
+					File tempFile = null;
+					if (_maxUploadSize >= 0L && streamLength > _maxUploadSize) {
+						tooLarge = new IOException("You attempted to upload a file larger than the maximum allowed size of " + new ERXUnitAwareDecimalFormat(ERXUnitAwareDecimalFormat.BYTE).format(_maxUploadSize) + ".");
+					}
+					else {
+						tempFile = createTempFile().toFile();
+					}
 					AjaxUploadProgress progress = new AjaxUploadProgress(uploadIdentifier, tempFile, uploadFileName, streamLength);
+					progress.setContentType(contentType);
 					try {
 						AjaxProgressBar.registerProgress(session, progress);
 					}
@@ -106,28 +204,24 @@ public class AjaxFileUploadRequestHandler extends WORequestHandler {
 							WOApplication.application().saveSessionForContext(context);
 						}
 					}
+					_uploads.computeIfAbsent(sessionId, key -> ConcurrentHashMap.newKeySet()).add(progress);
 
-					if (formData != null) {
-						NSArray<String> contentType = (NSArray<String>)formData.headers().valueForKey("content-type");
-						if (contentType != null) {
-							progress.setContentType(contentType.objectAtIndex(0));
-						}
-					}
-					
 					try {
-						if (_maxUploadSize >= 0L && streamLength > _maxUploadSize) {
-							IOException e = new IOException("You attempted to upload a file larger than the maximum allowed size of " + new ERXUnitAwareDecimalFormat(ERXUnitAwareDecimalFormat.BYTE).format(_maxUploadSize) + ".");
-							progress.setFailure(e);
-							progress.dispose();
-							throw e;
+						if (tooLarge != null) {
+							progress.setFailure(tooLarge);
+							throw tooLarge;
 						}
-						try (FileOutputStream fos = new FileOutputStream(progress.tempFile())) {
-							progress.copyAndTrack(uploadInputStream, fos, _maxUploadSize);
+						try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+							progress.copyAndTrack(uploadInputStream, channel, _maxUploadSize);
 						}
 						if (!progress.isCanceled() && !progress.shouldReset()) {
 							downloadFinished(progress);
 						}
 					}
+					catch (Throwable t) {
+						progress.dispose();
+						throw t;
+					}
 					finally {
 						progress.setDone(true);
 					}
@@ -157,6 +251,196 @@ public class AjaxFileUploadRequestHandler extends WORequestHandler {
 	protected void downloadFinished(AjaxUploadProgress progress) {
 	}
 
+	/**
+	 * Answers the progress of an upload. An unknown upload is answered as done, so the client asks the page for the final state.
+	 * 
+	 * @param request the request
+	 * @param progressID the id of the upload
+	 * @param parameters the query parameters
+	 * @return the response with the progress
+	 */
+	protected WOResponse handleProgressRequest(WORequest request, String progressID, Map<String, String> parameters) {
+		String sessionIdKey = WOApplication.application().sessionIdKey();
+		String sessionId = parameters.get(sessionIdKey);
+		if (sessionId == null) {
+			sessionId = request.cookieValueForKey(sessionIdKey);
+		}
+		AjaxProgress progress = AjaxProgressRegistry.progress(sessionId, progressID);
+		int percent = 0;
+		boolean done = true;
+		if (progress != null) {
+			percent = progress.isSucceeded() ? 100 : (int) (progress.percentage() * 100);
+			done = progress.isDone() || progress.isFailed() || progress.isCanceled();
+		}
+		WOResponse response = new WOResponse();
+		response.setHeader("application/json", "content-type");
+		response.setHeader("no-cache", "cache-control");
+		response.appendContentString("{\"progress\":" + percent + ",\"done\":" + done + "}");
+		return response;
+	}
+
+	/**
+	 * Handles the requests of a chunked upload.
+	 * 
+	 * @param request the request
+	 * @param chunked "offset" to start or continue an upload, "chunk" to send a chunk
+	 * @param parameters the query parameters
+	 * @return the response with the offset, or the failure
+	 */
+	protected WOResponse handleChunkedRequest(WORequest request, String chunked, Map<String, String> parameters) {
+		WOApplication application = WOApplication.application();
+		application.awake();
+		try {
+			WOContext context = application.createContextForRequest(request);
+			WOResponse response = application.createResponseInContext(context);
+			String sessionIdKey = application.sessionIdKey();
+			String sessionId = parameters.get(sessionIdKey);
+			if (sessionId == null) {
+				sessionId = request.cookieValueForKey(sessionIdKey);
+			}
+			String uploadIdentifier = parameters.get("id");
+			try {
+				if (sessionId == null || uploadIdentifier == null) {
+					throw new IOException("No valid upload!");
+				}
+				long offset;
+				if ("offset".equals(chunked)) {
+					offset = startChunkedUpload(context, sessionId, uploadIdentifier, parameters).offset();
+				}
+				else if ("chunk".equals(chunked)) {
+					Map<String, ChunkedUpload> sessionUploads = _chunkedUploads.get(sessionId);
+					ChunkedUpload upload = sessionUploads != null ? sessionUploads.get(uploadIdentifier) : null;
+					if (upload == null) {
+						throw new IOException("No upload in progress!");
+					}
+					try (InputStream inputStream = request.contentInputStream()) {
+						offset = upload.write(inputStream, Long.parseLong(parameters.get("offset")));
+					}
+				}
+				else {
+					throw new IOException("Unknown request '" + chunked + "'!");
+				}
+				response.setHeader("application/json", "content-type");
+				response.appendContentString("{\"offset\":" + offset + "}");
+			}
+			catch (InterruptedChunkException e) {
+				log.info("Chunk interrupted: {}", e.getMessage());
+				response.setStatus(500);
+				response.appendContentString("Interrupted: " + e.getMessage());
+			}
+			catch (Throwable t) {
+				log.error("Upload failed", t);
+				response.setStatus(500);
+				response.appendContentString("Failed: " + t.getMessage());
+			}
+			return response;
+		}
+		finally {
+			application.sleep();
+		}
+	}
+
+	/**
+	 * Returns the unfinished upload of the same file with the given id, or starts a new one.
+	 */
+	private ChunkedUpload startChunkedUpload(WOContext context, String sessionId, String uploadIdentifier, Map<String, String> parameters) throws IOException {
+		String uploadFileName = parameters.get("filename");
+		long total = Long.parseLong(parameters.get("total"));
+		if (total < 0L) {
+			throw new IOException("Invalid length " + total + ".");
+		}
+		dropIdleChunkedUploads();
+		Map<String, ChunkedUpload> sessionUploads = _chunkedUploads.computeIfAbsent(sessionId, key -> new ConcurrentHashMap<>());
+		ChunkedUpload upload = sessionUploads.get(uploadIdentifier);
+		if (upload != null) {
+			AjaxUploadProgress progress = upload.progress();
+			if (progress.maximum() == total && uploadFileName != null && uploadFileName.equals(progress.fileName()) && !progress.isDone() && !progress.isCanceled() && !progress.shouldReset()) {
+				return upload;
+			}
+			sessionUploads.remove(uploadIdentifier, upload);
+			upload.close();
+			if (!progress.isDone()) {
+				progress.dispose();
+			}
+		}
+
+		context._setRequestSessionID(sessionId);
+		WOSession session = WOApplication.application().restoreSessionWithID(sessionId, context);
+		if (session == null) {
+			throw new IOException("No valid session!");
+		}
+		IOException tooLarge = null;
+		File tempFile = null;
+		if (_maxUploadSize >= 0L && total > _maxUploadSize) {
+			tooLarge = new IOException("You attempted to upload a file larger than the maximum allowed size of " + new ERXUnitAwareDecimalFormat(ERXUnitAwareDecimalFormat.BYTE).format(_maxUploadSize) + ".");
+		}
+		else {
+			tempFile = createTempFile().toFile();
+		}
+		AjaxUploadProgress progress = new AjaxUploadProgress(uploadIdentifier, tempFile, uploadFileName, total);
+		progress.setContentType(parameters.get("type"));
+		try {
+			AjaxProgressBar.registerProgress(session, progress);
+		}
+		finally {
+			WOApplication.application().saveSessionForContext(context);
+		}
+		_uploads.computeIfAbsent(sessionId, key -> ConcurrentHashMap.newKeySet()).add(progress);
+
+		if (tooLarge != null) {
+			progress.setFailure(tooLarge);
+			progress.setDone(true);
+			throw tooLarge;
+		}
+		upload = new ChunkedUpload(sessionId, progress, FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+		sessionUploads.put(uploadIdentifier, upload);
+		if (total == 0L) {
+			upload.finish();
+		}
+		return upload;
+	}
+
+	/**
+	 * Fails the unfinished chunked uploads that haven't received a chunk for a while, which closes and deletes their temp files.
+	 */
+	private void dropIdleChunkedUploads() {
+		long now = System.currentTimeMillis();
+		long timeout = TimeUnit.SECONDS.toMillis(ERXProperties.longForKeyWithDefault("er.ajax.AjaxFileRequestHandler.chunkedUploadTimeout", 3600));
+		for (Map<String, ChunkedUpload> sessionUploads : _chunkedUploads.values()) {
+			for (ChunkedUpload upload : sessionUploads.values()) {
+				if (upload.isIdle(now, timeout)) {
+					upload.fail(new IOException("The upload was abandoned."));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses the query string of the request, the first value of each parameter wins.
+	 */
+	private static Map<String, String> queryParameters(WORequest request) {
+		Map<String, String> parameters = new HashMap<>();
+		String queryString = request.queryString();
+		if (queryString != null && !queryString.isEmpty()) {
+			for (String parameter : queryString.split("&")) {
+				int equals = parameter.indexOf('=');
+				try {
+					String key = URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals), "UTF-8");
+					String value = equals < 0 ? "" : URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+					parameters.putIfAbsent(key, value);
+				}
+				catch (UnsupportedEncodingException | IllegalArgumentException e) {
+					log.debug("Skipping malformed parameter '{}'.", parameter);
+				}
+			}
+		}
+		return parameters;
+	}
+
+	private Path createTempFile() throws IOException {
+		return _tempFileFolder == null ? Files.createTempFile("AjaxFileUpload", ".tmp") : Files.createTempFile(_tempFileFolder.toPath(), "AjaxFileUpload", ".tmp");
+	}
+
 	/**
 	 * Type-safe wrapper around AjaxProgressBar.progress.
 	 *  
@@ -167,4 +451,204 @@ public class AjaxFileUploadRequestHandler extends WORequestHandler {
 	public static AjaxUploadProgress ajaxUploadProgress(WOSession session, String id) {
 		return (AjaxUploadProgress) AjaxProgressBar.progress(session, id);
 	}
+
+	/**
+	 * An unfinished chunked upload: the temp file it is written to and the byte ranges received so far.
+	 */
+	private class ChunkedUpload {
+		private final String _sessionId;
+		private final AjaxUploadProgress _progress;
+		private final FileChannel _channel;
+
+		/**
+		 * The received byte ranges, start to end, without overlaps
+		 */
+		private final TreeMap<Long, Long> _received = new TreeMap<>();
+
+		private boolean _closed;
+
+		private volatile long _lastUsed = System.currentTimeMillis();
+
+		public ChunkedUpload(String sessionId, AjaxUploadProgress progress, FileChannel channel) {
+			_sessionId = sessionId;
+			_progress = progress;
+			_channel = channel;
+		}
+
+		public AjaxUploadProgress progress() {
+			return _progress;
+		}
+
+		/**
+		 * @return the number of bytes received from the start of the file without gaps
+		 */
+		public synchronized long offset() {
+			Map.Entry<Long, Long> first = _received.firstEntry();
+			return first != null && first.getKey().longValue() == 0L ? first.getValue().longValue() : 0L;
+		}
+
+		/**
+		 * Writes a chunk at the given offset. Chunks that were received before are written again. When the
+		 * connection drops in the middle of a chunk, the upload continues with the bytes received so far.
+		 * 
+		 * @return the offset after the chunk was written
+		 * @throws InterruptedChunkException if the chunk couldn't be read completely
+		 */
+		public long write(InputStream inputStream, long offset) throws IOException {
+			long total = _progress.maximum();
+			if (offset < 0L || offset > total) {
+				throw new IOException("Invalid offset " + offset + ".");
+			}
+			_lastUsed = System.currentTimeMillis();
+			// Pooled with the buffers of AjaxProgress.copyAndTrack(), a chunk is written per request
+			byte[] buffer = AjaxProgress.borrowBuffer();
+			long position = offset;
+			try {
+				boolean done = false;
+				while (!done) {
+					if (_progress.isCanceled() || _progress.shouldReset()) {
+						throw fail(new IOException("The upload was canceled."));
+					}
+					int bytesRead;
+					try {
+						bytesRead = inputStream.read(buffer);
+					}
+					catch (IOException e) {
+						// keeps the bytes written, so only the rest has to be sent again
+						received(offset, position);
+						throw new InterruptedChunkException(e);
+					}
+					if (bytesRead < 0) {
+						done = true;
+					}
+					else if (bytesRead > 0) {
+						if (position + bytesRead > total) {
+							throw fail(new IOException("The chunk exceeds the length of the upload."));
+						}
+						try {
+							ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, bytesRead);
+							while (bytes.hasRemaining()) {
+								position += _channel.write(bytes, position);
+							}
+						}
+						catch (IOException e) {
+							throw fail(e);
+						}
+					}
+				}
+			}
+			finally {
+				AjaxProgress.returnBuffer(buffer);
+			}
+			return received(offset, position);
+		}
+
+		/**
+		 * Records a received range, and finishes the upload when all bytes were received.
+		 * 
+		 * @return the number of bytes received from the start of the file without gaps
+		 */
+		private synchronized long received(long start, long end) {
+			_lastUsed = System.currentTimeMillis();
+			_progress.incrementValue(add(start, end));
+			long received = offset();
+			if (received == _progress.maximum() && !_closed) {
+				finish();
+			}
+			return received;
+		}
+
+		/**
+		 * @return whether the upload is unfinished and hasn't received a chunk for longer than the timeout
+		 */
+		public synchronized boolean isIdle(long now, long timeout) {
+			return !_closed && now - _lastUsed > timeout;
+		}
+
+		/**
+		 * Adds a received range, merging it with the ranges it touches.
+		 * 
+		 * @return the number of bytes that weren't received before
+		 */
+		private long add(long start, long end) {
+			if (start >= end) {
+				return 0L;
+			}
+			long added = end - start;
+			Map.Entry<Long, Long> previous = _received.floorEntry(Long.valueOf(start));
+			if (previous != null && previous.getValue().longValue() >= start) {
+				added -= Math.min(previous.getValue().longValue(), end) - start;
+				start = previous.getKey().longValue();
+				end = Math.max(end, previous.getValue().longValue());
+				_received.remove(previous.getKey());
+			}
+			Map.Entry<Long, Long> next;
+			while ((next = _received.ceilingEntry(Long.valueOf(start))) != null && next.getKey().longValue() <= end) {
+				added -= Math.min(next.getValue().longValue(), end) - next.getKey().longValue();
+				end = Math.max(end, next.getValue().longValue());
+				_received.remove(next.getKey());
+			}
+			_received.put(Long.valueOf(start), Long.valueOf(end));
+			return added;
+		}
+
+		/**
+		 * Closes the file and marks the upload done.
+		 */
+		public synchronized void finish() {
+			close();
+			forget();
+			_progress.setDone(true);
+			downloadFinished(_progress);
+		}
+
+		/**
+		 * Ends the upload with the given failure (unless it's over already) and deletes the temp file.
+		 * 
+		 * @return the failure
+		 */
+		private synchronized IOException fail(IOException failure) {
+			if (_closed) {
+				return failure;
+			}
+			close();
+			forget();
+			if (!_progress.isCanceled()) {
+				_progress.setFailure(failure);
+			}
+			_progress.dispose();
+			_progress.setDone(true);
+			return failure;
+		}
+
+		public synchronized void close() {
+			if (!_closed) {
+				_closed = true;
+				try {
+					_channel.close();
+				}
+				catch (IOException e) {
+					log.warn("Failed to close the upload file.", e);
+				}
+			}
+		}
+
+		private void forget() {
+			Map<String, ChunkedUpload> sessionUploads = _chunkedUploads.get(_sessionId);
+			if (sessionUploads != null) {
+				sessionUploads.remove(_progress.id(), this);
+			}
+		}
+	}
+
+	/**
+	 * Thrown when the connection drops in the middle of a chunk. The upload goes on, the client sends the rest of the chunk again.
+	 */
+	private static class InterruptedChunkException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public InterruptedChunkException(IOException cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
 }
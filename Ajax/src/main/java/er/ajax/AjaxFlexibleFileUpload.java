@@ -1,5 +1,8 @@
 package er.ajax;
 
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,6 +17,7 @@ import com.webobjects.foundation.NSMutableDictionary;
 
 import er.extensions.appserver.ERXRequest;
 import er.extensions.components.ERXComponentUtilities;
+import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXValueUtilities;
 import er.extensions.localization.ERXLocalizer;
 
@@ -61,6 +65,11 @@ import er.extensions.localization.ERXLocalizer;
  * @binding clearUploadProgressOnSuccess if true, displays the select file button instead of the uploaded file name on completion of a successful upload
  * @binding mimeType set from the content-type of the upload header if available
  * @binding onClickBefore if the given function returns true, the onClick is executed.  This is to support confirm(..) dialogs.
+ * @binding chunkSize the size in bytes of the chunks the file is uploaded in, where the browser supports it, 0 to upload it in a single request (defaults to er.ajax.AjaxFlexibleFileUpload.chunkSize)
+ * @binding parallelChunks the number of chunks uploaded at the same time (defaults to er.ajax.AjaxFlexibleFileUpload.parallelChunks)
+ * 
+ * @property er.ajax.AjaxFlexibleFileUpload.chunkSize the default chunk size in bytes (defaults to 5242880, 0 uploads files in a single request)
+ * @property er.ajax.AjaxFlexibleFileUpload.parallelChunks the default number of chunks uploaded at the same time (defaults to 3)
  * 
  * @author dleber
  * @author mschrag
@@ -100,6 +109,8 @@ public class AjaxFlexibleFileUpload extends AjaxFileUpload {
 		public static final String injectDefaultCSS = "injectDefaultCSS";
 		public static final String clearUploadProgressOnSuccess = "clearUploadProgressOnSuccess";
 		public static final String onClickBefore = "onClickBefore";
+		public static final String chunkSize = "chunkSize";
+		public static final String parallelChunks = "parallelChunks";
 	}
 
 	/**
@@ -231,6 +242,8 @@ public class AjaxFlexibleFileUpload extends AjaxFileUpload {
     		_options.add("autoSubmit:false");
     	}
     	_options.add("onSubmit:" + onSubmitFunction());
+    	_options.add("chunkSize:" + ERXValueUtilities.longValueWithDefault(valueForBinding(Keys.chunkSize), ERXProperties.longForKeyWithDefault("er.ajax.AjaxFlexibleFileUpload.chunkSize", 5 * 1024 * 1024)));
+    	_options.add("parallelChunks:" + ERXValueUtilities.intValueWithDefault(valueForBinding(Keys.parallelChunks), ERXProperties.intForKeyWithDefault("er.ajax.AjaxFlexibleFileUpload.parallelChunks", 3)));
     	
     	String onClickBefore = (String)valueForBinding(Keys.onClickBefore);
     	if (onClickBefore != null) _options.addObject(String.format("onClickBefore:'%s'", onClickBefore.replaceAll("'", "\\\\'")));
@@ -276,6 +289,7 @@ public class AjaxFlexibleFileUpload extends AjaxFileUpload {
     protected NSArray<String> _options() {
     	NSMutableArray<String> _options = new NSMutableArray<>(String.format("refreshtime:%s", refreshTime()));
     	_options.addObject("autosubmit:" + autoSubmit());
+    	_options.addObject("statusurl:'" + statusUrl() + "'");
     	_options.addObject("allowcancel:" + valueForBinding(Keys.allowCancel));
       _options.add("clearUploadProgressOnSuccess:" + clearUploadProgressOnSuccess());
 
@@ -567,6 +581,16 @@ public class AjaxFlexibleFileUpload extends AjaxFileUpload {
 		return url;
 	}
 	
+	/**
+	 * Returns the URL the client polls the progress of the upload from while it is running, without checking out the session
+	 * 
+	 * @return URL answering the progress of the upload
+	 */
+	public String statusUrl() {
+		String queryString = "progress=" + URLEncoder.encode(id(), StandardCharsets.UTF_8) + "&" + WOApplication.application().sessionIdKey() + "=" + session().sessionID();
+		return context().urlWithRequestHandlerKey(requestHandlerKey(), "", queryString);
+	}
+	
 	// ACTIONS
 	
 	/**
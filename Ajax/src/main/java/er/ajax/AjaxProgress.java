@@ -3,10 +3,13 @@ package er.ajax;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.webobjects.appserver.WOSession;
-import com.webobjects.foundation.NSDictionary;
-import com.webobjects.foundation.NSMutableDictionary;
 
 import er.extensions.formatters.ERXUnitAwareDecimalFormat;
 
@@ -14,6 +17,11 @@ import er.extensions.formatters.ERXUnitAwareDecimalFormat;
  * AjaxProgress is the model for an AjaxProgressBar.  By holding
  * onto this, you can keep track of and control the progress
  * of whatever operation is bound to this progress object.
+ * <p>
+ * The operation usually runs in another thread (or request) than the one
+ * polling the progress, so the state is kept in atomic and volatile fields.
+ * The registered progress models are kept in the {@link AjaxProgressRegistry}
+ * rather than in the session.
  *
  * @author mschrag
  */
@@ -26,15 +34,27 @@ public class AjaxProgress {
      */
     private static final long serialVersionUID = 1L;
 
+	/**
+	 * Size of the buffers streams are copied with
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Maximum number of copy buffers kept for reuse, the ones returned beyond that are left to the garbage collector
+	 */
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	private static final BlockingQueue<byte[]> _buffers = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
 	private String _id;
-	private long _value;
-	private long _maximum;
-	private boolean _done;
-	private Throwable _failure;
-	private boolean _canceled;
-	private boolean _completionEventsFired;
-	private boolean _reset;
-	private String _status;
+	private final AtomicLong _value = new AtomicLong();
+	private volatile long _maximum;
+	private volatile boolean _done;
+	private volatile Throwable _failure;
+	private volatile boolean _canceled;
+	private volatile boolean _completionEventsFired;
+	private volatile boolean _reset;
+	private volatile String _status;
 
 	/**
 	 * Construct an AjaxProgress
@@ -73,7 +93,7 @@ public class AjaxProgress {
 	 * @param value the new value
 	 */
 	public void setValue(long value) {
-		_value = value;
+		_value.set(value);
 	}
 
 	/**
@@ -88,7 +108,7 @@ public class AjaxProgress {
 			value = maximum();
 		}
 		else {
-			value = _value;
+			value = _value.get();
 		}
 		return value;
 	}
@@ -99,7 +119,7 @@ public class AjaxProgress {
 	 * @param count the mount to increment value by
 	 */
 	public void incrementValue(long count) {
-		_value += count;
+		_value.addAndGet(count);
 	}
 
 	/**
@@ -141,7 +161,7 @@ public class AjaxProgress {
 	 * @return whether or not this procedure has started
 	 */
 	public boolean isStarted() {
-		return _value > 0 || isDone();
+		return _value.get() > 0 || isDone();
 	}
 
 	/**
@@ -278,7 +298,7 @@ public class AjaxProgress {
 	 * @throws IOException if there is a failure
 	 */
 	public void copyAndTrack(InputStream inputStream, OutputStream outputStream, long maxSize) throws IOException {
-		byte[] buffer = new byte[64 * 1024];
+		byte[] buffer = borrowBuffer();
 		try {
 			boolean done = false;
 			do {
@@ -287,8 +307,8 @@ public class AjaxProgress {
 					done = true;
 				}
 				else {
-					incrementValue(bytesRead);
-					if (maxSize > 0 && _value > maxSize) {
+					long value = _value.addAndGet(bytesRead);
+					if (maxSize > 0 && value > maxSize) {
 						throw new IOException("The provided stream exceeded the maximum length of " + new ERXUnitAwareDecimalFormat(ERXUnitAwareDecimalFormat.BYTE).format(maxSize) + " bytes.");
 					}
 					outputStream.write(buffer, 0, bytesRead);
@@ -309,8 +329,40 @@ public class AjaxProgress {
 			setFailure(e);
 			throw e;
 		}
+		finally {
+			returnBuffer(buffer);
+		}
 	}
 
+	/**
+	 * Copies a stream to a file channel and tracks it with this progress model.
+	 *
+	 * @param inputStream the input stream to copy from
+	 * @param channel the file channel to write to
+	 * @param maxSize the maximum size to read
+	 * @throws IOException if there is a failure
+	 */
+	public void copyAndTrack(InputStream inputStream, FileChannel channel, long maxSize) throws IOException {
+		// The stream isn't closed, that would close the channel
+		copyAndTrack(inputStream, Channels.newOutputStream(channel), maxSize);
+	}
+
+	/**
+	 * @return a buffer to copy a stream with, give it back with {@link #returnBuffer(byte[])} when done
+	 */
+	static byte[] borrowBuffer() {
+		byte[] buffer = _buffers.poll();
+		return buffer != null ? buffer : new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Gives back a buffer from {@link #borrowBuffer()} for reuse.
+	 *
+	 * @param buffer the buffer
+	 */
+	static void returnBuffer(byte[] buffer) {
+		_buffers.offer(buffer);
+	}
 
 	/**
 	 * Register a progress object in the registry.
@@ -321,12 +373,7 @@ public class AjaxProgress {
 	 *            the progress object to register
 	 */
 	public static void registerProgress(WOSession session, AjaxProgress progress) {
-		NSMutableDictionary progresses = (NSMutableDictionary) session.objectForKey(AjaxProgressBar.AJAX_PROGRESSES_KEY);
-		if (progresses == null) {
-			progresses = new NSMutableDictionary();
-			session.setObjectForKey(progresses, AjaxProgressBar.AJAX_PROGRESSES_KEY);
-		}
-		progresses.setObjectForKey(progress, progress.id());
+		AjaxProgressRegistry.register(session.sessionID(), progress);
 	}
 
 	/**
@@ -338,10 +385,7 @@ public class AjaxProgress {
 	 *            the progress object to unregister
 	 */
 	public static void unregisterProgress(WOSession session, AjaxProgress progress) {
-		NSMutableDictionary progresses = (NSMutableDictionary) session.objectForKey(AjaxProgressBar.AJAX_PROGRESSES_KEY);
-		if (progresses != null && progress.id() != null) {
-			progresses.removeObjectForKey(progress.id());
-		}
+		AjaxProgressRegistry.unregister(session.sessionID(), progress);
 	}
 
 	/**
@@ -354,11 +398,6 @@ public class AjaxProgress {
 	 * @return the matching progess object (or null)
 	 */
 	public static AjaxProgress progress(WOSession session, String id) {
-		AjaxProgress progress = null;
-		NSDictionary progresses = (NSDictionary) session.objectForKey(AjaxProgressBar.AJAX_PROGRESSES_KEY);
-		if (progresses != null) {
-			progress = (AjaxProgress) progresses.objectForKey(id);
-		}
-		return progress;
+		return AjaxProgressRegistry.progress(session.sessionID(), id);
 	}
 }
@@ -0,0 +1,170 @@
+package er.ajax;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.webobjects.appserver.WOSession;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+
+import er.extensions.foundation.ERXProperties;
+import er.extensions.foundation.ERXUtilities;
+
+/**
+ * The registry of the progress models that AjaxProgressBar and the upload components look up, keyed by session id and
+ * progress id. Looking up a progress doesn't need the session, so the upload request handler can answer progress polls
+ * without checking out the session the upload is running in.
+ * <p>
+ * The progress models of a session are dropped when the session times out. Progress models that haven't been looked up
+ * or moved for a while are dropped too, so progress models that were never unregistered (because the page was left in the
+ * middle of an upload) don't pile up. A progress that keeps moving is dropped once it reaches the maximum age, so
+ * one that never finishes doesn't stay forever.
+ *
+ * @property er.ajax.AjaxProgressRegistry.expiration the number of seconds after which an unused progress is dropped (default 3600)
+ * @property er.ajax.AjaxProgressRegistry.maximumAge the number of seconds after which a progress is dropped, even if it's still used (default 86400)
+ */
+public final class AjaxProgressRegistry {
+
+	private static final Map<Key, Entry> _progresses = new ConcurrentHashMap<>();
+
+	private static volatile long _lastExpiration = System.currentTimeMillis();
+
+	/**
+	 * Kept here, as the notification center doesn't keep its observers from being garbage collected
+	 */
+	private static final Observer _observer = new Observer();
+
+	static {
+		NSNotificationCenter.defaultCenter().addObserver(_observer, ERXUtilities.notificationSelector("sessionDidTimeOut"), WOSession.SessionDidTimeOutNotification, null);
+	}
+
+	private AjaxProgressRegistry() {}
+
+	/**
+	 * Registers a progress.
+	 *
+	 * @param sessionID the id of the session the progress belongs to
+	 * @param progress the progress
+	 */
+	public static void register(String sessionID, AjaxProgress progress) {
+		expireIfNecessary();
+		_progresses.put(new Key(sessionID, progress.id()), new Entry(progress));
+	}
+
+	/**
+	 * Unregisters a progress.
+	 *
+	 * @param sessionID the id of the session the progress belongs to
+	 * @param progress the progress
+	 */
+	public static void unregister(String sessionID, AjaxProgress progress) {
+		if (progress.id() != null) {
+			Entry entry = _progresses.get(new Key(sessionID, progress.id()));
+			if (entry != null && entry.progress() == progress) {
+				_progresses.remove(new Key(sessionID, progress.id()), entry);
+			}
+		}
+	}
+
+	/**
+	 * @param sessionID the id of the session the progress belongs to
+	 * @param id the id of the progress
+	 * @return the progress with the given id, null if there isn't one
+	 */
+	public static AjaxProgress progress(String sessionID, String id) {
+		if (sessionID == null || id == null) {
+			return null;
+		}
+		expireIfNecessary();
+		Entry entry = _progresses.get(new Key(sessionID, id));
+		if (entry == null) {
+			return null;
+		}
+		entry.touch();
+		return entry.progress();
+	}
+
+	/**
+	 * Unregisters all progress models of the session.
+	 *
+	 * @param sessionID the id of the session
+	 */
+	public static void unregisterAll(String sessionID) {
+		_progresses.keySet().removeIf(key -> key.sessionID().equals(sessionID));
+	}
+
+	private static long expiration() {
+		return TimeUnit.SECONDS.toMillis(ERXProperties.longForKeyWithDefault("er.ajax.AjaxProgressRegistry.expiration", 3600));
+	}
+
+	private static long maximumAge() {
+		return TimeUnit.SECONDS.toMillis(ERXProperties.longForKeyWithDefault("er.ajax.AjaxProgressRegistry.maximumAge", 86400));
+	}
+
+	/**
+	 * Drops the expired progress models, at most every tenth of the expiration time.
+	 */
+	private static void expireIfNecessary() {
+		long now = System.currentTimeMillis();
+		long expiration = expiration();
+		if (now - _lastExpiration < expiration / 10) {
+			return;
+		}
+		_lastExpiration = now;
+		long maximumAge = maximumAge();
+		for (Iterator<Entry> iterator = _progresses.values().iterator(); iterator.hasNext();) {
+			if (iterator.next().isExpired(now, expiration, maximumAge)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private record Key(String sessionID, String id) {}
+
+	/**
+	 * Drops the progress models of the sessions that time out.
+	 */
+	public static class Observer {
+		public void sessionDidTimeOut(NSNotification n) {
+			unregisterAll((String) n.object());
+		}
+	}
+
+	private static final class Entry {
+		private final AjaxProgress _progress;
+		private final long _created = System.currentTimeMillis();
+		private volatile long _lastUsed = _created;
+		private long _lastValue;
+
+		Entry(AjaxProgress progress) {
+			_progress = progress;
+		}
+
+		AjaxProgress progress() {
+			return _progress;
+		}
+
+		void touch() {
+			_lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * A progress that is still moving isn't expired, even when nobody looks at it, until it reaches the maximum age.
+		 */
+		boolean isExpired(long now, long expiration, long maximumAge) {
+			if (now - _created > maximumAge) {
+				return true;
+			}
+			if (!_progress.isDone() && !_progress.isCanceled()) {
+				long value = _progress.value();
+				if (value != _lastValue) {
+					_lastValue = value;
+					_lastUsed = now;
+				}
+			}
+			return now - _lastUsed > expiration;
+		}
+	}
+}
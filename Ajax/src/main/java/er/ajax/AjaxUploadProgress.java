@@ -1,9 +1,16 @@
 package er.ajax;
 
 import java.io.File;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import er.extensions.appserver.ERXShutdownHook;
 
 /**
  * AjaxUploadProgress is an AjaxProgress extended for tracking an Ajax File Upload.
+ * <p>
+ * The temp files of the uploads are deleted when the progress is disposed. Temp
+ * files that are still around when the application shuts down are deleted then.
  * 
  * @author mschrag
  */
@@ -12,6 +19,22 @@ public class AjaxUploadProgress extends AjaxProgress {
 		public void uploadFinished(AjaxUploadProgress progress);
 	}
 	
+	/**
+	 * The temp files that haven't been disposed yet
+	 */
+	private static final Set<File> _tempFiles = ConcurrentHashMap.newKeySet();
+
+	static {
+		new ERXShutdownHook("AjaxUploadProgress") {
+			@Override
+			public void hook() {
+				for (File tempFile : _tempFiles) {
+					tempFile.delete();
+				}
+			}
+		};
+	}
+
 	private File _tempFile;
 	private String _fileName;
 	private String _contentType;
@@ -20,7 +43,7 @@ public class AjaxUploadProgress extends AjaxProgress {
 	 * Construct an AjaxUploadProgress.
 	 * 
 	 * @param id the id of this upload
-	 * @param tempFile the File that is being written to
+	 * @param tempFile the File that is being written to, null if the upload was rejected
 	 * @param fileName the name of the file uploaded from the client
 	 * @param streamLength the total length of the stream
 	 */
@@ -28,6 +51,9 @@ public class AjaxUploadProgress extends AjaxProgress {
 		super(id, streamLength);
 		_tempFile = tempFile;
 		_fileName = fileName;
+		if (tempFile != null) {
+			_tempFiles.add(tempFile);
+		}
 	}
 
 	/**
@@ -61,7 +87,19 @@ public class AjaxUploadProgress extends AjaxProgress {
 	 */
 	@Override
 	public void dispose() {
-		_tempFile.delete();
+		if (_tempFile != null) {
+			_tempFile.delete();
+			_tempFiles.remove(_tempFile);
+		}
 		super.dispose();
 	}
+
+	/**
+	 * Forgets the temp file after the application took it over (by moving it, or keeping it), so it isn't deleted on shutdown.
+	 */
+	public void releaseTempFile() {
+		if (_tempFile != null) {
+			_tempFiles.remove(_tempFile);
+		}
+	}
 }
\ No newline at end of file
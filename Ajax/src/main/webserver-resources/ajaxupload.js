@@ -230,6 +230,13 @@
             data: {},
             // Submit file as soon as it's selected
             autoSubmit: true,
+            // Send the file in chunks of this many bytes where the browser
+            // supports it, 0 to send it in a single request
+            chunkSize: 0,
+            // Number of chunks sent at the same time
+            parallelChunks: 3,
+            // Number of times a failed chunk is sent again
+            chunkRetries: 3,
             // The type of data that you're expecting back from the server.
             // html and xml are detected automatically.
             // Only useful when you are using json data as a response.
@@ -658,6 +665,20 @@
                 return;
             }
             
+            if (settings.chunkSize > 0 && this._input.files && this._input.files.length == 1 && window.XMLHttpRequest && window.Blob && Blob.prototype.slice){
+                var blob = this._input.files[0];
+
+                removeNode(this._input.parentNode); this._input = null;
+                removeClass(self._button, self._settings.hoverClass);
+                removeClass(self._button, self._settings.focusClass);
+
+                this._submitChunks(blob, file);
+
+                // get ready for next request
+                this._createInput();
+                return;
+            }
+
             // sending request    
             var iframe = this._createIframe();
             var form = this._createForm(iframe);
@@ -681,6 +702,101 @@
 
             // get ready for next request            
             this._createInput();
+        },
+        /**
+         * Uploads the file in chunks with XMLHttpRequests. The server
+         * tells how much of the file it has, so an upload of the same file
+         * continues where it stopped. Failed chunks are sent again.
+         * @param blob the file
+         * @param file Filename to use in onComplete callback
+         */
+        _submitChunks: function(blob, file){
+            var self = this, settings = this._settings;
+            var size = blob.size, next = 0, finished = false;
+
+            function url(params){
+                var query = [];
+                for (var prop in settings.data) {
+                    if (settings.data.hasOwnProperty(prop)){
+                        query.push(encodeURIComponent(prop) + '=' + encodeURIComponent(settings.data[prop]));
+                    }
+                }
+                for (var param in params) {
+                    if (params.hasOwnProperty(param)){
+                        query.push(encodeURIComponent(param) + '=' + encodeURIComponent(params[param]));
+                    }
+                }
+                return settings.action + (settings.action.indexOf('?') < 0 ? '?' : '&') + query.join('&');
+            }
+
+            // calls back with the offset the server answered, -1 if the request failed
+            function send(method, params, body, callback){
+                var xhr = new XMLHttpRequest();
+                xhr.open(method, url(params), true);
+                xhr.onreadystatechange = function(){
+                    if (xhr.readyState != 4){
+                        return;
+                    }
+                    var offset = -1;
+                    if (xhr.status == 200){
+                        try {
+                            offset = JSON.parse(xhr.responseText).offset;
+                        } catch (e) {
+                            offset = -1;
+                        }
+                    }
+                    callback(offset, xhr.responseText);
+                };
+                xhr.send(body);
+            }
+
+            function complete(response){
+                if ( ! finished){
+                    finished = true;
+                    settings.onComplete.call(self, file, response);
+                }
+            }
+
+            function sendChunk(start, attempt){
+                var end = Math.min(start + settings.chunkSize, size);
+                send('POST', {chunked: 'chunk', offset: start}, blob.slice(start, end), function(offset, response){
+                    if (finished){
+                        return;
+                    }
+                    if (offset < 0){
+                        if (attempt < settings.chunkRetries && response.indexOf('Failed:') !== 0){
+                            setTimeout(function(){
+                                sendChunk(start, attempt + 1);
+                            }, 1000 * (attempt + 1));
+                        } else {
+                            complete(response);
+                        }
+                    } else if (offset >= size){
+                        complete(response);
+                    } else {
+                        sendNextChunk();
+                    }
+                });
+            }
+
+            function sendNextChunk(){
+                if (next < size){
+                    var start = next;
+                    next += settings.chunkSize;
+                    sendChunk(start, 0);
+                }
+            }
+
+            send('GET', {chunked: 'offset', total: size, filename: file, type: blob.type || ''}, null, function(offset, response){
+                if (offset < 0 || offset >= size){
+                    complete(response);
+                    return;
+                }
+                next = offset;
+                for (var i = 0; i < Math.max(1, settings.parallelChunks); i++){
+                    sendNextChunk();
+                }
+            });
         }
     };
 })(); 
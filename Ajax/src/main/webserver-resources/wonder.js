@@ -1161,6 +1161,33 @@ var AjaxUploadClient = Class.create({
 		this.stateChecker = setInterval(function() { self.update() }, 1000);
 	},
 	update: function() {
+		// while the upload is running, poll its progress without going through the session
+		if (this.options.statusurl && this.previousState == this.STATE.INPROGRESS) {
+			if (this.polling)
+				return;
+			this.polling = true;
+			var self = this;
+			new Ajax.Request(this.options.statusurl, {
+				method: 'get',
+				onSuccess: function(transport) {
+					self.polling = false;
+					var status = transport.responseText.evalJSON(true);
+					if (status.done) {
+						self.refresh();
+					} else {
+						$('AFUProgressBarValue' + self.id).setStyle({ width:status.progress + '%' });
+					}
+				},
+				onFailure: function() {
+					self.polling = false;
+					self.refresh();
+				}
+			});
+			return;
+		}
+		this.refresh();
+	},
+	refresh: function() {
 		var rpcResult  = this.rpc.wopage.uploadState();
 		var stateObj = rpcResult.nsdictionary;
 		var state = stateObj.state;
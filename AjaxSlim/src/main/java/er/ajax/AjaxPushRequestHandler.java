@@ -1,5 +1,9 @@
 package er.ajax;
 
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -8,9 +12,11 @@ import com.webobjects.appserver.WORequestHandler;
 import com.webobjects.appserver.WOResponse;
 import com.webobjects.appserver.WOSession;
 import com.webobjects.foundation.NSData;
+import com.webobjects.foundation.NSForwardException;
 import com.webobjects.foundation.NSNotification;
 import com.webobjects.foundation.NSNotificationCenter;
 
+import er.extensions.appserver.ERXEventStreamResponse;
 import er.extensions.appserver.ERXKeepAliveResponse;
 import er.extensions.foundation.ERXUtilities;
 
@@ -19,12 +25,19 @@ import er.extensions.foundation.ERXUtilities;
  * Gets registered under "/push/" on framework load.<br>
  * You should open an Ajax.Request, implement onInteractive: and the do
  * something useful when you get new data. Changes should be pushed with
- * push(sessionID, someString);
+ * push(sessionID, someString), or to every session with
+ * broadcast(name, someString).
+ * <p>
+ * Every message is sent as "length:message". Clients that accept
+ * text/event-stream, like the browser's EventSource, get the messages as
+ * server-sent events instead (see {@link ERXEventStreamResponse}), and
+ * missed events are sent again when they reconnect. The waiting requests are parked
+ * instead of holding a monitor, and each client queues a bounded number of
+ * messages (see {@link ERXKeepAliveResponse}), so a slow client drops messages
+ * instead of piling them up.
  * <h3>TODO:</h3>
  * <ul>
  * <li>currently the request stays open even when the client closed it (which is bad)
- * <li>implement a boundary scheme to tell when a "message" is complete. This
- * means we need a special Ajax.Request that does it.
  * <li>implement various client-side stuff to be actually useful (chats, EO
  * notifications).
  * <li>ask Frank about his EO layer
@@ -37,6 +50,9 @@ public class AjaxPushRequestHandler extends WORequestHandler {
 
 	public static final String AjaxCometRequestHandlerKey = "push";
 
+	/**
+	 * The response of each client by session and name, an {@link ERXEventStreamResponse} for clients reading an event stream
+	 */
 	private static ConcurrentHashMap<String, ConcurrentHashMap<String, ERXKeepAliveResponse>> responses = new ConcurrentHashMap<String, ConcurrentHashMap<String, ERXKeepAliveResponse>>();
 
 	public AjaxPushRequestHandler() {
@@ -50,17 +66,17 @@ public class AjaxPushRequestHandler extends WORequestHandler {
 	 */
 	public void sessionDidTimeOut(NSNotification n) {
 		String id = (String) n.object();
-		ConcurrentHashMap<String, ERXKeepAliveResponse> sessionResponses = responses.get(id);
+		ConcurrentHashMap<String, ERXKeepAliveResponse> sessionResponses = responses.remove(id);
 		if (sessionResponses != null) {
 			for (ERXKeepAliveResponse response : sessionResponses.values()) {
 				response.reset();
 			}
-			responses.remove(id);
 		}
 	}
 
 	/**
-	 * Get/Create the current request for the session and return it.
+	 * Get/Create the current request for the session and return it. Clients
+	 * accepting text/event-stream (like EventSource) get an event stream.
 	 * 
 	 * @param request the request
 	 */
@@ -68,11 +84,57 @@ public class AjaxPushRequestHandler extends WORequestHandler {
 	public WOResponse handleRequest(WORequest request) {
 		String sessionID = request.sessionID();
 		String name = request.requestHandlerPath();
-		ERXKeepAliveResponse response = responseForSessionIDNamed(sessionID, name);
+		String accept = request.headerForKey("accept");
+		if (accept != null && accept.contains(ERXEventStreamResponse.CONTENT_TYPE)) {
+			ERXEventStreamResponse response = (ERXEventStreamResponse) connect(sessionID, name, true);
+			if (response != null) {
+				String lastEventID = request.headerForKey("last-event-id");
+				if (lastEventID == null) {
+					lastEventID = request.stringFormValueForKey("lastEventId");
+				}
+				response.resume(lastEventID);
+				return response;
+			}
+		}
+		ERXKeepAliveResponse response = connect(sessionID, name, false);
 		response.reset();
 		return response;
 	}
 
+	/**
+	 * Return the response of a client that connects, replacing the one used
+	 * until now if the client switched between an event stream and a plain
+	 * response. A client has a single response, so a message is never pushed
+	 * (or counted) twice.
+	 * 
+	 * @param sessionID the session id of the response
+	 * @param name the name of the response
+	 * @param eventStream whether the client wants an event stream
+	 * @return response for ID
+	 */
+	private static ERXKeepAliveResponse connect(String sessionID, String name, boolean eventStream) {
+		if (sessionID == null) {
+			return null;
+		}
+		if (name == null) {
+			name = "";
+		}
+		ConcurrentHashMap<String, ERXKeepAliveResponse> sessionResponses = responses.computeIfAbsent(sessionID, key -> new ConcurrentHashMap<>());
+		while (true) {
+			ERXKeepAliveResponse response = sessionResponses.get(name);
+			if (response != null && (response instanceof ERXEventStreamResponse) == eventStream) {
+				return response;
+			}
+			ERXKeepAliveResponse newResponse = eventStream ? new ERXEventStreamResponse() : new ERXKeepAliveResponse();
+			if (response == null ? sessionResponses.putIfAbsent(name, newResponse) == null : sessionResponses.replace(name, response, newResponse)) {
+				if (response != null) {
+					response.reset();
+				}
+				return newResponse;
+			}
+		}
+	}
+
 	/**
 	 * Return or create the correct response for the session ID.
 	 * 
@@ -135,8 +197,9 @@ public class AjaxPushRequestHandler extends WORequestHandler {
 	}
 	
 	/**
-	 * Push a string message to the client. At the moment, there is no boundary
-	 * handling, so be aware that you could get only half of a message.
+	 * Push a string message to the client. The message is prefixed with its
+	 * length and queued as a whole, so a client that falls behind loses whole
+	 * messages, never parts of one.
 	 * 
 	 * @param sessionID the session id of the push response
 	 * @param name the name of the push response
@@ -144,18 +207,18 @@ public class AjaxPushRequestHandler extends WORequestHandler {
 	 */
 	public static void push(String sessionID, String name, String message) {
 		ERXKeepAliveResponse response = responseForSessionIDNamed(sessionID, name);
-		if (response != null) {
-			StringBuilder sb = new StringBuilder();
-			sb.append(message.length());
-			sb.append(':');
-			response.push(sb.toString());
-			response.push(message);
+		if (response instanceof ERXEventStreamResponse eventStream) {
+			eventStream.pushEvent(null, message);
+		}
+		else if (response != null) {
+			response.push(frame(message.length(), bytes(message, response.contentEncoding())));
 		}
 	}
 
 	/**
-	 * Push a data message to the client. At the moment, there is no boundary
-	 * handling, so be aware that you could get only half of a message.
+	 * Push a data message to the client. The message is prefixed with its
+	 * length and queued as a whole, so a client that falls behind loses whole
+	 * messages, never parts of one.
 	 * 
 	 * @param sessionID the session id of the push response
 	 * @param name the name of the push response
@@ -163,12 +226,137 @@ public class AjaxPushRequestHandler extends WORequestHandler {
 	 */
 	public static void push(String sessionID, String name, NSData message) {
 		ERXKeepAliveResponse response = responseForSessionIDNamed(sessionID, name);
-		if (response != null) {
-			StringBuilder sb = new StringBuilder();
-			sb.append(message.length());
-			sb.append(':');
-			response.push(sb.toString());
-			response.push(message.bytes());
+		if (response instanceof ERXEventStreamResponse eventStream) {
+			eventStream.pushEvent(null, new String(message.bytes(), StandardCharsets.UTF_8));
+		}
+		else if (response != null) {
+			byte[] bytes = message.bytes();
+			response.push(frame(bytes.length, bytes));
+		}
+	}
+
+	/**
+	 * Push a string message to the responses with the given name of all
+	 * sessions. The message is encoded once and the same data is queued for
+	 * every client.
+	 * 
+	 * @param name the name of the push responses
+	 * @param message the message to push
+	 * @return the number of clients the message was queued for
+	 */
+	public static int broadcast(String name, String message) {
+		String encoding = null;
+		byte[] data = null;
+		byte[] eventData = null;
+		int count = 0;
+		for (ERXKeepAliveResponse response : responsesNamed(name)) {
+			if (response instanceof ERXEventStreamResponse eventStream) {
+				if (eventData == null) {
+					eventData = ERXEventStreamResponse.eventData(null, message);
+				}
+				eventStream.pushEvent(eventData);
+				count++;
+				continue;
+			}
+			if (data == null || !response.contentEncoding().equals(encoding)) {
+				encoding = response.contentEncoding();
+				data = frame(message.length(), bytes(message, encoding));
+			}
+			if (response.offer(data)) {
+				count++;
+			}
 		}
+		return count;
+	}
+
+	/**
+	 * Push a data message to the responses with the given name of all
+	 * sessions. The same data is queued for every client.
+	 * 
+	 * @param name the name of the push responses
+	 * @param message the message to push
+	 * @return the number of clients the message was queued for
+	 */
+	public static int broadcast(String name, NSData message) {
+		byte[] bytes = message.bytes();
+		byte[] data = null;
+		byte[] eventData = null;
+		int count = 0;
+		for (ERXKeepAliveResponse response : responsesNamed(name)) {
+			if (response instanceof ERXEventStreamResponse eventStream) {
+				if (eventData == null) {
+					eventData = ERXEventStreamResponse.eventData(null, new String(bytes, StandardCharsets.UTF_8));
+				}
+				eventStream.pushEvent(eventData);
+				count++;
+				continue;
+			}
+			if (data == null) {
+				data = frame(bytes.length, bytes);
+			}
+			if (response.offer(data)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Push an event to the event streams with the given name of all sessions.
+	 * The event is encoded once, each stream only adds its own event id.
+	 * 
+	 * @param name the name of the event streams
+	 * @param type the type of the event, null for a message
+	 * @param data the data of the event
+	 * @return the number of clients the event was pushed to
+	 */
+	public static int broadcastEvent(String name, String type, String data) {
+		byte[] eventData = ERXEventStreamResponse.eventData(type, data);
+		int count = 0;
+		for (ERXKeepAliveResponse response : responsesNamed(name)) {
+			if (response instanceof ERXEventStreamResponse eventStream) {
+				eventStream.pushEvent(eventData);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param name the name of the push responses
+	 * @return the open responses (and event streams) with the given name, one per session
+	 */
+	private static List<ERXKeepAliveResponse> responsesNamed(String name) {
+		if (name == null) {
+			name = "";
+		}
+		List<ERXKeepAliveResponse> namedResponses = new ArrayList<>();
+		for (Map<String, ERXKeepAliveResponse> sessionResponses : responses.values()) {
+			ERXKeepAliveResponse response = sessionResponses.get(name);
+			if (response != null) {
+				namedResponses.add(response);
+			}
+		}
+		return namedResponses;
+	}
+
+	private static byte[] bytes(String message, String encoding) {
+		try {
+			return message.getBytes(encoding);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		}
+	}
+
+	/**
+	 * @return the message prefixed with "length:"
+	 */
+	private static byte[] frame(int length, byte[] message) {
+		byte[] prefix = (length + ":").getBytes(StandardCharsets.US_ASCII);
+		byte[] data = new byte[prefix.length + message.length];
+		System.arraycopy(prefix, 0, data, 0, prefix.length);
+		System.arraycopy(message, 0, data, prefix.length, message.length);
+		return data;
 	}
 }
@@ -65,6 +65,8 @@ public class AjaxUtils {
 			else {
 				response = new AjaxResponse(request, context);
 				response.setHeaders(existingResponse.headers());
+				// flushed first, the pending insertions are kept in the userInfo
+				ERXResponseRewriter.flushPendingInsertions(existingResponse);
 				response.setUserInfo(existingResponse.userInfo());
 				response.appendContentString(existingResponse.contentString());
 			}
@@ -269,7 +271,7 @@ public class AjaxUtils {
 					value = ERXNumberFormatter.numberFormatterForPattern(numberFormat).format(value);
 				}
 				if (dateFormat != null) {
-					value = ERXTimestampFormatter.dateFormatterForPattern(dateFormat).format(value);
+					value = ERXTimestampFormatter.format(value, dateFormat);
 				}
 			}
 			catch (Exception e) {
@@ -15,6 +15,8 @@ import com.webobjects.appserver.WORequest;
 import com.webobjects.appserver.WOResponse;
 import com.webobjects.foundation.NSLog;
 
+import er.extensions.localization.ERXLocalizer;
+
 public abstract class WOLongResponsePage extends WOComponent implements Runnable {
 
     static String WOMetaRefreshSenderId = "WOMetaRefresh";
@@ -137,7 +139,12 @@ public abstract class WOLongResponsePage extends WOComponent implements Runnable
         if (!_performingAction) {
             _performingAction = true;
             try {
-                Thread t = new Thread(this, "WOLongResponsePage: " + getClass().getName());
+                // The thread outlives the request, so it only takes the localizer along, not the request's context or session
+                final ERXLocalizer localizer = ERXLocalizer.currentLocalizer();
+                Thread t = new Thread(() -> {
+                    ERXLocalizer.setCurrentLocalizer(localizer);
+                    run();
+                }, "WOLongResponsePage: " + getClass().getName());
                 t.start();
             } catch (Exception localException) {
                 throw new RuntimeException ("<WOLongResponsePage> Exception occurred while creating long response thread: "+localException.toString());
@@ -7,6 +7,7 @@ import java.net.URL;
 import com.webobjects.foundation.NSForwardException;
 
 import er.extensions.appserver.ERXApplication;
+import er.extensions.foundation.ERXProperties;
 
 public class ERXAppRunner {
 
@@ -77,6 +78,7 @@ public class ERXAppRunner {
 			}
 			// Odds are you are only using this method for test cases and development mode
 			System.setProperty("er.extensions.ERXApplication.developmentMode", "true");
+			ERXProperties.systemPropertiesChanged();
 			ERXApplication.primeApplication(mainBundleName, mainBundleURL, applicationSubclass.getName());
 			// NSNotificationCenter.defaultCenter().postNotification(new NSNotification(ERXApplication.ApplicationDidCreateNotification, WOApplication.application()));
 		}
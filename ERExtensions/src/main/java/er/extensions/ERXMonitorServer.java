@@ -2,13 +2,18 @@ package er.extensions;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Executors;
+import java.util.stream.LongStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,17 +21,45 @@ import org.slf4j.LoggerFactory;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import com.webobjects.appserver.WOApplication;
 
+import er.extensions.appserver.ERXApplication;
+import er.extensions.appserver.ERXLowMemoryHandler;
+import er.extensions.appserver.ERXResourceManager;
+import er.extensions.appserver.ERXStaticResourceCache;
+import er.extensions.appserver.ERXStaticResourceRequestHandler;
+import er.extensions.appserver.ajax.ERXAjaxSession;
 import er.extensions.foundation.ERXProperties;
+import er.extensions.statistics.ERXLatencyHistogram;
+import er.extensions.statistics.ERXStatisticsStore;
 
 /**
  * Access point for Monitor operations that get info and/or perform admin operations
+ *
+ * <ul>
+ * <li><code>/monitor/jstack</code>: A thread dump</li>
+ * <li><code>/monitor/metrics</code>: Runtime metrics in the OpenMetrics text format (request latencies per request handler, sessions, memory, GC, threads and caches).
+ * Request latencies are only available if the application uses ERXStatisticsStore.</li>
+ * <li><code>/monitor/health</code>: 200 as long as the application is running</li>
+ * <li><code>/monitor/ready</code>: 200 if the application has finished launching and accepts new sessions, 503 otherwise (so load balancers can drain the instance)</li>
+ * </ul>
+ *
+ * All operations except health and ready require the monitor service password in the <code>monitor-service-password</code> header.
  */
 
 public class ERXMonitorServer {
 
 	private static Logger logger = LoggerFactory.getLogger( ERXMonitorServer.class );
 
+	private static final String OPENMETRICS_CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+	/**
+	 * Upper bounds of the request latency histogram buckets, in microseconds. The usual bounds (5ms, 10ms, 25ms ... 30s) rounded
+	 * up to the upper bound of the ERXLatencyHistogram bucket containing them (at most 6% more), so the buckets count exactly
+	 * the values at or below their bound.
+	 */
+	private static final long[] LATENCY_BUCKETS = LongStream.of( 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000, 30000000 ).map( ERXLatencyHistogram::bucketUpperBound ).toArray();
+
 	public static void start( int port ) throws IOException {
 		// Just for logging startup time / how expensive the monitoring service is
 		long monitorStartupTime = System.currentTimeMillis();
@@ -51,35 +84,58 @@ public class ERXMonitorServer {
 
 		@Override
 		public void handle( HttpExchange exchange ) throws IOException {
+			final String path = exchange.getRequestURI().getPath();
+
+			// Load balancers probe these without credentials, and they don't reveal anything but the instance's state
+			if( path.equals( "/monitor/health" ) ) {
+				sendResponse( exchange, 200, "text/plain; charset=utf-8", "OK" );
+				return;
+			}
+
+			if( path.equals( "/monitor/ready" ) ) {
+				final boolean ready = isReady();
+				sendResponse( exchange, ready ? 200 : 503, "text/plain; charset=utf-8", ready ? "READY" : "NOT READY" );
+				return;
+			}
 
 			final List<String> providedPassword = exchange.getRequestHeaders().get( "monitor-service-password" );
 
-			if( providedPassword.isEmpty() ) {
-				throw new IllegalStateException( "No password provided" );
+			if( providedPassword == null || providedPassword.isEmpty() ) {
+				sendResponse( exchange, 401, "text/plain; charset=utf-8", "No password provided" );
+				return;
 			}
 
 			if( !Objects.equals( password(), providedPassword.getFirst() ) ) {
-				throw new IllegalStateException( "Wrong password" );
+				sendResponse( exchange, 403, "text/plain; charset=utf-8", "Wrong password" );
+				return;
 			}
 
+			switch( path ) {
+				case "/monitor/jstack" -> sendResponse( exchange, 200, "text/plain; charset=utf-8", threadDumpAsString( true, true ) );
+				case "/monitor/metrics" -> sendResponse( exchange, 200, OPENMETRICS_CONTENT_TYPE, metricsAsString() );
+				default -> sendResponse( exchange, 404, "text/plain; charset=utf-8", "Unknown operation" );
+			}
+		}
+	}
 
-			if( exchange.getRequestURI().toString().equals( "/monitor/jstack" ) ) {
-				final String responseString = threadDumpAsString( true, true );
-				final byte[] responseBytes = responseString.getBytes();
-				exchange.sendResponseHeaders( 200, responseBytes.length );
+	private static void sendResponse( final HttpExchange exchange, final int status, final String contentType, final String responseString ) throws IOException {
+		final byte[] responseBytes = responseString.getBytes( StandardCharsets.UTF_8 );
+		exchange.getResponseHeaders().set( "content-type", contentType );
+		exchange.sendResponseHeaders( status, responseBytes.length );
 
-				try( final OutputStream os = exchange.getResponseBody()) {
-					os.write( responseBytes );
-				}
-			}
-			else {
-				try( final OutputStream os = exchange.getResponseBody()) {
-					os.write( "Unknown operation".getBytes() );
-				}
-			}
+		try( final OutputStream os = exchange.getResponseBody()) {
+			os.write( responseBytes );
 		}
 	}
 
+	/**
+	 * @return true if the application has finished launching and isn't refusing new sessions (which includes being starved for memory)
+	 */
+	private static boolean isReady() {
+		final WOApplication application = WOApplication.application();
+		return application != null && ERXApplication.hasFinishedLaunching() && !application.isTerminating() && !application.isRefusingNewSessions();
+	}
+
 	/**
 	 * @return A thread dump as a string
 	 */
@@ -93,4 +149,166 @@ public class ERXMonitorServer {
 
 		return threadDump.toString();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return The application's and the JVM's metrics in the OpenMetrics text format
+	 */
+	private static String metricsAsString() {
+		final OpenMetricsWriter writer = new OpenMetricsWriter();
+		final WOApplication application = WOApplication.application();
+
+		if( application != null ) {
+			writer.type( "erx_ready", "gauge", "Whether the application accepts new sessions" );
+			writer.sample( "erx_ready", null, isReady() ? 1 : 0 );
+
+			writer.type( "erx_sessions_active", "gauge", "Number of active sessions" );
+			writer.sample( "erx_sessions_active", null, application.activeSessionsCount() );
+
+			writer.type( "erx_sessions_refusing", "gauge", "Whether the application refuses new sessions" );
+			writer.sample( "erx_sessions_refusing", null, application.isRefusingNewSessions() ? 1 : 0 );
+
+			writer.type( "erx_page_cache_size", "gauge", "Number of pages in the page caches of all sessions" );
+			writer.sample( "erx_page_cache_size", null, ERXAjaxSession.cachedPageCount() );
+
+			writer.type( "erx_permanent_page_cache_size", "gauge", "Number of pages in the permanent page caches of all sessions" );
+			writer.sample( "erx_permanent_page_cache_size", null, ERXAjaxSession.permanentCachedPageCount() );
+
+			if( application instanceof ERXApplication erxApplication && erxApplication.lowMemoryHandler() != null ) {
+				final ERXLowMemoryHandler lowMemoryHandler = erxApplication.lowMemoryHandler();
+				writer.type( "erx_memory_low", "gauge", "Whether the application is low on memory" );
+				writer.sample( "erx_memory_low", null, lowMemoryHandler.isMemoryLow() ? 1 : 0 );
+				writer.type( "erx_memory_starved", "gauge", "Whether the application is starved for memory" );
+				writer.sample( "erx_memory_starved", null, lowMemoryHandler.isMemoryStarved() ? 1 : 0 );
+			}
+
+			if( application.statisticsStore() instanceof ERXStatisticsStore statisticsStore ) {
+				writer.type( "erx_requests_in_flight", "gauge", "Number of requests being handled" );
+				writer.sample( "erx_requests_in_flight", null, statisticsStore.inFlightRequestCount() );
+
+				writer.type( "erx_request_duration_seconds", "histogram", "Request latency by request handler" );
+
+				for( final Map.Entry<String, ERXLatencyHistogram> entry : statisticsStore.requestHandlerLatencies().entrySet() ) {
+					writer.latencyHistogram( "erx_request_duration_seconds", "handler", entry.getKey(), entry.getValue() );
+				}
+			}
+
+			if( application.resourceManager() instanceof ERXResourceManager resourceManager ) {
+				writer.type( "erx_resource_url_cache_hits", "counter", "Resource URLs served from the URL cache" );
+				writer.sample( "erx_resource_url_cache_hits_total", null, resourceManager.urlCacheHits() );
+				writer.type( "erx_resource_url_cache_misses", "counter", "Resource URLs that weren't in the URL cache" );
+				writer.sample( "erx_resource_url_cache_misses_total", null, resourceManager.urlCacheMisses() );
+				writer.type( "erx_resource_url_cache_entries", "gauge", "Resource URLs in the URL cache" );
+				writer.sample( "erx_resource_url_cache_entries", null, resourceManager.urlCacheSize() );
+			}
+
+			// Scraping doesn't create the cache, it's created by the first static resource request
+			final ERXStaticResourceCache staticResourceCache = ERXStaticResourceRequestHandler.existingResourceCache();
+
+			if( staticResourceCache != null ) {
+				writer.type( "erx_static_resource_cache_entries", "gauge", "Static resources in the resource cache" );
+				writer.sample( "erx_static_resource_cache_entries", null, staticResourceCache.count() );
+				writer.type( "erx_static_resource_cache_bytes", "gauge", "Size of the static resources in the resource cache" );
+				writer.sample( "erx_static_resource_cache_bytes", null, staticResourceCache.size() );
+			}
+		}
+
+		final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		writer.type( "jvm_memory_heap_used_bytes", "gauge", "Used heap memory" );
+		writer.sample( "jvm_memory_heap_used_bytes", null, heap.getUsed() );
+		writer.type( "jvm_memory_heap_committed_bytes", "gauge", "Committed heap memory" );
+		writer.sample( "jvm_memory_heap_committed_bytes", null, heap.getCommitted() );
+		writer.type( "jvm_memory_heap_max_bytes", "gauge", "Maximum heap memory" );
+		writer.sample( "jvm_memory_heap_max_bytes", null, heap.getMax() );
+
+		final List<GarbageCollectorMXBean> garbageCollectors = ManagementFactory.getGarbageCollectorMXBeans();
+		writer.type( "jvm_gc_collections", "counter", "Number of garbage collections" );
+
+		for( final GarbageCollectorMXBean garbageCollector : garbageCollectors ) {
+			writer.sample( "jvm_gc_collections_total", "gc=\"" + escape( garbageCollector.getName() ) + "\"", garbageCollector.getCollectionCount() );
+		}
+
+		writer.type( "jvm_gc_collection_seconds", "counter", "Time spent in garbage collections" );
+
+		for( final GarbageCollectorMXBean garbageCollector : garbageCollectors ) {
+			writer.sample( "jvm_gc_collection_seconds_total", "gc=\"" + escape( garbageCollector.getName() ) + "\"", garbageCollector.getCollectionTime() / 1000.0 );
+		}
+
+		final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		writer.type( "jvm_threads_current", "gauge", "Number of live platform threads" );
+		writer.sample( "jvm_threads_current", null, threadMXBean.getThreadCount() );
+		writer.type( "jvm_threads_daemon", "gauge", "Number of live daemon threads" );
+		writer.sample( "jvm_threads_daemon", null, threadMXBean.getDaemonThreadCount() );
+		writer.type( "jvm_threads_peak", "gauge", "Peak number of live platform threads" );
+		writer.sample( "jvm_threads_peak", null, threadMXBean.getPeakThreadCount() );
+
+		writer.type( "process_uptime_seconds", "gauge", "Time since the JVM started" );
+		writer.sample( "process_uptime_seconds", null, ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0 );
+
+		return writer.toString();
+	}
+
+	/**
+	 * @return The given label value escaped for the OpenMetrics text format
+	 */
+	private static String escape( final String labelValue ) {
+		return labelValue.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ).replace( "\n", "\\n" );
+	}
+
+	/**
+	 * Builds an OpenMetrics text exposition
+	 */
+	private static class OpenMetricsWriter {
+
+		private final StringBuilder _sb = new StringBuilder( 4096 );
+
+		private void type( final String family, final String type, final String help ) {
+			_sb.append( "# TYPE " ).append( family ).append( ' ' ).append( type ).append( '\n' );
+			_sb.append( "# HELP " ).append( family ).append( ' ' ).append( help ).append( '\n' );
+		}
+
+		/**
+		 * @param labels The sample's labels (for example <code>handler="wo"</code>), or null
+		 */
+		private void sample( final String name, final String labels, final double value ) {
+			_sb.append( name );
+
+			if( labels != null ) {
+				_sb.append( '{' ).append( labels ).append( '}' );
+			}
+
+			_sb.append( ' ' );
+
+			if( value == Math.rint( value ) && !Double.isInfinite( value ) ) {
+				_sb.append( (long) value );
+			}
+			else {
+				_sb.append( value );
+			}
+
+			_sb.append( '\n' );
+		}
+
+		/**
+		 * Writes a histogram of latencies recorded in microseconds as a histogram in seconds
+		 */
+		private void latencyHistogram( final String family, final String labelName, final String labelValue, final ERXLatencyHistogram histogram ) {
+			final String label = labelName + "=\"" + escape( labelValue ) + "\"";
+			// Read the count first, so the +Inf bucket (and the count) is never lower than the other buckets
+			final long count = histogram.count();
+			final double sum = histogram.sum() / 1000000.0;
+
+			for( final long bucket : LATENCY_BUCKETS ) {
+				sample( family + "_bucket", label + ",le=\"" + bucket / 1000000.0 + "\"", Math.min( count, histogram.countAtOrBelow( bucket ) ) );
+			}
+
+			sample( family + "_bucket", label + ",le=\"+Inf\"", count );
+			sample( family + "_count", label, count );
+			sample( family + "_sum", label, sum );
+		}
+
+		@Override
+		public String toString() {
+			return _sb.toString() + "# EOF\n";
+		}
+	}
+}
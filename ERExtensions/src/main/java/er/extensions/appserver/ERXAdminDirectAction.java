@@ -116,6 +116,7 @@ public class ERXAdminDirectAction extends WODirectAction {
 				java.util.Properties p = System.getProperties();
 				p.put(key, value);
 				System.setProperties(p);
+				ERXProperties.systemPropertiesChanged();
 				ERXLoggingSupport.configureLoggingWithSystemProperties();
 				for (java.util.Enumeration e = p.keys(); e.hasMoreElements();) {
 					Object k = e.nextElement();
@@ -168,7 +168,12 @@ public abstract class ERXApplication extends ERXAjaxApplication {
 	/**
 	 * Keeps track of whether didFinishLaunching has been invoked. We use this to keep track of whether we can declare variables that are dependent on configuration as constant (as this is written, only applies to isDevelopmentMode)
 	 */
-	private static boolean didFinishLaunchingInvoked = false;
+	private static volatile boolean didFinishLaunchingInvoked = false;
+
+	/**
+	 * Handle for <code>er.extensions.ERXApplication.fixCachingEnabled</code>, read for every component definition lookup
+	 */
+	private final ERXProperties.BooleanHandle _fixCachingEnabled = ERXProperties.booleanHandle("er.extensions.ERXApplication.fixCachingEnabled", true);
 
 	/**
 	 * Keeps track of whether the application is running in development mode. Set in didFinishLaunching and used after that, since we assume this value will never change after the application has been initialized
@@ -555,7 +560,7 @@ public abstract class ERXApplication extends ERXAjaxApplication {
 	@Override
 	public WOComponentDefinition _componentDefinition(String s, NSArray nsarray) {
 
-		if (ERXProperties.booleanForKeyWithDefault("er.extensions.ERXApplication.fixCachingEnabled", true)) {
+		if (_fixCachingEnabled.get()) {
 			// _expectedLanguages already contains all the languages in all projects,
 			// so there is no need to check for the ones that come in...
 			return super._componentDefinition(s, (nsarray != null ? nsarray.arrayByAddingObjectsFromArray(_expectedLanguages()) : _expectedLanguages()));
@@ -573,6 +578,13 @@ public abstract class ERXApplication extends ERXAjaxApplication {
 		return true;
 	}
 
+	/**
+	 * @return the handler watching the state of the application's memory heap
+	 */
+	public ERXLowMemoryHandler lowMemoryHandler() {
+		return _lowMemoryHandler;
+	}
+
 	/**
 	 * Overridden to return the super value OR true if the app is memory starved.
 	 */
@@ -775,6 +787,15 @@ public abstract class ERXApplication extends ERXAjaxApplication {
 		}
 	}
 
+	/**
+	 * Overridden to splice the content added to the head of the page into the response, see {@link ERXResponseRewriter#flushPendingInsertions(WOResponse)}.
+	 */
+	@Override
+	public void appendToResponse(WOResponse response, WOContext context) {
+		super.appendToResponse(response, context);
+		ERXResponseRewriter.flushPendingInsertions(response);
+	}
+
 	public WOResponse dispatchRequest(WORequest request) {
 		WOResponse response;
 
@@ -792,13 +813,18 @@ public abstract class ERXApplication extends ERXAjaxApplication {
 			ERXThreadStorage.reset();
 		}
 
+		// Responses that weren't generated by appendToResponse (like the ones of direct actions) might still have content for the head
+		if (ERXResponseRewriter.flushPendingInsertions(response) && response.headerForKey("content-length") != null) {
+			response.setHeader(String.valueOf(response.content().length()), "content-length");
+		}
+
 		if (requestHandlingLog.isDebugEnabled()) {
 			requestHandlingLog.debug("Returning, encoding: " + response.contentEncoding() + " response: " + response);
 		}
 
 		if( ERXResponseCompression.responseCompressionEnabled() ) {
 			if( ERXResponseCompression.shouldCompress( request, response ) ) {
-				response = ERXResponseCompression.compressResponse( response );
+				response = ERXResponseCompression.compressResponse( request, response );
 			}
 		}
 
@@ -837,6 +863,13 @@ public abstract class ERXApplication extends ERXAjaxApplication {
 		return developmentMode;
 	}
 
+	/**
+	 * @return true once the application has finished launching and is ready for accepting requests
+	 */
+	public static boolean hasFinishedLaunching() {
+		return didFinishLaunchingInvoked;
+	}
+
 	/**
 	 * @return whether or not the current application is in development mode
 	 */
@@ -1,22 +1,17 @@
 package er.extensions.appserver;
 
 import java.util.Map;
-import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.webobjects.appserver.WORequest;
-import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
-import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSForwardException;
 import com.webobjects.foundation.NSMutableDictionary;
 
-import er.extensions.foundation.ERXUtilities;
-
 /**
  * All WebObjects applications have exactly one <code>ERXBrowserFactory</code> 
  * instance. Its primary role is to manage {@link ERXBrowser} objects. 
@@ -37,15 +32,13 @@ import er.extensions.foundation.ERXUtilities;
  * provide {@link ERXSession#browser() browser} method 
  * that returns a browser object for the current request for you.
  * <p>
- * Note that <code>ERXSession</code> and <code>ERXDirectAction</code> 
- * call <code>ERXBrowserFactory</code>'s 
- * {@link #retainBrowser retainBrowser} and {@link #releaseBrowser releaseBrowser}  
- * to put the browser object to the browser pool when it is 
- * created and to remove the browser object from the pool when 
- * it is no longer referred from sessions and direct actions. 
- * <code>ERXSession</code> and <code>ERXDirectAction</code> 
- * automatically handle this and you do not have to call these 
- * methods from your code.<br>
+ * The browser pool is a bounded concurrent map that is cleared when
+ * it grows too large. Browsers don't need to be retained or released,
+ * and looking them up doesn't lock the factory. User-agent strings are
+ * classified in a single pass (see {@link ERXUserAgentClassifier}), and the
+ * browsers for the recently seen ones are cached; the cache evicts the
+ * user-agent strings that haven't been seen for a while, see
+ * {@link #userAgentCacheStatistics()}.<br>
  * <p>
  * The current implementation of the parsers support variety of 
  * Web browsers in the market such as Internet Explorer (IE), 
@@ -116,15 +109,20 @@ public class ERXBrowserFactory {
      */
     private static ERXBrowserFactory _factory;
 
-    /** 
-     * Expressions that define a robot
+    /**
+     * Maximum number of user-agent strings kept in _cache
      */
-    private static final NSMutableArray<Pattern> robotExpressions = new NSMutableArray();
+    private static final int MAX_CACHED_USER_AGENTS = 10000;
+
+    /**
+     * Maximum number of distinct browsers kept in the browser pool before it gets cleared
+     */
+    private static final int MAX_POOLED_BROWSERS = 1000;
 
     /** 
      * Mapping of UAs to browsers
      */
-    private static final Map _cache = new ConcurrentHashMap<>();
+    private static final UserAgentCache _cache = new UserAgentCache(MAX_CACHED_USER_AGENTS);
 
     /**
      * Gets the singleton browser factory object.
@@ -192,6 +190,26 @@ public class ERXBrowserFactory {
     public ERXBrowserFactory() {
         // ENHANCEME: (tk) to arrow to set the class name from property files and launch arguments. 
         setBrowserClassName(System.getProperty("er.extensions.ERXBrowserFactory.BrowserClassName", _DEFAULT_BROWSER_CLASS_NAME));
+        _overridesParsers = _overridesParsers();
+    }
+
+    /**
+     * true if a subclass overrides one of the parse methods, so they have to be called one by one
+     */
+    private final boolean _overridesParsers;
+
+    private boolean _overridesParsers() {
+        for (String name : new String[] { "parseBrowserName", "parseVersion", "parseMozillaVersion", "parsePlatform", "parseCPU", "parseGeckoVersion" }) {
+            try {
+                if (getClass().getMethod(name, String.class).getDeclaringClass() != ERXBrowserFactory.class) {
+                    return true;
+                }
+            }
+            catch (NoSuchMethodException e) {
+                throw NSForwardException._runtimeExceptionForThrowable(e);
+            }
+        }
+        return false;
     }
 
     /** 
@@ -199,13 +217,7 @@ public class ERXBrowserFactory {
      * Parses <code>"user-agent"</code> string in the request and gets 
      * the appropriate browser object. 
      * <p>
-     * This is the primary method to call from application logics, and 
-     * once you get a browser object, you are responsible to call 
-     * {@link #retainBrowser retainBrowser} to keep the browser 
-     * object in the browser pool. 
-     * <p>
-     * You are also required to call {@link #releaseBrowser releaseBrowser} 
-     * to release the browser from the pool when it is no longer needed. 
+     * This is the primary method to call from application logics.
      * 
      * @param request - WORequest
      * @return a shared browser object
@@ -226,12 +238,7 @@ public class ERXBrowserFactory {
      * <p>
      * Use this method to retrieve a browser instance from an existing
      * user-agent string rather than a request object (e.g. you're 
-     * recreating a browser instance from a past user-agent string). Once 
-     * you get the browser object, you are responsible for calling {@link 
-     * #retainBrowser retainBrowser} to keep it in the browser pool. 
-     * <p>
-     * You are also required to call {@link #releaseBrowser releaseBrowser} 
-     * to release the browser from the pool when it is no longer needed. 
+     * recreating a browser instance from a past user-agent string).
      * 
      * @param ua - user agent string (e.g. from request headers)
      * @return a shared browser object
@@ -242,26 +249,45 @@ public class ERXBrowserFactory {
             		ERXBrowser.UNKNOWN_VERSION, ERXBrowser.UNKNOWN_PLATFORM, null);
         }
         
-       	ERXBrowser result = (ERXBrowser) _cache.get(ua);
+       	ERXBrowser result = _cache.get(ua);
        	if (result == null) {
-       		String browserName 		= parseBrowserName(ua);
-       		String version 			= parseVersion(ua);
-       		String mozillaVersion	= parseMozillaVersion(ua);
-       		String platform 		= parsePlatform(ua);
-       		NSDictionary userInfo 	= new NSDictionary(
-       				new Object[] {parseCPU(ua), parseGeckoVersion(ua)},
-       				new Object[] {"cpu", "geckoRevision"});
-       		
-        	result = getBrowserInstance(browserName, version, mozillaVersion, platform, userInfo);
+       		if (_overridesParsers) {
+       			String browserName 		= parseBrowserName(ua);
+       			String version 			= parseVersion(ua);
+       			String mozillaVersion	= parseMozillaVersion(ua);
+       			String platform 		= parsePlatform(ua);
+       			NSDictionary userInfo 	= new NSDictionary(
+       					new Object[] {parseCPU(ua), parseGeckoVersion(ua)},
+       					new Object[] {"cpu", "geckoRevision"});
+       			result = getBrowserInstance(browserName, version, mozillaVersion, platform, userInfo);
+       		}
+       		else {
+       			ERXUserAgentClassifier.Classification classification = ERXUserAgentClassifier.classify(ua);
+       			NSDictionary userInfo 	= new NSDictionary(
+       					new Object[] {classification.cpu(), classification.geckoRevision()},
+       					new Object[] {"cpu", "geckoRevision"});
+       			result = getBrowserInstance(classification.browserName(), classification.version(), classification.mozillaVersion(), classification.platform(), userInfo);
+       		}
         	_cache.put(ua,result);
         }
         return result;
     }
 
+    /**
+     * Returns the statistics of the cache of browsers by user-agent string: the number of
+     * <code>hits</code> and <code>misses</code>, the <code>hitRate</code> (between 0 and 1),
+     * the number of <code>evictions</code> and the current <code>size</code>.
+     * 
+     * @return the statistics of the user-agent cache
+     */
+    public NSDictionary<String, Object> userAgentCacheStatistics() {
+        return _cache.statistics();
+    }
+
     /** 
      * Gets a shared browser object from browser pool. If such browser 
      * object does not exist, this method will create one by using 
-     * {@link #createBrowser createBrowser} method.
+     * {@link #createBrowser createBrowser} method and add it to the pool.
      * 
      * @param browserName string
      * @param version string
@@ -271,11 +297,19 @@ public class ERXBrowserFactory {
      * 
      * @return a shared browser object
      */
-    public synchronized ERXBrowser getBrowserInstance(String browserName, String version, String mozillaVersion, String platform, NSDictionary userInfo) {
+    public ERXBrowser getBrowserInstance(String browserName, String version, String mozillaVersion, String platform, NSDictionary userInfo) {
         String key = _computeKey(browserName, version, mozillaVersion, platform, userInfo);
-        ERXBrowser browser = (ERXBrowser)_browserPool().objectForKey(key);
-        if (browser == null) 
+        ERXBrowser browser = _browserPool.get(key);
+        if (browser == null) {
             browser = createBrowser(browserName, version, mozillaVersion, platform, userInfo);
+            if (_browserPool.size() >= MAX_POOLED_BROWSERS) {
+                _browserPool.clear();
+            }
+            ERXBrowser existing = _browserPool.putIfAbsent(key, browser);
+            if (existing != null) {
+                browser = existing;
+            }
+        }
         return browser;
     }
 
@@ -297,7 +331,7 @@ public class ERXBrowserFactory {
      * 
      * @return new browser object that is a concrete subclass of <code>ERXBrowser</code>
      */
-    public synchronized ERXBrowser createBrowser(String browserName, String version, String mozillaVersion, String platform, NSDictionary userInfo) {
+    public ERXBrowser createBrowser(String browserName, String version, String mozillaVersion, String platform, NSDictionary userInfo) {
         ERXBrowser browser = null;
         try {
             browser = _createBrowserWithClassName(browserClassNameForBrowserNamed(browserName), browserName, version, mozillaVersion, platform, userInfo);
@@ -339,31 +373,23 @@ public class ERXBrowserFactory {
         
 
     /**
-     * Retains a given browser object.
+     * Browsers are pooled when they are created and don't need to be retained anymore.
      * 
      * @param browser to be retained
+     * @deprecated does nothing
      */
-    public synchronized void retainBrowser(ERXBrowser browser) {
-        String key = _computeKey(browser);
-        _browserPool().setObjectForKey(browser, key);
-        _incrementReferenceCounterForKey(key);
+    @Deprecated
+    public void retainBrowser(ERXBrowser browser) {
     }
 
     /**
-     * Decrements the retain count for a given browser object.
+     * Browsers are pooled when they are created and don't need to be released anymore.
      * 
      * @param browser to be released
+     * @deprecated does nothing
      */
-    public synchronized void releaseBrowser(ERXBrowser browser) {
-        String key = _computeKey(browser);
-        AtomicInteger count = _decrementReferenceCounterForKey(key);
-        if (count == null) {
-            // Perhaps forgot to call registerBrowser() but try to remove the browser for sure
-            _browserPool().removeObjectForKey(key);
-        } else if (count.intValue() <= 0) {
-            _browserPool().removeObjectForKey(key);
-            _referenceCounters().removeObjectForKey(key);
-        } 
+    @Deprecated
+    public void releaseBrowser(ERXBrowser browser) {
     }
 
     /**
@@ -378,286 +404,98 @@ public class ERXBrowserFactory {
     }
 
     public String parseBrowserName(String userAgent) {
-        String browserString = _browserString(userAgent);
-        String browser  = ERXBrowser.UNKNOWN_BROWSER;
-        if (isRobot(browserString)) 						browser  = ERXBrowser.ROBOT;
-        else if (browserString.indexOf("Edge") > -1) 		browser  = ERXBrowser.EDGE;
-        else if (browserString.indexOf("Chrome") > -1) 		browser  = ERXBrowser.CHROME;
-        else if (browserString.indexOf("MSIE") > -1 || browserString.indexOf("Trident") > -1)	browser  = ERXBrowser.IE;
-        else if (browserString.indexOf("Safari") > -1) 		browser  = ERXBrowser.SAFARI;
-        else if (browserString.indexOf("Firefox") > -1) 	browser  = ERXBrowser.FIREFOX;
-        else if (browserString.indexOf("OmniWeb") > -1)		browser  = ERXBrowser.OMNIWEB;
-        else if (browserString.indexOf("iCab") > -1)		browser  = ERXBrowser.ICAB;
-        else if (browserString.indexOf("Opera") > -1)		browser  = ERXBrowser.OPERA;
-        else if (browserString.indexOf("Netscape") > -1)	browser  = ERXBrowser.NETSCAPE;
-        else if (browserString.startsWith("Mozilla") && (browserString.indexOf("compatible") == -1))	browser  = ERXBrowser.MOZILLA;
-
-        // This condition should always come last because *all* browsers have 
-        // the word Mozilla at the beginning of their user-agent string. 
-        else if (browserString.indexOf("Mozilla") > -1)		browser  = ERXBrowser.NETSCAPE;
-
-        return browser;
+        return ERXUserAgentClassifier.classify(userAgent).browserName();
     }
 
-    private boolean isRobot(String userAgent) {
-    	synchronized (robotExpressions) {
-			if(robotExpressions.count()==0) {
-				String strings = ERXUtilities.stringFromResource("robots", "txt", "ERExtensions");
-				for (String item : NSArray.componentsSeparatedByString(strings, "\n")) {
-					if(item.trim().length() > 0 && item.charAt(0) != '#') {
-						robotExpressions.addObject(Pattern.compile(item));
-					}
-				}
-			}
-			userAgent = userAgent.toLowerCase();
-			for (Pattern pattern : robotExpressions) {
-				if (pattern.matcher(userAgent).find()) {
-					log.debug("{} matches {}", pattern, userAgent);
-					return true;
-				}
-			}
-		}
-		
-    	return false;
-    }
-    
     public String parseGeckoVersion(String userAgent) {
-    	if (userAgent.indexOf("Gecko") >= 0) {
-    		final String revString = "; rv:";
-    		int startPos = userAgent.indexOf(revString) + revString.length();
-            if (startPos > revString.length()) {
-            	
-            	int endPos = userAgent.indexOf(")", startPos);
-            	
-            	if (endPos > startPos) {
-            		return userAgent.substring(startPos, endPos);
-            	} 	
-            }
-        }
-        return ERXBrowser.NO_GECKO;
+        return ERXUserAgentClassifier.classify(userAgent).geckoRevision();
     }
 
     public String parseVersion(String userAgent) {
-        String versionString = _versionString(userAgent);
-        int startpos;
-        String version = ERXBrowser.UNKNOWN_VERSION;
-        
-        // Remove "Netscape6" from string such as "Netscape6/6.2.3", 
-        // otherwise this method will produce wrong result "6/6.2.3" as the version
-        final String netscape6 = "Netscape6";
-        startpos = versionString.indexOf(netscape6);
-        if (startpos > -1) 
-            versionString = versionString.substring(startpos + netscape6.length());
-        
-        // Find first numeric in the string such as "MSIE 5.21; Mac_PowerPC)"
-        startpos = indexOfNumericInString(versionString);
-
-        if (startpos > -1) {
-            StringTokenizer st = new StringTokenizer(versionString.substring(startpos), " ;"); 
-            if (st.hasMoreTokens()) 
-                version = st.nextToken();  // Will return "5.21" portion of "5.21; Mac_PowerPC)"
-        }
-		// Test if we got a real number
-		try {
-	        String normalizedVersion = ERXBrowser.removeExtraDotsFromVersionString(version);
-			Double.parseDouble(normalizedVersion);
-		}
-		catch (NumberFormatException e) {
-			version = ERXBrowser.UNKNOWN_VERSION;
-		}
-        return version;
+        return ERXUserAgentClassifier.classify(userAgent).version();
     }
-    
- 	/**
- 	 * Locate the the first numeric character in the given string.
- 	 * 
- 	 * @param str string to scan
- 	 * @return position in string or -1 if no numeric found
- 	 */
- 	private static int indexOfNumericInString(String str) {
- 		return indexOfNumericInString(str, 0);
- 	}
-
- 	/**
- 	 * Locate the the first numeric character after <code>fromIndex</code> in the given string.
- 	 * 
- 	 * @param str string to scan
- 	 * @param fromIndex index position from where to start
- 	 * @return position in string or -1 if no numeric found
- 	 */
- 	private static int indexOfNumericInString(String str, int fromIndex) {
- 		if (str == null)
- 			throw new IllegalArgumentException("String cannot be null.");
-
- 		int pos = -1;
- 		for (int i = fromIndex; i < str.length(); i++) {
- 			char c = str.charAt(i);
- 			if ('0' <= c && c <= '9') {
- 				pos = i;
- 				break;
- 			}
- 		}
- 		return pos;
- 	}
 
     public String parseMozillaVersion(String userAgent) {
-        final String mozilla = "Mozilla/";
-        String mozillaVersion = ERXBrowser.UNKNOWN_VERSION;
-        int startpos = userAgent.indexOf(mozilla);
-        if (startpos > -1) {
-            StringTokenizer st = new StringTokenizer(userAgent.substring(startpos + mozilla.length()), " ;"); 
-            if (st.hasMoreTokens()) 
-                mozillaVersion = st.nextToken();  // Will return "5.21" portion of "5.21; Mac_PowerPC)"
-        }
-        return mozillaVersion;
+        return ERXUserAgentClassifier.classify(userAgent).mozillaVersion();
     }
 
     public String parsePlatform(String userAgent) {
-        String platform = ERXBrowser.UNKNOWN_PLATFORM;
-        if      (userAgent.indexOf("Win") > -1) 	platform = ERXBrowser.WINDOWS;
-        else if ((userAgent.indexOf("iPhone") > -1) || (userAgent.indexOf("iPod") > -1)) 	platform = ERXBrowser.IPHONE;
-        else if (userAgent.indexOf("iPad") > -1) platform = ERXBrowser.IPAD;
-        else if (userAgent.indexOf("Mac") > -1) 	platform = ERXBrowser.MACOS;
-        else if (userAgent.indexOf("Android") > -1) platform = ERXBrowser.ANDROID;
-        else if (userAgent.indexOf("Linux") > -1) 	platform = ERXBrowser.LINUX;
-        return platform;
+        return ERXUserAgentClassifier.classify(userAgent).platform();
     }
 
     public String parseCPU(String userAgent) {
-        String cpu = ERXBrowser.UNKNOWN_CPU;
-        if      (userAgent.indexOf("PowerPC") > -1) 	cpu = ERXBrowser.POWER_PC;
-        else if (userAgent.indexOf("PPC") > -1) 	cpu = ERXBrowser.POWER_PC;
-        return cpu;
+        return ERXUserAgentClassifier.classify(userAgent).cpu();
     }
 
-    private String _browserString(String userAgent) {
-        int startpos;
-
-        // Get substring "Chrome/0.X.Y.Z Safari/525.13"
-        // from          "Mozilla/5.0 (Windows; U; Windows NT 5.1; en-US) "
-        //               "AppleWebKit/525.13 (KHTML, wie z. B. Gecko) Chrome/0.X.Y.Z Safari/525.13"
-        final String chrome = "Chrome";
-        startpos = userAgent.indexOf(chrome);
-        if (startpos > -1)
-            return userAgent.substring(startpos);
-        
-        // Get substring "OmniWeb/622.18.0"
-        // from          "Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10_7_3; en-US)"
-        //               "AppleWebKit/533.21.1+(KHTML, like Gecko, Safari/533.19.4) "
-        //               "Version/5.11.1 OmniWeb/622.18.0"
-        final String omniWeb = "OmniWeb";
-        startpos = userAgent.indexOf(omniWeb);
-        if (startpos > -1)
-          return userAgent.substring(startpos);
-        
-        // Get substring "Safari/48"
-        // from          "Safari 1.0b(v48) Mozilla/5.0 (Macintosh; U; PPC Mac OS X; en-us) "
-        //               "AppleWebKit/48 (like Gecko) Safari/48"
-        final String safari = "Safari";
-        startpos = userAgent.indexOf(safari);
-        if (startpos > -1)
-        	return userAgent.substring(startpos);
-
-        // Get substring "Opera 6.04  [en]" 
-        // from          "Mozilla/4.0 (compatible; MSIE 5.0; Windows 2000) Opera 6.04  [en]"
-        final String opera = "Opera";
-        startpos = userAgent.indexOf(opera);
-        if (startpos > -1) 
-        	return userAgent.substring(startpos);
-
-        // Get substring "MSIE 5.21; Mac_PowerPC)"
-        // from          "Mozilla/4.0 (compatible; MSIE 5.21; Mac_PowerPC)" 
-        final String compatible = "compatible;";
-        startpos = userAgent.indexOf(compatible);
-        if (startpos > -1) 
-        	return userAgent.substring(startpos + compatible.length());
-            
-        // Get substring "Netscape6/6.2.3" 
-        // from          "Mozilla/5.0 (Macintosh; U; PPC Mac OS X; en-US; rv:0.9.4.1) 
-        //                Gecko/20020508 Netscape6/6.2.3"
-        final String netscape = "Netscape";
-        startpos = userAgent.indexOf(netscape);
-        if (startpos > -1) 
-        	return userAgent.substring(startpos);
-            
-        return userAgent;
-    }
-
-    private NSMutableDictionary _browserPool;
-    private NSMutableDictionary _browserPool() { 
-        if (_browserPool == null) 
-            _browserPool = new NSMutableDictionary();
-        return _browserPool;
-    }
+    /**
+     * The shared browsers, by {@link #_computeKey(String, String, String, String, NSDictionary)}
+     */
+    private final Map<String, ERXBrowser> _browserPool = new ConcurrentHashMap<>();
 
-    private NSMutableDictionary _referenceCounters;
-    private NSMutableDictionary _referenceCounters() {
-        if (_referenceCounters == null)
-            _referenceCounters = new NSMutableDictionary();
-        return _referenceCounters;
+    private String _computeKey(String browserName, String version, String mozillaVersion, String platform, NSDictionary userInfo) {
+        return browserName + "." + version + "." + mozillaVersion + "." + platform + "." + userInfo;
     }
 
-    private AtomicInteger _incrementReferenceCounterForKey(String key) {
-        AtomicInteger count = (AtomicInteger)_referenceCounters().objectForKey(key);
-        if (count != null) {
-        	count.incrementAndGet();
-        }
-        else {
-            count = new AtomicInteger(1);
-            _referenceCounters().setObjectForKey(count, key);
+    /**
+     * Caches the browsers for the most recently seen user-agent strings. New entries go into the young generation,
+     * when it's full the old generation is dropped and the young one takes it's place. Entries found in the old
+     * generation move back to the young one, so the user-agent strings seen all the time stay while the ones of
+     * (say) a robot rotating it's user-agent strings get evicted.
+     */
+    private static final class UserAgentCache {
+        private final int _generationSize;
+        private volatile Map<String, ERXBrowser> _young = new ConcurrentHashMap<>();
+        private volatile Map<String, ERXBrowser> _old = new ConcurrentHashMap<>();
+        private final LongAdder _hits = new LongAdder();
+        private final LongAdder _misses = new LongAdder();
+        private final LongAdder _evictions = new LongAdder();
+
+        private UserAgentCache(int maxSize) {
+            _generationSize = Math.max(1, maxSize / 2);
         }
-        log.debug("_incrementReferenceCounterForKey() - count = {}, key = {}", count, key);
-        return count;
-    }
 
-    private AtomicInteger _decrementReferenceCounterForKey(String key) {
-    	AtomicInteger count = (AtomicInteger)_referenceCounters().objectForKey(key);
-    	
-        if (count != null) {
-        	count.decrementAndGet();
+        private ERXBrowser get(String ua) {
+            ERXBrowser browser = _young.get(ua);
+            if (browser == null) {
+                browser = _old.get(ua);
+                if (browser != null) {
+                    put(ua, browser);
+                }
+            }
+            if (browser != null) {
+                _hits.increment();
+            }
+            else {
+                _misses.increment();
+            }
+            return browser;
         }
-        
-        log.debug("_decrementReferenceCounterForKey() - count = {}, key = {}", count, key);
-        return count;
-    }
 
-    private String _computeKey(ERXBrowser browser) {
-        return browser.browserName() + "." + browser.version() + "." + browser.mozillaVersion() + "." + browser.platform() + "." + browser.userInfo();
-    }
+        private void put(String ua, ERXBrowser browser) {
+            Map<String, ERXBrowser> young = _young;
+            if (young.size() >= _generationSize) {
+                synchronized (this) {
+                    if (young == _young) {
+                        _evictions.add(_old.size());
+                        _old = young;
+                        _young = new ConcurrentHashMap<>();
+                    }
+                    young = _young;
+                }
+            }
+            young.put(ua, browser);
+        }
 
-    private String _computeKey(String browserName, String version, String mozillaVersion, String platform, NSDictionary userInfo) {
-        return browserName + "." + version + "." + mozillaVersion + "." + platform + "." + userInfo;
-    }
-    
-    private String _versionString(String userAgent) {
-    	String versionString;
-
-    	int startpos = userAgent.indexOf("Version/");
-    	if (startpos > -1)  {
-    		versionString = userAgent.substring(startpos);
-    	} else {
-    		startpos = userAgent.indexOf("Firefox/");
-        	if (startpos > -1)  {
-        		versionString = userAgent.substring(startpos);
-        	} else {
-        		startpos = userAgent.indexOf("rv:");
-            	if (startpos > -1)  {
-            		versionString = userAgent.substring(startpos);
-            		int endpos = versionString.indexOf(')');
-            		if (endpos > -1) {
-            			versionString = versionString.substring(0, endpos);
-            		}
-            	} else {
-            		startpos = userAgent.indexOf("Edge/");
-                	if (startpos > -1)  {
-                		versionString = userAgent.substring(startpos);
-                	} else {
-                		versionString = _browserString(userAgent);
-                	}
-            	}
-        	}
-    	}
-
-    	return versionString;
+        private NSDictionary<String, Object> statistics() {
+            long hits = _hits.sum();
+            long misses = _misses.sum();
+            NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<>();
+            statistics.setObjectForKey(hits, "hits");
+            statistics.setObjectForKey(misses, "misses");
+            statistics.setObjectForKey(hits + misses > 0 ? (double) hits / (hits + misses) : 0d, "hitRate");
+            statistics.setObjectForKey(_evictions.sum(), "evictions");
+            statistics.setObjectForKey(_young.size() + _old.size(), "size");
+            return statistics.immutableClone();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,125 @@
+package er.extensions.appserver;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import com.webobjects.foundation.NSDictionary;
+
+import er.extensions.foundation.ERXProperties;
+import er.extensions.foundation.ERXValueUtilities;
+
+/**
+ * Determines the cache-control header value to send with a resource, based on it's path or content type.
+ *
+ * A policy is read from three properties sharing a common prefix:
+ *
+ * <ul>
+ * <li><code>[prefix].cacheControlByPath</code>: A dictionary of regular expressions (matched against the request's path) to cache-control values.
+ * Checked first, in alphabetical order of the expressions.</li>
+ * <li><code>[prefix].cacheControlByContentType</code>: A dictionary of content types to cache-control values.
+ * Content types can use a wildcard subtype (for example "image/*").</li>
+ * <li><code>[prefix].cacheControl</code>: The cache-control value to use if none of the above matches.</li>
+ * </ul>
+ *
+ * For example:
+ *
+ * <pre>
+ * er.extensions.ERXStaticResourceRequestHandler.cacheControl=no-cache
+ * er.extensions.ERXStaticResourceRequestHandler.cacheControlByContentType={ "image/*" = "public, max-age=604800"; "text/css" = "public, max-age=86400"; }
+ * er.extensions.ERXStaticResourceRequestHandler.cacheControlByPath={ ".*&#47;vendor/.*" = "public, max-age=31536000"; }
+ * </pre>
+ */
+
+public class ERXCacheControlPolicy {
+
+	private final String _defaultValue;
+	private final Map<Pattern, String> _valuesByPath;
+	private final Map<String, String> _valuesByContentType;
+
+	public ERXCacheControlPolicy( final String defaultValue, final Map<Pattern, String> valuesByPath, final Map<String, String> valuesByContentType ) {
+		_defaultValue = defaultValue;
+		_valuesByPath = valuesByPath;
+		_valuesByContentType = valuesByContentType;
+	}
+
+	/**
+	 * @return A policy read from the properties with the given prefix
+	 */
+	public static ERXCacheControlPolicy policyFromProperties( final String prefix ) {
+		final Map<Pattern, String> valuesByPath = new LinkedHashMap<>();
+
+		for( Map.Entry<String, String> entry : dictionaryForKey( prefix + ".cacheControlByPath" ).entrySet() ) {
+			valuesByPath.put( Pattern.compile( entry.getKey() ), entry.getValue() );
+		}
+
+		final Map<String, String> valuesByContentType = new LinkedHashMap<>();
+
+		for( Map.Entry<String, String> entry : dictionaryForKey( prefix + ".cacheControlByContentType" ).entrySet() ) {
+			valuesByContentType.put( entry.getKey().toLowerCase(), entry.getValue() );
+		}
+
+		return new ERXCacheControlPolicy( ERXProperties.stringForKey( prefix + ".cacheControl" ), valuesByPath, valuesByContentType );
+	}
+
+	/**
+	 * @return The cache-control value for a resource with the given path and content type. null if no cache-control header should be sent.
+	 */
+	public String cacheControl( final String path, final String contentType ) {
+		if( path != null ) {
+			for( final Map.Entry<Pattern, String> entry : _valuesByPath.entrySet() ) {
+				if( entry.getKey().matcher( path ).matches() ) {
+					return entry.getValue();
+				}
+			}
+		}
+
+		if( contentType != null && !_valuesByContentType.isEmpty() ) {
+			final String mimeType = stripParameters( contentType );
+			String value = _valuesByContentType.get( mimeType );
+
+			if( value == null ) {
+				final int slashIndex = mimeType.indexOf( '/' );
+
+				if( slashIndex != -1 ) {
+					value = _valuesByContentType.get( mimeType.substring( 0, slashIndex ) + "/*" );
+				}
+			}
+
+			if( value != null ) {
+				return value;
+			}
+		}
+
+		return _defaultValue;
+	}
+
+	/**
+	 * @return The given content type without parameters (for example "text/css; charset=utf-8" becomes "text/css")
+	 */
+	private static String stripParameters( final String contentType ) {
+		final int semicolonIndex = contentType.indexOf( ';' );
+		return (semicolonIndex == -1 ? contentType : contentType.substring( 0, semicolonIndex )).trim().toLowerCase();
+	}
+
+	/**
+	 * @return The dictionary in the given property as a map sorted by key. Empty if the property isn't set.
+	 */
+	private static Map<String, String> dictionaryForKey( final String key ) {
+		final NSDictionary<String, String> dictionary = ERXValueUtilities.dictionaryValue( ERXProperties.stringForKey( key ) );
+
+		if( dictionary == null ) {
+			return Collections.emptyMap();
+		}
+
+		final Map<String, String> map = new TreeMap<>();
+
+		for( final String dictionaryKey : dictionary.allKeys() ) {
+			map.put( dictionaryKey, dictionary.objectForKey( dictionaryKey ) );
+		}
+
+		return map;
+	}
+}
@@ -340,6 +340,7 @@ public class ERXComponentRequestHandler extends WORequestHandler
 				}
 			}
 			if (aResponse != null) {
+				ERXResponseRewriter.flushPendingInsertions(aResponse);
 				aResponse._finalizeInContext(aContext);
 			}
 
@@ -0,0 +1,168 @@
+package er.extensions.appserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.webobjects.appserver.WOContext;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Keep-alive response that pushes server-sent events (<code>text/event-stream</code>) to the client,
+ * as read by the browser's EventSource.
+ * <p>
+ * Every event gets an id of its own, increasing per response. The last events pushed are kept in a
+ * bounded replay buffer, and when the browser reconnects (sending the id of the last event it received
+ * as <code>Last-Event-ID</code>), {@link #resume(String)} queues the events it missed again instead of
+ * whatever was queued for the lost connection. Each event is queued as a whole, so it is written to the
+ * client as soon as it is pushed and a client that falls behind only loses whole events. Idle connections
+ * get a comment every now and then, so proxies don't close them.
+ * <p>
+ * The response is sent without a <code>content-length</code> and with <code>connection: close</code>, so it ends
+ * when the connection is closed. The length WebObjects needs for the content stream is never sent, so proxies
+ * don't wait for (or reject) a length the stream never reaches.
+ *
+ * @property er.extensions.ERXEventStreamResponse.replayBufferSize the number of events kept for clients that reconnect (default 100)
+ * @property er.extensions.ERXEventStreamResponse.heartbeatInterval the milliseconds after which an idle connection gets a comment, 0 for none (default 15000)
+ */
+
+public class ERXEventStreamResponse extends ERXKeepAliveResponse {
+
+	public static final String CONTENT_TYPE = "text/event-stream";
+
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+	private final Deque<Event> _replayBuffer = new ArrayDeque<>();
+
+	private final int _replayBufferSize;
+
+	private long _lastEventID;
+
+	public ERXEventStreamResponse() {
+		_replayBufferSize = ERXProperties.intForKeyWithDefault("er.extensions.ERXEventStreamResponse.replayBufferSize", 100);
+		setContentEncoding("UTF-8");
+		setHeader(CONTENT_TYPE + "; charset=utf-8", "content-type");
+		setHeader("no-cache", "cache-control");
+		// keeps nginx from buffering the events
+		setHeader("no", "x-accel-buffering");
+		setHeartbeat(HEARTBEAT, ERXProperties.longForKeyWithDefault("er.extensions.ERXEventStreamResponse.heartbeatInterval", 15000L));
+	}
+
+	/**
+	 * Removes the <code>content-length</code> set from the length of the content stream, the stream is delimited
+	 * by closing the connection.
+	 */
+	@Override
+	public void _finalizeInContext(WOContext context) {
+		super._finalizeInContext(context);
+		removeHeadersForKey("content-length");
+		setHeader("close", "connection");
+	}
+
+	/**
+	 * Pushes the string as the data of an event without a type.
+	 *
+	 * @param str the data of the event
+	 */
+	@Override
+	public void push(String str) {
+		pushEvent(null, str);
+	}
+
+	/**
+	 * Pushes an event.
+	 *
+	 * @param type the type of the event, null for a message
+	 * @param data the data of the event
+	 * @return the id of the event
+	 */
+	public long pushEvent(String type, String data) {
+		return pushEvent(eventData(type, data));
+	}
+
+	/**
+	 * Pushes an event that was encoded with {@link #eventData(String, String)}. Use this when pushing the same event to many clients.
+	 *
+	 * @param eventData the encoded type and data of the event
+	 * @return the id of the event
+	 */
+	public synchronized long pushEvent(byte[] eventData) {
+		long id = ++_lastEventID;
+		byte[] event = event(id, eventData);
+		if (_replayBufferSize > 0) {
+			if (_replayBuffer.size() >= _replayBufferSize) {
+				_replayBuffer.removeFirst();
+			}
+			_replayBuffer.addLast(new Event(id, event));
+		}
+		offer(event);
+		return id;
+	}
+
+	/**
+	 * Prepares the response for a client that (re)connects: the events queued for the previous
+	 * connection are removed, and the events following the given one still in the replay buffer are queued again.
+	 *
+	 * @param lastEventID the id of the last event the client received (the <code>Last-Event-ID</code> header), null for a new client
+	 */
+	public synchronized void resume(String lastEventID) {
+		reset();
+		clear();
+		if (lastEventID == null || lastEventID.isBlank()) {
+			return;
+		}
+		long id;
+		try {
+			id = Long.parseLong(lastEventID.trim());
+		}
+		catch (NumberFormatException e) {
+			return;
+		}
+		for (Event event : _replayBuffer) {
+			if (event.id() > id) {
+				offer(event.data());
+			}
+		}
+	}
+
+	/**
+	 * @return the id of the last event pushed
+	 */
+	public synchronized long lastEventID() {
+		return _lastEventID;
+	}
+
+	/**
+	 * Encodes the type and data fields of an event, the data is split into one field per line.
+	 *
+	 * @param type the type of the event, null for a message
+	 * @param data the data of the event
+	 * @return the encoded fields
+	 * @throws IllegalArgumentException if the type contains a line break
+	 */
+	public static byte[] eventData(String type, String data) {
+		StringBuilder sb = new StringBuilder(data.length() + 16);
+		if (type != null) {
+			if (type.indexOf('\n') >= 0 || type.indexOf('\r') >= 0) {
+				throw new IllegalArgumentException("The type of an event can't contain a line break: '" + type + "'");
+			}
+			sb.append("event: ").append(type).append('\n');
+		}
+		for (String line : data.split("\r\n|\r|\n", -1)) {
+			sb.append("data: ").append(line).append('\n');
+		}
+		sb.append('\n');
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] event(long id, byte[] eventData) {
+		byte[] prefix = ("id: " + id + "\n").getBytes(StandardCharsets.US_ASCII);
+		byte[] event = new byte[prefix.length + eventData.length];
+		System.arraycopy(prefix, 0, event, 0, prefix.length);
+		System.arraycopy(eventData, 0, event, prefix.length, eventData.length);
+		return event;
+	}
+
+	private record Event(long id, byte[] data) {}
+}
@@ -0,0 +1,219 @@
+package er.extensions.appserver;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.webobjects.appserver.WOResponse;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * A response whose content is a file, read through a FileChannel.
+ *
+ * The file is opened when the content is first read, so a response that's never sent doesn't keep a file open.
+ * The content stream's transferTo() uses FileChannel.transferTo() (sendfile() or similar, where the OS supports it)
+ * when writing to a FileOutputStream. Otherwise the stream reads from the file straight into the caller's array,
+ * without a buffer of it's own.
+ *
+ * Use it from the static resource request handler or from your own actions for downloads:
+ *
+ * <pre>
+ * public WOActionResults downloadAction() {
+ *     ERXFileResponse response = new ERXFileResponse(path, "application/pdf");
+ *     response.setHeader("attachment; filename=\"report.pdf\"", "content-disposition");
+ *     return response;
+ * }
+ * </pre>
+ *
+ * The buffer size the adaptor uses when copying the stream is set by <code>er.extensions.ERXFileResponse.bufferSize</code> (default 16KB),
+ * read once when the class is loaded.
+ */
+
+public class ERXFileResponse extends WOResponse {
+
+	/**
+	 * The buffer size passed to the adaptor with the content stream
+	 */
+	private static final int BUFFER_SIZE = ERXProperties.intForKeyWithDefault( "er.extensions.ERXFileResponse.bufferSize", 16 * 1024 );
+
+	private final Path _path;
+	private final FileChannelInputStream _stream;
+
+	/**
+	 * Creates a response containing the entire file at the given path.
+	 *
+	 * @throws IOException if the file can't be read
+	 */
+	public ERXFileResponse( final Path path, final String contentType ) throws IOException {
+		// The file is opened later, so we fail here rather than in the middle of sending the response
+		if( !Files.isReadable( path ) ) {
+			throw new AccessDeniedException( path.toString() );
+		}
+
+		_path = path;
+		_stream = new FileChannelInputStream( path, 0, Files.size( path ) );
+
+		if( _stream.remaining() > 0 ) {
+			setContentStream( _stream, BUFFER_SIZE, _stream.remaining() );
+		}
+
+		setHeader( String.valueOf( _stream.remaining() ), "content-length" );
+
+		if( contentType != null ) {
+			setHeader( contentType, "content-type" );
+		}
+	}
+
+	/**
+	 * @return The path of the file served by this response
+	 */
+	public Path path() {
+		return _path;
+	}
+
+	/**
+	 * Restricts the response's content to the given range of the file.
+	 */
+	public void setRange( final long position, final long length ) {
+		_stream.limitToRange( position, length );
+		setContentStream( _stream, BUFFER_SIZE, length );
+		setHeader( String.valueOf( length ), "content-length" );
+	}
+
+	/**
+	 * InputStream over a region of a file, using positional reads on a FileChannel (so skipping is free).
+	 * The channel is opened on the first read, and not again once the stream has been closed.
+	 */
+	private static class FileChannelInputStream extends InputStream {
+
+		private final Path _path;
+		private FileChannel _channel;
+		private boolean _closed;
+		private long _position;
+		private long _end;
+
+		/**
+		 * Array for read(), so reading a byte at a time doesn't allocate
+		 */
+		private final byte[] _singleByte = new byte[1];
+
+		private FileChannelInputStream( final Path path, final long position, final long length ) {
+			_path = path;
+			_position = position;
+			_end = position + length;
+		}
+
+		private long remaining() {
+			return Math.max( 0, _end - _position );
+		}
+
+		private void limitToRange( final long position, final long length ) {
+			_position = position;
+			_end = position + length;
+		}
+
+		/**
+		 * @return The channel, opened if it hasn't been yet, null if the stream has been closed
+		 */
+		private FileChannel channel() throws IOException {
+			if( _channel == null && !_closed ) {
+				_channel = FileChannel.open( _path, StandardOpenOption.READ );
+			}
+
+			return _channel;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read( _singleByte, 0, 1 ) == -1 ? -1 : _singleByte[0] & 0xff;
+		}
+
+		@Override
+		public int read( final byte[] b, final int off, final int len ) throws IOException {
+			if( len == 0 ) {
+				return 0;
+			}
+
+			final FileChannel channel = remaining() > 0 ? channel() : null;
+
+			if( channel == null ) {
+				// Not all adaptors close the content stream, so we release the file as soon as it's been read
+				close();
+				return -1;
+			}
+
+			final int read = channel.read( ByteBuffer.wrap( b, off, (int) Math.min( len, remaining() ) ), _position );
+
+			if( read == -1 ) {
+				// File got truncated while we were serving it
+				_end = _position;
+				close();
+				return -1;
+			}
+
+			_position += read;
+			return read;
+		}
+
+		@Override
+		public long skip( final long n ) {
+			final long skipped = Math.max( 0, Math.min( n, remaining() ) );
+			_position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min( remaining(), Integer.MAX_VALUE );
+		}
+
+		/**
+		 * Transfers channel-to-channel if the target is a FileOutputStream, otherwise falls back to reading into a heap buffer.
+		 */
+		@Override
+		public long transferTo( final OutputStream out ) throws IOException {
+			if( out instanceof FileOutputStream fileOutputStream ) {
+				return transferTo( fileOutputStream.getChannel() );
+			}
+
+			return super.transferTo( out );
+		}
+
+		private long transferTo( final WritableByteChannel target ) throws IOException {
+			final FileChannel channel = remaining() > 0 ? channel() : null;
+			long transferred = 0;
+
+			while( channel != null && remaining() > 0 ) {
+				final long count = channel.transferTo( _position, remaining(), target );
+
+				if( count <= 0 ) {
+					// transferTo() returns 0 when the position is beyond the end of the (truncated) file
+					break;
+				}
+
+				_position += count;
+				transferred += count;
+			}
+
+			return transferred;
+		}
+
+		@Override
+		public void close() throws IOException {
+			_closed = true;
+
+			if( _channel != null ) {
+				_channel.close();
+			}
+		}
+	}
+}
@@ -5,6 +5,11 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,10 +17,26 @@ import org.slf4j.LoggerFactory;
 import com.webobjects.appserver.WOResponse;
 import com.webobjects.foundation.NSForwardException;
 
+import er.extensions.foundation.ERXProperties;
+
 /**
  * Special response that keeps the connection alive and pushes the data to the client.
  * It does this by opening a stream that has small buffer but huge length.
- * 
+ * <p>
+ * Pushed messages are queued without locking. The thread writing the response to the client parks
+ * until there is data (waking up for heartbeats, if there are any) and then copies as many queued
+ * messages as fit into the stream buffer at once. Each response queues at most
+ * {@link #maxQueuedMessages()} messages; when a slow client falls behind, messages are dropped
+ * according to the {@link DropPolicy}. Only whole messages are dropped, so a message should be pushed
+ * with a single call to {@link #push(byte[])}.
+ * <p>
+ * When another thread starts reading the response (the client reconnected) or the response is
+ * {@link #reset()}, the thread that was reading it before gets the end of the stream.
+ *
+ * @property er.extensions.ERXKeepAliveResponse.bufferSize the size of the chunks written to the client (default 8192)
+ * @property er.extensions.ERXKeepAliveResponse.maxQueuedMessages the number of messages queued for a client before messages are dropped (default 1000)
+ * @property er.extensions.ERXKeepAliveResponse.dropPolicy which messages to drop when the queue is full, <code>DropOldest</code> (default) or <code>DropNewest</code>
+ *
  * @author ak
  */
 
@@ -23,6 +44,21 @@ public class ERXKeepAliveResponse extends WOResponse {
 
 	private static final Logger log = LoggerFactory.getLogger(ERXKeepAliveResponse.class);
 
+	/**
+	 * What to do when a message is pushed and the queue of the response is full.
+	 */
+	public static enum DropPolicy {
+		/**
+		 * Drops the oldest queued message to make room for the new one.
+		 */
+		DropOldest,
+
+		/**
+		 * Drops the new message.
+		 */
+		DropNewest
+	}
+
 	/**
 	 * Queue to push the items into.
 	 */
@@ -38,45 +74,148 @@ public class ERXKeepAliveResponse extends WOResponse {
 	 */
 	protected int _currentIndex = 0;
 
+	/**
+	 * Number of messages in the queue
+	 */
+	private final AtomicInteger _queued = new AtomicInteger();
+
+	private final AtomicLong _dropped = new AtomicLong();
+
+	private final int _maxQueuedMessages;
+
+	private final DropPolicy _dropPolicy;
+
+	/**
+	 * The thread writing the response to the client, parked while there's nothing to write
+	 */
+	private volatile Thread _reader;
+
+	/**
+	 * Held while the reader looks at the queue, so a reconnecting client or a reset don't interfere
+	 */
+	private final ReentrantLock _readLock = new ReentrantLock();
+
+	private volatile byte[] _heartbeat;
+
+	private volatile long _heartbeatInterval;
+
 	public ERXKeepAliveResponse() {
+		this(ERXProperties.intForKeyWithDefault("er.extensions.ERXKeepAliveResponse.maxQueuedMessages", 1000),
+				DropPolicy.valueOf(ERXProperties.stringForKeyWithDefault("er.extensions.ERXKeepAliveResponse.dropPolicy", DropPolicy.DropOldest.name())));
+	}
+
+	/**
+	 * @param maxQueuedMessages the number of messages queued for the client before messages get dropped
+	 * @param dropPolicy which messages to drop when the queue is full
+	 */
+	public ERXKeepAliveResponse(int maxQueuedMessages, DropPolicy dropPolicy) {
+		_maxQueuedMessages = maxQueuedMessages;
+		_dropPolicy = dropPolicy;
 		//setHeader("keep-alive", "connection");
 		setContentStream(new InputStream() {
 			@Override
 			public int read() throws IOException {
-				synchronized (_queue) {
-					if (_current != null && _currentIndex >= _current.length) {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return ERXKeepAliveResponse.this.read(b, off, len);
+			}
+
+		}, ERXProperties.intForKeyWithDefault("er.extensions.ERXKeepAliveResponse.bufferSize", 8192), Long.MAX_VALUE); // MS: turning it up to 11
+	}
+
+	/**
+	 * Waits for data and copies as much of it as fits into the buffer.
+	 *
+	 * @return the number of bytes copied, -1 if another thread has taken over the response or it has been reset
+	 */
+	private int read(byte[] b, int off, int len) {
+		Thread thread = Thread.currentThread();
+		long lastWrite = System.nanoTime();
+		boolean first = true;
+		while (true) {
+			long parkNanos;
+			_readLock.lock();
+			try {
+				if (first) {
+					first = false;
+					Thread previousReader = _reader;
+					if (previousReader != thread) {
+						// the client reconnected, end the previous connection
+						_reader = thread;
 						_current = null;
 						_currentIndex = 0;
-					}
-					if (_current == null) {
-						try {
-							if (log.isDebugEnabled()) {
-								log.debug("waiting: {}", _queue.hashCode());
-							}
-							_queue.wait();
-							if (log.isDebugEnabled()) {
-								log.debug("got data: {}", _queue.hashCode());
-							}
-						}
-						catch (InterruptedException e) {
-							return -1;
+						if (previousReader != null) {
+							LockSupport.unpark(previousReader);
 						}
-						_current = _queue.poll();
 					}
-					if (_current == null) {
-						return -1;
+				}
+				else if (_reader != thread || thread.isInterrupted()) {
+					return -1;
+				}
+				int count = copy(b, off, len);
+				if (count > 0) {
+					log.debug("writing: {}", count);
+					return count;
+				}
+				parkNanos = _heartbeatInterval;
+				if (parkNanos > 0) {
+					parkNanos -= System.nanoTime() - lastWrite;
+					if (parkNanos <= 0) {
+						_current = _heartbeat;
+						_currentIndex = 0;
+						continue;
 					}
-					log.debug("writing: {}", _currentIndex);
-					return _current[_currentIndex++];
 				}
 			}
+			finally {
+				_readLock.unlock();
+			}
+			log.debug("waiting: {}", this);
+			if (parkNanos > 0) {
+				LockSupport.parkNanos(this, parkNanos);
+			}
+			else {
+				LockSupport.park(this);
+			}
+		}
+	}
 
-		}, 1, Long.MAX_VALUE); // MS: turning it up to 11
+	/**
+	 * Copies the current and queued messages into the buffer.
+	 */
+	private int copy(byte[] b, int off, int len) {
+		int count = 0;
+		while (count < len) {
+			if (_current == null || _currentIndex >= _current.length) {
+				_current = poll();
+				_currentIndex = 0;
+				if (_current == null) {
+					break;
+				}
+			}
+			int length = Math.min(len - count, _current.length - _currentIndex);
+			System.arraycopy(_current, _currentIndex, b, off + count, length);
+			_currentIndex += length;
+			count += length;
+		}
+		return count;
+	}
+
+	private byte[] poll() {
+		byte[] data = _queue.poll();
+		if (data != null) {
+			_queued.decrementAndGet();
+		}
+		return data;
 	}
 
 	/**
 	 * Enqueues the data for this string using the response encoding.
-	 * 
+	 *
 	 * @param str the string to push
 	 */
 	public void push(String str) {
@@ -87,28 +226,108 @@ public class ERXKeepAliveResponse extends WOResponse {
 			throw NSForwardException._runtimeExceptionForThrowable(e);
 		}
 	}
-	
+
 	/**
 	 * Enqueues the data.
+	 *
+	 * @param data the message to push
 	 */
 	public void push(byte[] data) {
-		if (log.isDebugEnabled()) {
-			log.debug("pushing: " + _queue.hashCode());
+		offer(data);
+	}
+
+	/**
+	 * Enqueues the data. The data is written as is, don't change it after pushing it.
+	 *
+	 * @param data the message to push
+	 * @return false if the message was dropped because the queue is full
+	 */
+	public boolean offer(byte[] data) {
+		boolean queued = true;
+		if (_queued.incrementAndGet() > _maxQueuedMessages) {
+			if (_dropPolicy == DropPolicy.DropNewest) {
+				_queued.decrementAndGet();
+				queued = false;
+			}
+			else if (_queue.poll() != null) {
+				_queued.decrementAndGet();
+			}
+			_dropped.incrementAndGet();
+			log.debug("dropped a message: {}", this);
 		}
-		synchronized (_queue) {
+		if (queued) {
 			_queue.offer(data);
-			_queue.notify();
 		}
+		Thread reader = _reader;
+		if (reader != null) {
+			LockSupport.unpark(reader);
+		}
+		return queued;
+	}
+
+	/**
+	 * Writes the given data to the client when nothing has been pushed for the given interval, so
+	 * intermediaries keep the connection open and dead connections get noticed.
+	 *
+	 * @param heartbeat the data to write, null for no heartbeats
+	 * @param interval the interval in milliseconds
+	 */
+	public void setHeartbeat(byte[] heartbeat, long interval) {
+		_heartbeat = heartbeat;
+		_heartbeatInterval = heartbeat != null && interval > 0 ? TimeUnit.MILLISECONDS.toNanos(interval) : 0;
+		Thread reader = _reader;
+		if (reader != null) {
+			LockSupport.unpark(reader);
+		}
+	}
+
+	/**
+	 * @return the number of messages that have been queued and not written yet
+	 */
+	public int queuedMessages() {
+		return Math.max(0, _queued.get());
 	}
 
 	/**
-	 * Resets the response by clearing out the current item and notifying the queue.
+	 * @return the maximum number of messages that are queued
+	 */
+	public int maxQueuedMessages() {
+		return _maxQueuedMessages;
+	}
+
+	/**
+	 * @return the number of messages that have been dropped because the client didn't keep up
+	 */
+	public long droppedMessages() {
+		return _dropped.get();
+	}
+
+	/**
+	 * Removes the messages that have been queued and not written yet.
+	 */
+	public void clear() {
+		while (poll() != null) {
+			// drained
+		}
+	}
+
+	/**
+	 * Resets the response by clearing out the current item and ending the stream of the thread writing the response.
 	 */
 	public void reset() {
-		synchronized (_queue) {
+		Thread reader;
+		_readLock.lock();
+		try {
+			reader = _reader;
+			_reader = null;
 			_current = null;
 			_currentIndex = 0;
-			_queue.notify();
+		}
+		finally {
+			_readLock.unlock();
+		}
+		if (reader != null) {
+			LockSupport.unpark(reader);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -41,6 +41,7 @@ import com.webobjects.foundation.NSNotificationCenter;
 import com.webobjects.foundation.NSProperties;
 import com.webobjects.foundation.NSPropertyListSerialization;
 
+import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXUtilities;
 
 /**
@@ -412,6 +413,7 @@ public class ERXLoader {
 			}
 			urls.add(0, urls.remove(urls.size() - 1));
 			// System.out.print(urls);
+			ERXProperties.systemPropertiesChanged();
 			NSNotificationCenter.defaultCenter().postNotification(new NSNotification(ERXApplication.AllBundlesLoadedNotification, NSKeyValueCoding.NullValue));
 		}
 	}
@@ -67,8 +67,8 @@ public class ERXLowMemoryHandler {
 	 */
 	private BigDecimal _memoryLowThreshold;
 
-	private boolean _isMemoryLow = false;
-	private boolean _isMemoryStarved = false;
+	private volatile boolean _isMemoryLow = false;
+	private volatile boolean _isMemoryStarved = false;
 
 	public ERXLowMemoryHandler() {
 		_memoryStarvedThreshold = ERXProperties.bigDecimalForKeyWithDefault("er.extensions.ERXApplication.memoryStarvedThreshold", _memoryStarvedThreshold);
@@ -195,6 +195,10 @@ public class ERXLowMemoryHandler {
 		}
 	}
 	
+	public boolean isMemoryLow() {
+		return _isMemoryLow;
+	}
+
 	public boolean isMemoryStarved() {
 		return _isMemoryStarved;
 	}
@@ -2,9 +2,13 @@ package er.extensions.appserver;
 
 import java.net.HttpCookie;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,7 +20,6 @@ import com.webobjects.appserver._private.WOProperties;
 import com.webobjects.appserver._private.WOShared;
 import com.webobjects.appserver._private.WOURLFormatException;
 import com.webobjects.foundation.NSArray;
-import com.webobjects.foundation.NSComparator;
 import com.webobjects.foundation.NSData;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSForwardException;
@@ -57,6 +60,20 @@ public  class ERXRequest extends WORequest {
     /** NSArray to keep browserLanguages in. */
     protected NSArray<String> _browserLanguages;
 
+    /**
+     * Maximum number of accept-language headers kept in _acceptLanguages before it gets cleared
+     */
+    private static final int MAX_CACHED_ACCEPT_LANGUAGES = 1000;
+
+    /**
+     * Languages (and localizers) resolved for the accept-language headers seen so far. There are only a few distinct
+     * headers in practice, so most requests resolve their languages with a single lookup.
+     */
+    private static final Map<AcceptLanguageKey, AcceptLanguage> _acceptLanguages = new ConcurrentHashMap<>();
+
+    /** holds the resolved accept-language header of this request */
+    private AcceptLanguage _acceptLanguage;
+
     /** holds a reference to the browser object */
     protected ERXBrowser _browser;
 
@@ -168,42 +185,107 @@ public  class ERXRequest extends WORequest {
      * @return cooked version of user's languages
      */
 	@Override
-    @SuppressWarnings("unchecked")
 	public NSArray<String> browserLanguages() {
         if (_browserLanguages == null) {
-        	NSMutableArray<String> languageKeys = new NSMutableArray<>();
-            NSArray<String> fixedLanguages = null;
-            String string = headerForKey("accept-language");
-            if (string != null) {
-                NSArray<String> rawLanguages = NSArray.componentsSeparatedByString(string, ",");
-                fixedLanguages = fixAbbreviationArray(rawLanguages);
-                for (Enumeration<String> e = fixedLanguages.objectEnumerator(); e.hasMoreElements();) {
-					String languageKey = e.nextElement();
-					String language = WOProperties.TheLanguageDictionary.objectForKey(languageKey);
-					if(language == null) {
-						int index = languageKey.indexOf('_');
-						if(index > 0) {
-							String mainLanguageKey = languageKey.substring(0, index);
-							String region = languageKey.substring(index);
-							language = WOProperties.TheLanguageDictionary.objectForKey(mainLanguageKey);
-							if(language != null) {
-								language = language + region.toUpperCase();
-							}
+            _browserLanguages = acceptLanguage().languages();
+        }
+        return _browserLanguages;
+    }
+
+    /**
+     * @return The localizer for the {@link #browserLanguages()}, chosen once per distinct accept-language header
+     *         (and again when the localizers are reset)
+     */
+    public ERXLocalizer localizer() {
+        AcceptLanguage acceptLanguage = acceptLanguage();
+        if (browserLanguages() != acceptLanguage.languages()) {
+            // The languages have been set to something other than what the header says
+            return ERXLocalizer.localizerForLanguages(browserLanguages());
+        }
+        return acceptLanguage.localizer();
+    }
+
+    private AcceptLanguage acceptLanguage() {
+        if (_acceptLanguage == null) {
+            String header = headerForKey("accept-language");
+            AcceptLanguageKey key = new AcceptLanguageKey(header, ERXLocalizer.defaultLanguage());
+            AcceptLanguage acceptLanguage = _acceptLanguages.get(key);
+            if (acceptLanguage == null) {
+                acceptLanguage = new AcceptLanguage(languagesForHeader(header));
+                if (_acceptLanguages.size() >= MAX_CACHED_ACCEPT_LANGUAGES) {
+                    _acceptLanguages.clear();
+                }
+                _acceptLanguages.put(key, acceptLanguage);
+            }
+            _acceptLanguage = acceptLanguage;
+        }
+        return _acceptLanguage;
+    }
+
+    /**
+     * @return The cooked languages for an accept-language header, see {@link #browserLanguages()}
+     */
+    private NSArray<String> languagesForHeader(String string) {
+    	NSMutableArray<String> languageKeys = new NSMutableArray<>();
+        NSArray<String> fixedLanguages = null;
+        if (string != null) {
+            NSArray<String> rawLanguages = NSArray.componentsSeparatedByString(string, ",");
+            fixedLanguages = fixAbbreviationArray(rawLanguages);
+            for (Enumeration<String> e = fixedLanguages.objectEnumerator(); e.hasMoreElements();) {
+				String languageKey = e.nextElement();
+				String language = WOProperties.TheLanguageDictionary.objectForKey(languageKey);
+				if(language == null) {
+					int index = languageKey.indexOf('_');
+					if(index > 0) {
+						String mainLanguageKey = languageKey.substring(0, index);
+						String region = languageKey.substring(index);
+						language = WOProperties.TheLanguageDictionary.objectForKey(mainLanguageKey);
+						if(language != null) {
+							language = language + region.toUpperCase();
 						}
 					}
-					if(language != null) {
-						languageKeys.addObject(language);
-					}
 				}
+				if(language != null) {
+					languageKeys.addObject(language);
+				}
+			}
+        }
+        languageKeys.addObject("Nonlocalized");
+        if(!languageKeys.containsObject(ERXLocalizer.defaultLanguage())) {
+            languageKeys.addObject(ERXLocalizer.defaultLanguage());
+        }
+        return languageKeys.immutableClone();
+    }
+
+    private record AcceptLanguageKey(String header, String defaultLanguage) {}
+
+    /**
+     * The languages resolved from an accept-language header, and the localizer chosen for them
+     */
+    private static final class AcceptLanguage {
+        private final NSArray<String> _languages;
+        private volatile ChosenLocalizer _localizer;
+
+        private AcceptLanguage(NSArray<String> languages) {
+            _languages = languages;
+        }
+
+        private NSArray<String> languages() {
+            return _languages;
+        }
+
+        private ERXLocalizer localizer() {
+            long version = ERXLocalizer.localizersVersion();
+            ChosenLocalizer localizer = _localizer;
+            if (localizer == null || localizer.version() != version) {
+                localizer = new ChosenLocalizer(ERXLocalizer.localizerForLanguages(_languages), version);
+                _localizer = localizer;
             }
-            languageKeys.addObject("Nonlocalized");
-            if(!languageKeys.containsObject(ERXLocalizer.defaultLanguage())) {
-                languageKeys.addObject(ERXLocalizer.defaultLanguage());
-            }
-            _browserLanguages = languageKeys.immutableClone();
+            return localizer.localizer();
         }
-        return _browserLanguages;
     }
+
+    private record ChosenLocalizer(ERXLocalizer localizer, long version) {}
     
     @Override
 	public String stringFormValueForKey(String key) {
@@ -246,23 +328,10 @@ public  class ERXRequest extends WORequest {
      */
     public ERXBrowser browser() {
         if (_browser == null) {
-            ERXBrowserFactory browserFactory = ERXBrowserFactory.factory();
-            _browser = browserFactory.browserMatchingRequest(this);
-            browserFactory.retainBrowser(_browser);            
+            _browser = ERXBrowserFactory.factory().browserMatchingRequest(this);
         }
         return _browser;
     }
-
-    /**
-     * Cleaning up retain count on the browser.
-     */
-    @Override
-	public void finalize() throws Throwable {
-        if (_browser != null) {
-            ERXBrowserFactory.factory().releaseBrowser(_browser);
-        }
-        super.finalize();
-    }
     
     /**
      * Returns whether or not this request is secure.
@@ -374,33 +443,21 @@ public  class ERXRequest extends WORequest {
         return isRequestSecure;
     }
 
-    private static class _LanguageComparator extends NSComparator {
-        public _LanguageComparator() {}
-
-        private static float quality(String languageString) {
-            float result=0f;
-            if (languageString!=null) {
-                languageString = languageString.trim();
-                int semicolon=languageString.indexOf(';');
-                if (semicolon!=-1 &&
-                    languageString.length()>semicolon+2) {
-                    result=Float.parseFloat(languageString.substring(semicolon+1).trim().substring(2));
-                } else
-                    result=1.0f;
-            }
-            return result;
-        }
-        
-        @Override
-		public int compare(Object o1, Object o2) {
-            float f1=quality((String)o1);
-            float f2=quality((String)o2);
-            return f1<f2 ? OrderedDescending : ( f1==f2 ? OrderedSame : OrderedAscending ); // we want DESCENDING SORT!!
+    private static float quality(String languageString) {
+        float result=0f;
+        if (languageString!=null) {
+            languageString = languageString.trim();
+            int semicolon=languageString.indexOf(';');
+            if (semicolon!=-1 &&
+                languageString.length()>semicolon+2) {
+                result=Float.parseFloat(languageString.substring(semicolon+1).trim().substring(2));
+            } else
+                result=1.0f;
         }
-        
+        return result;
     }
 
-    private final static NSComparator COMPARE_Qs = new _LanguageComparator();
+    private record QualifiedLanguage(String language, float quality) {}
 
     /** Translates ("de", "en-us;q=0.33", "en", "en-gb;q=0.66") to ("de", "en_gb", "en-us", "en").
      * @param languages NSArray of Strings
@@ -408,9 +465,17 @@ public  class ERXRequest extends WORequest {
      */
     protected NSArray<String> fixAbbreviationArray(NSArray<String> languages) {
         try {
-            languages=languages.sortedArrayUsingComparator(COMPARE_Qs);
-        } catch (NSComparator.ComparisonException e) {
-            log.warn("Couldn't sort language array {}.", languages, e);
+            // Parses the q-values once instead of on every comparison, the sort is stable like before
+            List<QualifiedLanguage> qualified = new ArrayList<>(languages.count());
+            for (String language : languages) {
+                qualified.add(new QualifiedLanguage(language, quality(language)));
+            }
+            qualified.sort(Comparator.comparingDouble(QualifiedLanguage::quality).reversed());
+            NSMutableArray<String> sorted = new NSMutableArray<>(qualified.size());
+            for (QualifiedLanguage language : qualified) {
+                sorted.addObject(language.language());
+            }
+            languages = sorted;
         } catch (NumberFormatException e2) {
             log.warn("Couldn't sort language array {}.", languages, e2);
         }
@@ -1,10 +1,20 @@
 package er.extensions.appserver;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Enumeration;
+import java.util.HexFormat;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,10 +33,14 @@ import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSForwardException;
 import com.webobjects.foundation.NSLog;
 import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
 import com.webobjects.foundation.NSPathUtilities;
+import com.webobjects.foundation.NSProperties;
 import com.webobjects.foundation._NSStringUtilities;
 import com.webobjects.foundation._NSThreadsafeMutableDictionary;
 
+import er.extensions.foundation.ERXConfigurationManager;
 import er.extensions.foundation.ERXMutableURL;
 import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXUtilities;
@@ -36,9 +50,16 @@ import er.extensions.foundation.ERXUtilities;
  * <ul>
  * <li> dealing with nested web server resources when not deploying
  * <li> resource versioning (for better caching control)
+ * <li> caching of generated resource URLs
  * </ul>
  * 
- * @property er.extensions.ERXResourceManager.versionManager the class name of the version manager to use (or "default", or "properties")
+ * When resources are served by the web server (and we're not in development mode), the final URL generated for a resource
+ * (including versioning and {@link ERXApplication#_rewriteResourceURL(String, WODeployedBundle)}) is cached, keyed by the resource's
+ * name, bundle, languages and whether the request is secure. The cache is cleared when properties change, a bundle is loaded or the
+ * version manager is replaced. If your version manager or URL rewriting depends on anything else in the request, turn the cache off.
+ * 
+ * @property er.extensions.ERXResourceManager.versionManager the class name of the version manager to use (or "default", "properties" or "contenthash")
+ * @property er.extensions.ERXResourceManager.urlCacheEnabled whether generated resource URLs are cached (default true)
  * @author ak
  * @author mschrag
  */
@@ -49,6 +70,26 @@ public class ERXResourceManager extends WOResourceManager {
 	private IVersionManager _versionManager;	
 	private final _NSThreadsafeMutableDictionary _myFrameworkProjectBundles = new _NSThreadsafeMutableDictionary(new NSMutableDictionary(128));
 	private static final Map<String, String> _mimeTypes = _additionalMimeTypes();
+	private static final ERXProperties.StringHandle _resourceUrlPrefix = ERXProperties.stringHandle("er.extensions.ERXResourceManager.resourceUrlPrefix", null);
+	private static final ERXProperties.StringHandle _secureResourceUrlPrefix = ERXProperties.stringHandle("er.extensions.ERXResourceManager.secureResourceUrlPrefix", null);
+
+	/**
+	 * Maximum number of URLs kept in _urlCache before it gets cleared
+	 */
+	private static final int MAX_CACHED_URLS = 10000;
+
+	/**
+	 * Cache of generated resource URLs
+	 */
+	private final Map<URLCacheKey, String> _urlCache = new ConcurrentHashMap<>();
+	private final LongAdder _urlCacheHits = new LongAdder();
+	private final LongAdder _urlCacheMisses = new LongAdder();
+	private final boolean _urlCacheEnabled;
+
+	/**
+	 * Key of a generated resource URL in _urlCache
+	 */
+	private record URLCacheKey( String name, String bundleName, NSArray<String> languages, boolean secure ) {}
 
 	protected ERXResourceManager() {
 		TheAppProjectBundle = _initAppBundle();
@@ -71,6 +112,9 @@ public class ERXResourceManager extends WOResourceManager {
 		else if ("properties".equals(versionManagerClassName)) {
 			_versionManager = new PropertiesVersionManager();
 		}
+		else if ("contenthash".equals(versionManagerClassName)) {
+			_versionManager = new ContentHashVersionManager();
+		}
 		else {
 			try {
 				_versionManager = Class.forName(versionManagerClassName).asSubclass(IVersionManager.class).newInstance();
@@ -85,6 +129,14 @@ public class ERXResourceManager extends WOResourceManager {
 				throw NSForwardException._runtimeExceptionForThrowable(e);
 			}
 		}
+
+		_urlCacheEnabled = ERXProperties.booleanForKeyWithDefault("er.extensions.ERXResourceManager.urlCacheEnabled", true) && !ERXApplication.isDevelopmentModeSafe();
+
+		if (_urlCacheEnabled) {
+			NSNotificationCenter.defaultCenter().addObserver(this, ERXUtilities.notificationSelector("clearURLCache"), NSProperties.PropertiesDidChange, null);
+			NSNotificationCenter.defaultCenter().addObserver(this, ERXUtilities.notificationSelector("clearURLCache"), ERXConfigurationManager.ConfigurationDidChangeNotification, null);
+			NSNotificationCenter.defaultCenter().addObserver(this, ERXUtilities.notificationSelector("clearURLCache"), "NSBundleDidLoadNotification", null);
+		}
 	}
 
 	/**
@@ -94,6 +146,37 @@ public class ERXResourceManager extends WOResourceManager {
 	 */
 	public void setVersionManager(IVersionManager versionManager) {
 		_versionManager = versionManager;
+		_urlCache.clear();
+	}
+
+	/**
+	 * Clears the cache of generated resource URLs.
+	 * 
+	 * @param notification the notification that caused the cache to be cleared (or null)
+	 */
+	public void clearURLCache(NSNotification notification) {
+		_urlCache.clear();
+	}
+
+	/**
+	 * @return The number of resource URLs served from the URL cache
+	 */
+	public long urlCacheHits() {
+		return _urlCacheHits.sum();
+	}
+
+	/**
+	 * @return The number of resource URLs that had to be generated because they weren't in the URL cache
+	 */
+	public long urlCacheMisses() {
+		return _urlCacheMisses.sum();
+	}
+
+	/**
+	 * @return The number of resource URLs in the URL cache
+	 */
+	public int urlCacheSize() {
+		return _urlCache.size();
 	}
 	
 	/**
@@ -194,7 +277,7 @@ public class ERXResourceManager extends WOResourceManager {
         return aBundle;
     }
 	
-	private String _cachedURLForResource(String name, String bundleName, NSArray languages, WORequest request) {
+	private String _cachedURLForResource(String name, String bundleName, NSArray languages, boolean secure) {
 		String result = null;
 
 		if (bundleName != null) {
@@ -217,14 +300,7 @@ public class ERXResourceManager extends WOResourceManager {
 			}
 		}
 
-		String resourceUrlPrefix = null;
-
-		if (ERXRequest.isRequestSecure(request)) {
-			resourceUrlPrefix = ERXProperties.stringForKey("er.extensions.ERXResourceManager.secureResourceUrlPrefix");
-		}
-		else {
-			resourceUrlPrefix = ERXProperties.stringForKey("er.extensions.ERXResourceManager.resourceUrlPrefix");
-		}
+		String resourceUrlPrefix = secure ? _secureResourceUrlPrefix.get() : _resourceUrlPrefix.get();
 
 		if (resourceUrlPrefix != null && resourceUrlPrefix.length() > 0) {
 			result = resourceUrlPrefix + result;
@@ -237,7 +313,32 @@ public class ERXResourceManager extends WOResourceManager {
 	public String urlForResourceNamed(String name, String bundleName, NSArray<String> languages, WORequest request) {
 		String completeURL = null;
 		if (request == null || request.isUsingWebServer() && !WOApplication.application()._rapidTurnaroundActiveForAnyProject()) {
-			completeURL = _cachedURLForResource(name, bundleName, languages, request);
+			boolean secure = ERXRequest.isRequestSecure(request);
+
+			if (!_urlCacheEnabled) {
+				completeURL = _cachedURLForResource(name, bundleName, languages, secure);
+			}
+			else {
+				URLCacheKey key = new URLCacheKey(name, bundleName, languages, secure);
+				completeURL = _urlCache.get(key);
+
+				if (completeURL != null) {
+					_urlCacheHits.increment();
+					return completeURL;
+				}
+
+				_urlCacheMisses.increment();
+				completeURL = _cachedURLForResource(name, bundleName, languages, secure);
+				completeURL = _versionManager.versionedUrlForResourceNamed(completeURL, name, bundleName, languages, request);
+				completeURL = _postprocessURL(completeURL, bundleName);
+
+				if (_urlCache.size() >= MAX_CACHED_URLS) {
+					_urlCache.clear();
+				}
+
+				_urlCache.put(new URLCacheKey(name, bundleName, languages == null ? null : languages.immutableClone(), secure), completeURL);
+				return completeURL;
+			}
 		}
 		else {
 			URL url = pathURLForResourceNamed(name, bundleName, languages);
@@ -377,7 +478,7 @@ public class ERXResourceManager extends WOResourceManager {
 		boolean requestIsSecure = ERXRequest.isRequestSecure(context.request());
 		boolean resourceIsSecure = (secure == null) ? requestIsSecure : secure.booleanValue();
 
-		if ((resourceIsSecure && ERXProperties.stringForKey("er.extensions.ERXResourceManager.secureResourceUrlPrefix") == null) || (!resourceIsSecure && ERXProperties.stringForKey("er.extensions.ERXResourceManager.resourceUrlPrefix") == null)) {
+		if ((resourceIsSecure && _secureResourceUrlPrefix.get() == null) || (!resourceIsSecure && _resourceUrlPrefix.get() == null)) {
 			StringBuffer sb = new StringBuffer();
 			String serverPortStr = context.request()._serverPort();
 			int serverPort = (serverPortStr == null) ? 0 : Integer.parseInt(serverPortStr);
@@ -490,6 +591,231 @@ public class ERXResourceManager extends WOResourceManager {
 		}
 	}
 	
+	/**
+	 * Implementation of the IVersionManager interface that adds a hash of the
+	 * resource's content to the resource's file name, so "/app.js" becomes
+	 * "/app.3f9a1c4b2e.js". A resource's URL only changes when it's content
+	 * changes, and is the same across instances, so browsers and CDNs can cache
+	 * it forever.
+	 * 
+	 * The hash is computed once per resource URL (and recomputed for each
+	 * request in development mode, so changes show up immediately).
+	 * 
+	 * ERXStaticResourceRequestHandler strips the fingerprint when serving the
+	 * resource, and marks the response immutable if the fingerprint matches
+	 * the content served (a stale or made up fingerprint gets the normal
+	 * cache-control). If resources are served by
+	 * the web server, it has to do the same, for example using
+	 * <code>RewriteRule ^(.+)\.[0-9a-f]{10}\.(\w+)$ $1.$2</code>
+	 * 
+	 * Resource URLs passed as a "?wodata=" query parameter are left alone.
+	 */
+	public static class ContentHashVersionManager implements IVersionManager {
+
+		/**
+		 * Length of the fingerprint inserted in the resource's file name (in hex digits)
+		 */
+		public static final int FINGERPRINT_LENGTH = 10;
+
+		/**
+		 * Maximum number of issued fingerprints kept before they get cleared, a fingerprint that's been cleared
+		 * is recognized by checking the file system
+		 */
+		private static final int MAX_ISSUED_FINGERPRINTS = 10000;
+
+		/**
+		 * Fingerprints generated by this application, letting the request handler recognize a fingerprinted path without hitting the file system
+		 */
+		private static final Set<String> _issuedFingerprints = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * Maximum number of content fingerprints kept before they get cleared
+		 */
+		private static final int MAX_CONTENT_FINGERPRINTS = 10000;
+
+		/**
+		 * Fingerprints of the served resources' content, by path
+		 */
+		private static final Map<String, ContentFingerprint> _contentFingerprints = new ConcurrentHashMap<>();
+
+		/**
+		 * Maximum number of fingerprinted URLs kept before they get cleared
+		 */
+		private static final int MAX_VERSIONED_URLS = 10000;
+
+		/**
+		 * Fingerprinted URLs by original resource URL
+		 */
+		private final Map<String, String> _versionedUrls = new ConcurrentHashMap<>();
+
+		public String versionedUrlForResourceNamed(String resourceUrl, String name, String bundleName, NSArray<String> languages, WORequest request) {
+			if (ERXApplication.isDevelopmentModeSafe()) {
+				return fingerprintedUrl(resourceUrl, name, bundleName, languages);
+			}
+
+			String versionedUrl = _versionedUrls.get(resourceUrl);
+
+			if (versionedUrl == null) {
+				if (_versionedUrls.size() >= MAX_VERSIONED_URLS) {
+					_versionedUrls.clear();
+				}
+
+				versionedUrl = _versionedUrls.computeIfAbsent(resourceUrl, url -> fingerprintedUrl(url, name, bundleName, languages));
+			}
+
+			return versionedUrl;
+		}
+
+		private static String fingerprintedUrl(String resourceUrl, String name, String bundleName, NSArray<String> languages) {
+			int queryIndex = resourceUrl.indexOf('?');
+			String path = queryIndex == -1 ? resourceUrl : resourceUrl.substring(0, queryIndex);
+			String query = queryIndex == -1 ? "" : resourceUrl.substring(queryIndex);
+			int slashIndex = path.lastIndexOf('/');
+			int dotIndex = path.lastIndexOf('.');
+
+			// We need a file name with an extension to put the fingerprint in
+			if (dotIndex <= slashIndex + 1 || path.startsWith("/ERROR/NOT_FOUND")) {
+				return resourceUrl;
+			}
+
+			URL url = WOApplication.application().resourceManager().pathURLForResourceNamed(name, bundleName, languages);
+
+			if (url == null) {
+				return resourceUrl;
+			}
+
+			String fingerprint;
+
+			try (InputStream is = url.openStream()) {
+				fingerprint = fingerprint(is);
+			}
+			catch (IOException e) {
+				log.warn("Failed to compute fingerprint for resource '{}'.", url, e);
+				return resourceUrl;
+			}
+
+			if (_issuedFingerprints.size() >= MAX_ISSUED_FINGERPRINTS) {
+				_issuedFingerprints.clear();
+			}
+
+			_issuedFingerprints.add(fingerprint);
+			return path.substring(0, dotIndex) + "." + fingerprint + path.substring(dotIndex) + query;
+		}
+
+		/**
+		 * @return The fingerprint of the given content
+		 */
+		private static String fingerprint(InputStream is) throws IOException {
+			MessageDigest digest;
+
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+
+			byte[] buffer = new byte[8192];
+			int read;
+
+			while ((read = is.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+
+			return HexFormat.of().formatHex(digest.digest(), 0, FINGERPRINT_LENGTH / 2);
+		}
+
+		/**
+		 * @return The fingerprint in the given path's file name, null if there's none
+		 */
+		public static String fingerprintInPath(String path) {
+			int slashIndex = path.lastIndexOf('/');
+			int extensionDotIndex = path.lastIndexOf('.');
+			int fingerprintDotIndex = extensionDotIndex - FINGERPRINT_LENGTH - 1;
+
+			if (fingerprintDotIndex <= slashIndex + 1 || path.charAt(fingerprintDotIndex) != '.') {
+				return null;
+			}
+
+			String fingerprint = path.substring(fingerprintDotIndex + 1, extensionDotIndex);
+
+			for (int i = 0; i < fingerprint.length(); i++) {
+				char c = fingerprint.charAt(i);
+
+				if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+					return null;
+				}
+			}
+
+			return fingerprint;
+		}
+
+		/**
+		 * @return The given path with the fingerprint removed from it's file name, if the path has been fingerprinted by this version manager. Otherwise null.
+		 *         The fingerprint isn't checked against the content, use {@link #isFingerprintOfContent(String, String)} for that.
+		 */
+		public static String unfingerprintedPath(String path) {
+			String fingerprint = fingerprintInPath(path);
+
+			if (fingerprint == null) {
+				return null;
+			}
+
+			// A fingerprint we didn't issue (perhaps another instance did) is only stripped if there's no file with the fingerprinted name
+			if (!_issuedFingerprints.contains(fingerprint) && new File(path).exists()) {
+				return null;
+			}
+
+			int extensionDotIndex = path.lastIndexOf('.');
+			return path.substring(0, extensionDotIndex - FINGERPRINT_LENGTH - 1) + path.substring(extensionDotIndex);
+		}
+
+		/**
+		 * Checks a requested fingerprint against the content actually served. The fingerprint of a file is
+		 * computed once for each version (modification date and length) of the file.
+		 * 
+		 * @param fingerprint the fingerprint from the requested URL
+		 * @param path the path of the resource (a file path or jar: URL) without the fingerprint
+		 * @return true if the fingerprint matches the resource's current content
+		 */
+		public static boolean isFingerprintOfContent(String fingerprint, String path) {
+			long lastModified = 0;
+			long length = 0;
+
+			if (!path.startsWith("jar:")) {
+				File file = new File(path);
+				lastModified = file.lastModified();
+				length = file.length();
+
+				if (lastModified == 0) {
+					return false;
+				}
+			}
+
+			ContentFingerprint contentFingerprint = _contentFingerprints.get(path);
+
+			if (contentFingerprint == null || contentFingerprint.lastModified() != lastModified || contentFingerprint.length() != length) {
+				try (InputStream is = path.startsWith("jar:") ? new URL(path).openStream() : new FileInputStream(path)) {
+					contentFingerprint = new ContentFingerprint(lastModified, length, fingerprint(is));
+				}
+				catch (IOException e) {
+					log.debug("Failed to compute fingerprint for '{}'.", path, e);
+					return false;
+				}
+
+				if (_contentFingerprints.size() >= MAX_CONTENT_FINGERPRINTS) {
+					_contentFingerprints.clear();
+				}
+
+				_contentFingerprints.put(path, contentFingerprint);
+			}
+
+			return contentFingerprint.fingerprint().equals(fingerprint);
+		}
+
+		private record ContentFingerprint(long lastModified, long length, String fingerprint) {}
+	}
+	
 	/**
 	 * Overridden to supply additional mime types that are not present in the JavaWebObjects framework.
 	 * 
@@ -2,10 +2,15 @@ package er.extensions.appserver;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,7 +25,14 @@ import com.webobjects.foundation.NSSet;
 import er.extensions.foundation.ERXProperties;
 
 /**
- * Hosts the response compression logic previously found in ERXApplication 
+ * Hosts the response compression logic previously found in ERXApplication.
+ *
+ * The content coding is negotiated from the request's accept-encoding header (respecting q-values).
+ * gzip and deflate are provided out of the box, other codings (such as br or zstd) can be added
+ * by registering an {@link Encoder} using {@link #registerEncoder(Encoder)}.
+ *
+ * The built in encoders keep their Deflaters and work buffers in a small pool, so compressing a
+ * response usually doesn't allocate anything but the resulting NSData.
  */
 
 public class ERXResponseCompression {
@@ -29,15 +41,70 @@ public class ERXResponseCompression {
 
 	private static Set<String> _responseCompressionTypes;
 	private static Boolean _responseCompressionEnabled;
+	private static Integer _responseCompressionMinimumLength;
+	private static Integer _responseCompressionLevel;
+
+	/**
+	 * Available encoders, in order of server preference (used when the client gives two codings the same q-value)
+	 */
+	private static final List<Encoder> _encoders = new CopyOnWriteArrayList<>( List.of( new DeflaterEncoder( "gzip", true ), new DeflaterEncoder( "deflate", false ) ) );
+
+	/**
+	 * Cache of parsed accept-encoding header values. There are usually only a handful of distinct header values in the wild.
+	 */
+	private static final Map<String, AcceptEncoding> _acceptEncodingCache = new ConcurrentHashMap<>();
+
+	/**
+	 * Maximum number of entries kept in _acceptEncodingCache before it gets cleared
+	 */
+	private static final int MAX_CACHED_ACCEPT_ENCODINGS = 256;
+
+	/**
+	 * A content coding that can be used to compress responses.
+	 */
+	public interface Encoder {
+
+		/**
+		 * @return The content coding token, as used in the accept-encoding and content-encoding headers (for example "br")
+		 */
+		public String name();
+
+		/**
+		 * @return The given bytes encoded
+		 */
+		public NSData encode( byte[] bytes, int offset, int length ) throws IOException;
+
+		/**
+		 * @return The given stream encoded. The stream is consumed and closed.
+		 */
+		public NSData encode( InputStream stream, long length ) throws IOException;
+	}
+
+	/**
+	 * Registers an encoder. Encoders registered later take precedence over those registered earlier
+	 * (and the built in ones) when the client accepts them with the same q-value.
+	 * An encoder registered with the same name as an existing one replaces it.
+	 */
+	public static void registerEncoder( final Encoder encoder ) {
+		_encoders.removeIf( existing -> existing.name().equals( encoder.name() ) );
+		_encoders.add( 0, encoder );
+	}
+
+	/**
+	 * @return The registered encoders, in order of preference
+	 */
+	public static List<Encoder> encoders() {
+		return _encoders;
+	}
 
 	/**
 	 * checks the value of
 	 * <code>er.extensions.ERXApplication.responseCompressionTypes</code> for
 	 * mime types that allow response compression in addition to text/* types.
 	 * The default is ("application/x-javascript")
-	 * 
+	 *
 	 * @return an array of mime type strings
-	 * 
+	 *
 	 * FIXME: Rename the properties to reflect the class name change
 	 */
 	public static Set<String> responseCompressionTypes() {
@@ -51,8 +118,8 @@ public class ERXResponseCompression {
 	/**
 	 * checks the value of
 	 * <code>er.extensions.ERXApplication.responseCompressionEnabled</code> and
-	 * if true turns on response compression by gzip
-	 * 
+	 * if true turns on response compression
+	 *
 	 * FIXME: Rename the properties to reflect the class name change
 	 */
 	public static boolean responseCompressionEnabled() {
@@ -63,323 +130,483 @@ public class ERXResponseCompression {
 		return _responseCompressionEnabled.booleanValue();
 	}
 
+	/**
+	 * checks the value of
+	 * <code>er.extensions.ERXApplication.responseCompressionMinimumLength</code>.
+	 * Responses shorter than this (in bytes) are not compressed, since the CPU time isn't worth the few bytes saved.
+	 * The default is 0 (compress everything).
+	 */
+	public static int responseCompressionMinimumLength() {
+		if (_responseCompressionMinimumLength == null) {
+			_responseCompressionMinimumLength = ERXProperties.intForKeyWithDefault("er.extensions.ERXApplication.responseCompressionMinimumLength", 0);
+		}
+
+		return _responseCompressionMinimumLength;
+	}
+
+	/**
+	 * checks the value of
+	 * <code>er.extensions.ERXApplication.responseCompressionLevel</code> for the compression level (0-9) used by the gzip and deflate encoders.
+	 * The default is Deflater.DEFAULT_COMPRESSION.
+	 */
+	public static int responseCompressionLevel() {
+		if (_responseCompressionLevel == null) {
+			_responseCompressionLevel = ERXProperties.intForKeyWithDefault("er.extensions.ERXApplication.responseCompressionLevel", Deflater.DEFAULT_COMPRESSION);
+		}
+
+		return _responseCompressionLevel;
+	}
+
 	/**
 	 * Checks headers on the request and response
-	 * 
-	 * FIXME: clean up those checks a bit to make it easier to see what's happening.
 	 */
 	public static boolean shouldCompress( final WORequest request, final WOResponse response ) {
 		final String responseContentType = response.headerForKey("content-type");
 		final String responseContentEncoding = response.headerForKey("content-encoding");
-		final String requestAcceptEncoding = request.headerForKey("accept-encoding");
 
-		final boolean contentTypeCheck = !"gzip".equals(responseContentEncoding) && (responseContentType != null) && (responseContentType.startsWith("text/") || responseCompressionTypes().contains(responseContentType));
-		final boolean acceptEncodingCheck = (requestAcceptEncoding != null) && (requestAcceptEncoding.toLowerCase().indexOf("gzip") != -1);
-		
-		return contentTypeCheck && acceptEncodingCheck;
+		// Only complete responses are compressed, partial (206) and not modified (304) responses must stay as they are
+		if( response.status() != 200 || responseContentEncoding != null || responseContentType == null ) {
+			return false;
+		}
+
+		return isCompressibleContentType( responseContentType ) && encoderForRequest( request ) != null;
+	}
+
+	/**
+	 * @return true if content of the given type is worth compressing (text/* and the types in responseCompressionTypes())
+	 */
+	public static boolean isCompressibleContentType( final String contentType ) {
+		return contentType.startsWith("text/") || responseCompressionTypes().contains(contentType);
+	}
+
+	/**
+	 * @return The encoder to use for the given request, based on it's accept-encoding header. null if the client doesn't accept any encoding we provide.
+	 */
+	public static Encoder encoderForRequest( final WORequest request ) {
+		final AcceptEncoding acceptEncoding = acceptEncoding( request );
+
+		if( acceptEncoding == null ) {
+			return null;
+		}
+
+		Encoder bestEncoder = null;
+		float bestQuality = 0;
+
+		for( final Encoder encoder : _encoders ) {
+			final float quality = acceptEncoding.quality( encoder.name() );
+
+			if( quality > bestQuality ) {
+				bestEncoder = encoder;
+				bestQuality = quality;
+			}
+		}
+
+		return bestEncoder;
+	}
+
+	/**
+	 * @return The coding from the given list preferred by the request's accept-encoding header (highest q-value, ties resolved by the list's order). null if none is acceptable.
+	 */
+	public static String negotiateEncoding( final WORequest request, final List<String> encodings ) {
+		final AcceptEncoding acceptEncoding = acceptEncoding( request );
+
+		if( acceptEncoding == null ) {
+			return null;
+		}
+
+		String bestEncoding = null;
+		float bestQuality = 0;
+
+		for( final String encoding : encodings ) {
+			final float quality = acceptEncoding.quality( encoding );
+
+			if( quality > bestQuality ) {
+				bestEncoding = encoding;
+				bestQuality = quality;
+			}
+		}
+
+		return bestEncoding;
+	}
+
+	/**
+	 * @return The parsed accept-encoding header of the given request, null if the header isn't present.
+	 */
+	private static AcceptEncoding acceptEncoding( final WORequest request ) {
+		final String headerValue = request.headerForKey("accept-encoding");
+
+		if( headerValue == null ) {
+			return null;
+		}
+
+		AcceptEncoding acceptEncoding = _acceptEncodingCache.get( headerValue );
+
+		if( acceptEncoding == null ) {
+			acceptEncoding = AcceptEncoding.parse( headerValue );
+
+			if( _acceptEncodingCache.size() >= MAX_CACHED_ACCEPT_ENCODINGS ) {
+				_acceptEncodingCache.clear();
+			}
+
+			_acceptEncodingCache.put( headerValue, acceptEncoding );
+		}
+
+		return acceptEncoding;
+	}
+
+	/**
+	 * A parsed accept-encoding header value
+	 */
+	private record AcceptEncoding( String[] names, float[] qualities, float wildcardQuality ) {
+
+		private static AcceptEncoding parse( final String headerValue ) {
+			final String[] codings = headerValue.toLowerCase().split(",");
+			final String[] names = new String[codings.length];
+			final float[] qualities = new float[codings.length];
+			float wildcardQuality = 0;
+
+			for( int i = 0; i < codings.length; i++ ) {
+				final String coding = codings[i];
+				final int semicolonIndex = coding.indexOf(';');
+				names[i] = (semicolonIndex == -1 ? coding : coding.substring(0, semicolonIndex)).trim();
+				qualities[i] = semicolonIndex == -1 ? 1 : parseQuality( coding.substring(semicolonIndex + 1) );
+
+				if( "*".equals( names[i] ) ) {
+					wildcardQuality = qualities[i];
+				}
+			}
+
+			return new AcceptEncoding( names, qualities, wildcardQuality );
+		}
+
+		/**
+		 * @return the q-value from the given coding parameters (for example " q=0.5"). Defaults to 1 if no q-value is present, 0 if it can't be parsed.
+		 */
+		private static float parseQuality( final String parameters ) {
+			for( final String parameter : parameters.split(";") ) {
+				final String trimmed = parameter.trim();
+
+				if( trimmed.startsWith("q=") ) {
+					try {
+						return Float.parseFloat( trimmed.substring(2).trim() );
+					}
+					catch( NumberFormatException e ) {
+						return 0;
+					}
+				}
+			}
+
+			return 1;
+		}
+
+		/**
+		 * @return The q-value the client gives the named coding. 0 means not acceptable.
+		 */
+		private float quality( final String name ) {
+			for( int i = 0; i < names.length; i++ ) {
+				if( name.equals( names[i] ) ) {
+					return qualities[i];
+				}
+			}
+
+			return wildcardQuality;
+		}
 	}
 
+	/**
+	 * Compresses the response using gzip.
+	 *
+	 * @deprecated Use {@link #compressResponse(WORequest, WOResponse)}, which uses the encoding the client prefers
+	 */
+	@Deprecated
 	public static WOResponse compressResponse( final WOResponse response ) {
-	
+		for( final Encoder encoder : _encoders ) {
+			if( "gzip".equals( encoder.name() ) ) {
+				return compressResponse( encoder, response );
+			}
+		}
+
+		return response;
+	}
+
+	/**
+	 * Compresses the response using the encoding negotiated for the given request.
+	 * Responses shorter than responseCompressionMinimumLength() are returned untouched.
+	 */
+	public static WOResponse compressResponse( final WORequest request, final WOResponse response ) {
+		final Encoder encoder = encoderForRequest( request );
+
+		if( encoder == null ) {
+			return response;
+		}
+
+		return compressResponse( encoder, response );
+	}
+
+	private static WOResponse compressResponse( final Encoder encoder, final WOResponse response ) {
 		final long start = System.currentTimeMillis();
 		final long inputBytesLength;
 		final InputStream contentInputStream = response.contentInputStream();
-		final NSData compressedData;
+		NSData compressedData;
 
 		if (contentInputStream != null) {
 			inputBytesLength = response.contentInputStreamLength();
-			compressedData = ERXCompressionUtilities.gzipInputStreamAsNSData(contentInputStream, (int) inputBytesLength);
+
+			// We can only hold the compressed result of a stream with a known, reasonable length (this rules out things like ERXKeepAliveResponse)
+			if( inputBytesLength < responseCompressionMinimumLength() || inputBytesLength <= 0 || inputBytesLength >= Integer.MAX_VALUE ) {
+				return response;
+			}
+
+			try {
+				compressedData = encoder.encode(contentInputStream, inputBytesLength);
+			}
+			catch( IOException e ) {
+				log.error( "Failed to compress response stream using " + encoder.name(), e );
+				compressedData = null;
+			}
+
 			response.setContentStream(null, 0, 0);
 		}
 		else {
 			final NSData input = response.content();
 			inputBytesLength = input.length();
 
-			if (inputBytesLength > 0) {
-				compressedData = ERXCompressionUtilities.gzipByteArrayAsNSData(input._bytesNoCopy(), 0, (int) inputBytesLength);
+			if( inputBytesLength <= 0 || inputBytesLength < responseCompressionMinimumLength() ) {
+				return response;
+			}
+
+			try {
+				compressedData = encoder.encode(input._bytesNoCopy(), 0, (int) inputBytesLength);
 			}
-			else {
-				compressedData = NSData.EmptyData;
+			catch( IOException e ) {
+				log.error( "Failed to compress response using " + encoder.name(), e );
+				return response;
+			}
+		}
+
+		if (compressedData == null) {
+			// something went wrong
+		}
+		else {
+			response.setContent(compressedData);
+			response.setHeader(String.valueOf(compressedData.length()), "content-length");
+			response.setHeader(encoder.name(), "content-encoding");
+			addVaryAcceptEncoding(response);
+			weakenETag(response);
+
+			if (log.isDebugEnabled()) {
+				log.debug("encoding: " + encoder.name() + ", before: " + inputBytesLength + ", after " + compressedData.length() + ", time: " + (System.currentTimeMillis() - start));
+			}
+		}
+
+		return response;
+	}
+
+	/**
+	 * Tells caches that the response's representation depends on the request's accept-encoding header
+	 */
+	static void addVaryAcceptEncoding( final WOResponse response ) {
+		final String vary = response.headerForKey("vary");
+
+		if( vary == null || vary.isEmpty() ) {
+			response.setHeader("accept-encoding", "vary");
+		}
+		else if( !vary.toLowerCase().contains("accept-encoding") ) {
+			response.setHeader(vary + ", accept-encoding", "vary");
+		}
+	}
+
+	/**
+	 * An entity tag of the uncompressed content is no longer a strong validator for the compressed content (it's not byte-for-byte identical).
+	 * Marking it weak keeps it usable for revalidation (if-none-match uses weak comparison) but prevents it from being used for range requests.
+	 */
+	private static void weakenETag( final WOResponse response ) {
+		final String etag = response.headerForKey("etag");
+
+		if( etag != null && !etag.startsWith("W/") ) {
+			response.setHeader("W/" + etag, "etag");
+		}
+	}
+
+	/**
+	 * Encoder for the gzip and deflate codings, using java.util.zip.Deflater.
+	 *
+	 * The Deflaters and buffers are kept in a bounded pool and reset and reused for the next response. A Deflater's
+	 * native memory is only released by end(), so the ones that don't fit into the pool are ended.
+	 */
+	private static class DeflaterEncoder implements Encoder {
+
+		/**
+		 * Maximum number of idle workspaces kept by an encoder
+		 */
+		private static final int MAX_POOLED_WORKSPACES = 16;
+
+		private final String _name;
+		private final boolean _gzip;
+		private final BlockingQueue<Workspace> _pool = new ArrayBlockingQueue<>( MAX_POOLED_WORKSPACES );
+
+		/**
+		 * @param gzip true to wrap the deflated data in gzip framing, false for zlib framing (which is what the "deflate" content coding actually means)
+		 */
+		private DeflaterEncoder( final String name, final boolean gzip ) {
+			_name = name;
+			_gzip = gzip;
+		}
+
+		private Workspace borrowWorkspace() {
+			final Workspace workspace = _pool.poll();
+			return workspace != null ? workspace : new Workspace( _gzip );
+		}
+
+		private void returnWorkspace( final Workspace workspace ) {
+			workspace.reset();
+
+			if( !_pool.offer( workspace ) ) {
+				workspace.end();
 			}
 		}
 
-		if (inputBytesLength > 0) {
-			if (compressedData == null) {
-				// something went wrong
+		@Override
+		public String name() {
+			return _name;
+		}
+
+		@Override
+		public NSData encode( byte[] bytes, int offset, int length ) {
+			final Workspace workspace = borrowWorkspace();
+
+			try {
+				workspace.begin();
+				workspace.deflate(bytes, offset, length);
+				return workspace.finish();
 			}
-			else {
-				response.setContent(compressedData);
-				response.setHeader(String.valueOf(compressedData.length()), "content-length");
-				response.setHeader("gzip", "content-encoding");
+			finally {
+				returnWorkspace( workspace );
+			}
+		}
+
+		@Override
+		public NSData encode( InputStream stream, long length ) throws IOException {
+			final Workspace workspace = borrowWorkspace();
 
-				if (log.isDebugEnabled()) {
-					log.debug("before: " + inputBytesLength + ", after " + compressedData.length() + ", time: " + (System.currentTimeMillis() - start));
+			try( stream ) {
+				workspace.begin();
+
+				int read;
+
+				while( (read = stream.read(workspace._inputBuffer)) != -1 ) {
+					workspace.deflate(workspace._inputBuffer, 0, read);
 				}
+
+				return workspace.finish();
+			}
+			finally {
+				returnWorkspace( workspace );
 			}
 		}
-		
-		return response;
 	}
-	
-	private static class ERXCompressionUtilities {
+
+	/**
+	 * The state a DeflaterEncoder needs to compress a response, used by one thread at a time.
+	 */
+	private static class Workspace {
 
 		/**
-		 * Returns an NSData containing the gzipped version of the given input stream.
-		 * 
-		 * @param input the input stream to compress
-		 * @param length the length of the input stream
-		 * @return gzipped NSData
+		 * Size of the input buffer, and initial size of the output buffer
 		 */
-		private static NSData gzipInputStreamAsNSData(InputStream input, int length) {
-			try( ERXRefByteArrayOutputStream bos = new ERXRefByteArrayOutputStream(length)) {
-				if (input != null) {
-					try( GZIPOutputStream out = new GZIPOutputStream(bos)) {
-						input.transferTo(out);
-					}
-					finally {
-						input.close();
-					}
-				}
-				return bos.toNSData();
+		private static final int BUFFER_SIZE = 16 * 1024;
+
+		/**
+		 * Output buffers larger than this are discarded after use, so a single huge response doesn't pin memory in the pool forever
+		 */
+		private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+		private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+		private final boolean _gzip;
+		private final Deflater _deflater;
+		private final CRC32 _crc = new CRC32();
+		private final byte[] _inputBuffer = new byte[BUFFER_SIZE];
+		private byte[] _outputBuffer = new byte[BUFFER_SIZE];
+		private int _count;
+
+		private Workspace( final boolean gzip ) {
+			_gzip = gzip;
+			_deflater = new Deflater( responseCompressionLevel(), gzip );
+		}
+
+		private void begin() {
+			_count = 0;
+
+			if( _gzip ) {
+				_crc.reset();
+				System.arraycopy(GZIP_HEADER, 0, _outputBuffer, 0, GZIP_HEADER.length);
+				_count = GZIP_HEADER.length;
+			}
+		}
+
+		private void deflate( byte[] bytes, int offset, int length ) {
+			if( _gzip ) {
+				_crc.update(bytes, offset, length);
 			}
-			catch (IOException e) {
-				log.error("Failed to gzip byte array.", e);
-				return null;
+
+			_deflater.setInput(bytes, offset, length);
+
+			while( !_deflater.needsInput() ) {
+				drain();
 			}
 		}
 
-		private static NSData gzipByteArrayAsNSData(byte[] input, int offset, int length) {
-			try( ERXRefByteArrayOutputStream bos = new ERXRefByteArrayOutputStream(length)) {
-				if (input != null) {
-					try( GZIPOutputStream out = new GZIPOutputStream(bos)) {
-						out.write(input, offset, length);
-						out.finish();
-					}
-				}
-				return bos.toNSData();
+		private NSData finish() {
+			_deflater.finish();
+
+			while( !_deflater.finished() ) {
+				drain();
 			}
-			catch (IOException e) {
-				log.error("Failed to gzip byte array.", e);
-				return null;
+
+			if( _gzip ) {
+				writeIntLE( (int) _crc.getValue() );
+				writeIntLE( (int) _deflater.getBytesRead() );
+			}
+
+			// Copies the compressed bytes into a new array owned by the NSData, leaving our buffer free for reuse
+			return new NSData(_outputBuffer, new NSRange(0, _count));
+		}
+
+		private void reset() {
+			_deflater.reset();
+
+			if( _outputBuffer.length > MAX_RETAINED_BUFFER_SIZE ) {
+				_outputBuffer = new byte[BUFFER_SIZE];
 			}
 		}
 
 		/**
-		 * This class is uh ... inspired ... by ByteArrayOutputStream, except
-		 * that it gives direct access to the underlying byte buffer for 
-		 * performing operations on the buffer without a byte array copying
-		 * penalty.
-		 *
-		 * @author  Arthur van Hoff
-		 * @author mschrag
+		 * Releases the Deflater's native memory. The workspace can't be used anymore.
 		 */
-		private static class ERXRefByteArrayOutputStream extends OutputStream {
-
-		  /** 
-		   * The buffer where data is stored. 
-		   */
-		  protected byte buf[];
-
-		  /**
-		   * The number of valid bytes in the buffer. 
-		   */
-		  protected int count;
-
-		  /**
-		   * Creates a new byte array output stream. The buffer capacity is 
-		   * initially 32 bytes, though its size increases if necessary. 
-		   */
-		  public ERXRefByteArrayOutputStream() {
-		    this(32);
-		  }
-
-		  /**
-		   * Creates a new byte array output stream, with a buffer capacity of 
-		   * the specified size, in bytes. 
-		   *
-		   * @param   size   the initial size.
-		   * @exception  IllegalArgumentException if size is negative.
-		   */
-		  public ERXRefByteArrayOutputStream(int size) {
-		    if (size < 0) {
-		      throw new IllegalArgumentException("Negative initial size: " + size);
-		    }
-		    buf = new byte[size];
-		  }
-
-		  /**
-		   * Writes the specified byte to this byte array output stream. 
-		   *
-		   * @param   b   the byte to be written.
-		   */
-		  @Override
-		  public synchronized void write(int b) {
-		    int newcount = count + 1;
-		    if (newcount > buf.length) {
-		      byte newbuf[] = new byte[Math.max(buf.length << 1, newcount)];
-		      System.arraycopy(buf, 0, newbuf, 0, count);
-		      buf = newbuf;
-		    }
-		    buf[count] = (byte) b;
-		    count = newcount;
-		  }
-
-		  /**
-		   * Writes <code>len</code> bytes from the specified byte array 
-		   * starting at offset <code>off</code> to this byte array output stream.
-		   *
-		   * @param   b     the data.
-		   * @param   off   the start offset in the data.
-		   * @param   len   the number of bytes to write.
-		   */
-		  @Override
-		  public synchronized void write(byte b[], int off, int len) {
-		    if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0)) {
-		      throw new IndexOutOfBoundsException();
-		    }
-		    else if (len == 0) {
-		      return;
-		    }
-		    int newcount = count + len;
-		    if (newcount > buf.length) {
-		      byte newbuf[] = new byte[Math.max(buf.length << 1, newcount)];
-		      System.arraycopy(buf, 0, newbuf, 0, count);
-		      buf = newbuf;
-		    }
-		    System.arraycopy(b, off, buf, count, len);
-		    count = newcount;
-		  }
-
-		  /**
-		   * Writes the complete contents of this byte array output stream to 
-		   * the specified output stream argument, as if by calling the output 
-		   * stream's write method using <code>out.write(buf, 0, count)</code>.
-		   *
-		   * @param      out   the output stream to which to write the data.
-		   * @exception  IOException  if an I/O error occurs.
-		   */
-		  public synchronized void writeTo(OutputStream out) throws IOException {
-		    out.write(buf, 0, count);
-		  }
-
-		  /**
-		   * Resets the <code>count</code> field of this byte array output 
-		   * stream to zero, so that all currently accumulated output in the 
-		   * ouput stream is discarded. The output stream can be used again, 
-		   * reusing the already allocated buffer space. 
-		   *
-		   * @see     java.io.ByteArrayInputStream#count
-		   */
-		  public synchronized void reset() {
-		    count = 0;
-		  }
-
-		  /**
-		   * Creates a newly allocated byte array. Its size is the current 
-		   * size of this output stream and the valid contents of the buffer 
-		   * have been copied into it. 
-		   *
-		   * @return  the current contents of this output stream, as a byte array.
-		   * @see     java.io.ByteArrayOutputStream#size()
-		   */
-		  public synchronized byte toByteArray()[] {
-		    byte newbuf[] = new byte[count];
-		    System.arraycopy(buf, 0, newbuf, 0, count);
-		    return newbuf;
-		  }
-
-		  /**
-		   * Returns the current size of the buffer.
-		   *
-		   * @return  the value of the <code>count</code> field, which is the number
-		   *          of valid bytes in this output stream.
-		   * @see     java.io.ByteArrayOutputStream#count
-		   */
-		  public int size() {
-		    return count;
-		  }
-
-		  /**
-		   * Converts the buffer's contents into a string, translating bytes into
-		   * characters according to the platform's default character encoding.
-		   *
-		   * @return String translated from the buffer's contents.
-		   * @since   JDK1.1
-		   */
-		  @Override
-		  public String toString() {
-		    return new String(buf, 0, count);
-		  }
-
-		  /**
-		   * Converts the buffer's contents into a string, translating bytes into
-		   * characters according to the specified character encoding.
-		   *
-		   * @param   enc  a character-encoding name.
-		   * @return String translated from the buffer's contents.
-		   * @throws UnsupportedEncodingException
-		   *         If the named encoding is not supported.
-		   * @since   JDK1.1
-		   */
-		  public String toString(String enc) throws UnsupportedEncodingException {
-		    return new String(buf, 0, count, enc);
-		  }
-
-		  /**
-		   * Creates a newly allocated string. Its size is the current size of 
-		   * the output stream and the valid contents of the buffer have been 
-		   * copied into it. Each character <i>c</i> in the resulting string is 
-		   * constructed from the corresponding element <i>b</i> in the byte 
-		   * array such that:
-		   * <blockquote><pre>
-		   *     c == (char)(((hibyte &amp; 0xff) &lt;&lt; 8) | (b &amp; 0xff))
-		   * </pre></blockquote>
-		   *
-		   * @deprecated This method does not properly convert bytes into characters.
-		   * As of JDK&nbsp;1.1, the preferred way to do this is via the
-		   * <code>toString(String enc)</code> method, which takes an encoding-name
-		   * argument, or the <code>toString()</code> method, which uses the
-		   * platform's default character encoding.
-		   *
-		   * @param      hibyte    the high byte of each resulting Unicode character.
-		   * @return     the current contents of the output stream, as a string.
-		   * @see        java.io.ByteArrayOutputStream#size()
-		   * @see        java.io.ByteArrayOutputStream#toString(String)
-		   * @see        java.io.ByteArrayOutputStream#toString()
-		   */
-		  @Deprecated
-		  public String toString(int hibyte) {
-		    return new String(buf, hibyte, 0, count);
-		  }
-
-		  /**
-		   * Closing a <tt>ByteArrayOutputStream</tt> has no effect. The methods in
-		   * this class can be called after the stream has been closed without
-		   * generating an <tt>IOException</tt>.
-		   * <p>
-		   *
-		   */
-		  @Override
-		  public void close() {
-		  }
-
-		  /**
-		   * Returns the underlying byte buffer for this stream.
-		   * 
-		   * @return the underlying byte buffer for this stream
-		   */
-		  public synchronized byte[] getBuffer() {
-		    return buf;
-		  }
-
-		  /**
-		   * Returns a no-copy NSData of the byte buffer for this stream.
-		   * 
-		   * @return a no-copy NSData of the byte buffer for this stream
-		   */
-		  public synchronized NSData toNSData() {
-		    return new NSData(buf, new NSRange(0, count), true);
-		  }
+		private void end() {
+			_deflater.end();
+		}
+
+		private void drain() {
+			ensureCapacity(_count + 1);
+			_count += _deflater.deflate(_outputBuffer, _count, _outputBuffer.length - _count);
+		}
+
+		private void writeIntLE( final int value ) {
+			ensureCapacity(_count + 4);
+			_outputBuffer[_count++] = (byte) value;
+			_outputBuffer[_count++] = (byte) (value >> 8);
+			_outputBuffer[_count++] = (byte) (value >> 16);
+			_outputBuffer[_count++] = (byte) (value >> 24);
+		}
+
+		private void ensureCapacity( final int capacity ) {
+			if( capacity > _outputBuffer.length ) {
+				final byte[] newBuffer = new byte[Math.max(_outputBuffer.length << 1, capacity)];
+				System.arraycopy(_outputBuffer, 0, newBuffer, 0, _count);
+				_outputBuffer = newBuffer;
+			}
 		}
 	}
-}
\ No newline at end of file
+}
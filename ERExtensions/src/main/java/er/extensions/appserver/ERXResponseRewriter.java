@@ -15,6 +15,7 @@ import com.webobjects.appserver.WORequestHandler;
 import com.webobjects.appserver.WOResourceManager;
 import com.webobjects.appserver.WOResponse;
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSMutableSet;
 import com.webobjects.foundation.NSNotification;
@@ -27,11 +28,19 @@ import er.extensions.foundation.ERXUtilities;
 /**
  * ERXResponseRewriter provides several utilities for manipulating a WOResponse
  * after it has already been "drawn" by previous components.
+ * <p>
+ * Content added to the head of a page (scripts, stylesheets) is not inserted right away. The position of the
+ * close of the head tag is found once per response, and the content inserted before it is collected and
+ * spliced into the response in one go by {@link #flushPendingInsertions(WOResponse)}, which ERXApplication
+ * calls when the response is complete. Any other rewriting of the response flushes the pending insertions first.
+ * The pending insertions are kept in the response's userInfo.
  * 
  * @author mschrag
  * @property er.extensions.loadOnDemand if <code>true</code>, javascript files included in Ajax responses will be loaded on-demand (defaults to <code>true</code>) 
  * @property er.ajax.secureResources if <code>true</code>, load all resources with https (default false) 
  * @property er.ajax.AJComponent.htmlCloseHead the tag to insert in front of (defaults to &lt;/head&gt;)
+ * @property er.extensions.ERXResponseRewriter.deferHeadInsertions if <code>true</code>, content inserted before the close of the head
+ *           tag is collected and spliced into the response once, when the response is complete (defaults to <code>true</code>)
  * @property er.extensions.ERXResponseRewriter.javascriptTypeAttribute if <code>true</code>, <i>type="text/javascript"</i>
  *           will be added to injected script tags (defaults <code>false</code>). For valid HTML you have to set this to
  *           <code>true</code> for HTML4 and XHTML but HTML5 will default to <i>text/javascript</i> if that attribute
@@ -44,6 +53,8 @@ public class ERXResponseRewriter {
 
 	private static final String PENDING_INSERTS_KEY = "ERXResponseRewriter.pendingInserts";
 
+	private static final String PENDING_INSERTIONS_KEY = "ERXResponseRewriter.pendingInsertions";
+
 	private static final String SECURE_RESOURCES_KEY = "er.ajax.secureResources";
 
 	private static final String ORIGINAL_CONTEXT_ID_KEY = "_originalContextID";
@@ -300,6 +311,7 @@ public class ERXResponseRewriter {
 	 * @param replacement the replacement value
 	 */
 	public static void replaceAllInResponse(WOResponse response, WOContext context, Pattern pattern, String replacement) {
+		ERXResponseRewriter.flushPendingInsertions(response);
 		String responseContent = response.contentString();
 		if (responseContent != null) {
 			String responseReplaced = pattern.matcher(responseContent).replaceAll(replacement);
@@ -316,6 +328,7 @@ public class ERXResponseRewriter {
 	 * @param replacement the replacement value
 	 */
 	public static void replaceFirstInResponse(WOResponse response, WOContext context, Pattern pattern, String replacement) {
+		ERXResponseRewriter.flushPendingInsertions(response);
 		String responseContent = response.contentString();
 		if (responseContent != null) {
 			String responseReplaced = pattern.matcher(responseContent).replaceFirst(replacement);
@@ -341,26 +354,42 @@ public class ERXResponseRewriter {
 	 */
 	public static boolean insertInResponseBeforeTag(WOResponse response, WOContext context, String content, String tag, TagMissingBehavior tagMissingBehavior) {
 		boolean inserted = false;
+		boolean defer = tag != null && tag.equals(ERXResponseRewriter._htmlCloseHeadTag()) && ERXProperties.booleanForKeyWithDefault("er.extensions.ERXResponseRewriter.deferHeadInsertions", true);
+		PendingInsertions pendingInsertions = defer ? ERXResponseRewriter.pendingInsertions(response) : null;
+		if (pendingInsertions != null) {
+			pendingInsertions.insert(content);
+			return true;
+		}
+		if (!defer) {
+			ERXResponseRewriter.flushPendingInsertions(response);
+		}
 		String responseContent = response.contentString();
 		int tagIndex;
 		if (tag != null) {
 			tagIndex = responseContent.indexOf(tag);
 			if (tagIndex < 0) {
-				tagIndex = responseContent.toLowerCase().indexOf(tag.toLowerCase());
+				tagIndex = indexOfIgnoreCase(responseContent, tag, 0);
 			}
 		}
 		else {
 			tagIndex = -1;
 		}
 		if (tagIndex >= 0) {
-			int insertIndex = tagIndex;
-			if (content.toLowerCase().startsWith("<link") || content.toLowerCase().startsWith("<style")) {
-				int scriptIndex = responseContent.toLowerCase().indexOf("<script");
-				if (scriptIndex > 0 && scriptIndex < insertIndex) {
-					insertIndex = scriptIndex;
+			if (defer) {
+				pendingInsertions = new PendingInsertions(tag, tagIndex, indexOfIgnoreCase(responseContent, "<script", 0));
+				pendingInsertions.insert(content);
+				ERXResponseRewriter.setPendingInsertions(response, pendingInsertions);
+			}
+			else {
+				int insertIndex = tagIndex;
+				if (isLinkOrStyle(content)) {
+					int scriptIndex = indexOfIgnoreCase(responseContent, "<script", 0);
+					if (scriptIndex > 0 && scriptIndex < insertIndex) {
+						insertIndex = scriptIndex;
+					}
 				}
+				response.setContent(insertString(responseContent, content, insertIndex));
 			}
-			response.setContent(insertString(responseContent, content, insertIndex));
 			inserted = true;
 		}
 		else if (tagMissingBehavior == TagMissingBehavior.Inline) {
@@ -398,6 +427,194 @@ public class ERXResponseRewriter {
 		return inserted;
 	}
 	
+	/**
+	 * Splices the content that was added to the head of the given response (and not inserted yet) into the
+	 * response. Called by ERXApplication when the response is complete, call it yourself if you read the
+	 * content of a response you have added head content to before that.
+	 * 
+	 * @param response
+	 *            the response
+	 * @return whether there was pending content that has been inserted
+	 */
+	public static boolean flushPendingInsertions(WOResponse response) {
+		PendingInsertions pendingInsertions = ERXResponseRewriter.pendingInsertions(response);
+		if (pendingInsertions == null) {
+			return false;
+		}
+		ERXResponseRewriter.setPendingInsertions(response, null);
+		String responseContent = response.contentString();
+		String splicedContent = pendingInsertions.splice(responseContent);
+		if (splicedContent != null) {
+			response.setContent(splicedContent);
+		}
+		else {
+			log.warn("There was no {} anymore, so your content did not get added: {}", pendingInsertions.tag(), pendingInsertions);
+		}
+		return true;
+	}
+
+	/**
+	 * The pending insertions are kept in the userInfo of the response they belong to, so they go away with it.
+	 */
+	private static PendingInsertions pendingInsertions(WOResponse response) {
+		NSDictionary userInfo = response.userInfo();
+		return userInfo != null ? (PendingInsertions) userInfo.objectForKey(ERXResponseRewriter.PENDING_INSERTIONS_KEY) : null;
+	}
+
+	private static void setPendingInsertions(WOResponse response, PendingInsertions pendingInsertions) {
+		NSDictionary userInfo = response.userInfo();
+		NSMutableDictionary mutableUserInfo = userInfo != null ? userInfo.mutableClone() : new NSMutableDictionary();
+		if (pendingInsertions != null) {
+			mutableUserInfo.setObjectForKey(pendingInsertions, ERXResponseRewriter.PENDING_INSERTIONS_KEY);
+		}
+		else {
+			mutableUserInfo.removeObjectForKey(ERXResponseRewriter.PENDING_INSERTIONS_KEY);
+		}
+		response.setUserInfo(mutableUserInfo);
+	}
+
+	/**
+	 * @return whether the content is a link or style tag, which go before the scripts of the head
+	 */
+	private static boolean isLinkOrStyle(String content) {
+		return content.regionMatches(true, 0, "<link", 0, 5) || content.regionMatches(true, 0, "<style", 0, 6);
+	}
+
+	/**
+	 * Like <code>string.toLowerCase().indexOf(searchString.toLowerCase(), fromIndex)</code>, without the copies.
+	 */
+	private static int indexOfIgnoreCase(CharSequence string, String searchString, int fromIndex) {
+		String s = string.toString();
+		int last = s.length() - searchString.length();
+		for (int i = Math.max(fromIndex, 0); i <= last; i++) {
+			if (s.regionMatches(true, i, searchString, 0, searchString.length())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The content added before the close of the head tag of a response, that hasn't been inserted into the
+	 * response yet. Content goes in front of the tag, links and styles go in front of the first script.
+	 */
+	private static class PendingInsertions {
+		private final String _tag;
+		private final int _tagIndex;
+		private final int _scriptIndex;
+		private final Insertion _beforeScript = new Insertion();
+		private final Insertion _beforeTag = new Insertion();
+
+		/**
+		 * @param tag the tag
+		 * @param tagIndex the index of the tag in the response
+		 * @param scriptIndex the index of the first script tag in the response, -1 if there isn't one
+		 */
+		public PendingInsertions(String tag, int tagIndex, int scriptIndex) {
+			_tag = tag;
+			_tagIndex = tagIndex;
+			_scriptIndex = scriptIndex;
+		}
+
+		public String tag() {
+			return _tag;
+		}
+
+		public void insert(String content) {
+			// links and styles go in front of the first script of the response (unless it's at the very start)
+			if (isLinkOrStyle(content) && _scriptIndex != 0) {
+				if (_beforeScript.hasScript()) {
+					_beforeScript.insertBeforeScript(content);
+				}
+				else if (_scriptIndex > 0 && _scriptIndex < _tagIndex) {
+					_beforeScript.append(content);
+				}
+				else if (_beforeTag.hasScript()) {
+					_beforeTag.insertBeforeScript(content);
+				}
+				else {
+					_beforeTag.append(content);
+				}
+			}
+			else {
+				_beforeTag.append(content);
+			}
+		}
+
+		/**
+		 * @param content the content of the response
+		 * @return the content with the pending insertions, null if the tag can't be found anymore
+		 */
+		public String splice(String content) {
+			int tagIndex = _tagIndex;
+			if (!content.regionMatches(true, tagIndex, _tag, 0, _tag.length())) {
+				// the response has been rewritten in the meantime
+				tagIndex = content.indexOf(_tag);
+				if (tagIndex < 0) {
+					tagIndex = indexOfIgnoreCase(content, _tag, 0);
+				}
+				if (tagIndex < 0) {
+					return null;
+				}
+			}
+			int scriptIndex = _scriptIndex;
+			if (_beforeScript.length() > 0 && !content.regionMatches(true, scriptIndex, "<script", 0, 7)) {
+				scriptIndex = indexOfIgnoreCase(content, "<script", 0);
+			}
+			if (_beforeScript.length() == 0 || scriptIndex < 0 || scriptIndex > tagIndex) {
+				scriptIndex = tagIndex;
+			}
+			StringBuilder sb = new StringBuilder(content.length() + _beforeScript.length() + _beforeTag.length());
+			sb.append(content, 0, scriptIndex);
+			sb.append(_beforeScript.content());
+			sb.append(content, scriptIndex, tagIndex);
+			sb.append(_beforeTag.content());
+			sb.append(content, tagIndex, content.length());
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return _beforeScript.content().toString() + _beforeTag.content();
+		}
+	}
+
+	/**
+	 * Content to insert at one position of a response, keeping track of the first script tag in it
+	 */
+	private static class Insertion {
+		private final StringBuilder _content = new StringBuilder();
+		private int _scriptIndex = -1;
+
+		public CharSequence content() {
+			return _content;
+		}
+
+		public int length() {
+			return _content.length();
+		}
+
+		public boolean hasScript() {
+			return _scriptIndex >= 0;
+		}
+
+		public void append(String content) {
+			if (_scriptIndex < 0) {
+				int scriptIndex = indexOfIgnoreCase(content, "<script", 0);
+				if (scriptIndex >= 0) {
+					_scriptIndex = _content.length() + scriptIndex;
+				}
+			}
+			_content.append(content);
+		}
+
+		public void insertBeforeScript(String content) {
+			_content.insert(_scriptIndex, content);
+			int scriptIndex = indexOfIgnoreCase(content, "<script", 0);
+			_scriptIndex += scriptIndex >= 0 ? scriptIndex : content.length();
+		}
+	}
+
 	/**
 	 * Inserts the a string into another string at a particular offset.
 	 * 
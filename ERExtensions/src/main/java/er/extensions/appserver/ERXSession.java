@@ -31,6 +31,7 @@ import com.webobjects.foundation.NSTimestamp;
 
 import er.extensions.appserver.ajax.ERXAjaxSession;
 import er.extensions.foundation.ERXProperties;
+import er.extensions.foundation.ERXRequestStorage;
 import er.extensions.foundation.ERXThreadStorage;
 import er.extensions.foundation.ERXUtilities;
 import er.extensions.localization.ERXLocalizer;
@@ -271,14 +272,12 @@ public class ERXSession extends ERXAjaxSession implements Serializable {
 		if (_browser == null && context() != null) {
 			WORequest request = context().request();
 			if (request != null) {
-				ERXBrowserFactory browserFactory = ERXBrowserFactory.factory();
 				if (request instanceof ERXRequest) {
 					_browser = ((ERXRequest) request).browser();
 				}
 				else {
-					_browser = browserFactory.browserMatchingRequest(request);
+					_browser = ERXBrowserFactory.factory().browserMatchingRequest(request);
 				}
-				browserFactory.retainBrowser(_browser);
 			}
 		}
 		return _browser;
@@ -425,10 +424,7 @@ public class ERXSession extends ERXAjaxSession implements Serializable {
 			NSNotificationCenter.defaultCenter().removeObserver(_observer);
 			_observer = null;
 		}
-		if (_browser != null) {
-			ERXBrowserFactory.factory().releaseBrowser(_browser);
-			_browser = null;
-		}
+		_browser = null;
 		log.debug("Will terminate, sessionId is {}", sessionID());
 		super.terminate();
 	}
@@ -540,11 +536,12 @@ public class ERXSession extends ERXAjaxSession implements Serializable {
 	}
 
 	public static WOSession anySession() {
-		return (WOSession) ERXThreadStorage.valueForKey("session");
+		ERXRequestStorage storage = ERXThreadStorage.existingStorage();
+		return storage != null ? storage.session() : null;
 	}
 
 	public static ERXSession session() {
-		return (ERXSession) ERXThreadStorage.valueForKey("session");
+		return (ERXSession) anySession();
 	}
 
 	public static String currentSessionID() {
@@ -552,7 +549,7 @@ public class ERXSession extends ERXAjaxSession implements Serializable {
 	}
 
 	public static void setSession(ERXSession session) {
-		ERXThreadStorage.takeValueForKey(session, "session");
+		ERXThreadStorage.storage().setSession(session);
 		ERXThreadStorage.takeValueForKey(session == null ? null : session.sessionID(), "ERXSession.sessionID");
 	}
 
@@ -0,0 +1,398 @@
+package er.extensions.appserver;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.webobjects.appserver.WOApplication;
+
+/**
+ * Bounded in-memory cache of the static resources served by ERXStaticResourceRequestHandler, keyed by the resource's resolved path.
+ *
+ * For compressible content types, the cache also holds compressed variants of each resource. A precompressed sibling
+ * (for example "main.js.br" or "main.js.gz" next to "main.js", on disk or in a jar) is used if present, otherwise the variant
+ * is compressed once using the encoders registered with ERXResponseCompression.
+ *
+ * Resources larger than the maximum resource size are not cached (the request handler streams them instead).
+ * When the cache grows beyond it's maximum size, the least recently used resources are evicted.
+ */
+
+public class ERXStaticResourceCache {
+
+	private static final Logger log = LoggerFactory.getLogger(ERXStaticResourceCache.class);
+
+	/**
+	 * Content codings we keep compressed variants for, in order of preference, mapped to the file extension of precompressed siblings
+	 */
+	private static final Map<String, String> VARIANT_EXTENSIONS = variantExtensions();
+
+	private final Map<String, Resource> _resources = new ConcurrentHashMap<>();
+
+	/**
+	 * Total size of all cached resources (including compressed variants) in bytes
+	 */
+	private final AtomicLong _size = new AtomicLong();
+
+	/**
+	 * Logical clock used to track the recency of resource access, for eviction
+	 */
+	private final AtomicLong _clock = new AtomicLong();
+
+	private final long _maximumSize;
+	private final long _maximumResourceSize;
+	private final boolean _checkForModifications;
+
+	/**
+	 * @param maximumSize Maximum total size of the cache, in bytes
+	 * @param maximumResourceSize Resources larger than this (in bytes) are not cached
+	 * @param checkForModifications If true, a cached file's modification date is checked each time it's served and the file reloaded if it has changed. Useful in development.
+	 */
+	public ERXStaticResourceCache( final long maximumSize, final long maximumResourceSize, final boolean checkForModifications ) {
+		_maximumSize = maximumSize;
+		_maximumResourceSize = maximumResourceSize;
+		_checkForModifications = checkForModifications;
+	}
+
+	/**
+	 * @return The resource at the given path, loading it if required. null if the resource is too large to cache.
+	 * @throws IOException if the resource doesn't exist or can't be read
+	 */
+	public Resource resourceForPath( final String path ) throws IOException {
+		Resource resource = _resources.get( path );
+
+		if( resource != null && _checkForModifications && resource.isModified() ) {
+			remove( path );
+			resource = null;
+		}
+
+		if( resource == null ) {
+			resource = load( path );
+
+			if( resource == null ) {
+				return null;
+			}
+
+			final Resource existing = _resources.putIfAbsent( path, resource );
+
+			if( existing != null ) {
+				resource = existing;
+			}
+			else {
+				_size.addAndGet( resource.size() );
+				evictIfRequired();
+			}
+		}
+
+		resource._lastAccess = _clock.incrementAndGet();
+		return resource;
+	}
+
+	/**
+	 * Removes all resources from the cache
+	 */
+	public void clear() {
+		for( final String path : new ArrayList<>( _resources.keySet() ) ) {
+			remove( path );
+		}
+	}
+
+	/**
+	 * @return The number of resources in the cache
+	 */
+	public int count() {
+		return _resources.size();
+	}
+
+	/**
+	 * @return The total size of the resources in the cache, in bytes
+	 */
+	public long size() {
+		return _size.get();
+	}
+
+	private void remove( final String path ) {
+		final Resource removed = _resources.remove( path );
+
+		if( removed != null ) {
+			_size.addAndGet( -removed.size() );
+		}
+	}
+
+	/**
+	 * Evicts the least recently used resources until the cache is within it's maximum size.
+	 * Resources are evicted in bulk (down to 3/4 of the maximum size) so we don't have to do this for every new resource once the cache is full.
+	 */
+	private void evictIfRequired() {
+		if( _size.get() <= _maximumSize ) {
+			return;
+		}
+
+		synchronized( this ) {
+			if( _size.get() <= _maximumSize ) {
+				return;
+			}
+
+			final List<Map.Entry<String, Resource>> entries = new ArrayList<>( _resources.entrySet() );
+			entries.sort( Comparator.comparingLong( entry -> entry.getValue()._lastAccess ) );
+
+			final long targetSize = _maximumSize / 4 * 3;
+
+			for( final Map.Entry<String, Resource> entry : entries ) {
+				if( _size.get() <= targetSize ) {
+					break;
+				}
+
+				remove( entry.getKey() );
+			}
+
+			log.debug( "Evicted resources. Cache now holds {} resources, {} bytes", count(), size() );
+		}
+	}
+
+	/**
+	 * @return The resource at the given path, null if it's too large to cache
+	 */
+	private Resource load( final String path ) throws IOException {
+		final Source source = Source.forPath( path );
+
+		if( source.length() > _maximumResourceSize ) {
+			return null;
+		}
+
+		final byte[] content = source.readBytes();
+		final String contentType = WOApplication.application().resourceManager().contentTypeForResourceNamed( path );
+		final Map<String, byte[]> variants = new LinkedHashMap<>();
+
+		if( contentType != null && content.length > 0 && ERXResponseCompression.isCompressibleContentType( contentType ) ) {
+			for( final Map.Entry<String, String> variantExtension : VARIANT_EXTENSIONS.entrySet() ) {
+				final String encoding = variantExtension.getKey();
+				final byte[] variant = variant( path + variantExtension.getValue(), encoding, content );
+
+				// A compressed variant that isn't smaller than the original isn't worth serving
+				if( variant != null && variant.length < content.length ) {
+					variants.put( encoding, variant );
+				}
+			}
+		}
+
+		log.debug( "Cached resource '{}' ({} bytes, variants: {})", path, content.length, variants.keySet() );
+		return new Resource( source, contentType, content, variants );
+	}
+
+	/**
+	 * @return The content encoded using the given encoding. Read from a precompressed sibling at siblingPath if it exists, otherwise compressed using the registered encoder. null if neither is available.
+	 */
+	private byte[] variant( final String siblingPath, final String encoding, final byte[] content ) {
+		try {
+			final Source sibling = Source.forPath( siblingPath );
+
+			if( sibling.length() <= _maximumResourceSize ) {
+				return sibling.readBytes();
+			}
+		}
+		catch( IOException e ) {
+			// No precompressed sibling, fall through to compressing it ourselves
+		}
+
+		for( final ERXResponseCompression.Encoder encoder : ERXResponseCompression.encoders() ) {
+			if( encoder.name().equals( encoding ) ) {
+				try {
+					return encoder.encode( content, 0, content.length ).bytes();
+				}
+				catch( IOException e ) {
+					log.warn( "Failed to compress resource using " + encoding, e );
+					return null;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private static Map<String, String> variantExtensions() {
+		final Map<String, String> map = new LinkedHashMap<>();
+		map.put( "br", ".br" );
+		map.put( "zstd", ".zst" );
+		map.put( "gzip", ".gz" );
+		return Collections.unmodifiableMap( map );
+	}
+
+	/**
+	 * A cached resource
+	 */
+	public static class Resource {
+
+		private final Source _source;
+		private final String _contentType;
+		private final byte[] _content;
+		private final Map<String, byte[]> _variants;
+		private final List<String> _encodings;
+		private final String _hash;
+		private volatile long _lastAccess;
+
+		private Resource( final Source source, final String contentType, final byte[] content, final Map<String, byte[]> variants ) {
+			_source = source;
+			_contentType = contentType;
+			_content = content;
+			_variants = variants;
+			_encodings = List.copyOf( variants.keySet() );
+			_hash = hash( content );
+		}
+
+		/**
+		 * @return A hex string identifying the resource's content (a prefix of it's SHA-256 digest)
+		 */
+		public String hash() {
+			return _hash;
+		}
+
+		/**
+		 * @return A strong entity tag for the given representation of the resource (null for the unencoded content)
+		 */
+		public String etag( final String encoding ) {
+			return encoding == null ? "\"" + _hash + "\"" : "\"" + _hash + "-" + encoding + "\"";
+		}
+
+		public String contentType() {
+			return _contentType;
+		}
+
+		/**
+		 * @return The resource's bytes. Must not be modified.
+		 */
+		public byte[] content() {
+			return _content;
+		}
+
+		/**
+		 * @return The content codings this resource has a compressed variant for, in order of preference
+		 */
+		public List<String> encodings() {
+			return _encodings;
+		}
+
+		/**
+		 * @return The resource's bytes encoded using the given content coding. Must not be modified.
+		 */
+		public byte[] contentForEncoding( final String encoding ) {
+			return _variants.get( encoding );
+		}
+
+		/**
+		 * @return The modification date of the resource at the time it was loaded
+		 */
+		public long lastModified() {
+			return _source.lastModified();
+		}
+
+		private boolean isModified() {
+			return _source.isModified();
+		}
+
+		private static String hash( final byte[] content ) {
+			try {
+				final byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( content );
+				return HexFormat.of().formatHex( digest, 0, 8 );
+			}
+			catch( NoSuchAlgorithmException e ) {
+				// Every Java platform is required to support SHA-256
+				throw new IllegalStateException( e );
+			}
+		}
+
+		/**
+		 * @return The memory occupied by the resource and it's variants, in bytes
+		 */
+		private long size() {
+			long size = _content.length;
+
+			for( final byte[] variant : _variants.values() ) {
+				size += variant.length;
+			}
+
+			return size;
+		}
+	}
+
+	/**
+	 * A resource's location, either a file or a jar entry (if the path starts with "jar:")
+	 */
+	private static class Source {
+
+		private final String _path;
+		private final File _file;
+		private final long _length;
+		private final long _lastModified;
+
+		private Source( final String path, final File file, final long length, final long lastModified ) {
+			_path = path;
+			_file = file;
+			_length = length;
+			_lastModified = lastModified;
+		}
+
+		private static Source forPath( final String path ) throws IOException {
+			if( path.startsWith( "jar:" ) ) {
+				final URLConnection connection = new URL( path ).openConnection();
+				final long length = connection.getContentLengthLong();
+
+				if( length < 0 ) {
+					throw new FileNotFoundException( path );
+				}
+
+				return new Source( path, null, length, connection.getLastModified() );
+			}
+
+			final File file = new File( path );
+
+			if( !file.isFile() ) {
+				throw new FileNotFoundException( path );
+			}
+
+			return new Source( path, file, file.length(), file.lastModified() );
+		}
+
+		private long length() {
+			return _length;
+		}
+
+		private long lastModified() {
+			return _lastModified;
+		}
+
+		private byte[] readBytes() throws IOException {
+			if( _file != null ) {
+				return Files.readAllBytes( _file.toPath() );
+			}
+
+			try( InputStream is = new URL( _path ).openStream() ) {
+				return is.readAllBytes();
+			}
+		}
+
+		/**
+		 * @return true if the file has changed since this source was created. Jar entries are assumed not to change.
+		 */
+		private boolean isModified() {
+			return _file != null && (_file.lastModified() != _lastModified || _file.length() != _length);
+		}
+	}
+}
@@ -1,14 +1,28 @@
 package er.extensions.appserver;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,8 +34,10 @@ import com.webobjects.appserver.WORequestHandler;
 import com.webobjects.appserver.WOResourceManager;
 import com.webobjects.appserver.WOResponse;
 import com.webobjects.appserver._private.WODeployedBundle;
+import com.webobjects.foundation.NSData;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSRange;
 
 import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXUtilities;
@@ -29,6 +45,19 @@ import er.extensions.foundation.ERXUtilities;
 /**
  * Simple static resource request handler. Allows for better debugging 
  * and you can set the document root via the system property <code>WODocumentRoot</code>.
+ * 
+ * Setting <code>er.extensions.ERXStaticResourceRequestHandler.cacheEnabled=true</code> keeps served resources
+ * (and compressed variants of them) in memory, see {@link ERXStaticResourceCache}. The cache's size is controlled by
+ * <code>er.extensions.ERXStaticResourceRequestHandler.cacheMaximumSize</code> (default 64MB) and
+ * <code>er.extensions.ERXStaticResourceRequestHandler.cacheMaximumResourceSize</code> (default 1MB).
+ * 
+ * Responses carry an etag (a content hash for cached resources, modification date and size otherwise) and a last-modified header,
+ * so revalidation requests (if-none-match/if-modified-since) get a 304 response. Range requests (single or multiple ranges) get a 206 response.
+ * Files that aren't cached are served using {@link ERXFileResponse}.
+ * The cache-control header is set according to the {@link ERXCacheControlPolicy} read from properties prefixed with
+ * <code>er.extensions.ERXStaticResourceRequestHandler</code>. Resources requested using a URL fingerprinted by
+ * {@link ERXResourceManager.ContentHashVersionManager} are marked immutable instead, if the fingerprint matches the content served.
+ * 
  * @author ak
  */
 public class ERXStaticResourceRequestHandler extends WORequestHandler {
@@ -39,6 +68,27 @@ public class ERXStaticResourceRequestHandler extends WORequestHandler {
 	private String _documentRoot;
 	
 	private boolean _useRequestHandlerPath;
+
+	/**
+	 * Shared between all instances of the handler, so the cache's size bound applies to the application as a whole
+	 */
+	private static ERXStaticResourceCache _resourceCache;
+
+	private static boolean _resourceCacheInitialized;
+
+	private static ERXCacheControlPolicy _cacheControlPolicy;
+
+	/**
+	 * Format of dates in HTTP headers (IMF-fixdate)
+	 */
+	private static final DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	/**
+	 * Range requests with more ranges than this are served the entire resource
+	 */
+	private static final int MAX_RANGES = 16;
+
+	private static final int CONTENT_STREAM_BUFFER_SIZE = 50*1024;
 	
 	public ERXStaticResourceRequestHandler() {
 		_documentRoot = null;
@@ -72,7 +122,7 @@ public class ERXStaticResourceRequestHandler extends WORequestHandler {
 		WOResponse response = application.createResponseInContext(null);
 		if (is != null) {
 			if (length != 0) {
-				response.setContentStream(is, 50*1024, length);
+				response.setContentStream(is, CONTENT_STREAM_BUFFER_SIZE, length);
 			}
 		} else {
 			response.setStatus(404);
@@ -86,6 +136,493 @@ public class ERXStaticResourceRequestHandler extends WORequestHandler {
 		return response;
 	}
 
+	/**
+	 * @return A response streaming the given file through it's FileChannel (see {@link ERXFileResponse})
+	 * @throws FileNotFoundException if the file doesn't exist or isn't a regular file
+	 */
+	protected WOResponse _generateResponseForFile(File file, String type) throws IOException {
+		if (!file.isFile()) {
+			throw new FileNotFoundException(file.getPath());
+		}
+		return new ERXFileResponse(file.toPath(), type);
+	}
+
+	/**
+	 * @return A response for the given cached resource, using a compressed variant if the client accepts one.
+	 */
+	protected WOResponse _generateResponseForResource(WORequest request, ERXStaticResourceCache.Resource resource) {
+		WOResponse response = application.createResponseInContext(null);
+		byte[] content = resource.content();
+		String encoding = null;
+
+		if (!resource.encodings().isEmpty()) {
+			encoding = ERXResponseCompression.negotiateEncoding(request, resource.encodings());
+
+			if (encoding != null) {
+				content = resource.contentForEncoding(encoding);
+				response.setHeader(encoding, "content-encoding");
+			}
+
+			ERXResponseCompression.addVaryAcceptEncoding(response);
+		}
+
+		response.setHeader(resource.etag(encoding), "etag");
+
+		if (resource.lastModified() > 0) {
+			response.setHeader(formatHTTPDate(resource.lastModified()), "last-modified");
+		}
+
+		response.setContent(new NSData(content, new NSRange(0, content.length), true));
+
+		if (resource.contentType() != null) {
+			response.setHeader(resource.contentType(), "content-type");
+		}
+		response.setHeader(String.valueOf(content.length), "content-length");
+		return response;
+	}
+
+	/**
+	 * @return The cache used by static resource handlers, null if caching is disabled
+	 */
+	public static synchronized ERXStaticResourceCache resourceCache() {
+		if (!_resourceCacheInitialized) {
+			if (ERXProperties.booleanForKeyWithDefault("er.extensions.ERXStaticResourceRequestHandler.cacheEnabled", false)) {
+				long maximumSize = ERXProperties.longForKeyWithDefault("er.extensions.ERXStaticResourceRequestHandler.cacheMaximumSize", 64 * 1024 * 1024);
+				long maximumResourceSize = ERXProperties.longForKeyWithDefault("er.extensions.ERXStaticResourceRequestHandler.cacheMaximumResourceSize", 1024 * 1024);
+				_resourceCache = new ERXStaticResourceCache(maximumSize, maximumResourceSize, ERXApplication.isDevelopmentModeSafe());
+			}
+			_resourceCacheInitialized = true;
+		}
+		return _resourceCache;
+	}
+
+	/**
+	 * @return The cache used by static resource handlers, null if it hasn't been created (yet) or caching is disabled
+	 */
+	public static synchronized ERXStaticResourceCache existingResourceCache() {
+		return _resourceCache;
+	}
+
+	/**
+	 * @return The policy determining the cache-control header of static resources
+	 */
+	public static synchronized ERXCacheControlPolicy cacheControlPolicy() {
+		if (_cacheControlPolicy == null) {
+			_cacheControlPolicy = ERXCacheControlPolicy.policyFromProperties("er.extensions.ERXStaticResourceRequestHandler");
+		}
+		return _cacheControlPolicy;
+	}
+
+	/**
+	 * Adds cache-control to a 200 response and turns it into a 304 (not modified), 206 (partial content) or 416 (range not satisfiable)
+	 * response if the request's conditional and range headers call for it. Relies on the response's etag and last-modified headers.
+	 * 
+	 * @param requestPath The path of the requested URL, used to determine the cache-control header
+	 * @param fingerprinted true if the URL contains a fingerprint of the resource's content, meaning it's content will never change
+	 */
+	protected WOResponse _applyConditionalRequestHeaders(WORequest request, WOResponse response, String requestPath, boolean fingerprinted) {
+		if (response.status() != 200) {
+			return response;
+		}
+
+		String cacheControl;
+		if (fingerprinted) {
+			cacheControl = ERXProperties.stringForKeyWithDefault("er.extensions.ERXStaticResourceRequestHandler.fingerprintedCacheControl", "public, max-age=31536000, immutable");
+		}
+		else {
+			cacheControl = cacheControlPolicy().cacheControl(requestPath, response.headerForKey("content-type"));
+		}
+		if (cacheControl != null) {
+			response.setHeader(cacheControl, "cache-control");
+		}
+
+		String method = request.method();
+		if (!"GET".equals(method) && !"HEAD".equals(method)) {
+			return response;
+		}
+
+		String etag = response.headerForKey("etag");
+		String lastModified = response.headerForKey("last-modified");
+
+		if (isNotModified(request, etag, lastModified)) {
+			closeContentStream(response);
+			response.setStatus(304);
+			response.setContent(NSData.EmptyData);
+			response.removeHeadersForKey("content-length");
+			response.removeHeadersForKey("content-type");
+			return response;
+		}
+
+		long length = response.contentInputStream() != null ? response.contentInputStreamLength() : response.content().length();
+
+		if (length < 0 || response.headerForKey("content-encoding") != null) {
+			return response;
+		}
+
+		response.setHeader("bytes", "accept-ranges");
+
+		String rangeHeader = request.headerForKey("range");
+		if (rangeHeader == null || !"GET".equals(method) || !isRangeApplicable(request, etag, lastModified)) {
+			return response;
+		}
+
+		List<long[]> ranges = parseRanges(rangeHeader, length);
+		if (ranges == null) {
+			return response;
+		}
+
+		try {
+			return _generatePartialResponse(response, ranges, length);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Failed to generate a partial response", e);
+		}
+	}
+
+	/**
+	 * Turns a 200 response into a response containing the given ranges of it's content.
+	 * 
+	 * @param ranges satisfiable byte ranges (sorted and non-overlapping), each as { first, last }. An empty list results in a 416 response.
+	 * @param length the length of the response's entire content
+	 */
+	protected WOResponse _generatePartialResponse(WOResponse response, List<long[]> ranges, long length) throws IOException {
+		if (ranges.isEmpty()) {
+			closeContentStream(response);
+			response.setStatus(416);
+			response.setContent(NSData.EmptyData);
+			response.setHeader("bytes */" + length, "content-range");
+			response.setHeader("0", "content-length");
+			return response;
+		}
+
+		if (ranges.size() == 1 && response instanceof ERXFileResponse fileResponse) {
+			long[] range = ranges.get(0);
+			fileResponse.setRange(range[0], range[1] - range[0] + 1);
+			response.setHeader("bytes " + range[0] + "-" + range[1] + "/" + length, "content-range");
+			response.setStatus(206);
+			return response;
+		}
+
+		InputStream source = response.contentInputStream() != null ? response.contentInputStream() : response.content().stream();
+		String contentType = response.headerForKey("content-type");
+		long partialLength;
+		InputStream partialStream;
+
+		if (ranges.size() == 1) {
+			long[] range = ranges.get(0);
+			partialLength = range[1] - range[0] + 1;
+			partialStream = new RangeInputStream(source, range[0], partialLength, true);
+			response.setHeader("bytes " + range[0] + "-" + range[1] + "/" + length, "content-range");
+		}
+		else {
+			String boundary = UUID.randomUUID().toString().replace("-", "");
+			List<InputStream> parts = new ArrayList<>();
+			long position = 0;
+			partialLength = 0;
+
+			for (long[] range : ranges) {
+				StringBuilder header = new StringBuilder();
+				header.append(parts.isEmpty() ? "--" : "\r\n--").append(boundary).append("\r\n");
+				if (contentType != null) {
+					header.append("content-type: ").append(contentType).append("\r\n");
+				}
+				header.append("content-range: bytes ").append(range[0]).append('-').append(range[1]).append('/').append(length).append("\r\n\r\n");
+				byte[] headerBytes = header.toString().getBytes(StandardCharsets.US_ASCII);
+				long rangeLength = range[1] - range[0] + 1;
+
+				parts.add(new ByteArrayInputStream(headerBytes));
+				parts.add(new RangeInputStream(source, range[0] - position, rangeLength, false));
+				partialLength += headerBytes.length + rangeLength;
+				position = range[1] + 1;
+			}
+
+			byte[] trailerBytes = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+			parts.add(new ByteArrayInputStream(trailerBytes));
+			partialLength += trailerBytes.length;
+
+			partialStream = new FilterInputStream(new SequenceInputStream(Collections.enumeration(parts))) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					}
+					finally {
+						source.close();
+					}
+				}
+			};
+
+			response.setHeader("multipart/byteranges; boundary=" + boundary, "content-type");
+		}
+
+		response.setStatus(206);
+		response.setContent(NSData.EmptyData);
+		response.setContentStream(partialStream, CONTENT_STREAM_BUFFER_SIZE, partialLength);
+		response.setHeader(String.valueOf(partialLength), "content-length");
+		return response;
+	}
+
+	/**
+	 * @return true if the request's if-none-match or if-modified-since headers indicate that the client's copy is current
+	 */
+	private static boolean isNotModified(WORequest request, String etag, String lastModified) {
+		String ifNoneMatch = request.headerForKey("if-none-match");
+
+		if (ifNoneMatch != null) {
+			return etag != null && etagMatches(ifNoneMatch, etag);
+		}
+
+		String ifModifiedSince = request.headerForKey("if-modified-since");
+
+		if (ifModifiedSince != null && lastModified != null) {
+			if (ifModifiedSince.equals(lastModified)) {
+				return true;
+			}
+
+			long ifModifiedSinceMillis = parseHTTPDate(ifModifiedSince);
+			long lastModifiedMillis = parseHTTPDate(lastModified);
+			return ifModifiedSinceMillis >= 0 && lastModifiedMillis >= 0 && lastModifiedMillis <= ifModifiedSinceMillis;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return true if the given if-none-match header value contains the given etag (using weak comparison)
+	 */
+	private static boolean etagMatches(String ifNoneMatch, String etag) {
+		String opaqueTag = stripWeakPrefix(etag);
+
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+
+			if ("*".equals(candidate) || stripWeakPrefix(candidate).equals(opaqueTag)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static String stripWeakPrefix(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+
+	/**
+	 * @return false if the request has an if-range header that doesn't match the current representation (in which case the entire resource should be sent)
+	 */
+	private static boolean isRangeApplicable(WORequest request, String etag, String lastModified) {
+		String ifRange = request.headerForKey("if-range");
+
+		if (ifRange == null) {
+			return true;
+		}
+
+		ifRange = ifRange.trim();
+
+		// An entity tag has to match strongly, a date exactly
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+		}
+
+		return ifRange.equals(lastModified);
+	}
+
+	/**
+	 * Parses the value of a range header.
+	 * 
+	 * @return The satisfiable ranges (as { first, last }) sorted and with overlapping ranges coalesced. An empty list if no range is satisfiable. null if the header is invalid or should be ignored.
+	 */
+	static List<long[]> parseRanges(String rangeHeader, long length) {
+		rangeHeader = rangeHeader.trim();
+
+		if (!rangeHeader.startsWith("bytes=")) {
+			return null;
+		}
+
+		String[] specs = rangeHeader.substring(6).split(",");
+
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+
+		List<long[]> ranges = new ArrayList<>();
+
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dashIndex = spec.indexOf('-');
+
+			if (dashIndex == -1) {
+				return null;
+			}
+
+			long first;
+			long last;
+
+			try {
+				if (dashIndex == 0) {
+					long suffixLength = Long.parseLong(spec.substring(1));
+					if (suffixLength <= 0) {
+						continue;
+					}
+					first = Math.max(0, length - suffixLength);
+					last = length - 1;
+				}
+				else {
+					first = Long.parseLong(spec.substring(0, dashIndex));
+					last = dashIndex == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dashIndex + 1));
+					if (first < 0 || last < first) {
+						return null;
+					}
+					last = Math.min(last, length - 1);
+				}
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+
+			if (first < length) {
+				ranges.add(new long[] { first, last });
+			}
+		}
+
+		ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+
+		List<long[]> coalesced = new ArrayList<>();
+
+		for (long[] range : ranges) {
+			long[] previous = coalesced.isEmpty() ? null : coalesced.get(coalesced.size() - 1);
+
+			if (previous != null && range[0] <= previous[1] + 1) {
+				previous[1] = Math.max(previous[1], range[1]);
+			}
+			else {
+				coalesced.add(range);
+			}
+		}
+
+		return coalesced;
+	}
+
+	private static void closeContentStream(WOResponse response) {
+		InputStream is = response.contentInputStream();
+
+		if (is != null) {
+			try {
+				is.close();
+			}
+			catch (IOException e) {
+				log.debug("Failed to close content stream", e);
+			}
+			response.setContentStream(null, 0, 0);
+		}
+	}
+
+	/**
+	 * @return The given time formatted for use in an HTTP header
+	 */
+	public static String formatHTTPDate(long millis) {
+		return HTTP_DATE_FORMATTER.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * @return The time in the given HTTP header date, -1 if it can't be parsed
+	 */
+	public static long parseHTTPDate(String string) {
+		try {
+			return ZonedDateTime.parse(string.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		}
+		catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads a range of bytes from an underlying stream, skipping the given number of bytes first.
+	 */
+	private static class RangeInputStream extends FilterInputStream {
+
+		private long _skip;
+		private long _remaining;
+		private final boolean _closeSource;
+
+		/**
+		 * @param skip number of bytes to skip in the underlying stream before the range starts
+		 * @param length length of the range
+		 * @param closeSource true if closing this stream should close the underlying stream
+		 */
+		private RangeInputStream(InputStream source, long skip, long length, boolean closeSource) {
+			super(source);
+			_skip = skip;
+			_remaining = length;
+			_closeSource = closeSource;
+		}
+
+		private void skipToRange() throws IOException {
+			while (_skip > 0) {
+				long skipped = in.skip(_skip);
+				if (skipped <= 0) {
+					if (in.read() == -1) {
+						throw new EOFException("Stream ended before the requested range");
+					}
+					skipped = 1;
+				}
+				_skip -= skipped;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			skipToRange();
+			if (_remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b >= 0) {
+				_remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			skipToRange();
+			if (_remaining <= 0) {
+				return -1;
+			}
+			int read = in.read(b, off, (int) Math.min(len, _remaining));
+			if (read > 0) {
+				_remaining -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			skipToRange();
+			long skipped = in.skip(Math.min(n, _remaining));
+			_remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return _skip > 0 ? 0 : (int) Math.min(in.available(), _remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (_closeSource) {
+				in.close();
+			}
+		}
+	}
+
 	private String documentRoot() {
 		if (_documentRoot == null) {
 			_documentRoot = ERXProperties.stringForKey("WODocumentRoot");
@@ -104,6 +641,8 @@ public class ERXStaticResourceRequestHandler extends WORequestHandler {
 		long length = 0;
 		String contentType = null;
 		String uri = request.uri();
+		int requestQueryIndex = uri.indexOf('?');
+		String requestPath = requestQueryIndex >= 0 ? uri.substring(0, requestQueryIndex) : uri;
 		if (uri.charAt(0) == '/') {
 			WOResourceManager rm = application.resourceManager();
 			String documentRoot = documentRoot();
@@ -157,34 +696,67 @@ public class ERXStaticResourceRequestHandler extends WORequestHandler {
 			
 			String path = sb.toString();
 			try {
-				path = path.replaceAll("\\?.*", "");
+				int queryIndex = path.indexOf('?');
+				if (queryIndex >= 0) {
+					path = path.substring(0, queryIndex);
+				}
 				if (request.userInfo() != null && !request.userInfo().containsKey("HttpServletRequest")) {
 					/* PATH_INFO is already decoded by the servlet container */
-					path = path.replace('+', ' ');
-					path = URLDecoder.decode(path, StandardCharsets.UTF_8);
+					if (path.indexOf('%') >= 0 || path.indexOf('+') >= 0) {
+						path = path.replace('+', ' ');
+						path = URLDecoder.decode(path, StandardCharsets.UTF_8);
+					}
+				}
+
+				String unfingerprintedPath = ERXResourceManager.ContentHashVersionManager.unfingerprintedPath(path);
+				boolean fingerprinted = false;
+				if (unfingerprintedPath != null) {
+					// only a fingerprint matching the content served makes the response immutable, a stale one gets the normal cache-control
+					String fingerprint = ERXResourceManager.ContentHashVersionManager.fingerprintInPath(path);
+					path = unfingerprintedPath;
+					fingerprinted = ERXResourceManager.ContentHashVersionManager.isFingerprintOfContent(fingerprint, path);
 				}
 
 				file = new File(path);
 
-				if(path.startsWith("jar:"))
-				{
-					URLConnection uc = new URL(path).openConnection();
-					if(uc instanceof JarURLConnection)
+				ERXStaticResourceCache cache = resourceCache();
+				ERXStaticResourceCache.Resource resource = cache != null ? cache.resourceForPath(path) : null;
+
+				if (resource != null) {
+					response = _generateResponseForResource(request, resource);
+				}
+				else {
+					long lastModified;
+
+					if(path.startsWith("jar:"))
 					{
-						length = (int)uc.getContentLengthLong();
+						URLConnection uc = new URL(path).openConnection();
+						if(uc instanceof JarURLConnection)
+						{
+							length = uc.getContentLengthLong();
+						} else
+						{
+							length = -1;
+						}
+						lastModified = uc.getLastModified();
+						is = uc.getInputStream();
+						contentType = rm.contentTypeForResourceNamed(path);
+						response = _generateResponseForInputStream(is, length, contentType);
 					} else
 					{
-						length = -1;						
+						contentType = rm.contentTypeForResourceNamed(path);
+						response = _generateResponseForFile(file, contentType);
+						length = file.length();
+						lastModified = file.lastModified();
+					}
+
+					if (lastModified > 0 && length >= 0) {
+						response.setHeader("\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"", "etag");
+						response.setHeader(formatHTTPDate(lastModified), "last-modified");
 					}
-					is = uc.getInputStream();
-					
-				} else
-				{
-					length = (int) file.length();
-					is = new FileInputStream(file);
 				}
-				
-				contentType = rm.contentTypeForResourceNamed(path);
+
+				response = _applyConditionalRequestHeaders(request, response, requestPath, fingerprinted);
 				log.debug("Reading file '{}' for uri: {}", file, uri);
 			} catch (IOException ex) {
 				if (!uri.toLowerCase().endsWith("/favicon.ico")) {
@@ -194,7 +766,9 @@ public class ERXStaticResourceRequestHandler extends WORequestHandler {
 		} else {
 			log.error("Can't fetch relative path: {}", uri);
 		}
-		response = _generateResponseForInputStream(is, length, contentType);
+		if (response == null) {
+			response = _generateResponseForInputStream(is, length, contentType);
+		}
 		NSNotificationCenter.defaultCenter().postNotification(WORequestHandler.DidHandleRequestNotification, response);
 		response._finalizeInContext(null);
 		return response;
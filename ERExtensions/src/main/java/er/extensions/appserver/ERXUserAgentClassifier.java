@@ -0,0 +1,499 @@
+package er.extensions.appserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.webobjects.foundation.NSArray;
+
+import er.extensions.foundation.ERXUtilities;
+
+/**
+ * Classifies <code>user-agent</code> strings for {@link ERXBrowserFactory}.
+ *
+ * The tokens the factory's parsers look for (browser names, platforms, version markers) are compiled into a
+ * single automaton, as are the robot expressions from <code>robots.txt</code> that are plain strings. A
+ * user-agent string is scanned once, recording where each token occurs, and all the fields of the browser
+ * are derived from these positions. The few robot expressions that are real regular expressions are merged
+ * into one pattern.
+ *
+ * The parse methods of ERXBrowserFactory delegate to this class. The factory only calls them one by one
+ * when a subclass overrides one of them, so an application that depends on how a particular user-agent
+ * string was parsed before can override the parse method for that field.
+ */
+
+final class ERXUserAgentClassifier {
+
+	/**
+	 * The fields of a browser, as parsed from a user-agent string
+	 */
+	record Classification(String browserName, String version, String mozillaVersion, String platform, String cpu, String geckoRevision) {}
+
+	private static final String CHROME = "Chrome";
+	private static final String OMNIWEB = "OmniWeb";
+	private static final String SAFARI = "Safari";
+	private static final String OPERA = "Opera";
+	private static final String COMPATIBLE = "compatible";
+	private static final String COMPATIBLE_SEMICOLON = "compatible;";
+	private static final String NETSCAPE = "Netscape";
+	private static final String NETSCAPE6 = "Netscape6";
+	private static final String EDGE = "Edge";
+	private static final String EDGE_VERSION = "Edge/";
+	private static final String MSIE = "MSIE";
+	private static final String TRIDENT = "Trident";
+	private static final String FIREFOX = "Firefox";
+	private static final String FIREFOX_VERSION = "Firefox/";
+	private static final String ICAB = "iCab";
+	private static final String MOZILLA = "Mozilla";
+	private static final String MOZILLA_VERSION = "Mozilla/";
+	private static final String VERSION = "Version/";
+	private static final String RV = "rv:";
+	private static final String GECKO = "Gecko";
+	private static final String GECKO_RV = "; rv:";
+	private static final String WIN = "Win";
+	private static final String IPHONE = "iPhone";
+	private static final String IPOD = "iPod";
+	private static final String IPAD = "iPad";
+	private static final String MAC = "Mac";
+	private static final String ANDROID = "Android";
+	private static final String LINUX = "Linux";
+	private static final String POWER_PC = "PowerPC";
+	private static final String PPC = "PPC";
+	private static final String CLOSING_PARENTHESIS = ")";
+
+	private static final Automaton _tokens = new Automaton(List.of(CHROME, OMNIWEB, SAFARI, OPERA, COMPATIBLE, COMPATIBLE_SEMICOLON, NETSCAPE, NETSCAPE6,
+			EDGE, EDGE_VERSION, MSIE, TRIDENT, FIREFOX, FIREFOX_VERSION, ICAB, MOZILLA, MOZILLA_VERSION, VERSION, RV, GECKO, GECKO_RV,
+			WIN, IPHONE, IPOD, IPAD, MAC, ANDROID, LINUX, POWER_PC, PPC, CLOSING_PARENTHESIS));
+
+	private ERXUserAgentClassifier() {}
+
+	/**
+	 * @param userAgent the user-agent string
+	 * @return all the fields of the browser for the user-agent string
+	 */
+	static Classification classify(String userAgent) {
+		Scan scan = new Scan(userAgent);
+		int browserStart = browserStart(scan);
+		return new Classification(browserName(scan, browserStart), version(scan, browserStart), mozillaVersion(scan), platform(scan), cpu(scan), geckoRevision(scan));
+	}
+
+	/**
+	 * @return the start of the part of the user-agent that names the browser (like "Chrome/0.X.Y.Z Safari/525.13" in
+	 *         "Mozilla/5.0 (Windows; U; Windows NT 5.1; en-US) AppleWebKit/525.13 (KHTML, wie z. B. Gecko) Chrome/0.X.Y.Z Safari/525.13")
+	 */
+	private static int browserStart(Scan scan) {
+		for (String token : new String[] { CHROME, OMNIWEB, SAFARI, OPERA }) {
+			int index = scan.indexOf(token);
+			if (index > -1) {
+				return index;
+			}
+		}
+		// "MSIE 5.21; Mac_PowerPC)" from "Mozilla/4.0 (compatible; MSIE 5.21; Mac_PowerPC)"
+		int index = scan.indexOf(COMPATIBLE_SEMICOLON);
+		if (index > -1) {
+			return index + COMPATIBLE_SEMICOLON.length();
+		}
+		index = scan.indexOf(NETSCAPE);
+		return index > -1 ? index : 0;
+	}
+
+	private static String browserName(Scan scan, int browserStart) {
+		if (scan.isRobotFrom(browserStart)) 						return ERXBrowser.ROBOT;
+		if (scan.indexOf(EDGE, browserStart) > -1) 				return ERXBrowser.EDGE;
+		if (scan.indexOf(CHROME, browserStart) > -1) 			return ERXBrowser.CHROME;
+		if (scan.indexOf(MSIE, browserStart) > -1 || scan.indexOf(TRIDENT, browserStart) > -1)	return ERXBrowser.IE;
+		if (scan.indexOf(SAFARI, browserStart) > -1) 			return ERXBrowser.SAFARI;
+		if (scan.indexOf(FIREFOX, browserStart) > -1) 			return ERXBrowser.FIREFOX;
+		if (scan.indexOf(OMNIWEB, browserStart) > -1) 			return ERXBrowser.OMNIWEB;
+		if (scan.indexOf(ICAB, browserStart) > -1) 				return ERXBrowser.ICAB;
+		if (scan.indexOf(OPERA, browserStart) > -1) 			return ERXBrowser.OPERA;
+		if (scan.indexOf(NETSCAPE, browserStart) > -1) 			return ERXBrowser.NETSCAPE;
+		if (scan.userAgent().startsWith(MOZILLA, browserStart) && scan.indexOf(COMPATIBLE, browserStart) == -1)	return ERXBrowser.MOZILLA;
+		// This condition should always come last because *all* browsers have
+		// the word Mozilla at the beginning of their user-agent string.
+		if (scan.indexOf(MOZILLA, browserStart) > -1) 			return ERXBrowser.NETSCAPE;
+		return ERXBrowser.UNKNOWN_BROWSER;
+	}
+
+	private static String version(Scan scan, int browserStart) {
+		String userAgent = scan.userAgent();
+		int start;
+		int end = userAgent.length();
+		if ((start = scan.indexOf(VERSION)) > -1 || (start = scan.indexOf(FIREFOX_VERSION)) > -1) {
+			// the rest of the user-agent
+		}
+		else if ((start = scan.indexOf(RV)) > -1) {
+			int parenthesis = scan.indexOf(CLOSING_PARENTHESIS, start);
+			if (parenthesis > -1) {
+				end = parenthesis;
+			}
+		}
+		else if ((start = scan.indexOf(EDGE_VERSION)) == -1) {
+			start = browserStart;
+		}
+
+		// Skip "Netscape6" in strings such as "Netscape6/6.2.3",
+		// otherwise the version would be "6/6.2.3"
+		int netscape6 = scan.indexOf(NETSCAPE6, start);
+		if (netscape6 > -1 && netscape6 + NETSCAPE6.length() <= end) {
+			start = netscape6 + NETSCAPE6.length();
+		}
+
+		// The first number, like "5.21" in "MSIE 5.21; Mac_PowerPC)"
+		String version = ERXBrowser.UNKNOWN_VERSION;
+		for (int i = start; i < end; i++) {
+			char c = userAgent.charAt(i);
+			if ('0' <= c && c <= '9') {
+				version = token(userAgent, i, end);
+				break;
+			}
+		}
+		// Test if we got a real number
+		try {
+			Double.parseDouble(ERXBrowser.removeExtraDotsFromVersionString(version));
+		}
+		catch (NumberFormatException e) {
+			version = ERXBrowser.UNKNOWN_VERSION;
+		}
+		return version;
+	}
+
+	private static String mozillaVersion(Scan scan) {
+		int index = scan.indexOf(MOZILLA_VERSION);
+		if (index > -1) {
+			String userAgent = scan.userAgent();
+			int start = index + MOZILLA_VERSION.length();
+			while (start < userAgent.length() && isTokenDelimiter(userAgent.charAt(start))) {
+				start++;
+			}
+			if (start < userAgent.length()) {
+				return token(userAgent, start, userAgent.length());
+			}
+		}
+		return ERXBrowser.UNKNOWN_VERSION;
+	}
+
+	private static String platform(Scan scan) {
+		if (scan.contains(WIN)) 								return ERXBrowser.WINDOWS;
+		if (scan.contains(IPHONE) || scan.contains(IPOD)) 	return ERXBrowser.IPHONE;
+		if (scan.contains(IPAD)) 							return ERXBrowser.IPAD;
+		if (scan.contains(MAC)) 								return ERXBrowser.MACOS;
+		if (scan.contains(ANDROID)) 							return ERXBrowser.ANDROID;
+		if (scan.contains(LINUX)) 							return ERXBrowser.LINUX;
+		return ERXBrowser.UNKNOWN_PLATFORM;
+	}
+
+	private static String cpu(Scan scan) {
+		return scan.contains(POWER_PC) || scan.contains(PPC) ? ERXBrowser.POWER_PC : ERXBrowser.UNKNOWN_CPU;
+	}
+
+	private static String geckoRevision(Scan scan) {
+		if (scan.contains(GECKO)) {
+			int index = scan.indexOf(GECKO_RV);
+			if (index > 0) {
+				int start = index + GECKO_RV.length();
+				int end = scan.indexOf(CLOSING_PARENTHESIS, start);
+				if (end > start) {
+					return scan.userAgent().substring(start, end);
+				}
+			}
+		}
+		return ERXBrowser.NO_GECKO;
+	}
+
+	/**
+	 * @return the characters from start up to the next space or semicolon (or end)
+	 */
+	private static String token(String string, int start, int end) {
+		int i = start;
+		while (i < end && !isTokenDelimiter(string.charAt(i))) {
+			i++;
+		}
+		return string.substring(start, i);
+	}
+
+	private static boolean isTokenDelimiter(char c) {
+		return c == ' ' || c == ';';
+	}
+
+	/**
+	 * The positions of the tokens and robot names in a user-agent string
+	 */
+	private static final class Scan {
+		private final String _userAgent;
+		private final int[][] _starts;
+		private final int[] _counts;
+		private final int _lastRobotStart;
+		private final String _lowerCaseUserAgent;
+
+		private Scan(String userAgent) {
+			_userAgent = userAgent;
+			_starts = new int[_tokens.count()][];
+			_counts = new int[_tokens.count()];
+			Automaton robots = Robots.literals;
+			char[] lowerCase = new char[userAgent.length()];
+			int lastRobotStart = -1;
+			int tokenState = 0;
+			int robotState = 0;
+			for (int i = 0; i < userAgent.length(); i++) {
+				char c = userAgent.charAt(i);
+				tokenState = _tokens.next(tokenState, c);
+				for (int token : _tokens.matches(tokenState)) {
+					add(token, i + 1 - _tokens.length(token));
+				}
+				// robots.txt is matched against the lower case user-agent
+				char lower = Character.toLowerCase(c);
+				lowerCase[i] = lower;
+				robotState = robots.next(robotState, lower);
+				for (int robot : robots.matches(robotState)) {
+					lastRobotStart = Math.max(lastRobotStart, i + 1 - robots.length(robot));
+				}
+			}
+			_lastRobotStart = lastRobotStart;
+			_lowerCaseUserAgent = new String(lowerCase);
+		}
+
+		private void add(int token, int start) {
+			int[] starts = _starts[token];
+			if (starts == null) {
+				starts = new int[4];
+				_starts[token] = starts;
+			}
+			else if (_counts[token] == starts.length) {
+				starts = Arrays.copyOf(starts, starts.length * 2);
+				_starts[token] = starts;
+			}
+			starts[_counts[token]++] = start;
+		}
+
+		private String userAgent() {
+			return _userAgent;
+		}
+
+		private boolean contains(String token) {
+			return indexOf(token) > -1;
+		}
+
+		private int indexOf(String token) {
+			return indexOf(token, 0);
+		}
+
+		/**
+		 * @return the index of the first occurrence of the token at or after from, like String.indexOf(String, int)
+		 */
+		private int indexOf(String token, int from) {
+			int index = _tokens.indexOf(token);
+			int[] starts = _starts[index];
+			for (int i = 0; i < _counts[index]; i++) {
+				if (starts[i] >= from) {
+					return starts[i];
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return whether the part of the user-agent starting at from matches one of the robot expressions
+		 */
+		private boolean isRobotFrom(int from) {
+			if (_lastRobotStart >= from) {
+				return true;
+			}
+			Pattern expressions = Robots.expressions;
+			return expressions != null && expressions.matcher(_lowerCaseUserAgent).region(from, _lowerCaseUserAgent.length()).find();
+		}
+	}
+
+	/**
+	 * The expressions of <code>robots.txt</code>, loaded on first use
+	 */
+	private static final class Robots {
+		private static final Automaton literals;
+		private static final Pattern expressions;
+
+		static {
+			List<String> strings = new ArrayList<>();
+			List<String> patterns = new ArrayList<>();
+			String robots = ERXUtilities.stringFromResource("robots", "txt", "ERExtensions");
+			for (String item : NSArray.componentsSeparatedByString(robots, "\n")) {
+				if (item.trim().length() > 0 && item.charAt(0) != '#') {
+					String literal = literal(item);
+					if (literal != null) {
+						strings.add(literal);
+					}
+					else {
+						patterns.add("(?:" + item + ")");
+					}
+				}
+			}
+			literals = new Automaton(strings);
+			expressions = patterns.isEmpty() ? null : Pattern.compile(String.join("|", patterns));
+		}
+
+		/**
+		 * @return the string matched by the expression, or null if it isn't a plain string (with escaped punctuation)
+		 */
+		private static String literal(String expression) {
+			StringBuilder sb = new StringBuilder(expression.length());
+			for (int i = 0; i < expression.length(); i++) {
+				char c = expression.charAt(i);
+				if (c == '\\') {
+					if (++i == expression.length() || Character.isLetterOrDigit(expression.charAt(i))) {
+						return null;
+					}
+					sb.append(expression.charAt(i));
+				}
+				else if ("[]^$.*+?(){}|".indexOf(c) > -1) {
+					return null;
+				}
+				else {
+					sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * An Aho-Corasick automaton over a set of strings, compiled to a transition table. Characters that don't occur
+	 * in any of the strings share one column of the table.
+	 */
+	private static final class Automaton {
+		private static final int[] NO_MATCHES = new int[0];
+
+		private final List<String> _strings;
+		private final char[] _alphabet;
+		private final int[] _columns;
+		private final int _width;
+		private int[] _transitions;
+		private int[][] _matches;
+
+		private Automaton(List<String> strings) {
+			_strings = List.copyOf(strings);
+			StringBuilder alphabet = new StringBuilder();
+			for (String string : _strings) {
+				for (int i = 0; i < string.length(); i++) {
+					if (alphabet.indexOf(String.valueOf(string.charAt(i))) == -1) {
+						alphabet.append(string.charAt(i));
+					}
+				}
+			}
+			_alphabet = alphabet.toString().toCharArray();
+			Arrays.sort(_alphabet);
+			_columns = new int[128];
+			for (int i = 0; i < _alphabet.length; i++) {
+				if (_alphabet[i] < 128) {
+					_columns[_alphabet[i]] = i + 1;
+				}
+			}
+			_width = _alphabet.length + 1;
+			compile();
+		}
+
+		private void compile() {
+			// the trie, -1 for missing transitions
+			List<int[]> trie = new ArrayList<>();
+			List<int[]> outputs = new ArrayList<>();
+			trie.add(newRow());
+			outputs.add(NO_MATCHES);
+			for (int s = 0; s < _strings.size(); s++) {
+				String string = _strings.get(s);
+				int state = 0;
+				for (int i = 0; i < string.length(); i++) {
+					int column = column(string.charAt(i));
+					if (trie.get(state)[column] == -1) {
+						trie.get(state)[column] = trie.size();
+						trie.add(newRow());
+						outputs.add(NO_MATCHES);
+					}
+					state = trie.get(state)[column];
+				}
+				outputs.set(state, append(outputs.get(state), s));
+			}
+
+			// breadth first, filling in the missing transitions from the failure links
+			int[] failures = new int[trie.size()];
+			int[] queue = new int[trie.size()];
+			int head = 0;
+			int tail = 0;
+			int[] root = trie.get(0);
+			for (int column = 0; column < _width; column++) {
+				if (root[column] == -1) {
+					root[column] = 0;
+				}
+				else {
+					queue[tail++] = root[column];
+				}
+			}
+			while (head < tail) {
+				int state = queue[head++];
+				int[] row = trie.get(state);
+				for (int column = 0; column < _width; column++) {
+					int failure = trie.get(failures[state])[column];
+					if (row[column] == -1) {
+						row[column] = failure;
+					}
+					else {
+						int next = row[column];
+						failures[next] = failure;
+						int[] inherited = outputs.get(failure);
+						for (int match : inherited) {
+							outputs.set(next, append(outputs.get(next), match));
+						}
+						queue[tail++] = next;
+					}
+				}
+			}
+
+			_transitions = new int[trie.size() * _width];
+			for (int state = 0; state < trie.size(); state++) {
+				System.arraycopy(trie.get(state), 0, _transitions, state * _width, _width);
+			}
+			_matches = outputs.toArray(new int[outputs.size()][]);
+		}
+
+		private int[] newRow() {
+			int[] row = new int[_width];
+			Arrays.fill(row, -1);
+			return row;
+		}
+
+		private static int[] append(int[] array, int value) {
+			int[] result = Arrays.copyOf(array, array.length + 1);
+			result[array.length] = value;
+			return result;
+		}
+
+		private int column(char c) {
+			if (c < 128) {
+				return _columns[c];
+			}
+			int index = Arrays.binarySearch(_alphabet, c);
+			return index >= 0 ? index + 1 : 0;
+		}
+
+		private int next(int state, char c) {
+			return _transitions[state * _width + column(c)];
+		}
+
+		/**
+		 * @return the indexes of the strings ending in the given state
+		 */
+		private int[] matches(int state) {
+			return _matches[state];
+		}
+
+		private int count() {
+			return _strings.size();
+		}
+
+		private int length(int index) {
+			return _strings.get(index).length();
+		}
+
+		private int indexOf(String string) {
+			return _strings.indexOf(string);
+		}
+	}
+}
@@ -18,6 +18,7 @@ import com.webobjects.foundation.NSNotificationCenter;
 import er.extensions.appserver.ajax.ERXAjaxContext;
 import er.extensions.foundation.ERXMutableURL;
 import er.extensions.foundation.ERXProperties;
+import er.extensions.foundation.ERXRequestStorage;
 import er.extensions.foundation.ERXThreadStorage;
 import er.extensions.foundation.ERXUtilities;
 
@@ -34,8 +35,11 @@ public class ERXWOContext extends ERXAjaxContext {
 
 	public static class Observer {
 		public void applicationDidHandleRequest(NSNotification n) {
-			ERXWOContext.setCurrentContext(null);
-			ERXThreadStorage.removeValueForKey(ERXWOContext.CONTEXT_DICTIONARY_KEY);
+			ERXRequestStorage storage = ERXThreadStorage.existingStorage();
+			if (storage != null) {
+				storage.setContext(null);
+				storage.setContextDictionary(null);
+			}
 		}
 	}
 
@@ -73,25 +77,27 @@ public class ERXWOContext extends ERXAjaxContext {
 				}
 			}
 		}
-		NSMutableDictionary contextDictionary = ERXWOContext._contextDictionary();
+		ERXRequestStorage storage = ERXThreadStorage.storage();
+		NSMutableDictionary contextDictionary = storage.contextDictionary();
 		if (contextDictionary == null) {
 			contextDictionary = new NSMutableDictionary();
-			ERXThreadStorage.takeValueForKey(contextDictionary, ERXWOContext.CONTEXT_DICTIONARY_KEY);
+			storage.setContextDictionary(contextDictionary);
 		}
 		return contextDictionary;
 	}
 
 	public static WOContext currentContext() {
-		return (WOContext) ERXThreadStorage.valueForKey(CONTEXT_KEY);
+		ERXRequestStorage storage = ERXThreadStorage.existingStorage();
+		return storage != null ? storage.context() : null;
 	}
 
 	public static void setCurrentContext(Object object) {
-		ERXThreadStorage.takeValueForKey(object, CONTEXT_KEY);
+		ERXThreadStorage.storage().setContext((WOContext) object);
 	}
 
 	protected static NSMutableDictionary _contextDictionary() {
-		NSMutableDictionary contextDictionary = (NSMutableDictionary) ERXThreadStorage.valueForKey(ERXWOContext.CONTEXT_DICTIONARY_KEY);
-		return contextDictionary;
+		ERXRequestStorage storage = ERXThreadStorage.existingStorage();
+		return storage != null ? storage.contextDictionary() : null;
 	}
 
 	public ERXWOContext(WORequest worequest) {
@@ -175,7 +181,7 @@ public class ERXWOContext extends ERXAjaxContext {
 	}
 
 	public void setMutableUserInfo(NSMutableDictionary userInfo) {
-		ERXThreadStorage.takeValueForKey(userInfo, ERXWOContext.CONTEXT_DICTIONARY_KEY);
+		ERXThreadStorage.storage().setContextDictionary(userInfo);
 	}
 
 	@Override
@@ -11,6 +11,7 @@ import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,6 +74,33 @@ public class ERXAjaxSession extends WOSession {
   private static boolean overridePrivateCache = storesPageInfo || ERXProperties.booleanForKey("er.extensions.overridePrivateCache");
   
   private static final Logger log = LoggerFactory.getLogger(ERXAjaxSession.class);
+
+  /**
+   * Pages in the page caches and the permanent page caches of all sessions
+   */
+  private static final LongAdder _cachedPages = new LongAdder();
+  private static final LongAdder _permanentCachedPages = new LongAdder();
+
+  /**
+   * The pages this session added to _cachedPages and _permanentCachedPages. A page cache only drops pages
+   * to make room for new ones, so it holds every page saved in it, up to its size.
+   */
+  private transient int _cachedPageCount;
+  private transient int _permanentCachedPageCount;
+
+  /**
+   * @return the number of pages in the page caches of all sessions
+   */
+  public static long cachedPageCount() {
+    return _cachedPages.sum();
+  }
+
+  /**
+   * @return the number of pages in the permanent page caches of all sessions
+   */
+  public static long permanentCachedPageCount() {
+    return _permanentCachedPages.sum();
+  }
   
   public boolean storesPageInfo() {
 	  return storesPageInfo;
@@ -249,9 +277,25 @@ public class ERXAjaxSession extends WOSession {
     else {
     	log.debug("Calling super.savePage for contextID {}", context.contextID());
     	super.savePage(page);
+    	if (_cachedPageCount < WOApplication.application().pageCacheSize()) {
+    	  _cachedPageCount++;
+    	  _cachedPages.increment();
+    	}
     }
   }
 
+  /**
+   * Removes the session's pages from the counts of cached pages.
+   */
+  @Override
+  public void terminate() {
+    _cachedPages.add(-_cachedPageCount);
+    _permanentCachedPages.add(-_permanentCachedPageCount);
+    _cachedPageCount = 0;
+    _permanentCachedPageCount = 0;
+    super.terminate();
+  }
+
   /**
    * Iterates through the page replacement cache (if there is one) and removes expired records.
    */
@@ -425,6 +469,10 @@ protected boolean cleanPageReplacementCacheIfNecessary(String _cacheKeyToAge) {
 		} else {
 			super.savePageInPermanentCache(wocomponent);
 		}
+		if (_permanentCachedPageCount < WOApplication.application().permanentPageCacheSize()) {
+			_permanentCachedPageCount++;
+			_permanentCachedPages.increment();
+		}
 
 	}
 	
@@ -0,0 +1,195 @@
+package er.extensions.formatters;
+
+import java.text.DateFormatSymbols;
+import java.text.Format;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.webobjects.foundation.NSNumberFormatter;
+import com.webobjects.foundation.NSTimeZone;
+import com.webobjects.foundation.NSTimestampFormatter;
+
+/**
+ * Hands out formatters that are safe to use, without locking, from the calling thread.
+ *
+ * NSNumberFormatter and NSTimestampFormatter (like most java.text formats) keep state while formatting, so a
+ * formatter can't be used by more than one thread at a time. Instead of sharing one instance per pattern, every
+ * thread gets instances of it's own, keyed by pattern and locale. {@link ERXNumberFormatter#numberFormatterForPattern(String)},
+ * {@link ERXTimestampFormatter#dateFormatterForPattern(String)} and the localized formatters of
+ * {@link er.extensions.localization.ERXLocalizer} get their formatters from here. Don't hand a formatter over to another thread.
+ *
+ * Timestamp patterns that only contain numeric fields (like the default <code>%m/%d/%Y</code>) are also converted to an
+ * immutable {@link DateTimeFormatter}, which {@link #formatTimestamp(Object, String, Locale)} uses when formatting dates.
+ */
+
+public final class ERXFormatters {
+
+	/**
+	 * Maximum number of formatters kept per thread before they get cleared
+	 */
+	private static final int MAX_FORMATTERS_PER_THREAD = 64;
+
+	/**
+	 * Maximum number of converted DateTimeFormatters before they get cleared
+	 */
+	private static final int MAX_DATE_TIME_FORMATTERS = 1000;
+
+	private static final ThreadLocal<Map<Key, Format>> _threadFormatters = ThreadLocal.withInitial(HashMap::new);
+
+	/**
+	 * DateTimeFormatters converted from timestamp patterns, empty for patterns that can't be converted
+	 */
+	private static final Map<Key, Optional<DateTimeFormatter>> _dateTimeFormatters = new ConcurrentHashMap<>();
+
+	private ERXFormatters() {}
+
+	/**
+	 * @param pattern the pattern
+	 * @param locale the locale, null for a formatter that isn't localized
+	 * @return The current thread's number formatter for the pattern and locale
+	 */
+	public static NSNumberFormatter numberFormatter(String pattern, Locale locale) {
+		return (NSNumberFormatter) formatter(new Key(false, pattern, locale));
+	}
+
+	/**
+	 * @param pattern the pattern
+	 * @param locale the locale, null for a formatter that isn't localized
+	 * @return The current thread's timestamp formatter for the pattern and locale
+	 */
+	public static NSTimestampFormatter timestampFormatter(String pattern, Locale locale) {
+		return (NSTimestampFormatter) formatter(new Key(true, pattern, locale));
+	}
+
+	/**
+	 * Formats a timestamp with an immutable DateTimeFormatter if the pattern can be converted to one, with the
+	 * current thread's timestamp formatter otherwise.
+	 *
+	 * @param value the value (usually an NSTimestamp)
+	 * @param pattern the NSTimestampFormatter pattern
+	 * @param locale the locale, null for the default locale
+	 * @return the formatted value
+	 */
+	public static String formatTimestamp(Object value, String pattern, Locale locale) {
+		if (value instanceof Date date) {
+			DateTimeFormatter formatter = dateTimeFormatter(pattern, locale);
+			if (formatter != null) {
+				return formatter.format(date.toInstant().atZone(NSTimeZone.defaultTimeZone().toZoneId()));
+			}
+		}
+		return timestampFormatter(pattern, locale).format(value);
+	}
+
+	/**
+	 * @param pattern the NSTimestampFormatter pattern
+	 * @param locale the locale, null for the default locale
+	 * @return A DateTimeFormatter producing the same output as the timestamp pattern, or null if the pattern contains fields that can't be converted
+	 */
+	public static DateTimeFormatter dateTimeFormatter(String pattern, Locale locale) {
+		Key key = new Key(true, pattern, locale);
+		Optional<DateTimeFormatter> formatter = _dateTimeFormatters.get(key);
+		if (formatter == null) {
+			String converted = dateTimePattern(pattern);
+			formatter = converted != null ? Optional.of(DateTimeFormatter.ofPattern(converted, locale != null ? locale : Locale.getDefault())) : Optional.empty();
+			if (_dateTimeFormatters.size() >= MAX_DATE_TIME_FORMATTERS) {
+				_dateTimeFormatters.clear();
+			}
+			_dateTimeFormatters.put(key, formatter);
+		}
+		return formatter.orElse(null);
+	}
+
+	private static Format formatter(Key key) {
+		Map<Key, Format> formatters = _threadFormatters.get();
+		Format formatter = formatters.get(key);
+		if (formatter == null) {
+			formatter = key.timestamp() ? newTimestampFormatter(key.pattern(), key.locale()) : newNumberFormatter(key.pattern(), key.locale());
+			if (formatters.size() >= MAX_FORMATTERS_PER_THREAD) {
+				formatters.clear();
+			}
+			formatters.put(key, formatter);
+		}
+		return formatter;
+	}
+
+	private static NSNumberFormatter newNumberFormatter(String pattern, Locale locale) {
+		if (ERXNumberFormatter.DefaultKey.equals(pattern)) {
+			return new ERXNumberFormatter();
+		}
+		if (locale == null) {
+			return new ERXNumberFormatter(pattern);
+		}
+		NSNumberFormatter formatter = new ERXNumberFormatter();
+		formatter.setLocale(locale);
+		formatter.setLocalizesPattern(true);
+		formatter.setPattern(pattern);
+		return formatter;
+	}
+
+	private static NSTimestampFormatter newTimestampFormatter(String pattern, Locale locale) {
+		if (ERXTimestampFormatter.DefaultKey.equals(pattern)) {
+			return new ERXTimestampFormatter();
+		}
+		return locale == null ? new NSTimestampFormatter(pattern) : new NSTimestampFormatter(pattern, new DateFormatSymbols(locale));
+	}
+
+	/**
+	 * Converts the numeric fields of a timestamp pattern. The text fields (month and weekday names, am/pm) aren't
+	 * converted, since java.time and DateFormatSymbols don't agree on the names in every locale.
+	 *
+	 * @return The DateTimeFormatter pattern, null if the pattern can't be converted
+	 */
+	private static String dateTimePattern(String pattern) {
+		StringBuilder sb = new StringBuilder(pattern.length() * 2);
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c != '%') {
+				literal.append(c);
+				continue;
+			}
+			if (++i == pattern.length()) {
+				return null;
+			}
+			String field = switch (pattern.charAt(i)) {
+				case 'Y' -> "yyyy";
+				case 'y' -> "yy";
+				case 'm' -> "MM";
+				case 'd' -> "dd";
+				case 'H' -> "HH";
+				case 'I' -> "hh";
+				case 'M' -> "mm";
+				case 'S' -> "ss";
+				case 'F' -> "SSS";
+				case 'j' -> "DDD";
+				case '%' -> "";
+				default -> null;
+			};
+			if (field == null) {
+				return null;
+			}
+			if (field.isEmpty()) {
+				literal.append('%');
+				continue;
+			}
+			appendQuoted(sb, literal);
+			sb.append(field);
+		}
+		appendQuoted(sb, literal);
+		return sb.toString();
+	}
+
+	private static void appendQuoted(StringBuilder sb, StringBuilder literal) {
+		if (literal.length() > 0) {
+			sb.append('\'').append(literal.toString().replace("'", "''")).append('\'');
+			literal.setLength(0);
+		}
+	}
+
+	private record Key(boolean timestamp, String pattern, Locale locale) {}
+}
@@ -11,8 +11,8 @@ import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.text.FieldPosition;
 import java.text.Format;
-import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.webobjects.foundation.NSNumberFormatter;
 
@@ -31,14 +31,10 @@ import er.extensions.localization.ERXLocalizer;
  */
 public class ERXNumberFormatter extends NSNumberFormatter {
 
-	/** holds a reference to the repository */
-	private static Map<String, NSNumberFormatter> _repository = new Hashtable<>();
+	/** holds the formatters set with {@link #setNumberFormatterForPattern(NSNumberFormatter, String)} */
+	private static Map<String, NSNumberFormatter> _repository = new ConcurrentHashMap<>();
 	protected static final String DefaultKey = "ERXNumberFormatter.DefaultKey";
 	
-	static {
-		_repository.put(DefaultKey, new ERXNumberFormatter());
-	}
-	
 	private String _ignoredChars = ERXProperties.stringForKeyWithDefault("er.extensions.ERXNumberFormatter.ignoredChars", "%$");
     private Integer _scale;
     private BigDecimal _factor;
@@ -47,7 +43,7 @@ public class ERXNumberFormatter extends NSNumberFormatter {
     private String _stringForPositiveInfinity = "+Inf";
 	 
     /**
-     * Returns the default shared instance
+     * Returns the default instance of the current thread
      * @return shared instance
      */
     public static NSNumberFormatter sharedInstance() {
@@ -69,7 +65,9 @@ public class ERXNumberFormatter extends NSNumberFormatter {
 	}
 
 	/**
-     * Returns a shared instance for the specified pattern.
+     * Returns an instance for the specified pattern. Unless one has been set with
+     * {@link #setNumberFormatterForPattern(NSNumberFormatter, String)}, the instance
+     * belongs to the current thread (see {@link ERXFormatters}), so don't keep it around.
      * @return shared instance of formatter
      */
     public static NSNumberFormatter numberFormatterForPattern(String pattern) {
@@ -80,15 +78,15 @@ public class ERXNumberFormatter extends NSNumberFormatter {
     	} else {
     		formatter = _repository.get(pattern);
     		if(formatter == null) {
-    			formatter = new ERXNumberFormatter(pattern);
-    			_repository.put(pattern, formatter);
+    			formatter = ERXFormatters.numberFormatter(pattern, null);
     		}
     	}
     	return formatter;
     }
     
     /**
-     * Sets a shared instance for the specified pattern.
+     * Sets a shared instance for the specified pattern. The instance is used by
+     * all threads, so it has to be thread safe.
      */
     public static void setNumberFormatterForPattern(NSNumberFormatter formatter, String pattern) {
     	if(ERXLocalizer.useLocalizedFormatters()) {
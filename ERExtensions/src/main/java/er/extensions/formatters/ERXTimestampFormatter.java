@@ -2,8 +2,8 @@ package er.extensions.formatters;
 
 import java.text.DateFormatSymbols;
 import java.text.Format;
-import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.webobjects.foundation.NSTimestamp;
 import com.webobjects.foundation.NSTimestampFormatter;
@@ -17,9 +17,9 @@ import er.extensions.localization.ERXLocalizer;
 public class ERXTimestampFormatter extends NSTimestampFormatter {
 
 	/**
-	 * Holds a reference to the repository
+	 * Holds the formatters set with {@link #setDateFormatterForPattern(NSTimestampFormatter, String)}
 	 */
-	private static final Map<String, NSTimestampFormatter> _repository = new Hashtable<>();
+	private static final Map<String, NSTimestampFormatter> _repository = new ConcurrentHashMap<>();
 
 	protected static final String DefaultKey = "ERXTimestampFormatter.DefaultKey";
 
@@ -29,10 +29,6 @@ public class ERXTimestampFormatter extends NSTimestampFormatter {
 	
 	public static final String DEFAULT_PATTERN = "%m/%d/%Y";
 
-	static {
-		_repository.put(DefaultKey, new ERXTimestampFormatter());
-	}
-
 	/**
 	 * The default pattern used by WOString and friends when no pattern is set.
 	 * Looks like this only for compatibility's sake.
@@ -46,7 +42,9 @@ public class ERXTimestampFormatter extends NSTimestampFormatter {
 	}
 
 	/**
-	 * Returns a shared instance for the specified pattern.
+	 * Returns an instance for the specified pattern. Unless one has been set with
+	 * {@link #setDateFormatterForPattern(NSTimestampFormatter, String)}, the instance
+	 * belongs to the current thread (see {@link ERXFormatters}), so don't keep it around.
 	 * 
 	 * @return shared instance of formatter
 	 */
@@ -57,19 +55,33 @@ public class ERXTimestampFormatter extends NSTimestampFormatter {
 			formatter = (NSTimestampFormatter) localizer.localizedDateFormatForKey(pattern);
 		}
 		else {
-			synchronized (_repository) {
-				formatter = _repository.get(pattern);
-				if (formatter == null) {
-					formatter = new NSTimestampFormatter(pattern);
-					_repository.put(pattern, formatter);
-				}
+			formatter = _repository.get(pattern);
+			if (formatter == null) {
+				formatter = ERXFormatters.timestampFormatter(pattern, null);
 			}
 		}
 		return formatter;
 	}
 
 	/**
-	 * Sets a shared instance for the specified pattern.
+	 * Formats a value with the given pattern, like <code>dateFormatterForPattern(pattern).format(value)</code>.
+	 * Uses an immutable DateTimeFormatter for patterns with numeric fields only (see {@link ERXFormatters}).
+	 * 
+	 * @param value the value to format
+	 * @param pattern the pattern
+	 * @return the formatted value
+	 */
+	public static String format(Object value, String pattern) {
+		if (ERXLocalizer.useLocalizedFormatters()) {
+			return ERXLocalizer.currentLocalizer().localizedDateFormatForKey(pattern).format(value);
+		}
+		NSTimestampFormatter formatter = _repository.get(pattern);
+		return formatter != null ? formatter.format(value) : ERXFormatters.formatTimestamp(value, pattern, null);
+	}
+
+	/**
+	 * Sets a shared instance for the specified pattern. The instance is used by
+	 * all threads, so it has to be thread safe.
 	 */
 	public static void setDateFormatterForPattern(NSTimestampFormatter formatter, String pattern) {
 		if (ERXLocalizer.useLocalizedFormatters()) {
@@ -77,13 +89,11 @@ public class ERXTimestampFormatter extends NSTimestampFormatter {
 			localizer.setLocalizedDateFormatForKey(formatter, pattern);
 		}
 		else {
-			synchronized (_repository) {
-				if (formatter == null) {
-					_repository.remove(pattern);
-				}
-				else {
-					_repository.put(pattern, formatter);
-				}
+			if (formatter == null) {
+				_repository.remove(pattern);
+			}
+			else {
+				_repository.put(pattern, formatter);
 			}
 		}
 	}
@@ -1,14 +1,30 @@
 package er.extensions.foundation;
 
 import java.lang.ref.WeakReference;
-import java.util.Enumeration;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSMutableArray;
-import com.webobjects.foundation.NSMutableDictionary;
 
 /**
  * Cache that expires its entries based on time or version changes. Version can
@@ -18,25 +34,40 @@ import com.webobjects.foundation.NSMutableDictionary;
  * object in the cache, then the cache will invalidate the value for that key
  * and return null. An example version key might be the count of an array, if
  * the count changes, you want to invalidate the cached object.
- * 
+ *
  * Note that on a time-expiring cache, if you do not use the reaper with
  * startBackgroundExpiration(), or manually call removeStaleEntries(), unexpired
  * entries will remain in the cache for the lifetime of the cache.
- * 
+ *
+ * The cache is safe for concurrent use and lookups don't lock. Entries with a
+ * timeout are kept in a timer wheel (buckets of keys, by the second they expire
+ * in), so removing stale entries only visits the entries that have actually
+ * expired instead of the whole cache.
+ *
+ * The cache can optionally be bounded by a number of entries
+ * ({@link #setMaximumEntries(int)}) or a total weight
+ * ({@link #setMaximumWeight(long, ToLongFunction)}). When the bound is exceeded,
+ * expired entries and then the least recently used entries are evicted.
+ *
  * @author ak
  * @author mschrag
  */
 public class ERXExpiringCache<K, V> {
+	private static final Logger log = LoggerFactory.getLogger(ERXExpiringCache.class);
+
 	public static class Entry<V> {
-		private long _expiration;
-		private Object _versionKey;
-		private V _object;
-		private boolean _stale;
+		private final long _expiration;
+		private final Object _versionKey;
+		private final V _object;
+		private volatile boolean _stale;
+		private volatile long _lastAccess;
+		private long _weight;
 
 		public Entry(V o, long expiration, Object version) {
 			_expiration = expiration;
 			_versionKey = version;
 			_object = o;
+			_lastAccess = System.nanoTime();
 		}
 
 		protected boolean isStale(long currentTime, Object currentVersionKey) {
@@ -77,15 +108,39 @@ public class ERXExpiringCache<K, V> {
 	 */
 	public static final Object NO_VERSION = new Object();
 
+	/**
+	 * Resolution of the timer wheel in milliseconds.
+	 */
+	private static final long TICK_MILLIS = 1000L;
+
 	/**
 	 * The reaper for ERXExpiringCaches.
 	 */
 	private static ERXExpiringCache.GrimReaper _reaper;
 
-	private NSMutableDictionary<K, ERXExpiringCache.Entry<V>> _backingDictionary;
-	private long _expiryTime;
-	private long _cleanupPause;
-	private long _lastCleanupTime;
+	private final Map<K, ERXExpiringCache.Entry<V>> _entries;
+
+	/**
+	 * Keys of the entries that have a timeout, by the tick after the one they expire in.
+	 * A key can be in more than one bucket if it's been set more than once, it's only
+	 * removed when the entry in the cache has actually expired.
+	 */
+	private final ConcurrentNavigableMap<Long, Queue<K>> _timerWheel;
+
+	private final long _expiryTime;
+	private final long _cleanupPause;
+	private final AtomicLong _lastCleanupTime;
+
+	private volatile int _maximumEntries;
+	private volatile long _maximumWeight;
+	private volatile ToLongFunction<? super V> _weigher;
+	private final AtomicLong _weight;
+	private final ReentrantLock _evictionLock;
+
+	private final LongAdder _hits;
+	private final LongAdder _misses;
+	private final LongAdder _evictions;
+	private final LongAdder _expirations;
 
 	/**
 	 * Constructs an ERXExpiringCache with a 60 second expiration.
@@ -97,7 +152,7 @@ public class ERXExpiringCache<K, V> {
 	/**
 	 * Constructs an ERXExpiringCache with a cleanup time that matches
 	 * expiryTimeInSeconds.
-	 * 
+	 *
 	 * @param expiryTimeInSeconds
 	 *            the lifetime in seconds of an object in the cache or
 	 *            NO_TIMEOUT
@@ -115,44 +170,76 @@ public class ERXExpiringCache<K, V> {
 	 */
 	public ERXExpiringCache(long expiryTimeInSeconds, long cleanupPauseInSeconds) {
 		_expiryTime = expiryTimeInSeconds * 1000L;
-		_cleanupPause = cleanupPauseInSeconds * 1000L;
-		if (_cleanupPause == 0) {
-			_cleanupPause = 60 * 1000L;
-		}
-		_lastCleanupTime = 0L;
-		_backingDictionary = new NSMutableDictionary<K, Entry<V>>();
+		_cleanupPause = cleanupPauseInSeconds == 0 ? 60 * 1000L : cleanupPauseInSeconds * 1000L;
+		_lastCleanupTime = new AtomicLong();
+		_entries = new ConcurrentHashMap<>();
+		_timerWheel = new ConcurrentSkipListMap<>();
+		_weight = new AtomicLong();
+		_evictionLock = new ReentrantLock();
+		_hits = new LongAdder();
+		_misses = new LongAdder();
+		_evictions = new LongAdder();
+		_expirations = new LongAdder();
 	}
 
 	/**
-	 * Removes all the objects in this cache.
+	 * Bounds the number of entries in this cache. When the cache holds more
+	 * entries, the least recently used entries are evicted.
+	 *
+	 * @param maximumEntries
+	 *            the maximum number of entries, or 0 for no limit
 	 */
-	public synchronized void removeAllObjects() {
-		for (Iterator<K> iterator = _backingDictionary.allKeys().iterator(); iterator.hasNext();) {
-			K key = iterator.next();
-			removeEntryForKey(entryForKey(key), key);
+	public void setMaximumEntries(int maximumEntries) {
+		_maximumEntries = maximumEntries;
+		evictIfRequired();
+	}
+
+	/**
+	 * Bounds the total weight of the objects in this cache. When the total
+	 * weight is exceeded, the least recently used entries are evicted. Must be
+	 * set before any objects are added to the cache.
+	 *
+	 * @param maximumWeight
+	 *            the maximum total weight, or 0 for no limit
+	 * @param weigher
+	 *            returns the weight of an object (for example it's size in
+	 *            bytes)
+	 */
+	public void setMaximumWeight(long maximumWeight, ToLongFunction<? super V> weigher) {
+		if (!_entries.isEmpty()) {
+			throw new IllegalStateException("The weight of an ERXExpiringCache can only be bounded while it's empty.");
 		}
+		_weigher = weigher;
+		_maximumWeight = maximumWeight;
 	}
 
-	private long expiryTime() {
-		return _expiryTime;
+	/**
+	 * Removes all the objects in this cache.
+	 */
+	public void removeAllObjects() {
+		// Cleared first, so the keys of entries set while we're removing stay in it
+		_timerWheel.clear();
+		for (Map.Entry<K, Entry<V>> entry : _entries.entrySet()) {
+			removeEntryForKey(entry.getValue(), entry.getKey());
+		}
 	}
 
 	/**
 	 * Sets the object for the specified key in this cache with no version
 	 * specified.
-	 * 
+	 *
 	 * @param object
 	 *            the value to set
 	 * @param key
 	 *            the lookup key
 	 */
-	public synchronized void setObjectForKey(V object, K key) {
+	public void setObjectForKey(V object, K key) {
 		setObjectForKeyWithVersion(object, key, ERXExpiringCache.NO_VERSION);
 	}
 
 	/**
 	 * Sets the object for the specified key and current version key.
-	 * 
+	 *
 	 * @param object
 	 *            the object to set
 	 * @param key
@@ -160,7 +247,7 @@ public class ERXExpiringCache<K, V> {
 	 * @param currentVersionKey
 	 *            the version of the object right now
 	 */
-	public synchronized void setObjectForKeyWithVersion(V object, K key, Object currentVersionKey, long expirationTime) {
+	public void setObjectForKeyWithVersion(V object, K key, Object currentVersionKey, long expirationTime) {
 		removeStaleEntries();
 		if (expirationTime != ERXExpiringCache.NO_TIMEOUT) {
 			expirationTime = System.currentTimeMillis() + expirationTime;
@@ -171,7 +258,7 @@ public class ERXExpiringCache<K, V> {
 
 	/**
 	 * Sets the object for the specified key and current version key.
-	 * 
+	 *
 	 * @param object
 	 *            the object to set
 	 * @param key
@@ -179,18 +266,18 @@ public class ERXExpiringCache<K, V> {
 	 * @param currentVersionKey
 	 *            the version of the object right now
 	 */
-	public synchronized void setObjectForKeyWithVersion(V object, K key, Object currentVersionKey) {
+	public void setObjectForKeyWithVersion(V object, K key, Object currentVersionKey) {
 		setObjectForKeyWithVersion(object, key, currentVersionKey, _expiryTime);
 	}
 
 	/**
 	 * Returns the value of the given key with an unspecified version.
-	 * 
+	 *
 	 * @param key
 	 *            the key to lookup with
 	 * @return the value in the cache or null
 	 */
-	public synchronized V objectForKey(K key) {
+	public V objectForKey(K key) {
 		return objectForKeyWithVersion(key, ERXExpiringCache.NO_VERSION);
 	}
 
@@ -198,50 +285,52 @@ public class ERXExpiringCache<K, V> {
 	 * Returns the value of the given key passing in the current version of the
 	 * cache value. If the version key passed in does not match the version key
 	 * in the cache, the cache will invalidate that key.
-	 * 
+	 *
 	 * @param key
 	 *            the key to lookup with
 	 * @param currentVersionKey
 	 *            the current version of this key
 	 * @return the value in the cache or null
 	 */
-	public synchronized V objectForKeyWithVersion(K key, Object currentVersionKey) {
+	public V objectForKeyWithVersion(K key, Object currentVersionKey) {
 		Entry<V> entry = entryForKey(key);
-		V value = null;
 		if (entry != null) {
 			if (entry.isStale(System.currentTimeMillis(), currentVersionKey)) {
 				removeEntryForKey(entry, key);
 			}
 			else {
-				value = entry.object();
+				entry._lastAccess = System.nanoTime();
+				_hits.increment();
+				return entry.object();
 			}
 		}
-		return value;
+		_misses.increment();
+		return null;
 	}
 
 	/**
 	 * Returns whether or not the object for the given key is a stale cache
 	 * entry.
-	 * 
+	 *
 	 * @param key
 	 *            the key to lookup
 	 * @return true if the value is stale
 	 */
-	public synchronized boolean isStale(K key) {
+	public boolean isStale(K key) {
 		return isStaleWithVersion(key, ERXExpiringCache.NO_VERSION);
 	}
 
 	/**
 	 * Returns whether or not the object for the given key is a stale cache
 	 * entry given the context of the current version of the key.
-	 * 
+	 *
 	 * @param key
 	 *            the key to lookup
 	 * @param currentVersionKey
 	 *            the current version of this key
 	 * @return true if the value is stale
 	 */
-	public synchronized boolean isStaleWithVersion(K key, Object currentVersionKey) {
+	public boolean isStaleWithVersion(K key, Object currentVersionKey) {
 		Entry<V> entry = entryForKey(key);
 		boolean isStale = true;
 		if (entry != null) {
@@ -252,12 +341,12 @@ public class ERXExpiringCache<K, V> {
 
 	/**
 	 * Removes the object for the given key.
-	 * 
+	 *
 	 * @param key
 	 *            the key to remove
 	 * @return the removed object
 	 */
-	public synchronized V removeObjectForKey(K key) {
+	public V removeObjectForKey(K key) {
 		removeStaleEntries();
 		Entry<V> entry = entryForKey(key);
 		V value = null;
@@ -269,41 +358,171 @@ public class ERXExpiringCache<K, V> {
 	}
 
 	/**
-	 * Removes all stale entries.
+	 * Removes all stale entries. Does nothing if the last cleanup was less than
+	 * the cleanup pause ago.
 	 */
-	public synchronized void removeStaleEntries() {
-		if (_backingDictionary.count() > 0) {
+	public void removeStaleEntries() {
+		if (!_timerWheel.isEmpty()) {
 			long now = System.currentTimeMillis();
-			if ((_lastCleanupTime + _cleanupPause) < now) {
-				_lastCleanupTime = System.currentTimeMillis();
-				for (Enumeration<K> keyEnum = _backingDictionary.keyEnumerator(); keyEnum.hasMoreElements();) {
-					K key = keyEnum.nextElement();
+			long lastCleanupTime = _lastCleanupTime.get();
+			if ((lastCleanupTime + _cleanupPause) < now && _lastCleanupTime.compareAndSet(lastCleanupTime, now)) {
+				expireEntries(now);
+			}
+		}
+	}
+
+	/**
+	 * Removes the entries in the timer wheel's buckets that have passed.
+	 */
+	private void expireEntries(long now) {
+		long currentTick = now / ERXExpiringCache.TICK_MILLIS;
+		Map.Entry<Long, Queue<K>> bucket;
+		while ((bucket = _timerWheel.firstEntry()) != null && bucket.getKey().longValue() <= currentTick) {
+			if (_timerWheel.remove(bucket.getKey(), bucket.getValue())) {
+				for (K key : bucket.getValue()) {
 					Entry<V> entry = entryForKey(key);
 					// (AR): It's wrong to add 10 seconds, subtracting 10 makes objects
 					// live longer but this really isn't necessary. It appears
 					// no "fudge factor" is needed.
-					if (entry.isStale(now, ERXExpiringCache.NO_VERSION)) {
-						removeEntryForKey(entry, key);
+					if (entry != null && entry.isStale(now, ERXExpiringCache.NO_VERSION) && evictEntry(entry, key)) {
+						_expirations.increment();
 					}
 				}
 			}
 		}
 	}
-	
-	protected synchronized void removeEntryForKey(Entry<V> entry, K key) {
-		_backingDictionary.removeObjectForKey(key);
+
+	/**
+	 * Removes the given entry, unless it has been replaced in the meantime.
+	 *
+	 * @return true if the entry was removed
+	 */
+	private boolean removeEntry(Entry<V> entry, K key) {
+		if (_entries.remove(key, entry)) {
+			_weight.addAndGet(-entry._weight);
+			return true;
+		}
+		return false;
+	}
+
+	protected void removeEntryForKey(Entry<V> entry, K key) {
+		removeEntry(entry, key);
+	}
+
+	/**
+	 * Removes an expired or evicted entry through {@link #removeEntryForKey(Entry, Object)}, so subclasses see it.
+	 *
+	 * @return true if the entry is gone
+	 */
+	private boolean evictEntry(Entry<V> entry, K key) {
+		removeEntryForKey(entry, key);
+		return _entries.get(key) != entry;
 	}
-	
-	protected synchronized void setEntryForKey(Entry<V> entry, K key) {
-		_backingDictionary.setObjectForKey(entry, key);
+
+	protected void setEntryForKey(Entry<V> entry, K key) {
+		ToLongFunction<? super V> weigher = _weigher;
+		entry._weight = weigher == null ? 1 : weigher.applyAsLong(entry.object());
+		_weight.addAndGet(entry._weight);
+		Entry<V> previousEntry = _entries.put(key, entry);
+		if (previousEntry != null) {
+			_weight.addAndGet(-previousEntry._weight);
+		}
+		if (entry._expiration != ERXExpiringCache.NO_TIMEOUT) {
+			// Bucketed by the tick after the one it expires in, so everything in a bucket has expired once it's tick has passed
+			Long tick = Long.valueOf(entry._expiration / ERXExpiringCache.TICK_MILLIS + 1);
+			_timerWheel.computeIfAbsent(tick, t -> new ConcurrentLinkedQueue<>()).add(key);
+		}
+		evictIfRequired();
+	}
+
+	protected Entry<V> entryForKey(K key) {
+		return _entries.get(key);
 	}
 
-	protected synchronized Entry<V> entryForKey(K key) {
-		return _backingDictionary.objectForKey( key);
+	private boolean exceeds(int maximumEntries, long maximumWeight) {
+		return (maximumEntries > 0 && _entries.size() > maximumEntries) || (maximumWeight > 0 && _weight.get() > maximumWeight);
 	}
+
+	/**
+	 * Evicts expired entries and then the least recently used entries until the
+	 * cache is within it's bounds. Entries are evicted in bulk (down to 3/4 of
+	 * the bounds) so we don't have to do this for every new entry once the
+	 * cache is full. If another thread is already evicting, we leave it to that
+	 * thread.
+	 */
+	private void evictIfRequired() {
+		int maximumEntries = _maximumEntries;
+		long maximumWeight = _maximumWeight;
+		if (!exceeds(maximumEntries, maximumWeight) || !_evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			expireEntries(System.currentTimeMillis());
+			if (exceeds(maximumEntries, maximumWeight)) {
+				List<Map.Entry<K, Entry<V>>> entries = new ArrayList<>(_entries.entrySet());
+				entries.sort(Comparator.comparingLong(entry -> entry.getValue()._lastAccess));
+				int targetEntries = maximumEntries / 4 * 3;
+				long targetWeight = maximumWeight / 4 * 3;
+				for (Map.Entry<K, Entry<V>> entry : entries) {
+					if (!exceeds(targetEntries, targetWeight)) {
+						break;
+					}
+					if (evictEntry(entry.getValue(), entry.getKey())) {
+						_evictions.increment();
+					}
+				}
+			}
+		}
+		finally {
+			_evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of entries in this cache, including stale entries that haven't been removed yet
+	 */
+	public int count() {
+		return _entries.size();
+	}
+
+	/**
+	 * @return the total weight of the entries in this cache (the number of entries if no weigher has been set)
+	 */
+	public long weight() {
+		return _weight.get();
+	}
+
+	/**
+	 * @return the number of lookups that returned a value
+	 */
+	public long hitCount() {
+		return _hits.sum();
+	}
+
+	/**
+	 * @return the number of lookups that didn't find a value, or found a stale one
+	 */
+	public long missCount() {
+		return _misses.sum();
+	}
+
+	/**
+	 * @return the number of entries that were evicted to keep the cache within it's bounds
+	 */
+	public long evictionCount() {
+		return _evictions.sum();
+	}
+
+	/**
+	 * @return the number of entries that were removed by removeStaleEntries() or eviction because they had expired
+	 */
+	public long expirationCount() {
+		return _expirations.sum();
+	}
+
 	@Override
 	public String toString() {
-		return super.toString() + " " + _backingDictionary;
+		return super.toString() + " " + _entries;
 	}
 
 	/**
@@ -321,13 +540,13 @@ public class ERXExpiringCache<K, V> {
 	/**
 	 * Stops the background reaper for this cache.
 	 */
-	public synchronized void stopBackgroundExpiration() {
+	public void stopBackgroundExpiration() {
 		ERXExpiringCache.reaper().stop(this);
 	}
 
 	/**
 	 * Returns the repear for all ERXExpringCaches.
-	 * 
+	 *
 	 * @return the repear for all ERXExpringCaches
 	 */
 	protected static synchronized ERXExpiringCache.GrimReaper reaper() {
@@ -338,98 +557,80 @@ public class ERXExpiringCache<K, V> {
 	}
 
 	/**
-	 * The reaper runnable for ERXExpiringCache.
-	 * 
+	 * The reaper runnable for ERXExpiringCache. Runs on a daemon thread of it's
+	 * own and only holds weak references to the caches, so caches that are no
+	 * longer used (for example the caches of expired sessions) are dropped
+	 * without having to be stopped.
+	 *
 	 * @author mschrag
 	 */
 	protected static class GrimReaper implements Runnable {
-		private List<WeakReference<ERXExpiringCache>> _caches;
-		private long _reapFrequencyInMillis;
-		private boolean _stopped;
+		private final Set<WeakReference<ERXExpiringCache<?, ?>>> _caches;
+		private final long _reapFrequencyInMillis;
+		private ScheduledExecutorService _executor;
+		private ScheduledFuture<?> _future;
 
 		public GrimReaper(long reapFrequencyInMillis) {
-			_caches = new LinkedList<WeakReference<ERXExpiringCache>>();
+			_caches = ConcurrentHashMap.newKeySet();
 			_reapFrequencyInMillis = reapFrequencyInMillis;
-			_stopped = true;
 		}
 
-		public void addCache(ERXExpiringCache cache) {
-			synchronized (_caches) {
-				_caches.add(new WeakReference<>(cache));
-				if (_stopped) {
-					start();
-				}
-			}
-
+		public void addCache(ERXExpiringCache<?, ?> cache) {
+			_caches.add(new WeakReference<>(cache));
+			start();
 		}
 
-		public void start() {
-			synchronized (_caches) {
-				if (_stopped) {
-					_stopped = false;
-					Thread reaperThread = new Thread(this);
-					reaperThread.start();
+		public synchronized void start() {
+			if (_future == null) {
+				if (_executor == null) {
+					ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+						Thread thread = new Thread(runnable, "ERXExpiringCache.GrimReaper");
+						thread.setDaemon(true);
+						return thread;
+					});
+					executor.setRemoveOnCancelPolicy(true);
+					_executor = executor;
 				}
+				_future = _executor.scheduleWithFixedDelay(this, _reapFrequencyInMillis, _reapFrequencyInMillis, TimeUnit.MILLISECONDS);
 			}
 		}
 
-		public void stop() {
-			synchronized (_caches) {
-				_stopped = true;
+		public synchronized void stop() {
+			if (_future != null) {
+				_future.cancel(false);
+				_future = null;
 			}
 		}
 
-		public void stop(ERXExpiringCache cache) {
-			synchronized (_caches) {
-				Iterator<WeakReference<ERXExpiringCache>> cacheIter = _caches.iterator();
-				while (cacheIter.hasNext()) {
-					WeakReference<ERXExpiringCache> cacheRef = cacheIter.next();
-					ERXExpiringCache reapingCache = cacheRef.get();
-					if (reapingCache == cache) {
-						cacheIter.remove();
-						break;
-					}
-				}
-			}
+		public void stop(ERXExpiringCache<?, ?> cache) {
+			_caches.removeIf(cacheRef -> cacheRef.get() == cache);
 		}
 
 		public void run() {
-			boolean stopped = false;
-			do {
-				try {
-					Thread.sleep(_reapFrequencyInMillis);
+			for (WeakReference<ERXExpiringCache<?, ?>> cacheRef : _caches) {
+				ERXExpiringCache<?, ?> cache = cacheRef.get();
+				if (cache == null) {
+					_caches.remove(cacheRef);
 				}
-				catch (InterruptedException e) {
-					// IGNORE
-				}
-				synchronized (_caches) {
-					Iterator<WeakReference<ERXExpiringCache>> cacheIter = _caches.iterator();
-					while (cacheIter.hasNext()) {
-						WeakReference<ERXExpiringCache> cacheRef = cacheIter.next();
-						ERXExpiringCache cache = cacheRef.get();
-						if (cache == null) {
-							cacheIter.remove();
-						}
-						else {
-							cache.removeStaleEntries();
-						}
+				else {
+					try {
+						cache.removeStaleEntries();
 					}
-					if (_caches.size() == 0) {
-						_stopped = true;
-						stopped = true;
+					catch (RuntimeException e) {
+						// An exception would cancel the scheduled task, so we keep going with the other caches
+						log.error("Failed to remove stale entries from " + cache.getClass().getName(), e);
 					}
 				}
 			}
-			while (!stopped);
 		}
 	}
 
 	/**
 	 * Returns all keys.
 	 */
-	public synchronized NSArray<K> allKeys() {
-		NSMutableArray<K> result = new NSMutableArray<>(_backingDictionary.count());
-		for (K key : _backingDictionary.allKeys()) {
+	public NSArray<K> allKeys() {
+		NSMutableArray<K> result = new NSMutableArray<>(_entries.size());
+		for (K key : _entries.keySet()) {
 			result.addObject(key);
 		}
 		return result;
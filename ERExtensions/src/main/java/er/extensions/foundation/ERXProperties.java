@@ -13,11 +13,16 @@ import java.io.IOException;
 import java.math.BigDecimal;
 import java.net.URL;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.Stack;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +37,16 @@ import com.webobjects.foundation.NSProperties;
 
 import er.extensions.appserver.ERXApplication;
 
+/**
+ * Reads typed values from the system properties.
+ * <p>
+ * Strings are read from the system properties directly. The other values are read from a snapshot of the system
+ * properties, which caches the converted values, and handles ({@link #intHandle(String, int)} etc.) hold the value of
+ * their key. Both are updated by {@link #systemPropertiesChanged()}, which is called when the configuration is
+ * (re)loaded. <b>Call it yourself after changing system properties directly with <code>System.setProperty()</code>.</b>
+ * A change in the number of system properties (or a new <code>Properties</code> object) is noticed on the next read,
+ * but a new value for a key that was set before is only seen by {@link #stringForKey(String)} and friends.
+ */
 public class ERXProperties {
 
     private static String UndefinedMarker = "-undefined-";
@@ -44,10 +59,98 @@ public class ERXProperties {
      */
     private ERXProperties() {}
 
-    /** 
-    * Internal cache of type converted values to avoid reconverting attributes that are asked for frequently 
-    */
-    private static Map<String, Object> _cache = new ConcurrentHashMap<>();
+    /**
+     * The current snapshot of the system properties. Replaced (never modified) when the properties change.
+     */
+    private static volatile Snapshot _snapshot;
+
+    /**
+     * Handles bound to each key, updated when the key's value changes
+     */
+    private static final Map<String, List<Handle>> _handles = new ConcurrentHashMap<>();
+
+    /**
+     * Listeners for each key
+     */
+    private static final Map<String, List<Listener>> _listeners = new ConcurrentHashMap<>();
+
+    /**
+     * An immutable copy of the system properties, with a cache of the values converted from it
+     */
+    private static final class Snapshot {
+        private final long _version;
+        private final Map<String, String> _values;
+
+        /**
+         * The system properties the snapshot was taken from and their size, to notice that they changed
+         */
+        private final Properties _properties;
+        private final int _size;
+
+        /** 
+         * Internal cache of type converted values to avoid reconverting attributes that are asked for frequently 
+         */
+        private final Map<String, Object> _cache = new ConcurrentHashMap<>();
+
+        private Snapshot(long version, Map<String, String> values, Properties properties, int size) {
+            _version = version;
+            _values = values;
+            _properties = properties;
+            _size = size;
+        }
+
+        private static Snapshot fromSystemProperties(long version) {
+            Properties properties = System.getProperties();
+            // Taken before copying, a change while copying is noticed on the next read
+            int size = properties.size();
+            Map<String, String> values = new HashMap<>();
+            for (String key : properties.stringPropertyNames()) {
+                String value = properties.getProperty(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+            return new Snapshot(version, Map.copyOf(values), properties, size);
+        }
+
+        private boolean isStale() {
+            Properties properties = System.getProperties();
+            return properties != _properties || properties.size() != _size;
+        }
+    }
+
+    private static Snapshot snapshot() {
+        Snapshot snapshot = currentSnapshot();
+        if (snapshot.isStale()) {
+            updateSnapshot(true);
+            snapshot = currentSnapshot();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the snapshot, without checking whether the system properties changed
+     */
+    private static Snapshot currentSnapshot() {
+        Snapshot snapshot = _snapshot;
+        if (snapshot == null) {
+            synchronized (ERXProperties.class) {
+                snapshot = _snapshot;
+                if (snapshot == null) {
+                    snapshot = Snapshot.fromSystemProperties(1);
+                    _snapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return The version of the properties, incremented each time they change
+     */
+    public static long version() {
+        return snapshot()._version;
+    }
 
     /**
      * Cover method for returning an NSArray for a given system property.
@@ -69,14 +172,15 @@ public class ERXProperties {
      */
 	public static NSArray<String> arrayForKeyWithDefault(final String propertyName, final NSArray<String> defaultValue) {
 		NSArray<String> value;
-		Object cachedValue = _cache.get(propertyName);
+		final Snapshot snapshot = snapshot();
+		Object cachedValue = snapshot._cache.get(propertyName);
 		if (UndefinedMarker.equals(cachedValue)) {
 			value = defaultValue;
 		} else if (cachedValue instanceof NSArray) {
 			value = (NSArray) cachedValue;
 		} else {
-			value = ERXValueUtilities.arrayValueWithDefault(NSProperties.getProperty(propertyName), null);
-			_cache.put(propertyName, value == null ? UndefinedMarker : value);
+			value = ERXValueUtilities.arrayValueWithDefault(snapshot._values.get(propertyName), null);
+			snapshot._cache.put(propertyName, value == null ? UndefinedMarker : value);
 			if (value == null) {
 				value = defaultValue;
 			}
@@ -110,14 +214,15 @@ public class ERXProperties {
      */
 	public static boolean booleanForKeyWithDefault(final String propertyName, final boolean defaultValue) {
         boolean value;
-		Object cachedValue = _cache.get(propertyName);
+		final Snapshot snapshot = snapshot();
+		Object cachedValue = snapshot._cache.get(propertyName);
 		if (UndefinedMarker.equals(cachedValue)) {
 			value = defaultValue;
 		} else if (cachedValue instanceof Boolean) {
 			value = ((Boolean) cachedValue).booleanValue();
 		} else {
-			Boolean objValue = ERXValueUtilities.BooleanValueWithDefault(NSProperties.getProperty(propertyName), null);
-			_cache.put(propertyName, objValue == null ? UndefinedMarker : objValue);
+			Boolean objValue = ERXValueUtilities.BooleanValueWithDefault(snapshot._values.get(propertyName), null);
+			snapshot._cache.put(propertyName, objValue == null ? UndefinedMarker : objValue);
 			if (objValue == null) {
 				value = defaultValue;
 			} else {
@@ -147,14 +252,15 @@ public class ERXProperties {
      */
 	public static int intForKeyWithDefault(final String propertyName, final int defaultValue) {
 		int value;
-		Object cachedValue = _cache.get(propertyName);
+		final Snapshot snapshot = snapshot();
+		Object cachedValue = snapshot._cache.get(propertyName);
 		if (UndefinedMarker.equals(cachedValue)) {
 			value = defaultValue;
 		} else if (cachedValue instanceof Integer) {
 			value = ((Integer) cachedValue).intValue();
 		} else {
-			Integer objValue = ERXValueUtilities.IntegerValueWithDefault(NSProperties.getProperty(propertyName), null);
-			_cache.put(propertyName, objValue == null ? UndefinedMarker : objValue);
+			Integer objValue = ERXValueUtilities.IntegerValueWithDefault(snapshot._values.get(propertyName), null);
+			snapshot._cache.put(propertyName, objValue == null ? UndefinedMarker : objValue);
 			if (objValue == null) {
 				value = defaultValue;
 			} else {
@@ -175,7 +281,8 @@ public class ERXProperties {
      * @return BigDecimal value of the string in the system properties. Scale is controlled by the string, ie "4.400" will have a scale of 3.
      */
 	public static BigDecimal bigDecimalForKeyWithDefault(String propertyName, BigDecimal defaultValue) {
-        Object value = _cache.get(propertyName);
+        final Snapshot snapshot = snapshot();
+        Object value = snapshot._cache.get(propertyName);
         if (UndefinedMarker.equals(value)) {
             return defaultValue;
         }
@@ -183,9 +290,9 @@ public class ERXProperties {
             return (BigDecimal)value;
         }
         
-        String propertyValue = NSProperties.getProperty(propertyName);
+        String propertyValue = snapshot._values.get(propertyName);
         final BigDecimal bigDecimal = ERXValueUtilities.bigDecimalValueWithDefault(propertyValue, defaultValue);
-        _cache.put(propertyName, propertyValue == null ? UndefinedMarker : bigDecimal);
+        snapshot._cache.put(propertyName, propertyValue == null ? UndefinedMarker : bigDecimal);
         return bigDecimal;
     }
 
@@ -199,14 +306,15 @@ public class ERXProperties {
      */
 	public static long longForKeyWithDefault(final String propertyName, final long defaultValue) {
 		long value;
-		Object cachedValue = _cache.get(propertyName);
+		final Snapshot snapshot = snapshot();
+		Object cachedValue = snapshot._cache.get(propertyName);
 		if (UndefinedMarker.equals(cachedValue)) {
 			value = defaultValue;
 		} else if (cachedValue instanceof Long) {
 			value = ((Long) cachedValue).longValue();
 		} else {
-			Long objValue = ERXValueUtilities.LongValueWithDefault(NSProperties.getProperty(propertyName), null);
-			_cache.put(propertyName, objValue == null ? UndefinedMarker : objValue);
+			Long objValue = ERXValueUtilities.LongValueWithDefault(snapshot._values.get(propertyName), null);
+			snapshot._cache.put(propertyName, objValue == null ? UndefinedMarker : objValue);
 			if (objValue == null) {
 				value = defaultValue;
 			} else {
@@ -238,6 +346,7 @@ public class ERXProperties {
      * @return string value of the system property or null
      */
 	public static String stringForKeyWithDefault(final String propertyName, final String defaultValue) {
+        // Read live, so a changed value is seen without calling systemPropertiesChanged()
         final String propertyValue = NSProperties.getProperty(propertyName);
         final String stringValue = propertyValue == null ? defaultValue : propertyValue;
         return stringValue == UndefinedMarker ? null : stringValue;
@@ -738,11 +847,293 @@ public class ERXProperties {
         return actualPath;
     }
 
-    private static void systemPropertiesChanged() {
-        _cache.clear();
+    /**
+     * Takes a new snapshot of the system properties, updates the handles and notifies the listeners of the keys
+     * that changed, and posts {@link NSProperties#PropertiesDidChange}. Called when the configuration is (re)loaded,
+     * call it yourself if you change system properties directly (see the class documentation).
+     */
+    public static void systemPropertiesChanged() {
+        updateSnapshot(false);
+    }
+
+    /**
+     * Takes a new snapshot, see {@link #systemPropertiesChanged()}. The handles and listeners are called after
+     * releasing the lock, so they can read properties (or take locks of their own) without blocking other readers.
+     * 
+     * @param onlyIfStale true to do nothing if another thread already took a new snapshot
+     */
+    private static void updateSnapshot(boolean onlyIfStale) {
+        Snapshot oldSnapshot;
+        Snapshot newSnapshot;
+        Set<String> changedKeys = new HashSet<>();
+        synchronized (ERXProperties.class) {
+            oldSnapshot = currentSnapshot();
+            if (onlyIfStale && !oldSnapshot.isStale()) {
+                return;
+            }
+            newSnapshot = Snapshot.fromSystemProperties(oldSnapshot._version + 1);
+            for (Map.Entry<String, String> entry : newSnapshot._values.entrySet()) {
+                if (!entry.getValue().equals(oldSnapshot._values.get(entry.getKey()))) {
+                    changedKeys.add(entry.getKey());
+                }
+            }
+            for (String key : oldSnapshot._values.keySet()) {
+                if (!newSnapshot._values.containsKey(key)) {
+                    changedKeys.add(key);
+                }
+            }
+            // Values converted from keys that didn't change are still valid
+            for (Map.Entry<String, Object> entry : oldSnapshot._cache.entrySet()) {
+                if (!changedKeys.contains(entry.getKey())) {
+                    newSnapshot._cache.put(entry.getKey(), entry.getValue());
+                }
+            }
+            _snapshot = newSnapshot;
+        }
+
+        // Handles read the current snapshot, so a handle updated late for an older change still gets the newest value
+        for (String key : changedKeys) {
+            List<Handle> handles = _handles.get(key);
+            if (handles != null) {
+                for (Handle handle : handles) {
+                    handle.update();
+                }
+            }
+        }
+        for (String key : changedKeys) {
+            List<Listener> listeners = _listeners.get(key);
+            if (listeners != null) {
+                for (Listener listener : listeners) {
+                    try {
+                        listener.propertyChanged(key, oldSnapshot._values.get(key), newSnapshot._values.get(key));
+                    }
+                    catch (RuntimeException e) {
+                        log.error("Property listener failed for key '{}'.", key, e);
+                    }
+                }
+            }
+        }
         NSNotificationCenter.defaultCenter().postNotification(NSProperties.PropertiesDidChange, null, null);
     }
 
+    /**
+     * Registers a listener that is called when the value of the given key changes.
+     * 
+     * @param key the property
+     * @param listener the listener
+     */
+    public static void addListener(String key, Listener listener) {
+        _listeners.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    /**
+     * Removes a listener registered with {@link #addListener(String, Listener)}.
+     * 
+     * @param key the property
+     * @param listener the listener
+     */
+    public static void removeListener(String key, Listener listener) {
+        List<Listener> listeners = _listeners.get(key);
+        if (listeners != null) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Listener for changes of a property's value
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called after the value of the property changed.
+         * 
+         * @param key the property
+         * @param oldValue the previous value, null if the property wasn't set
+         * @param newValue the new value, null if the property was removed
+         */
+        public void propertyChanged(String key, String oldValue, String newValue);
+    }
+
+    /**
+     * Returns a handle for an int property. Bind the handle once (for example
+     * to a static field) and read it with {@link IntHandle#get()}, which
+     * doesn't look the property up. The handle is updated when the property changes.
+     * 
+     * @param key the property
+     * @param defaultValue default value
+     * @return the handle
+     */
+    public static IntHandle intHandle(String key, int defaultValue) {
+        return register(new IntHandle(key, defaultValue));
+    }
+
+    /**
+     * Returns a handle for a long property, see {@link #intHandle(String, int)}.
+     * 
+     * @param key the property
+     * @param defaultValue default value
+     * @return the handle
+     */
+    public static LongHandle longHandle(String key, long defaultValue) {
+        return register(new LongHandle(key, defaultValue));
+    }
+
+    /**
+     * Returns a handle for a double property, see {@link #intHandle(String, int)}.
+     * 
+     * @param key the property
+     * @param defaultValue default value
+     * @return the handle
+     */
+    public static DoubleHandle doubleHandle(String key, double defaultValue) {
+        return register(new DoubleHandle(key, defaultValue));
+    }
+
+    /**
+     * Returns a handle for a boolean property, see {@link #intHandle(String, int)}.
+     * 
+     * @param key the property
+     * @param defaultValue default value
+     * @return the handle
+     */
+    public static BooleanHandle booleanHandle(String key, boolean defaultValue) {
+        return register(new BooleanHandle(key, defaultValue));
+    }
+
+    /**
+     * Returns a handle for a string property, see {@link #intHandle(String, int)}.
+     * 
+     * @param key the property
+     * @param defaultValue default value
+     * @return the handle
+     */
+    public static StringHandle stringHandle(String key, String defaultValue) {
+        return register(new StringHandle(key, defaultValue));
+    }
+
+    private static <T extends Handle> T register(T handle) {
+        // Registered before reading the value, so a change in between is never missed
+        _handles.computeIfAbsent(handle.key(), k -> new CopyOnWriteArrayList<>()).add(handle);
+        handle.update();
+        return handle;
+    }
+
+    /**
+     * A property bound to a key, see {@link ERXProperties#intHandle(String, int)}
+     */
+    public abstract static class Handle {
+        private final String _key;
+
+        Handle(String key) {
+            _key = key;
+        }
+
+        public String key() {
+            return _key;
+        }
+
+        /**
+         * Reads the value from the current snapshot. Synchronized in the subclasses,
+         * so a value read from an older snapshot never overwrites a newer one.
+         */
+        abstract void update();
+    }
+
+    public static final class IntHandle extends Handle {
+        private final int _defaultValue;
+        private volatile int _value;
+
+        private IntHandle(String key, int defaultValue) {
+            super(key);
+            _defaultValue = defaultValue;
+        }
+
+        public int get() {
+            return _value;
+        }
+
+        @Override
+        synchronized void update() {
+            _value = intForKeyWithDefault(key(), _defaultValue);
+        }
+    }
+
+    public static final class LongHandle extends Handle {
+        private final long _defaultValue;
+        private volatile long _value;
+
+        private LongHandle(String key, long defaultValue) {
+            super(key);
+            _defaultValue = defaultValue;
+        }
+
+        public long get() {
+            return _value;
+        }
+
+        @Override
+        synchronized void update() {
+            _value = longForKeyWithDefault(key(), _defaultValue);
+        }
+    }
+
+    public static final class DoubleHandle extends Handle {
+        private final BigDecimal _defaultValue;
+        private volatile double _value;
+
+        private DoubleHandle(String key, double defaultValue) {
+            super(key);
+            _defaultValue = BigDecimal.valueOf(defaultValue);
+        }
+
+        public double get() {
+            return _value;
+        }
+
+        @Override
+        synchronized void update() {
+            _value = bigDecimalForKeyWithDefault(key(), _defaultValue).doubleValue();
+        }
+    }
+
+    public static final class BooleanHandle extends Handle {
+        private final boolean _defaultValue;
+        private volatile boolean _value;
+
+        private BooleanHandle(String key, boolean defaultValue) {
+            super(key);
+            _defaultValue = defaultValue;
+        }
+
+        public boolean get() {
+            return _value;
+        }
+
+        @Override
+        synchronized void update() {
+            _value = booleanForKeyWithDefault(key(), _defaultValue);
+        }
+    }
+
+    public static final class StringHandle extends Handle {
+        private final String _defaultValue;
+        private volatile String _value;
+
+        private StringHandle(String key, String defaultValue) {
+            super(key);
+            _defaultValue = defaultValue;
+        }
+
+        public String get() {
+            return _value;
+        }
+
+        @Override
+        synchronized void update() {
+            _value = stringForKeyWithDefault(key(), _defaultValue);
+        }
+    }
+
 	/**
 	 * _Properties is a subclass of Properties that provides support for including other
 	 * Properties files on the fly.  If you create a property named .includeProps, the value
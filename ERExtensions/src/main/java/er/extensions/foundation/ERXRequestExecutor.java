@@ -0,0 +1,201 @@
+package er.extensions.foundation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.webobjects.foundation.NSForwardException;
+
+/**
+ * Runs work for a request on other threads, with the request's state.
+ *
+ * Tasks submitted here see the {@link ERXRequestStorage} of the thread that submitted them, so
+ * {@link er.extensions.appserver.ERXWOContext#currentContext()}, {@link er.extensions.localization.ERXLocalizer#currentLocalizer()},
+ * the current session and values set with {@link ERXThreadStorage} work in the task as they do in the request.
+ * The task gets a copy of the storage taken when it's submitted (see {@link ERXRequestStorage#copy()}), and the
+ * thread's own storage is restored when the task is done.
+ *
+ * By default every task runs on a virtual thread of it's own, so it's fine to block in tasks, and to fan out calls
+ * to backends while generating a page:
+ *
+ * <pre>
+ * List&lt;Object&gt; results = ERXRequestExecutor.invokeAll(List.of(
+ *     () -&gt; orderService.orders(customerID),
+ *     () -&gt; ratingService.ratings(customerID)));
+ * </pre>
+ *
+ * Keep in mind that the context and session aren't thread safe, tasks should only read from them.
+ *
+ * @property er.extensions.ERXRequestExecutor.virtualThreadsEnabled whether tasks run on virtual threads (default true), otherwise on (daemon) platform threads
+ */
+
+public final class ERXRequestExecutor {
+
+	private static final Logger log = LoggerFactory.getLogger(ERXRequestExecutor.class);
+
+	private static final ExecutorService _executor = new PropagatingExecutorService(Executors.newThreadPerTaskExecutor(threadFactory()));
+
+	private ERXRequestExecutor() {}
+
+	/**
+	 * @return The shared executor, running each task (with the state of the submitting thread's request) on a thread of it's own.
+	 *         Don't shut it down, use {@link #newExecutor(ExecutorService)} for an executor you own.
+	 */
+	public static ExecutorService executor() {
+		return _executor;
+	}
+
+	/**
+	 * @param executor the executor running the tasks
+	 * @return An executor that runs tasks with the state of the submitting thread's request on the given executor.
+	 *         Shutting it down shuts down the given executor.
+	 */
+	public static ExecutorService newExecutor(ExecutorService executor) {
+		return new PropagatingExecutorService(executor);
+	}
+
+	/**
+	 * Starts a thread running the given task with the state of the current thread's request. The task
+	 * shouldn't outlive the request, as it keeps the request's context and session.
+	 *
+	 * @param name the name of the thread
+	 * @param task the task
+	 * @return the started thread
+	 */
+	public static Thread startThread(String name, Runnable task) {
+		Thread thread = virtualThreadsEnabled() ? Thread.ofVirtual().name(name).unstarted(wrap(task)) : Thread.ofPlatform().name(name).daemon(true).unstarted(wrap(task));
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Runs the given tasks in parallel on the shared executor and waits for all of them to finish.
+	 *
+	 * @param tasks the tasks
+	 * @return the results of the tasks, in the order of the tasks
+	 * @throws NSForwardException wrapping the exception thrown by the first failed task (after all tasks are done)
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+		try {
+			List<Future<T>> futures = _executor.invokeAll(tasks);
+			List<T> results = new ArrayList<>(futures.size());
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		}
+		catch (ExecutionException e) {
+			throw NSForwardException._runtimeExceptionForThrowable(e.getCause());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		}
+	}
+
+	/**
+	 * @param task the task
+	 * @return A runnable that runs the given task with the state of the current thread's request
+	 */
+	public static Runnable wrap(Runnable task) {
+		ERXRequestStorage storage = capture();
+		return () -> {
+			ERXRequestStorage previous = ERXThreadStorage.attach(storage);
+			try {
+				task.run();
+			}
+			finally {
+				ERXThreadStorage.attach(previous);
+			}
+		};
+	}
+
+	/**
+	 * @param task the task
+	 * @return A callable that calls the given task with the state of the current thread's request
+	 */
+	public static <T> Callable<T> wrap(Callable<T> task) {
+		ERXRequestStorage storage = capture();
+		return () -> {
+			ERXRequestStorage previous = ERXThreadStorage.attach(storage);
+			try {
+				return task.call();
+			}
+			finally {
+				ERXThreadStorage.attach(previous);
+			}
+		};
+	}
+
+	/**
+	 * @return A copy of the current thread's storage, a new storage if the thread doesn't have one
+	 */
+	private static ERXRequestStorage capture() {
+		ERXRequestStorage storage = ERXThreadStorage.existingStorage();
+		return storage != null ? storage.copy() : new ERXRequestStorage();
+	}
+
+	private static boolean virtualThreadsEnabled() {
+		return ERXProperties.booleanForKeyWithDefault("er.extensions.ERXRequestExecutor.virtualThreadsEnabled", true);
+	}
+
+	private static ThreadFactory threadFactory() {
+		if (virtualThreadsEnabled()) {
+			return Thread.ofVirtual().name("ERXRequestExecutor-", 0).factory();
+		}
+		log.info("Running request tasks on platform threads.");
+		return Thread.ofPlatform().name("ERXRequestExecutor-", 0).daemon(true).factory();
+	}
+
+	/**
+	 * Wraps the tasks passed to execute(), which the submit() and invoke methods of AbstractExecutorService all go through
+	 */
+	private static class PropagatingExecutorService extends AbstractExecutorService {
+
+		private final ExecutorService _delegate;
+
+		private PropagatingExecutorService(ExecutorService delegate) {
+			_delegate = delegate;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			_delegate.execute(wrap(command));
+		}
+
+		@Override
+		public void shutdown() {
+			_delegate.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return _delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return _delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return _delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return _delegate.awaitTermination(timeout, unit);
+		}
+	}
+}
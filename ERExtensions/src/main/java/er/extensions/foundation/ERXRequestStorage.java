@@ -0,0 +1,237 @@
+package er.extensions.foundation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.webobjects.appserver.WOContext;
+import com.webobjects.appserver.WOSession;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.extensions.appserver.ERXWOContext;
+import er.extensions.localization.ERXLocalizer;
+import er.extensions.statistics.ERXStats;
+
+/**
+ * The state stored for a request, see {@link ERXThreadStorage}.
+ *
+ * The objects every request uses (the context, session, localizer, context dictionary and statistics) have fields of
+ * their own, everything else goes into a map. The storage belongs to the request, not to the thread: a new one is
+ * used for every request, and it can be attached to other threads doing work for the request with
+ * {@link ERXThreadStorage#attach(ERXRequestStorage)}. It's safe to access the storage from more than one thread.
+ *
+ * The string keyed methods ({@link #valueForKey(String)}, {@link #takeValueForKey(Object, String)}) map the keys
+ * used by Wonder for the dedicated fields to these fields, so existing code (and log patterns) that use them keep working.
+ * They ignore null keys, and storing null removes the value.
+ */
+
+public final class ERXRequestStorage {
+
+    /**
+     * Key for the localizer, as used by {@link ERXLocalizer}
+     */
+    public static final String LOCALIZER_KEY = "localizer";
+
+    /**
+     * Key for the session, as used by {@link er.extensions.appserver.ERXSession}
+     */
+    public static final String SESSION_KEY = "session";
+
+    private volatile WOContext _context;
+    private volatile WOSession _session;
+    private volatile ERXLocalizer _localizer;
+    private volatile NSMutableDictionary _contextDictionary;
+    private volatile ERXStats.Statistics _statistics;
+
+    /**
+     * Values for other keys, created on first use. Doesn't contain null values.
+     */
+    private volatile Map<String, Object> _values;
+
+    public WOContext context() {
+        return _context;
+    }
+
+    public void setContext(WOContext context) {
+        _context = context;
+    }
+
+    public WOSession session() {
+        return _session;
+    }
+
+    public void setSession(WOSession session) {
+        _session = session;
+    }
+
+    public ERXLocalizer localizer() {
+        return _localizer;
+    }
+
+    public void setLocalizer(ERXLocalizer localizer) {
+        _localizer = localizer;
+    }
+
+    public NSMutableDictionary contextDictionary() {
+        return _contextDictionary;
+    }
+
+    public void setContextDictionary(NSMutableDictionary contextDictionary) {
+        _contextDictionary = contextDictionary;
+    }
+
+    public ERXStats.Statistics statistics() {
+        return _statistics;
+    }
+
+    public void setStatistics(ERXStats.Statistics statistics) {
+        _statistics = statistics;
+    }
+
+    /**
+     * @param key the key
+     * @return the value stored for the given key, null if there isn't one
+     */
+    public Object valueForKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        switch (key) {
+            case ERXWOContext.CONTEXT_KEY:
+                return _context;
+            case ERXWOContext.CONTEXT_DICTIONARY_KEY:
+                return _contextDictionary;
+            case SESSION_KEY:
+                return _session;
+            case LOCALIZER_KEY:
+                return _localizer;
+            default:
+                Map<String, Object> values = _values;
+                return values != null ? values.get(key) : null;
+        }
+    }
+
+    /**
+     * Stores a value for the given key. Storing null removes the value.
+     *
+     * @param value the value
+     * @param key the key
+     */
+    public void takeValueForKey(Object value, String key) {
+        if (key == null) {
+            return;
+        }
+        switch (key) {
+            case ERXWOContext.CONTEXT_KEY:
+                _context = (WOContext) value;
+                break;
+            case ERXWOContext.CONTEXT_DICTIONARY_KEY:
+                _contextDictionary = (NSMutableDictionary) value;
+                break;
+            case SESSION_KEY:
+                _session = (WOSession) value;
+                break;
+            case LOCALIZER_KEY:
+                _localizer = (ERXLocalizer) value;
+                break;
+            default:
+                if (value != null) {
+                    values().put(key, value);
+                }
+                else {
+                    removeValueForKey(key);
+                }
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return the value that was stored for the given key, null if there wasn't one
+     */
+    public Object removeValueForKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        Object value = valueForKey(key);
+        switch (key) {
+            case ERXWOContext.CONTEXT_KEY, ERXWOContext.CONTEXT_DICTIONARY_KEY, SESSION_KEY, LOCALIZER_KEY:
+                takeValueForKey(null, key);
+                break;
+            default:
+                Map<String, Object> values = _values;
+                if (values != null) {
+                    value = values.remove(key);
+                }
+        }
+        return value;
+    }
+
+    /**
+     * @return The map holding the values for keys that don't have a field of their own. Changes to the map change the storage.
+     *         The map doesn't take null keys or values, use {@link #takeValueForKey(Object, String)} to store a value that can be null.
+     */
+    public Map<String, Object> values() {
+        Map<String, Object> values = _values;
+        if (values == null) {
+            synchronized (this) {
+                values = _values;
+                if (values == null) {
+                    values = new ConcurrentHashMap<>();
+                    _values = values;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns a copy of the storage, for work that runs on behalf of the request on other threads (see {@link ERXRequestExecutor}).
+     * Setting a value in the copy doesn't change the original, and clearing the request's values when it ends doesn't change the copy.
+     * <p>
+     * The copy shares the context, session, localizer and statistics with the original (so statistics recorded in it end up in the
+     * request's statistics), as well as the values of the other keys. The context dictionary isn't thread safe, so the copy gets
+     * a clone of it.
+     *
+     * @return a copy of the storage
+     */
+    public ERXRequestStorage copy() {
+        ERXRequestStorage copy = new ERXRequestStorage();
+        copy._context = _context;
+        copy._session = _session;
+        copy._localizer = _localizer;
+        // Copied on the request's thread, when the work is submitted
+        NSMutableDictionary contextDictionary = _contextDictionary;
+        if (contextDictionary != null) {
+            copy._contextDictionary = contextDictionary.mutableClone();
+        }
+        copy._statistics = _statistics;
+        Map<String, Object> values = _values;
+        if (values != null) {
+            copy._values = new ConcurrentHashMap<>(values);
+        }
+        return copy;
+    }
+
+    /**
+     * @return A copy of all the values in the storage (including the ones with fields of their own), by key
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        for (String key : new String[] { ERXWOContext.CONTEXT_KEY, ERXWOContext.CONTEXT_DICTIONARY_KEY, SESSION_KEY, LOCALIZER_KEY }) {
+            Object value = valueForKey(key);
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        Map<String, Object> values = _values;
+        if (values != null) {
+            map.putAll(values);
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "<ERXRequestStorage: " + toMap().keySet() + ">";
+    }
+}
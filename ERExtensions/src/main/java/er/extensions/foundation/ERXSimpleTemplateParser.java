@@ -6,7 +6,11 @@
  * included with this distribution in the LICENSE.NPL file.  */
 package er.extensions.foundation;
 
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +39,12 @@ public class ERXSimpleTemplateParser {
     /** logging support */
     private static final Logger log = LoggerFactory.getLogger(ERXSimpleTemplateParser.class);
 
+    /** maximum number of compiled templates to cache */
+    private static final int MAX_COMPILED_TEMPLATES = 1000;
+
+    /** compiled templates by template and delimiter */
+    private static final Map<TemplateKey, CompiledTemplate> _compiledTemplates = new ConcurrentHashMap<>();
+
     /** holds a reference to the shared instance of the parser */
     private static ERXSimpleTemplateParser _sharedInstance;
 
@@ -101,28 +111,56 @@ public class ERXSimpleTemplateParser {
      */
     public NSArray keysInTemplate(String template, String delimiter) {
         NSMutableSet keys = new NSMutableSet();
+        CompiledTemplate compiledTemplate = compiledTemplate(template, delimiter);
+        for (int i = 1; i < compiledTemplate._segments.length; i += 2) {
+            keys.addObject(compiledTemplate._segments[i]);
+        }
+        return keys.allObjects();
+    }    
+
+    /**
+     * Returns the compiled form of the given template, from the cache of
+     * compiled templates if the template has been compiled before.
+     * 
+     * @param template the template
+     * @param delimiter the delimiter enclosing the keys, or null for the default delimiter
+     * @return the compiled template
+     */
+    public static CompiledTemplate compiledTemplate(String template, String delimiter) {
+        if (template == null) {
+            throw new IllegalArgumentException("Attempting to parse null template!");
+        }
         if (delimiter == null) {
             delimiter = DEFAULT_DELIMITER;
         }
-        NSArray components = NSArray.componentsSeparatedByString(template, delimiter);
-        if (! isLoggingDisabled) {
-            log.debug("Components: {}", components);
-        }
-        boolean deriveElement = false; // if the template starts with delim, the first component will be a zero-length string
-        for (Enumeration e = components.objectEnumerator(); e.hasMoreElements();) {
-            String element = (String)e.nextElement();
-            if (deriveElement) {
-                if (element.length() == 0) {
-                    throw new IllegalArgumentException("\"\" is not a valid keypath");
-                }
-                keys.addObject(element);
-                deriveElement = false;
-            } else {
-                deriveElement = true;
+        TemplateKey templateKey = new TemplateKey(template, delimiter);
+        CompiledTemplate compiledTemplate = _compiledTemplates.get(templateKey);
+        if (compiledTemplate == null) {
+            compiledTemplate = new CompiledTemplate(template, delimiter);
+            if (_compiledTemplates.size() >= MAX_COMPILED_TEMPLATES) {
+                // Templates are usually a fixed set (localized strings, log patterns), so we only get here if they're generated on the fly
+                _compiledTemplates.clear();
             }
+            _compiledTemplates.put(templateKey, compiledTemplate);
         }
-        return keys.allObjects();
-    }    
+        return compiledTemplate;
+    }
+
+    /**
+     * Compiles the given template without adding it to the cache of compiled
+     * templates. Use this for templates you keep around yourself.
+     * 
+     * @param template the template
+     * @param delimiter the delimiter enclosing the keys, or null for the default delimiter
+     * @return the compiled template
+     * @throws IllegalArgumentException if the template contains an empty key path
+     */
+    public static CompiledTemplate compileTemplate(String template, String delimiter) {
+        if (template == null) {
+            throw new IllegalArgumentException("Attempting to parse null template!");
+        }
+        return new CompiledTemplate(template, delimiter == null ? DEFAULT_DELIMITER : delimiter);
+    }
 
     /**
      * Cover method for calling the four argument method
@@ -155,6 +193,8 @@ public class ERXSimpleTemplateParser {
      * {@link #ERXSimpleTemplateParser(String)}. Note that a <code>null</code> 
      * result will also output the label, so you might want to have the empty
      * string as the undefined key label.
+     * <p>
+     * The template is compiled once and cached, see {@link #compiledTemplate(String, String)}.
      * 
      * @param template to use to parse
      * @param delimiter to use to check for keys
@@ -163,86 +203,124 @@ public class ERXSimpleTemplateParser {
      * @return parsed template with keys replaced
      */
     public String parseTemplateWithObject(String template, String delimiter, Object object, Object otherObject) {
-        if (template == null)
-            throw new IllegalArgumentException("Attempting to parse null template!");
+        CompiledTemplate compiledTemplate = compiledTemplate(template, delimiter);
+        StringBuilder sb = new StringBuilder(compiledTemplate._literalLength + 16 * compiledTemplate._keyPathCount);
+        appendTemplateWithObject(sb, compiledTemplate, object, otherObject);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the given template to a StringBuilder, replacing the keys with
+     * the values found in object and otherObject. See
+     * {@link #parseTemplateWithObject(String, String, Object, Object)}.
+     * 
+     * @param sb the builder to append to
+     * @param compiledTemplate the template
+     * @param object to resolve keys off of
+     * @param otherObject object used to resolve default keys
+     */
+    public void appendTemplateWithObject(StringBuilder sb, CompiledTemplate compiledTemplate, Object object, Object otherObject) {
         if (object == null) {
             throw new IllegalArgumentException("Attempting to parse template with null object!");
         }
-        if (delimiter == null) {
-            delimiter = DEFAULT_DELIMITER;
-        }
-        if (! isLoggingDisabled) {
-            log.debug("Parsing template: {} with delimiter: {} object: {}",template, delimiter, object);
-            log.debug("Template: {}", template);
-            log.debug("Delim: {}", delimiter);
-            log.debug("otherObject: {}", otherObject);
+        boolean isDebugEnabled = !isLoggingDisabled && log.isDebugEnabled();
+        if (isDebugEnabled) {
+            log.debug("Parsing template: {} with delimiter: {} object: {} otherObject: {}", compiledTemplate._template, compiledTemplate._delimiter, object, otherObject);
         }
-        NSArray components = NSArray.componentsSeparatedByString(template, delimiter);
-        if (! isLoggingDisabled) {
-            log.debug("Components: {}", components);
+        String[] segments = compiledTemplate._segments;
+        // Segments alternate between literal text and key paths, starting with (possibly empty) literal text
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if ((i & 1) == 0) {
+                sb.append(segment);
+            }
+            else {
+                Object result = valueForKeyPath(segment, object, compiledTemplate);
+                if (result == _undefinedKeyLabel && otherObject != null) {
+                    result = valueForKeyPath(segment, otherObject, compiledTemplate);
+                }
+                if (result == _undefinedKeyLabel && isDebugEnabled) {
+                    log.debug("Could not find a value for '{}' of template, '{}' in either the object or extra data.", segment, compiledTemplate._template);
+                }
+                sb.append(result.toString());
+            }
         }
-        boolean deriveElement = false; // if the template starts with delim, the first component will be a zero-length string
-        StringBuilder sb = new StringBuilder();
-        Object objects[];
-        if (otherObject != null) {
-            objects = new Object[] {object, otherObject};
-        } else {
-            objects = new Object[] {object};
+    }
+
+    /**
+     * @return the value for the key path in the object, the undefined key label if there is none
+     */
+    private Object valueForKeyPath(String keyPath, Object object, CompiledTemplate compiledTemplate) {
+        try {
+            Object result = doGetValue(keyPath, object);
+            // For just in case the above doesn't throw an exception when the 
+            // key is not defined. (NSDictionary doesn't seem to throw the exception.)
+            return result == null ? _undefinedKeyLabel : result;
+        } catch (NSKeyValueCoding.UnknownKeyException t) {
+            return _undefinedKeyLabel;
+        } catch (Throwable t) {
+            throw new NSForwardException(t, "An exception occured while parsing element, "
+                            + keyPath + ", of template, \""
+                            + compiledTemplate._template + "\": "
+                            + t.getMessage());
         }
-        for (Enumeration e = components.objectEnumerator(); e.hasMoreElements();) {
-            String element = (String)e.nextElement();
-            if(!isLoggingDisabled) {
-                log.debug("Processing Element: {}", element);
+    }
+
+    private record TemplateKey(String template, String delimiter) {}
+
+    /**
+     * A template split into literal text and the key paths between the
+     * delimiters. Immutable, so it can be shared by all threads.
+     */
+    public static final class CompiledTemplate {
+        private final String _template;
+        private final String _delimiter;
+
+        /**
+         * Literal text at even indexes, key paths at odd indexes
+         */
+        private final String[] _segments;
+        private final int _literalLength;
+        private final int _keyPathCount;
+
+        private CompiledTemplate(String template, String delimiter) {
+            _template = template;
+            _delimiter = delimiter;
+            List<String> segments = new ArrayList<>();
+            int start = 0;
+            int index;
+            // Same splitting as NSArray.componentsSeparatedByString(), a trailing unterminated key is still treated as a key
+            while (delimiter.length() > 0 && (index = template.indexOf(delimiter, start)) != -1) {
+                segments.add(template.substring(start, index));
+                start = index + delimiter.length();
             }
-            if(deriveElement) {
-                if(!isLoggingDisabled) {
-                    log.debug("Deriving value ...");
+            segments.add(template.substring(start));
+            int literalLength = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                if ((i & 1) == 0) {
+                    literalLength += segments.get(i).length();
                 }
-                if(element.length() == 0) {
+                else if (segments.get(i).length() == 0) {
                     throw new IllegalArgumentException("\"\" is not a valid keypath in template: " + template);
                 }
-                Object result = _undefinedKeyLabel;
-                for (int i = 0; i < objects.length; i++) {
-                    Object o = objects[i];
-                    if(o != null && result == _undefinedKeyLabel) {
-                        try {
-                            if(!isLoggingDisabled) {
-                                log.debug("calling valueForKeyPath({}, {})", o, element);
-                            }
-                            result = doGetValue(element, o);
-                            // For just in case the above doesn't throw an exception when the 
-                            // key is not defined. (NSDictionary doesn't seem to throw the exception.)
-                            if(result == null) {
-                                result = _undefinedKeyLabel;
-                            }
-                        } catch (NSKeyValueCoding.UnknownKeyException t) {
-                            result = _undefinedKeyLabel;
-                        } catch (Throwable t) {
-                            throw new NSForwardException(t, "An exception occured while parsing element, "
-                                            + element + ", of template, \""
-                                            + template + "\": "
-                                            + t.getMessage());
-                        }
-                    }
-                }
-                if(result == _undefinedKeyLabel) {
-                    if (!isLoggingDisabled) {
-                        log.debug("Could not find a value for '{}' of template, '{}' in either the object or extra data.", element, template);
-                    }
-                }
-                sb.append(result.toString());
-                deriveElement = false;
-            } else {
-                if(element.length() > 0) {
-                    sb.append(element);
-                }
-                deriveElement = true;
-            }
-            if(!isLoggingDisabled) {
-                log.debug("Buffer: {}", sb);
             }
+            _segments = segments.toArray(new String[segments.size()]);
+            _literalLength = literalLength;
+            _keyPathCount = _segments.length / 2;
+        }
+
+        public String template() {
+            return _template;
+        }
+
+        public String delimiter() {
+            return _delimiter;
+        }
+
+        @Override
+        public String toString() {
+            return "<" + getClass().getSimpleName() + " template: " + _template + " segments: " + Arrays.toString(_segments) + ">";
         }
-        return sb.toString();
     }
     
 	/**
@@ -268,7 +346,8 @@ public class ERXSimpleTemplateParser {
 		catch (NSKeyValueCoding.UnknownKeyException t) {
 		}
 
-		if (result == null) {
+		// A key without a separator has already been looked up
+		if (result == null && aKeyPath.indexOf(NSKeyValueCodingAdditions.KeyPathSeparator) != -1) {
 			return NSKeyValueCodingAdditions.Utility.valueForKeyPath(anObject, aKeyPath);
 		}
 		return result;
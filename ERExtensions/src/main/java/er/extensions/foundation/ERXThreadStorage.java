@@ -7,98 +7,123 @@
  */
 package er.extensions.foundation;
 
-import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Provides a way to store objects for a particular thread. This can be especially handy for storing objects
  * like the current actor or the current form name within the scope of a thread handling a particular request.
+ * <p>
+ * The objects are kept in an {@link ERXRequestStorage} attached to the thread. ERXApplication starts with a new storage
+ * for every request, and the storage can be attached to other threads working for the same request with
+ * {@link #attach(ERXRequestStorage)}. Code that runs for every request should use the typed accessors of
+ * {@link #storage()} instead of the string keyed methods.
  */
 
 public class ERXThreadStorage {
 
     /**
-     * Holds the single instance of the thread map.
+     * Holds the storage attached to each thread.
      */
-    private static ThreadLocal<Map> threadMap = new ThreadLocal<>();
+    private static final ThreadLocal<ERXRequestStorage> threadStorage = new ThreadLocal<>();
 
     /**
-     * Holds the default initialization value of the hash map.
-     */
-    private static int DefaultHashMapSize = 10;
-
-    /**
-     * Sets a value for a particular key for a particular thread.
+     * Sets a value for a particular key for a particular thread. Setting null removes the value.
      */
     public static void takeValueForKey(Object object, String key) {
-    	Map map = storageMap(true);
-    	map.put(key, object);
+    	storage().takeValueForKey(object, key);
     }
 
     /**
      * Removes the value in the map for a given key.
-     * 
+     *
      * @param key key to be removed from the map.
      * @return the object corresponding to the key that was removed, null if nothing is found.
      */
     public static Object removeValueForKey(String key) {
-        Map map = storageMap(false);
-        return map != null ? map.remove(key) : null;
+        ERXRequestStorage storage = threadStorage.get();
+        return storage != null ? storage.removeValueForKey(key) : null;
     }
 
     /**
      * Gets the object associated with the key in the storage map off of the current thread.
-     * 
+     *
      * @param key key to be used to retrieve value from map.
      * @return the value stored in the map for the given key.
      */
     public static Object valueForKey(String key) {
-		Map map = storageMap(false);
-		Object result = null;
-		if (map != null) {
-			result = map.get(key);
-		}
-		return result;
+        ERXRequestStorage storage = threadStorage.get();
+        return storage != null ? storage.valueForKey(key) : null;
 	}
-    
+
     /**
-     * Gets the storage map from the current thread.
-     * At the moment this Map is syncronized for thread
-     * safety. This might not be necessary in which case
-     * users of this method would need to make sure that
-     * they take the appropriate precautions.
-     * 
+     * Gets the storage map from the current thread. The map holds the values
+     * for the keys that don't have a field of their own in {@link ERXRequestStorage}
+     * (use {@link ERXRequestStorage#toMap()} for a copy of everything).
+     *
      * @return Map object associated with this particular thread.
+     * @deprecated The map doesn't contain the context, session, localizer and context dictionary
+     *             anymore, and doesn't take null keys or values. Use {@link #valueForKey(String)} and
+     *             {@link #takeValueForKey(Object, String)}, or {@link ERXRequestStorage#toMap()} for all values.
      */
+    @Deprecated
     public static Map map() {
-        return storageMap(true);
+        return storage().values();
     }
 
     /**
-     * Removes all of the keys from the current Map.
+     * Gets the storage attached to the current thread, attaching a new one if there isn't any.
+     *
+     * @return the storage of the current thread
      */
-    public static void reset() {
-        Map map = storageMap(false);
-
-        if (map != null) {
-        	map.clear();
+    public static ERXRequestStorage storage() {
+        ERXRequestStorage storage = threadStorage.get();
+        if (storage == null) {
+            storage = new ERXRequestStorage();
+            threadStorage.set(storage);
         }
+        return storage;
+    }
+
+    /**
+     * @return the storage attached to the current thread, or null if there isn't one
+     */
+    public static ERXRequestStorage existingStorage() {
+        return threadStorage.get();
     }
 
     /**
-     * Gets the {@link Map} from the thread map. Has the option to
-     * to create the map if it hasn't been created yet for this thread.
-     * Only used internally.
-     * 
-     * @param create should create the map storage if it isn't found.
-     * @return the map for the current thread or null
+     * Attaches the given storage to the current thread, so work done for a request on another thread
+     * sees (and changes) the request's values. Restore the previous storage when done:
+     *
+     * <pre>
+     * ERXRequestStorage previous = ERXThreadStorage.attach(storage);
+     * try {
+     *     ...
+     * }
+     * finally {
+     *     ERXThreadStorage.attach(previous);
+     * }
+     * </pre>
+     *
+     * @param storage the storage to attach, null to detach the current one
+     * @return the storage that was attached to the thread before, or null
      */
-    private static Map storageMap(boolean create) {
-        Map map = threadMap.get();
-        if (map == null && create) {
-            map = new HashMap(DefaultHashMapSize);
-            threadMap.set(map);
+    public static ERXRequestStorage attach(ERXRequestStorage storage) {
+        ERXRequestStorage previous = threadStorage.get();
+        if (storage != null) {
+            threadStorage.set(storage);
         }
-        return map;
+        else {
+            threadStorage.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * Detaches the storage from the current thread, so the next request starts with a new one.
+     * Threads the storage has been attached to keep seeing it's values.
+     */
+    public static void reset() {
+        threadStorage.remove();
     }
-}
\ No newline at end of file
+}
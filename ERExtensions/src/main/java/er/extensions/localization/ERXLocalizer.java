@@ -10,13 +10,16 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
-import java.text.DateFormatSymbols;
 import java.text.Format;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,16 +37,18 @@ import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSNotification;
 import com.webobjects.foundation.NSNotificationCenter;
-import com.webobjects.foundation.NSNumberFormatter;
 import com.webobjects.foundation.NSPropertyListSerialization;
 import com.webobjects.foundation.NSTimestampFormatter;
 
+import er.extensions.appserver.ERXRequest;
 import er.extensions.appserver.ERXWOContext;
-import er.extensions.formatters.ERXNumberFormatter;
+import er.extensions.formatters.ERXFormatters;
 import er.extensions.formatters.ERXTimestampFormatter;
 import er.extensions.foundation.ERXFileNotificationCenter;
 import er.extensions.foundation.ERXProperties;
+import er.extensions.foundation.ERXRequestStorage;
 import er.extensions.foundation.ERXSimpleTemplateParser;
+import er.extensions.foundation.ERXSimpleTemplateParser.CompiledTemplate;
 import er.extensions.foundation.ERXThreadStorage;
 import er.extensions.foundation.ERXUtilities;
 
@@ -129,9 +134,15 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 	private static NSArray<String> fileNamesToWatch;
 	private static NSArray<String> frameworkSearchPath;
 	private static NSArray<String> availableLanguages;
+	private static volatile Set<String> availableLanguageSet;
+
+	/**
+	 * Incremented whenever the localizer chosen for a list of languages may change, see {@link #localizersVersion()}
+	 */
+	private static final AtomicLong localizersVersion = new AtomicLong();
 	private static String defaultLanguage;
 
-	private static NSMutableDictionary<String, ERXLocalizer> localizers = new NSMutableDictionary<>();
+	private static volatile Map<String, ERXLocalizer> localizers = new ConcurrentHashMap<>();
 
 	public static class Observer {
 		public void fileDidChange(NSNotification n) {
@@ -153,6 +164,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 
 	public static void setIsLocalizationEnabled(boolean value) {
 		isLocalizationEnabled = value;
+		localizersVersion.incrementAndGet();
 	}
 
 	/**
@@ -163,7 +175,8 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 	 * @return the current localizer that has been pushed into thread storage.
 	 */
 	public static ERXLocalizer currentLocalizer() {
-		ERXLocalizer current = (ERXLocalizer) ERXThreadStorage.valueForKey("localizer");
+		ERXRequestStorage storage = ERXThreadStorage.existingStorage();
+		ERXLocalizer current = storage != null ? storage.localizer() : null;
 
 		if (current == null) {
 			if (!isInitialized) {
@@ -172,7 +185,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 			WOContext context = ERXWOContext.currentContext();
 			// set the current localizer
 			if (context != null && context.request() != null && context.request().browserLanguages() != null) {
-				current = ERXLocalizer.localizerForLanguages(context.request().browserLanguages());
+				current = ERXLocalizer.localizerForRequest(context.request());
 				ERXLocalizer.setCurrentLocalizer(current);
 			}
 			else {
@@ -189,7 +202,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 	 * @param currentLocalizer to set in thread storage for the current thread.
 	 */
 	public static void setCurrentLocalizer(ERXLocalizer currentLocalizer) {
-		ERXThreadStorage.takeValueForKey(currentLocalizer, "localizer");
+		ERXThreadStorage.storage().setLocalizer(currentLocalizer);
 	}
 
 	/**
@@ -203,29 +216,50 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 		return localizerForLanguage("English");
 	}
 
+	/**
+	 * @return The localizer for the browser languages of the request. For an ERXRequest, this is resolved once per distinct accept-language header.
+	 */
 	public static ERXLocalizer localizerForRequest(WORequest request) {
+		if (request instanceof ERXRequest erxRequest) {
+			return erxRequest.localizer();
+		}
 		return localizerForLanguages(request.browserLanguages());
 	}
 
+	/**
+	 * @return A number that changes whenever the localizers are reset or replaced, so a localizer chosen for a list of
+	 *         languages (and cached) has to be chosen again
+	 */
+	public static long localizersVersion() {
+		return localizersVersion.get();
+	}
+
 	/**
 	 * Resets the localizer cache. If WOCaching is enabled then after being reinitialize all of the localizers will be reloaded.
 	 */
 	private static void resetCache() {
 		initialize();
+		localizersVersion.incrementAndGet();
 		if (WOApplication.application().isCachingEnabled()) {
-			Enumeration<ERXLocalizer> e = localizers.objectEnumerator();
-			while (e.hasMoreElements()) {
-				e.nextElement().load();
+			// The default language goes first, since the other localizers merge it's strings when they load
+			ERXLocalizer defaultLocalizer = localizers.get(defaultLanguage());
+			if (defaultLocalizer != null) {
+				defaultLocalizer.load();
+			}
+			for (ERXLocalizer localizer : new HashSet<>(localizers.values())) {
+				if (localizer != defaultLocalizer) {
+					localizer.load();
+				}
 			}
 		}
 		else {
-			localizers = new NSMutableDictionary<>();
+			localizers = new ConcurrentHashMap<>();
 		}
 	}
 
 	private void addToCreatedKeys(Object value, String key) {
 		if (key != null && value != null) {
-			createdKeys.takeValueForKey(value, key);
+			_createdKeys.put(key, value);
 			if (key.indexOf(" ") > 0) {
 				log.info("Value added: {}->{} in {}", key, value, NSPropertyListSerialization.stringFromPropertyList(ERXWOContext.componentPath(ERXWOContext.currentContext())));
 			}
@@ -251,13 +285,13 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 
 		while (e.hasMoreElements()) {
 			String language = e.nextElement();
-			l = localizers.objectForKey(language);
+			l = localizers.get(language);
 
 			if (l != null) {
 				return l;
 			}
 
-			if (availableLanguages().containsObject(language)) {
+			if (isAvailableLanguage(language)) {
 				return localizerForLanguage(language);
 			}
 
@@ -266,7 +300,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 
 			if (index > 0) {
 				language = language.substring(0, index);
-				if (availableLanguages().containsObject(language)) {
+				if (isAvailableLanguage(language)) {
 					return localizerForLanguage(language);
 				}
 			}
@@ -291,25 +325,28 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 			language = defaultLanguage();
 		}
 		ERXLocalizer l = null;
-		l = localizers.objectForKey(language);
+		l = localizers.get(language);
 		if (l == null) {
-			if (availableLanguages().containsObject(language)) {
+			if (isAvailableLanguage(language)) {
 				if (_languagesWithoutPluralForm.containsObject(language))
 					l = createLocalizerForLanguage(language, false);
 				else
 					l = createLocalizerForLanguage(language, true);
 			}
 			else {
-				l = localizers.objectForKey(defaultLanguage());
+				l = localizers.get(defaultLanguage());
 				if (l == null) {
 					if (_languagesWithoutPluralForm.containsObject(defaultLanguage()))
 						l = createLocalizerForLanguage(defaultLanguage(), false);
 					else
 						l = createLocalizerForLanguage(defaultLanguage(), true);
-					localizers.setObjectForKey(l, defaultLanguage());
+					ERXLocalizer existing = localizers.putIfAbsent(defaultLanguage(), l);
+					l = existing != null ? existing : l;
 				}
 			}
-			localizers.setObjectForKey(l, language);
+			// Another thread may have created the localizer in the meantime, we use the one that made it into the map
+			ERXLocalizer existing = localizers.putIfAbsent(language, l);
+			l = existing != null ? existing : l;
 		}
 		return l;
 	}
@@ -360,9 +397,22 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 
 	public static void setAvailableLanguages(NSArray<String> value) {
 		availableLanguages = value;
+		availableLanguageSet = null;
 		resetCache();
 	}
 
+	/**
+	 * @return true if the language is one of the {@link #availableLanguages()}
+	 */
+	private static boolean isAvailableLanguage(String language) {
+		Set<String> languages = availableLanguageSet;
+		if (languages == null) {
+			languages = new HashSet<>(availableLanguages());
+			availableLanguageSet = languages;
+		}
+		return languages.contains(language);
+	}
+
 	public static NSArray<String> frameworkSearchPath() {
 		if (frameworkSearchPath == null) {
 		  frameworkSearchPath = ERXProperties.arrayForKey("er.extensions.ERXLocalizer.frameworkSearchPath");
@@ -443,21 +493,49 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 	}
 
 	public static void setLocalizerForLanguage(ERXLocalizer l, String language) {
-		localizers.setObjectForKey(l, language);
+		localizers.put(language, l);
+		localizersVersion.incrementAndGet();
 	}
 
-	protected NSMutableDictionary<String, Object> cache;
-	private NSMutableDictionary<String, Object> createdKeys;
-	private String NOT_FOUND = "**NOT_FOUND**";
-	protected Map<String, Format> _dateFormatters = new Hashtable<>();
-	protected Map<String, Format> _numberFormatters = new Hashtable<>();
+	/**
+	 * Marks key paths that can't be resolved in the key path values of a table
+	 */
+	private static final String NOT_FOUND = "**NOT_FOUND**";
+
+	/**
+	 * Maximum number of key path values of a table before they get cleared
+	 */
+	private static final int MAX_KEY_PATH_VALUES = 10000;
+
+	/**
+	 * The strings, replaced as a whole when the localizer is loaded (or a value is set), so lookups don't lock
+	 */
+	private volatile Table _table = Table.EMPTY;
+
+	/**
+	 * The strings as loaded, plus the ones set since.
+	 * 
+	 * @deprecated Lookups don't read this, changes to it only show after {@link #addEntriesToCache(NSDictionary)}.
+	 *             Use {@link #cache()} and {@link #setCacheValueForKey(Object, String)}.
+	 */
+	@Deprecated
+	protected NSMutableDictionary<String, Object> cache = new NSMutableDictionary<>();
+
+	private final Map<String, Object> _createdKeys = new ConcurrentHashMap<>();
+	/**
+	 * Formatters set with setLocalizedDateFormatForKey(), shared by all threads
+	 */
+	protected Map<String, Format> _dateFormatters = new ConcurrentHashMap<>();
+
+	/**
+	 * Formatters set with setLocalizedNumberFormatForKey(), shared by all threads
+	 */
+	protected Map<String, Format> _numberFormatters = new ConcurrentHashMap<>();
 	protected String language;
 	protected Locale locale;
 	
 	public ERXLocalizer(String aLanguage) {
 		language = aLanguage;
-		cache = new NSMutableDictionary<>();
-		createdKeys = new NSMutableDictionary<>();
 
 		// We first check to see if we have a locale register for the language name
 		String shortLanguage = ERXProperties.stringForKey("er.extensions.ERXLocalizer." + aLanguage + ".locale");
@@ -488,13 +566,21 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 		load();
 	}
 
+	/**
+	 * @return The strings of the localizer, including the ones merged from the default language
+	 */
 	public NSDictionary<String, Object> cache() {
-		return cache;
+		return _table._values;
 	}
 
-	public void load() {
-		cache.removeAllObjects();
-		createdKeys.removeAllObjects();
+	/**
+	 * (Re)loads the strings of the localizer. If <code>er.extensions.ERXLocalizer.fallbackToDefaultLanguage</code> is set,
+	 * the strings of the default language are merged in for keys the language doesn't have. The new strings replace the
+	 * old ones when loading is done, lookups done while loading see the old strings. Values set while loading are set
+	 * once loading is done.
+	 */
+	public synchronized void load() {
+		NSMutableDictionary<String, Object> values = new NSMutableDictionary<>();
 
 		if (log.isDebugEnabled())
 		  log.debug("Loading templates for language: {} for files: {} with search path: {}", language, fileNamesToWatch().componentsJoinedByString(" / "), frameworkSearchPath().componentsJoinedByString(" / "));
@@ -531,7 +617,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 
 						
 						
-						addEntriesToCache(dict);
+						addEntries(values, dict);
 						if (!WOApplication.application().isCachingEnabled()) {
 							synchronized (monitoredFiles) {
 								if (!monitoredFiles.contains(path)) {
@@ -551,6 +637,20 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 				}
 			}
 		}
+
+		if (isLocalizationEnabled && fallbackToDefaultLanguage() && !defaultLanguage().equals(language)) {
+			NSDictionary<String, Object> defaultValues = defaultLocalizer().cache();
+			for (Enumeration<String> keys = defaultValues.keyEnumerator(); keys.hasMoreElements();) {
+				String key = keys.nextElement();
+				if (!KEY_LOCALIZER_EXCEPTIONS.equals(key) && values.objectForKey(key) == null) {
+					values.setObjectForKey(defaultValues.objectForKey(key), key);
+				}
+			}
+		}
+
+		cache = values;
+		_table = new Table(values);
+		_createdKeys.clear();
 	}
 
 	/**
@@ -578,10 +678,21 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 		return plist;
 	}
 
-	protected void addEntriesToCache(NSDictionary<String, Object> dict) {
+	/**
+	 * Adds strings, merging their <code>localizerExceptions</code> with the ones there are.
+	 * 
+	 * @deprecated Use {@link #setCacheValueForKey(Object, String)}
+	 */
+	@Deprecated
+	protected synchronized void addEntriesToCache(NSDictionary<String, Object> dict) {
+		addEntries(cache, dict);
+		_table = new Table(cache);
+	}
+
+	private static void addEntries(NSMutableDictionary<String, Object> values, NSDictionary<String, Object> dict) {
 		try {
 			// try-catch to prevent potential CCE when the value for the key localizerExcepions is not an NSDictionary
-			NSDictionary<String, Object> currentLEs = (NSDictionary<String, Object>) cache.valueForKey(KEY_LOCALIZER_EXCEPTIONS);
+			NSDictionary<String, Object> currentLEs = (NSDictionary<String, Object>) values.valueForKey(KEY_LOCALIZER_EXCEPTIONS);
 			NSDictionary<String, Object> newLEs = (NSDictionary<String, Object>) dict.valueForKey(KEY_LOCALIZER_EXCEPTIONS);
 			if (currentLEs != null && newLEs != null) {
 				log.debug("Merging localizerExceptions {} with {}", currentLEs, newLEs);
@@ -597,7 +708,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 			log.error("Error while adding enties to cache.", e);
 		}
 
-		cache.addEntriesFromDictionary(dict);
+		values.addEntriesFromDictionary(dict);
 	}
 
 	/**
@@ -610,9 +721,15 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 		return valueForKeyPath(key);
 	}
 
+	/**
+	 * Sets a string. This copies the strings, it's meant for the odd value set at runtime.
+	 */
 	protected void setCacheValueForKey(Object value, String key) {
 		if (key != null && value != null) {
-			cache.setObjectForKey(value, key);
+			synchronized (this) {
+				cache.setObjectForKey(value, key);
+				_table = _table.with(key, value);
+			}
 		}
 	}
 
@@ -621,26 +738,35 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 		if (result == null) {
 			int indexOfDot = key.indexOf(".");
 			if (indexOfDot > 0) {
-				String firstComponent = key.substring(0, indexOfDot);
-				String otherComponents = key.substring(indexOfDot + 1, key.length());
-				result = cache.objectForKey(firstComponent);
-				log.debug("Trying {} . {}", firstComponent, otherComponents);
-				if (result != null) {
-					try {
-						result = NSKeyValueCodingAdditions.Utility.valueForKeyPath(result, otherComponents);
-						if (result != null) {
-							setCacheValueForKey(result, key);
+				// The key path values belong to the table, so they're replaced together with the strings
+				Table table = _table;
+				result = table._keyPathValues.get(key);
+				if (result == null) {
+					result = NOT_FOUND;
+					String firstComponent = key.substring(0, indexOfDot);
+					String otherComponents = key.substring(indexOfDot + 1, key.length());
+					Object value = table._values.objectForKey(firstComponent);
+					log.debug("Trying {} . {}", firstComponent, otherComponents);
+					if (value != null) {
+						try {
+							value = NSKeyValueCodingAdditions.Utility.valueForKeyPath(value, otherComponents);
+							if (value != null) {
+								result = value;
+							}
 						}
-						else {
-							setCacheValueForKey(NOT_FOUND, key);
+						catch (NSKeyValueCoding.UnknownKeyException e) {
+							if (log.isDebugEnabled()) {
+								log.debug(e.getMessage());
+							}
 						}
 					}
-					catch (NSKeyValueCoding.UnknownKeyException e) {
-						if (log.isDebugEnabled()) {
-							log.debug(e.getMessage());
-						}
-						setCacheValueForKey(NOT_FOUND, key);
+					if (table._keyPathValues.size() >= MAX_KEY_PATH_VALUES) {
+						table._keyPathValues.clear();
 					}
+					table._keyPathValues.put(key, result);
+				}
+				if (result == NOT_FOUND) {
+					result = null;
 				}
 			}
 		}
@@ -662,7 +788,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 	}
 
 	public NSDictionary<String, Object> createdKeys() {
-		return createdKeys;
+		return new NSDictionary<>(_createdKeys);
 	}
 
 	public void dumpCreatedKeys() {
@@ -676,10 +802,12 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 			return null;
 		}
 		Object result = localizedValueForKey(key);
-		if (result == null || NOT_FOUND.equals(result)) {
-			createdKeysLog.debug("Default key inserted: '{}'/{}", key, language);
-			setCacheValueForKey(key, key);
-			addToCreatedKeys(key, key);
+		if (result == null) {
+			// Not added to the strings, so missing keys don't copy the strings (or grow them)
+			if (!_createdKeys.containsKey(key)) {
+				createdKeysLog.debug("Default key inserted: '{}'/{}", key, language);
+				addToCreatedKeys(key, key);
+			}
 			result = key;
 		}
 		return result;
@@ -714,20 +842,14 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 			}
 		}
     }
-		Object result = cache.objectForKey(key);
-		if (key == null || result == NOT_FOUND)
+		if (key == null)
 			return null;
-		if (result != null)
-			return result;
-
-		log.debug("Key not found: '{}'/{}", key, language);
-		if (fallbackToDefaultLanguage() && !defaultLanguage().equals(language)) {
-			Object valueInDefaultLanguage = defaultLocalizer().localizedValueForKey(key);
-			setCacheValueForKey(valueInDefaultLanguage == null ? NOT_FOUND : valueInDefaultLanguage, key);
-			return valueInDefaultLanguage;
+		// Strings of the default language have been merged in when loading, so there's nothing to fall back to
+		Object result = _table._values.objectForKey(key);
+		if (result == null) {
+			log.debug("Key not found: '{}'/{}", key, language);
 		}
-		setCacheValueForKey(NOT_FOUND, key);
-		return null;
+		return result;
 	}
 
 	public String localizedStringForKeyWithDefault(String key) {
@@ -744,6 +866,12 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 
 	public String localizedTemplateStringForKeyWithObjectOtherObject(String key, Object o1, Object o2) {
 		if (key != null) {
+			CompiledTemplate compiledTemplate = _table._templates.get(key);
+			if (compiledTemplate != null) {
+				StringBuilder sb = new StringBuilder(compiledTemplate.template().length() + 32);
+				ERXSimpleTemplateParser.sharedInstance().appendTemplateWithObject(sb, compiledTemplate, o1, o2);
+				return sb.toString();
+			}
 			String template = localizedStringForKeyWithDefault(key);
 			if (template != null)
 				return ERXSimpleTemplateParser.sharedInstance().parseTemplateWithObject(template, null, o1, o2);
@@ -757,7 +885,8 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 	}
 
 	/**
-	 * Returns a localized date formatter for the given key.
+	 * Returns a localized date formatter for the given key. Unless one has been set for the key, the
+	 * formatter belongs to the current thread (see {@link ERXFormatters}).
 	 * 
 	 * @return the formatter object
 	 */
@@ -766,17 +895,15 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 		formatString = localizedStringForKeyWithDefault(formatString);
 		Format result = _dateFormatters.get(formatString);
 		if (result == null) {
-			Locale current = locale();
-			NSTimestampFormatter formatter = new NSTimestampFormatter(formatString, new DateFormatSymbols(current));
-			result = formatter;
-			_dateFormatters.put(formatString, result);
+			result = ERXFormatters.timestampFormatter(formatString, locale());
 		}
 		return result;
 	}
 
 	/**
 	 * Returns a localized number formatter for the given key. Also, can localize units to, just define in your
-	 * Localizable.strings a suitable key, with the appropriate pattern.
+	 * Localizable.strings a suitable key, with the appropriate pattern. Unless one has been set for the key, the
+	 * formatter belongs to the current thread (see {@link ERXFormatters}).
 	 * 
 	 * @return the formatter object
 	 */
@@ -785,13 +912,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 		formatString = localizedStringForKeyWithDefault(formatString);
 		Format result = _numberFormatters.get(formatString);
 		if (result == null) {
-			Locale current = locale();
-			NSNumberFormatter formatter = new ERXNumberFormatter();
-			formatter.setLocale(current);
-			formatter.setLocalizesPattern(true);
-			formatter.setPattern(formatString);
-			result = formatter;
-			_numberFormatters.put(formatString, result);
+			result = ERXFormatters.numberFormatter(formatString, locale());
 		}
 		return result;
 	}
@@ -825,4 +946,70 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 		}
 		return _fallbackToDefaultLanguage.booleanValue();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * The strings of a localizer, with the templates among them compiled. Immutable, apart from the values of key paths
+	 * into the strings that get cached in it.
+	 */
+	private static final class Table {
+		private static final Table EMPTY = new Table(new NSDictionary<>(), Map.of());
+
+		private final NSDictionary<String, Object> _values;
+		private final Map<String, CompiledTemplate> _templates;
+
+		/**
+		 * Values of key paths into the strings ("unittest.key.path"), NOT_FOUND for key paths that don't resolve
+		 */
+		private final Map<String, Object> _keyPathValues = new ConcurrentHashMap<>();
+
+		private Table(NSDictionary<String, Object> values, Map<String, CompiledTemplate> templates) {
+			_values = values;
+			_templates = templates;
+		}
+
+		private Table(NSMutableDictionary<String, Object> values) {
+			Map<String, CompiledTemplate> templates = new HashMap<>();
+			for (Enumeration<String> keys = values.keyEnumerator(); keys.hasMoreElements();) {
+				String key = keys.nextElement();
+				CompiledTemplate template = compiledTemplate(values.objectForKey(key));
+				if (template != null) {
+					templates.put(key, template);
+				}
+			}
+			_values = values.immutableClone();
+			_templates = Map.copyOf(templates);
+		}
+
+		/**
+		 * @return a copy of the table with the given value set
+		 */
+		private Table with(String key, Object value) {
+			NSMutableDictionary<String, Object> values = _values.mutableClone();
+			values.setObjectForKey(value, key);
+			Map<String, CompiledTemplate> templates = new HashMap<>(_templates);
+			CompiledTemplate template = compiledTemplate(value);
+			if (template != null) {
+				templates.put(key, template);
+			}
+			else {
+				templates.remove(key);
+			}
+			return new Table(values.immutableClone(), Map.copyOf(templates));
+		}
+
+		/**
+		 * @return the compiled template if the value is a string containing keys, null otherwise
+		 */
+		private static CompiledTemplate compiledTemplate(Object value) {
+			if (value instanceof String string && string.contains(ERXSimpleTemplateParser.DEFAULT_DELIMITER)) {
+				try {
+					return ERXSimpleTemplateParser.compileTemplate(string, null);
+				}
+				catch (IllegalArgumentException e) {
+					// Not a valid template, it gets parsed (and fails) when it's used as one
+				}
+			}
+			return null;
+		}
+	}
+}
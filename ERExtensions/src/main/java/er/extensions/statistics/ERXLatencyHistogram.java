@@ -0,0 +1,195 @@
+package er.extensions.statistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non-negative values (typically durations), with HDR-style log-linear buckets.
+ *
+ * Values below 32 are counted exactly. Larger values are counted in buckets of 16 per power of two, so any
+ * recorded value is reported with a relative error of at most 1/16 (about 6%), regardless of it's magnitude.
+ * The histogram has a fixed size (960 counters) and recording a value doesn't lock or allocate.
+ *
+ * Percentiles are computed from the live counters, so a percentile read while values are being recorded is
+ * approximate, which is fine for monitoring.
+ */
+
+public class ERXLatencyHistogram {
+
+	/**
+	 * Number of buckets per power of two (for values of 32 and above)
+	 */
+	private static final int SUB_BUCKET_COUNT = 16;
+
+	/**
+	 * Values below this are counted in a bucket of their own
+	 */
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKET_COUNT;
+
+	private static final int BUCKET_COUNT = bucketIndex( Long.MAX_VALUE ) + 1;
+
+	private final AtomicLongArray _counts = new AtomicLongArray( BUCKET_COUNT );
+	private final LongAdder _count = new LongAdder();
+	private final LongAdder _sum = new LongAdder();
+	private final LongAccumulator _max = new LongAccumulator( Math::max, 0 );
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 */
+	public void record( final long value ) {
+		final long v = Math.max( 0, value );
+		_counts.incrementAndGet( bucketIndex( v ) );
+		_count.increment();
+		_sum.add( v );
+		_max.accumulate( v );
+	}
+
+	/**
+	 * @return The number of recorded values
+	 */
+	public long count() {
+		return _count.sum();
+	}
+
+	/**
+	 * @return The sum of the recorded values
+	 */
+	public long sum() {
+		return _sum.sum();
+	}
+
+	/**
+	 * @return The largest recorded value, 0 if none have been recorded
+	 */
+	public long max() {
+		return _max.get();
+	}
+
+	/**
+	 * @return The mean of the recorded values, 0 if none have been recorded
+	 */
+	public double mean() {
+		final long count = count();
+		return count == 0 ? 0 : (double) sum() / count;
+	}
+
+	/**
+	 * @param percentile The percentile, between 0 and 100 (for example 99.9)
+	 * @return The (upper bound of the bucket containing the) value at the given percentile, 0 if no values have been recorded
+	 */
+	public long valueAtPercentile( final double percentile ) {
+		final long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+
+		for( int i = 0; i < BUCKET_COUNT; i++ ) {
+			counts[i] = _counts.get( i );
+			total += counts[i];
+		}
+
+		if( total == 0 ) {
+			return 0;
+		}
+
+		final long rank = Math.max( 1, (long) Math.ceil( Math.min( 100, Math.max( 0, percentile ) ) / 100 * total ) );
+		long seen = 0;
+
+		for( int i = 0; i < BUCKET_COUNT; i++ ) {
+			seen += counts[i];
+
+			if( seen >= rank ) {
+				return Math.min( highestValueInBucket( i ), max() );
+			}
+		}
+
+		return max();
+	}
+
+	/**
+	 * @return The number of recorded values less than or equal to the given value (counting the values in the bucket containing it as below it)
+	 */
+	public long countAtOrBelow( final long value ) {
+		if( value < 0 ) {
+			return 0;
+		}
+
+		final int lastIndex = bucketIndex( value );
+		long count = 0;
+
+		for( int i = 0; i <= lastIndex; i++ ) {
+			count += _counts.get( i );
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return The largest value counted in the same bucket as the given value. {@link #countAtOrBelow(long)} is exact for such values.
+	 */
+	public static long bucketUpperBound( final long value ) {
+		return highestValueInBucket( bucketIndex( Math.max( 0, value ) ) );
+	}
+
+	/**
+	 * Adds the values recorded in another histogram to this one
+	 */
+	public void add( final ERXLatencyHistogram other ) {
+		for( int i = 0; i < BUCKET_COUNT; i++ ) {
+			final long count = other._counts.get( i );
+
+			if( count > 0 ) {
+				_counts.addAndGet( i, count );
+			}
+		}
+
+		_count.add( other.count() );
+		_sum.add( other.sum() );
+		_max.accumulate( other.max() );
+	}
+
+	/**
+	 * Resets the histogram. Values recorded concurrently with the reset may or may not be counted.
+	 */
+	public void reset() {
+		for( int i = 0; i < BUCKET_COUNT; i++ ) {
+			_counts.set( i, 0 );
+		}
+
+		_count.reset();
+		_sum.reset();
+		_max.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count() + ", mean=" + Math.round( mean() ) + ", p50=" + valueAtPercentile( 50 ) + ", p90=" + valueAtPercentile( 90 ) + ", p99=" + valueAtPercentile( 99 ) + ", max=" + max();
+	}
+
+	/**
+	 * @return The index of the bucket counting the given (non-negative) value
+	 */
+	private static int bucketIndex( final long value ) {
+		if( value < LINEAR_LIMIT ) {
+			return (int) value;
+		}
+
+		// The value's top five bits (16..31) select the sub-bucket, the shift selects the power of two
+		final int shift = 63 - Long.numberOfLeadingZeros( value ) - 4;
+		return LINEAR_LIMIT + (shift - 1) * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+	}
+
+	/**
+	 * @return The largest value counted in the bucket at the given index
+	 */
+	private static long highestValueInBucket( final int index ) {
+		if( index < LINEAR_LIMIT ) {
+			return index;
+		}
+
+		final int shift = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT + 1;
+		final long top = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+		final long highest = ((top + 1) << shift) - 1;
+		// The last bucket's upper bound overflows
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+}
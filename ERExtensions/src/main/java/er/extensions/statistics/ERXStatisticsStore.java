@@ -1,18 +1,25 @@
 package er.extensions.statistics;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.webobjects.appserver.WOApplication;
 import com.webobjects.appserver.WOComponent;
 import com.webobjects.appserver.WOContext;
 import com.webobjects.appserver.WORequest;
@@ -34,7 +41,9 @@ import er.extensions.statistics.store.IERXStatisticsStoreListener;
  * Enhances the normal stats store with a bunch of useful things which get
  * displayed in the ERXStatisticsPage.
  * <ul>
- * <li>will dump warning and error messages when a request takes too long, complete with stack traces of all threads.</li>
+ * <li>will dump warning and error messages when a request takes too long, complete with stack traces of the slow threads
+ * (and of the threads holding the locks they are waiting for).</li>
+ * <li>keeps latency histograms by request handler and by page (see {@link #requestHandlerLatencies()} and {@link #pageLatencies()}).</li>
  * <li>logs fatal messages that occurred before a request finished processing.</li>
  * <li>fixes an incompatibility with 5.4.</li>
  * <li>fixes wrong computation of average session memory</li>
@@ -48,6 +57,7 @@ import er.extensions.statistics.store.IERXStatisticsStoreListener;
  * @property er.extensions.ERXStatisticsStore.milliSeconds.warn defaults to 2000 ms
  * @property er.extensions.ERXStatisticsStore.milliSeconds.error defaults to 10 seconds
  * @property er.extensions.ERXStatisticsStore.milliSeconds.fatal defaults to 5 minutes
+ * @property er.extensions.ERXStatisticsStore.maximumTrackedPages the maximum number of page and action names to keep latencies for, defaults to 1000
  *
  * @author ak
  * @author kieran (Oct 14, 2009) - minor changes to capture thread name in middle of the request (useful for {@link er.extensions.appserver.ERXSession#threadName()}}
@@ -87,26 +97,54 @@ public class ERXStatisticsStore extends WOStatisticsStore {
     	_listener = listener;
     }
 
+    /**
+     * @return Latency histograms of the requests handled so far (in microseconds), by request handler key
+     */
+    public Map<String, ERXLatencyHistogram> requestHandlerLatencies() {
+        return Collections.unmodifiableMap(timer()._requestHandlerLatencies);
+    }
+
+    /**
+     * @return Latency histograms of the requests handled so far (in microseconds), by page name (component action
+     * requests) or action name (direct action and web service requests)
+     */
+    public Map<String, ERXLatencyHistogram> pageLatencies() {
+        return Collections.unmodifiableMap(timer()._pageLatencies);
+    }
+
+    /**
+     * @return The number of requests currently being handled
+     */
+    public int inFlightRequestCount() {
+        return timer()._requests.size();
+    }
+
     /**
 	 * Thread that checks each second for running requests and makes a snapshot
-	 * after a certain amount of time has expired.
+	 * of the slow ones after a certain amount of time has expired.
 	 * 
 	 * @author ak
 	 */
 	class StopWatchTimer implements Runnable {
 
+		/**
+		 * Key used for the latencies of pages beyond the maximum number of tracked pages
+		 */
+		private static final String OTHER_PAGES_KEY = "(other)";
+
 		long _maximumRequestErrorTime;
 		long _maximumRequestWarnTime;
 		long _maximumRequestFatalTime;
-		long _lastLog;
+		int _maximumTrackedPages;
+		volatile long _lastLog;
 
-		Map<Thread, Long> _requestThreads = new WeakHashMap<>();
-		Map<Thread, Map<Thread, StackTraceElement[]>> _warnTraces = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, StackTraceElement[]>>());
-		Map<Thread, Map<Thread, StackTraceElement[]>> _errorTraces = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, StackTraceElement[]>>());
-		Map<Thread, Map<Thread, StackTraceElement[]>> _fatalTraces = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, StackTraceElement[]>>());
-		Map<Thread, Map<Thread, String>> _warnTracesNames = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, String>>());
-		Map<Thread, Map<Thread, String>> _errorTracesNames = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, String>>());
-		Map<Thread, Map<Thread, String>> _fatalTracesNames = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, String>>());
+		/**
+		 * The requests currently being handled, by the thread handling them
+		 */
+		final Map<Thread, InFlightRequest> _requests = new ConcurrentHashMap<>();
+		final Map<String, ERXLatencyHistogram> _requestHandlerLatencies = new ConcurrentHashMap<>();
+		final Map<String, ERXLatencyHistogram> _pageLatencies = new ConcurrentHashMap<>();
+		private final ThreadMXBean _threadMXBean = ManagementFactory.getThreadMXBean();
 
 		public StopWatchTimer() {
 			Thread timerThread = new Thread(this);
@@ -115,48 +153,29 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 			_maximumRequestWarnTime = ERXProperties.longForKeyWithDefault("er.extensions.ERXStatisticsStore.milliSeconds.warn", 2000L);
 			_maximumRequestErrorTime = ERXProperties.longForKeyWithDefault("er.extensions.ERXStatisticsStore.milliSeconds.error", 10000L);
 			_maximumRequestFatalTime = ERXProperties.longForKeyWithDefault("er.extensions.ERXStatisticsStore.milliSeconds.fatal", 5 * 60 * 1000L);
+			_maximumTrackedPages = ERXProperties.intForKeyWithDefault("er.extensions.ERXStatisticsStore.maximumTrackedPages", 1000);
 		}
 
-		private long time() {
-			synchronized (_requestThreads) {
-				Long time = _requestThreads.get(Thread.currentThread());
-				return time == null ? 0L : time.longValue();
-			}
-		}
-
-		protected void endTimer(WOContext aContext, String aString) {
+		protected void endTimer(WOContext aContext, String requestHandlerKey, String aString) {
 			try {
+				InFlightRequest request = _requests.remove(Thread.currentThread());
 				long requestTime = 0;
-				if (hasTimerStarted()) {
-					requestTime = System.currentTimeMillis() - time();
-				}
-				
-				Thread currentThread = Thread.currentThread();
-				
-				// get the most severe trace for the current thread
-				Map<Thread, StackTraceElement[]> traces = _fatalTraces.get(currentThread);
-				Map<Thread, String> names = _fatalTracesNames.get(currentThread);
-				if (traces == null) {
-					traces = _errorTraces.get(currentThread);
-					names = _errorTracesNames.get(currentThread);
-				}
-				if (traces == null) {
-					traces = _warnTraces.get(currentThread);
-					names = _warnTracesNames.get(currentThread);
+				Map<Long, ThreadTrace> traces = null;
+				if (request != null) {
+					long requestTimeInMicros = (System.nanoTime() - request._startTime) / 1000L;
+					requestTime = requestTimeInMicros / 1000L;
+					recordLatency(requestHandlerKey, aString, requestTimeInMicros);
+
+					// get the most severe trace for the current thread
+					traces = request._fatalTraces;
+					if (traces == null) {
+						traces = request._errorTraces;
+					}
+					if (traces == null) {
+						traces = request._warnTraces;
+					}
 				}
 
-				// remove the current thread for _all_ traces
-				_fatalTraces.remove(currentThread);
-				_fatalTracesNames.remove(currentThread);
-				_errorTraces.remove(currentThread);
-				_errorTracesNames.remove(currentThread);
-				_warnTraces.remove(currentThread);
-				_warnTracesNames.remove(currentThread);
-
-				synchronized (_requestThreads) {
-					_requestThreads.remove(Thread.currentThread());
-				}
-				
 				// Don't get the traces string if we have already logged all
 				// of the stacks within the last 10s. All of this logging
 				// could just makes it worse for an application that is 
@@ -164,7 +183,7 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 				String trace = " - (skipped stack traces)";
 				long currentTime = System.currentTimeMillis();
 				if (currentTime - _lastLog > 10000) {
-					trace = stringFromTracesAndNames(traces, names);
+					trace = stringFromTraces(traces, Thread.currentThread());
 					_lastLog = currentTime;
 				}
 			
@@ -186,47 +205,44 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 			}
 		}
 
-		private String stringFromTracesAndNames(Map<Thread, StackTraceElement[]> traces, Map<Thread, String> names) {
+		private void recordLatency(String requestHandlerKey, String pageName, long requestTimeInMicros) {
+			if (requestHandlerKey != null) {
+				_requestHandlerLatencies.computeIfAbsent(requestHandlerKey, key -> new ERXLatencyHistogram()).record(requestTimeInMicros);
+			}
+			if (pageName != null) {
+				ERXLatencyHistogram histogram = _pageLatencies.get(pageName);
+				if (histogram == null) {
+					// Action names come from the request URL, so we don't track an unbounded number of them
+					String key = _pageLatencies.size() < _maximumTrackedPages ? pageName : OTHER_PAGES_KEY;
+					histogram = _pageLatencies.computeIfAbsent(key, k -> new ERXLatencyHistogram());
+				}
+				histogram.record(requestTimeInMicros);
+			}
+		}
+
+		private String stringFromTraces(Map<Long, ThreadTrace> traces, Thread requestThread) {
 			String trace = null;
 			if (traces != null) {
-				String capturedThreadName = null;
-				if (names == null) {
-					capturedThreadName = Thread.currentThread().getName();
-				} else {
-					capturedThreadName = names.get(Thread.currentThread());
-				}
+				ThreadTrace requestThreadTrace = traces.get(Long.valueOf(requestThread.threadId()));
+				String capturedThreadName = requestThreadTrace != null ? requestThreadTrace.name() : requestThread.getName();
 				
 				StringBuilder sb = new StringBuilder();
 				sb.append("\nRequest Thread Name: ").append(capturedThreadName).append("\n\n");
-				for (Iterator iterator = traces.keySet().iterator(); iterator.hasNext();) {
-					Thread t = (Thread) iterator.next();
-					StackTraceElement stack[] = traces.get(t);
-					String name = t.getName() != null ? t.getName() : "No name";
-					String groupName = t.getThreadGroup() != null ? t.getThreadGroup().getName() : "No group";
-
-					if (stack != null && stack.length > 2 && !name.equals("main") && !name.equals("ERXStopWatchTimer") && !groupName.equals("system")) {
-						StackTraceElement func = stack[0];
-						if (func != null && func.getClassName() != null && !func.getClassName().equals("java.net.PlainSocketImpl")) {
-							if (names != null) {
-								String customThreadName = names.get(t);
-								if (customThreadName != null) {
-									sb.append(customThreadName).append(":\n");
-								}
-							}
-							sb.append(t).append(":\n");
-							for (int i = 0; i < stack.length; i++) {
-								StackTraceElement stackTraceElement = stack[i];
-								sb.append("\tat ").append(stackTraceElement).append('\n');
-							}
+				for (ThreadTrace threadTrace : traces.values()) {
+					sb.append(threadTrace.name()).append(" (").append(threadTrace.state());
+					if (threadTrace.lockName() != null) {
+						sb.append(" on ").append(threadTrace.lockName());
+						if (threadTrace.lockOwnerName() != null) {
+							sb.append(" owned by ").append(threadTrace.lockOwnerName());
 						}
 					}
+					sb.append("):\n");
+					for (StackTraceElement stackTraceElement : threadTrace.stackTrace()) {
+						sb.append("\tat ").append(stackTraceElement).append('\n');
+					}
 				}
 				sb.insert(0, '\n');
 				trace = sb.toString();
-				// trace =
-				// trace.replaceAll("at\\s+(com.webobjects|java|er|sun)\\..*?\\n",
-				// "...\n");
-				// trace = trace.replaceAll("(\t\\.\\.\\.\n+)+", "\t...\n");
 			}
 			else {
 				trace = "";
@@ -234,16 +250,9 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 			return trace;
 		}
 
-		private boolean hasTimerStarted() {
-			return time() != 0L;
-		}
-
 		protected void startTimer() {
-			if (!hasTimerStarted()) {
-				synchronized (_requestThreads) {
-					_requestThreads.put(Thread.currentThread(), Long.valueOf(System.currentTimeMillis()));
-				}
-			}
+			Thread currentThread = Thread.currentThread();
+			_requests.putIfAbsent(currentThread, new InFlightRequest(currentThread, System.nanoTime()));
 		}
 
 		public String descriptionForContext(WOContext aContext, String string) {
@@ -274,7 +283,12 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 			Thread.currentThread().setName("ERXStopWatchTimer");
 			boolean done = false;
 			while (!done) {
-				checkThreads();
+				try {
+					checkThreads();
+				}
+				catch (RuntimeException e) {
+					log.error("Failed to check running requests.", e);
+				}
 				try {
 					Thread.sleep(1000L);
 				}
@@ -285,62 +299,117 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 		}
 		
 		private void checkThreads() {
-			Map<Thread, Long> requestThreads = new HashMap<>();
-			synchronized (_requestThreads) {
-	            requestThreads.putAll(_requestThreads);
+			if (_requests.isEmpty()) {
+				return;
 			}
-			if (!requestThreads.isEmpty()) {
-                int deadlocksCount = 0;
-				Map<Thread, StackTraceElement[]> traces = null; 
-				for (Thread thread : requestThreads.keySet()) {
-					Long time = requestThreads.get(thread);
-					if (time != null) {
-						time = System.currentTimeMillis() - time;
-						if (time > _maximumRequestWarnTime/2 && _warnTraces.get(thread) == null) {
-							if(traces == null) {
-								traces = Thread.getAllStackTraces();
-							}
-							Map<Thread, String> names = getCurrentThreadNames(traces.keySet());
-							_warnTraces.put(thread, traces);
-							_warnTracesNames.put(thread, names);
-						}
-						if (time > _maximumRequestErrorTime/2 && _errorTraces.get(thread) == null) {
-							if(traces == null) {
-								traces = Thread.getAllStackTraces();
-							}
-							Map<Thread, String> names = getCurrentThreadNames(traces.keySet());
-							_errorTraces.put(thread, traces);
-							_errorTracesNames.put(thread, names);
-						}
-						if (time > _maximumRequestFatalTime && _fatalTraces.get(thread) == null) {
-							if(traces == null) {
-								traces = Thread.getAllStackTraces();
-							}
-							Map<Thread, String> names = getCurrentThreadNames(traces.keySet());
-							_fatalTraces.put(thread, traces);
-							_fatalTracesNames.put(thread, names);
-							StringBuilder sb = new StringBuilder();
-							sb.append("Request is taking too long, possible deadlock: ");
-							sb.append(time);
-							sb.append(" ms ");
-							sb.append(stringFromTracesAndNames(traces, names));
-							log.error(sb.toString());
-                            deadlocksCount++;
-						}
-					}
+			long now = System.nanoTime();
+			List<InFlightRequest> warnRequests = new ArrayList<>();
+			List<InFlightRequest> errorRequests = new ArrayList<>();
+			List<InFlightRequest> fatalRequests = new ArrayList<>();
+			for (InFlightRequest request : _requests.values()) {
+				if (!request._thread.isAlive()) {
+					// The request never ended (the thread died)
+					_requests.remove(request._thread, request);
+					continue;
+				}
+				long time = (now - request._startTime) / 1000000L;
+				if (time > _maximumRequestWarnTime/2 && request._warnTraces == null) {
+					warnRequests.add(request);
+				}
+				if (time > _maximumRequestErrorTime/2 && request._errorTraces == null) {
+					errorRequests.add(request);
+				}
+				if (time > _maximumRequestFatalTime && request._fatalTraces == null) {
+					fatalRequests.add(request);
+				}
+			}
+
+			int deadlocksCount = 0;
+			if (!warnRequests.isEmpty() || !errorRequests.isEmpty() || !fatalRequests.isEmpty()) {
+				// One snapshot of the slow threads (and the threads holding the locks they wait for), instead of all threads
+				Set<Thread> slowThreads = new LinkedHashSet<>();
+				Stream.of(warnRequests, errorRequests, fatalRequests).flatMap(List::stream).forEach(request -> slowThreads.add(request._thread));
+				Map<Long, ThreadTrace> traces = threadTraces(slowThreads);
+				for (InFlightRequest request : warnRequests) {
+					request._warnTraces = traces;
+				}
+				for (InFlightRequest request : errorRequests) {
+					request._errorTraces = traces;
+				}
+				for (InFlightRequest request : fatalRequests) {
+					request._fatalTraces = traces;
+					StringBuilder sb = new StringBuilder();
+					sb.append("Request is taking too long, possible deadlock: ");
+					sb.append((now - request._startTime) / 1000000L);
+					sb.append(" ms ");
+					sb.append(stringFromTraces(traces, request._thread));
+					log.error(sb.toString());
+					deadlocksCount++;
 				}
-                _listener.deadlock(deadlocksCount);
 			}
+			_listener.deadlock(deadlocksCount);
 		}
 
-		private Map<Thread, String> getCurrentThreadNames(Set<Thread> keySet) {
-			Map<Thread, String> names = new HashMap<>();
-			for (Thread thread : keySet) {
-				names.put(thread, thread.getName());
+		/**
+		 * @return Stack traces of the given threads and of the threads owning the locks they're blocked on, by thread id
+		 */
+		private Map<Long, ThreadTrace> threadTraces(Set<Thread> threads) {
+			Map<Long, ThreadTrace> traces = new LinkedHashMap<>();
+			long[] ids = threads.stream().filter(thread -> !thread.isVirtual()).mapToLong(Thread::threadId).toArray();
+			Set<Long> lockOwnerIds = new LinkedHashSet<>();
+			for (ThreadInfo info : _threadMXBean.getThreadInfo(ids, Integer.MAX_VALUE)) {
+				if (info != null) {
+					traces.put(Long.valueOf(info.getThreadId()), ThreadTrace.fromThreadInfo(info));
+					if (info.getLockOwnerId() != -1) {
+						lockOwnerIds.add(Long.valueOf(info.getLockOwnerId()));
+					}
+				}
+			}
+			lockOwnerIds.removeAll(traces.keySet());
+			if (!lockOwnerIds.isEmpty()) {
+				for (ThreadInfo info : _threadMXBean.getThreadInfo(lockOwnerIds.stream().mapToLong(Long::longValue).toArray(), Integer.MAX_VALUE)) {
+					if (info != null) {
+						traces.put(Long.valueOf(info.getThreadId()), ThreadTrace.fromThreadInfo(info));
+					}
+				}
+			}
+			for (Thread thread : threads) {
+				// Virtual threads (and threads that ended in the meantime) aren't reported by the ThreadMXBean
+				traces.computeIfAbsent(Long.valueOf(thread.threadId()), id -> ThreadTrace.fromThread(thread));
 			}
-			return names;
+			return traces;
+		}
+	}
+
+	/**
+	 * A request being handled
+	 */
+	static class InFlightRequest {
+		final Thread _thread;
+		final long _startTime;
+		volatile Map<Long, ThreadTrace> _warnTraces;
+		volatile Map<Long, ThreadTrace> _errorTraces;
+		volatile Map<Long, ThreadTrace> _fatalTraces;
+
+		InFlightRequest(Thread thread, long startTime) {
+			_thread = thread;
+			_startTime = startTime;
+		}
+	}
+
+	/**
+	 * The stack trace of a thread at the time it was taken, with the thread's name at that time
+	 * (which is useful for {@link er.extensions.appserver.ERXSession#threadName()}).
+	 */
+	record ThreadTrace(String name, String state, String lockName, String lockOwnerName, StackTraceElement[] stackTrace) {
+
+		static ThreadTrace fromThreadInfo(ThreadInfo info) {
+			return new ThreadTrace(info.getThreadName(), String.valueOf(info.getThreadState()), info.getLockName(), info.getLockOwnerName(), info.getStackTrace());
 		}
 
+		static ThreadTrace fromThread(Thread thread) {
+			return new ThreadTrace(thread.getName(), String.valueOf(thread.getState()), null, null, thread.getStackTrace());
+		}
 	}
 
 	@Override
@@ -382,8 +451,8 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 		timer().startTimer();
 	}
 
-	private void endTimer(String aString) {
-		timer().endTimer(null, aString);
+	private void endTimer(String requestHandlerKey, String aString) {
+		timer().endTimer(null, requestHandlerKey, aString);
 	}
 
 	@Override
@@ -394,7 +463,7 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 
 	@Override
 	public void applicationDidHandleComponentActionRequestWithPageNamed(String aString) {
-		endTimer(aString);
+		endTimer(WOApplication.application().componentRequestHandlerKey(), aString);
 		super.applicationDidHandleComponentActionRequestWithPageNamed(aString);
 	}
 
@@ -406,7 +475,7 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 
 	@Override
 	public void applicationDidHandleDirectActionRequestWithActionNamed(String aString) {
-		endTimer(aString);
+		endTimer(WOApplication.application().directActionRequestHandlerKey(), aString);
 		super.applicationDidHandleDirectActionRequestWithActionNamed(aString);
 	}
 
@@ -418,7 +487,7 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 
 	@Override
 	public void applicationDidHandleWebServiceRequestWithActionNamed(String aString) {
-		endTimer(aString);
+		endTimer(WOApplication.application().webServiceRequestHandlerKey(), aString);
 		super.applicationDidHandleWebServiceRequestWithActionNamed(aString);
 	}
 
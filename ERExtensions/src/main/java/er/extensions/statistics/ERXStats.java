@@ -3,9 +3,17 @@ package er.extensions.statistics;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,14 +27,22 @@ import com.webobjects.foundation.NSSet;
 
 import er.extensions.foundation.ERXExceptionUtilities;
 import er.extensions.foundation.ERXProperties;
+import er.extensions.foundation.ERXRequestStorage;
 import er.extensions.foundation.ERXThreadStorage;
 
 /**
  * <p>
  * ERXStats provides a simple interface for logging statistics information like
  * WOEvent, but also tracked on a per-thread basis (so you can dump stats just
- * for a particular thread). YOU PROBABLY DO NOT WANT TO TURN THIS ON IN
- * PRODUCTION.
+ * for a particular thread).
+ * </p>
+ * 
+ * <p>
+ * Recording a duration doesn't lock, so stats can stay on in production. Besides
+ * the per-thread statistics (which are kept for the most recent threads only), every
+ * duration is added to a running total for it's key, available from {@link #totalLogEntries()}.
+ * Set er.extensions.erxStats.sampleRate to only track the per-thread statistics of some of the
+ * requests (the totals are recorded for all threads that record statistics).
  * </p>
  * 
  * <p>
@@ -55,20 +71,22 @@ import er.extensions.foundation.ERXThreadStorage;
  * @property er.extensions.erxStats.enabled if true, stats will be initialized on each for each request
  * @property er.extensions.erxStats.traceCollectingEnabled defaults to false
  * @property er.extensions.erxStats.max the maximum historical stats to collect (defaults to 1000) 
+ * @property er.extensions.erxStats.sampleRate the fraction of requests to track statistics for, between 0 and 1 (defaults to 1)
  */
 public class ERXStats {
 
-	private static final String STATS_INITIALIZED_KEY = "er.extensions.erxStats.initialized";
-	private static final String STATS_START_TIME_KEY = "er.extensions.erxStats.startTime";
-	private static final String STATS_LAST_TIME_KEY = "er.extensions.erxStats.lastTime";
 	private static final String STATS_MAX_KEY = "er.extensions.erxStats.max";
-	private static final String STATS_KEY = "er.extensions.erxStats.statistics";
+	private static final String STATS_SAMPLE_RATE_KEY = "er.extensions.erxStats.sampleRate";
 
     public static final String STATS_ENABLED_KEY = "er.extensions.erxStats.enabled";
     public static final String STATS_TRACE_COLLECTING_ENABLED_KEY = "er.extensions.erxStats.traceCollectingEnabled";
 
     public static final Logger log = LoggerFactory.getLogger(ERXStats.class);
 
+	private static final ERXProperties.BooleanHandle _traceCollectingEnabled = ERXProperties.booleanHandle(ERXStats.STATS_TRACE_COLLECTING_ENABLED_KEY, false);
+
+	private static final ERXProperties.DoubleHandle _sampleRate = ERXProperties.doubleHandle(ERXStats.STATS_SAMPLE_RATE_KEY, 1.0);
+
 	public interface Group {
 		public String Default = " ";
 		public String SQL = "SQL";
@@ -78,7 +96,44 @@ public class ERXStats {
 		public String Batching = "Batching";
 	}
 	
-	private static NSMutableArray<NSMutableDictionary<String, LogEntry>> _allStatistics = new NSMutableArray<>();
+	/**
+	 * Maximum number of traces collected for a log entry
+	 */
+	private static final int MAX_TRACES = 100;
+
+	/**
+	 * Running totals for all keys, since launch (or the last reset)
+	 */
+	private static final Map<String, LogEntry> _totals = new ConcurrentHashMap<>();
+
+	/**
+	 * Statistics of the most recent threads
+	 */
+	private static class RecentStatistics {
+		private static final AtomicReferenceArray<NSMutableDictionary<String, LogEntry>> _statistics = new AtomicReferenceArray<>(Math.max(1, ERXProperties.intForKeyWithDefault(ERXStats.STATS_MAX_KEY, 1000)));
+		private static final AtomicLong _nextIndex = new AtomicLong();
+
+		private static void add(NSMutableDictionary<String, LogEntry> statistics) {
+			_statistics.set((int) (_nextIndex.getAndIncrement() % _statistics.length()), statistics);
+		}
+
+		private static List<NSMutableDictionary<String, LogEntry>> all() {
+			List<NSMutableDictionary<String, LogEntry>> all = new ArrayList<>(_statistics.length());
+			for (int i = 0; i < _statistics.length(); i++) {
+				NSMutableDictionary<String, LogEntry> statistics = _statistics.get(i);
+				if (statistics != null) {
+					all.add(statistics);
+				}
+			}
+			return all;
+		}
+
+		private static void clear() {
+			for (int i = 0; i < _statistics.length(); i++) {
+				_statistics.set(i, null);
+			}
+		}
+	}
 
 	/**
 	 * Initializes the logging system if the property er.extensions.erxStats.enabled is true.
@@ -86,7 +141,12 @@ public class ERXStats {
 	 */
 	public static void initStatisticsIfNecessary() {
 		if (areStatisticsEnabled()) {
-			ERXStats.initStatistics();
+			if (isSampled()) {
+				ERXStats.initStatistics();
+			}
+			else {
+				ERXThreadStorage.storage().setStatistics(Statistics.UNSAMPLED);
+			}
 		}
 	}
 
@@ -94,8 +154,13 @@ public class ERXStats {
 		return ERXProperties.booleanForKey(ERXStats.STATS_ENABLED_KEY);
 	}
 
+	private static boolean isSampled() {
+		double sampleRate = _sampleRate.get();
+		return sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+	}
+
 	public static boolean traceCollectingEnabled() {
-		return ERXProperties.booleanForKeyWithDefault(ERXStats.STATS_TRACE_COLLECTING_ENABLED_KEY, false);
+		return _traceCollectingEnabled.get();
 	}
 
 	/**
@@ -103,37 +168,31 @@ public class ERXStats {
 	 * turn on thread logging just for a particular area of your application.
 	 */
 	public static void initStatistics() {
-		ERXThreadStorage.takeValueForKey(Boolean.TRUE, ERXStats.STATS_INITIALIZED_KEY);
-		ERXThreadStorage.takeValueForKey(Long.valueOf(System.currentTimeMillis()), ERXStats.STATS_START_TIME_KEY);
-		ERXThreadStorage.removeValueForKey(ERXStats.STATS_LAST_TIME_KEY);
-		ERXThreadStorage.removeValueForKey(ERXStats.STATS_KEY);
+		ERXThreadStorage.storage().setStatistics(new Statistics(true));
 	}
 
 	/**
 	 * @return true if the current thread is tracking statistics
 	 */
 	public static boolean isTrackingStatistics() {
-		Boolean statsInitialized = (Boolean) ERXThreadStorage.valueForKey(ERXStats.STATS_INITIALIZED_KEY);
-		return statsInitialized != null && statsInitialized.booleanValue();
+		ERXRequestStorage storage = ERXThreadStorage.existingStorage();
+		Statistics statistics = storage != null ? storage.statistics() : null;
+		return statistics != null && statistics._initialized;
 	}
 
 	/**
-	 * @return the statistics for the current thread
+	 * @return the statistics for the current thread, null if the request wasn't sampled
 	 */
-	@SuppressWarnings("unchecked")
 	public static NSMutableDictionary<String, LogEntry> statistics() {
-		NSMutableDictionary<String, LogEntry> statistics = (NSMutableDictionary<String, LogEntry>) ERXThreadStorage.valueForKey(ERXStats.STATS_KEY);
+		return currentStatistics().entries();
+	}
+
+	private static Statistics currentStatistics() {
+		ERXRequestStorage storage = ERXThreadStorage.storage();
+		Statistics statistics = storage.statistics();
 		if (statistics == null) {
-			statistics = new NSMutableDictionary<>();
-			ERXThreadStorage.takeValueForKey(statistics, ERXStats.STATS_KEY);
-			synchronized (_allStatistics) {
-				ERXStats._allStatistics.addObject(statistics);
-
-				int maxStatistics = ERXProperties.intForKeyWithDefault(ERXStats.STATS_MAX_KEY, 1000);
-				if (ERXStats._allStatistics.count() > maxStatistics) {
-					ERXStats._allStatistics.removeObjectAtIndex(0);
-				}
-			}
+			statistics = new Statistics(false);
+			storage.setStatistics(statistics);
 		}
 		return statistics;
 	}
@@ -149,10 +208,11 @@ public class ERXStats {
 		final NSMutableDictionary<String, LogEntry> statistics = ERXStats.statistics();
 
 		if (statistics != null) {
+			// Tasks working for the request (see ERXRequestExecutor) add entries too, and other threads read the aggregate stats
 			synchronized (statistics) {
 				entry = statistics.objectForKey(key);
 				if (entry == null) {
-					entry = new LogEntry(key);
+					entry = new LogEntry(key, _totals.computeIfAbsent(key, LogEntry::new));
 					statistics.setObjectForKey(entry, key);
 				}
 			}
@@ -179,8 +239,10 @@ public class ERXStats {
 	 */
 	public static NSSet<String> aggregateKeys() {
 		NSMutableSet<String> keys = new NSMutableSet<>();
-		for (NSMutableDictionary<String, LogEntry> statistics : ERXStats._allStatistics) {
-			keys.addObjectsFromArray(statistics.allKeys());
+		for (NSMutableDictionary<String, LogEntry> statistics : RecentStatistics.all()) {
+			synchronized (statistics) {
+				keys.addObjectsFromArray(statistics.allKeys());
+			}
 		}
 		return keys;
 	}
@@ -193,14 +255,16 @@ public class ERXStats {
 	 * @return the aggregate log entry for the given key
 	 */
 	private static LogEntry aggregateLogEntryForKey(String key) {
-		LogEntry aggregateLogEntry = new LogEntry(key);
+		// The entries of the requests don't keep histograms, the percentiles are those of the totals
+		LogEntry aggregateLogEntry = new LogEntry(key, key != null ? _totals.get(key) : null);
 		if (key != null) {
-			synchronized (ERXStats._allStatistics) {
-				for (NSMutableDictionary<String, LogEntry> statistics : ERXStats._allStatistics) {
-					LogEntry logEntry = statistics.objectForKey(key);
-					if (logEntry != null) {
-						aggregateLogEntry._add(logEntry);
-					}
+			for (NSMutableDictionary<String, LogEntry> statistics : RecentStatistics.all()) {
+				LogEntry logEntry;
+				synchronized (statistics) {
+					logEntry = statistics.objectForKey(key);
+				}
+				if (logEntry != null) {
+					aggregateLogEntry._add(logEntry);
 				}
 			}
 		}
@@ -224,6 +288,20 @@ public class ERXStats {
 		return aggregateLogEntries;
 	}
 
+	/**
+	 * Returns the running totals for all keys, for all threads since launch (or
+	 * the last reset), not just the recent ones.
+	 * 
+	 * @return the log entries with the totals for each key
+	 */
+	public static NSArray<LogEntry> totalLogEntries() {
+		NSMutableArray<LogEntry> totalLogEntries = new NSMutableArray<>(_totals.size());
+		for (LogEntry logEntry : _totals.values()) {
+			totalLogEntries.addObject(logEntry);
+		}
+		return totalLogEntries;
+	}
+
 	/**
 	 * Mark the start of a process, call markEnd when it is over to log the duration.
 	 * 
@@ -294,11 +372,16 @@ public class ERXStats {
 	}
 
 	/**
-	 * Resets statistics for this thread AND the global queue.
+	 * Resets statistics for this thread AND the global queue and totals.
 	 */
-	public static synchronized void reset() {
-		_allStatistics.removeAllObjects();
-		ERXThreadStorage.removeValueForKey(ERXStats.STATS_KEY);
+	public static void reset() {
+		RecentStatistics.clear();
+		_totals.clear();
+		ERXRequestStorage storage = ERXThreadStorage.existingStorage();
+		Statistics statistics = storage != null ? storage.statistics() : null;
+		if (statistics != null) {
+			statistics._entries = null;
+		}
 	}
 
 	/**
@@ -318,126 +401,220 @@ public class ERXStats {
 	 */
 	public static void logStatisticsForOperation(Logger statsLog, String operation) {
 		if(statsLog.isDebugEnabled()) {
-			NSMutableDictionary statistics = ERXStats.statistics();
+			Statistics current = ERXStats.currentStatistics();
+			NSMutableDictionary statistics = current.entries();
 			if (statistics != null) {
 				synchronized (statistics) {
 //					NSArray values = ERXArrayUtilities.sortedArraySortedWithKey(statistics.allValues(), operation);
 					NSArray values = statistics.allValues(); // FIXME: This used to be sorted. Does it matter? Do I care?
 					if (values.count() > 0) {
-						Long startTime = (Long) ERXThreadStorage.valueForKey(ERXStats.STATS_START_TIME_KEY);
-						Long lastTime = (Long) ERXThreadStorage.valueForKey(ERXStats.STATS_LAST_TIME_KEY);
-						long currentTime = System.currentTimeMillis();
+						Long startTime = current._startTime;
+						Long lastTime = current._lastTime;
+						long currentTime = System.nanoTime();
 						String result = NSPropertyListSerialization.stringFromPropertyList(values);
 						// result = result.replaceAll("\\n\\t", "\n\t\t");
 						// result = result.replaceAll("\\n", "\n\t\t");
 						statsLog.debug(
-								(startTime != null ? "Time since init " + (currentTime - startTime.longValue()) + " ms": "" ) + 
-								(lastTime != null ? ", last log " + (currentTime - lastTime.longValue()) + " ms": "" ) + 
+								(startTime != null ? "Time since init " + TimeUnit.NANOSECONDS.toMillis(currentTime - startTime.longValue()) + " ms": "" ) + 
+								(lastTime != null ? ", last log " + TimeUnit.NANOSECONDS.toMillis(currentTime - lastTime.longValue()) + " ms": "" ) + 
 								", total cnt/sum: " + statistics.allValues().valueForKeyPath("@sum.count") + "/" + statistics.allValues().valueForKeyPath("@sum.sum") +
 								" (cnt/sum : min/max/avg|trace cnt -> key) = " + result);
-						ERXThreadStorage.takeValueForKey(Long.valueOf(currentTime), ERXStats.STATS_LAST_TIME_KEY);
+						current._lastTime = Long.valueOf(currentTime);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The statistics of a request, kept in it's {@link ERXRequestStorage}
+	 */
+	public static final class Statistics {
+		/**
+		 * The statistics of a request that wasn't sampled, which doesn't keep any entries
+		 */
+		private static final Statistics UNSAMPLED = new Statistics(false);
+
+		private final boolean _initialized;
+		private final Long _startTime;
+		private volatile Long _lastTime;
+		private volatile NSMutableDictionary<String, LogEntry> _entries;
+
+		private Statistics(boolean initialized) {
+			_initialized = initialized;
+			_startTime = initialized ? Long.valueOf(System.nanoTime()) : null;
+		}
+
+		private NSMutableDictionary<String, LogEntry> entries() {
+			if (this == UNSAMPLED) {
+				return null;
+			}
+			NSMutableDictionary<String, LogEntry> entries = _entries;
+			if (entries == null) {
+				synchronized (this) {
+					entries = _entries;
+					if (entries == null) {
+						entries = new NSMutableDictionary<>();
+						_entries = entries;
+						RecentStatistics.add(entries);
 					}
 				}
 			}
+			return entries;
 		}
 	}
 
 	/**
-	 * A statistics logging entry.
+	 * A statistics logging entry. Durations are kept in nanoseconds (and
+	 * reported in milliseconds), recording one doesn't lock. Only entries
+	 * without a total keep a latency histogram, the percentiles of the other
+	 * entries are those of their total.
 	 */
 	public static class LogEntry {
-		private float _avg;
-		private long _count;
-		private long _min;
-		private long _max;
-		private long _sum;
-        private long _latestDuration;
-		private String _key;
-		private Set<String> _traces = Collections.synchronizedSet(new HashSet<String>());
-		private NSArray<String> _traceArray = null;
-		private long _lastMark;
+		private final LongAdder _count = new LongAdder();
+		private final LongAdder _sum = new LongAdder();
+		private final LongAccumulator _min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+		private final LongAccumulator _max = new LongAccumulator(Math::max, 0L);
+		private final ERXLatencyHistogram _histogram;
+		private volatile long _latestDuration;
+		private final String _key;
+		private final Set<String> _traces = ConcurrentHashMap.newKeySet();
+		private volatile NSArray<String> _traceArray = null;
+		private final LogEntry _total;
+		private final AtomicLong _lastMark = new AtomicLong();
 
 		public LogEntry(String key) {
+			this(key, null);
+		}
+
+		/**
+		 * @param key the key of the entry
+		 * @param total an entry that every duration added to this one is also added to, or null
+		 */
+		public LogEntry(String key, LogEntry total) {
 			_key = key;
-			_avg = -1.0f;
-			_min = Long.MAX_VALUE;
-            _latestDuration = -1;
+			_total = total;
+			_histogram = total == null ? new ERXLatencyHistogram() : null;
+			_latestDuration = -1;
 		}
 
-		public synchronized void _add(LogEntry logEntry) {
-			long originalCount = _count;
-			if (logEntry._min < _min) {
-				_min = logEntry._min;
-			}
-			if (logEntry._max > _max) {
-				_max = logEntry._max;
+		public void _add(LogEntry logEntry) {
+			_min.accumulate(logEntry._min.get());
+			_max.accumulate(logEntry._max.get());
+			_sum.add(logEntry._sum.sum());
+			_count.add(logEntry._count.sum());
+			if (_histogram != null && logEntry._histogram != null) {
+				_histogram.add(logEntry._histogram);
 			}
-			_sum += logEntry._sum;
-			_count += logEntry._count;
-			_avg = -1.0f;
 			_traces.addAll(logEntry._traces);
 			_traceArray = null;
 		}
 
-		public synchronized long count() {
-			return _count;
+		public long count() {
+			return _count.sum();
 		}
 
-		public synchronized long min() {
-			return _min;
+		public long min() {
+			long min = _min.get();
+			return min == Long.MAX_VALUE ? min : TimeUnit.NANOSECONDS.toMillis(min);
 		}
 
-		public synchronized long max() {
-			return _max;
+		public long max() {
+			return TimeUnit.NANOSECONDS.toMillis(_max.get());
 		}
 
-		public synchronized long sum() {
-			return _sum;
+		public long sum() {
+			return TimeUnit.NANOSECONDS.toMillis(_sum.sum());
 		}
 
-        public synchronized long latestDuration() {
-            return _latestDuration;
+        public long latestDuration() {
+            long latestDuration = _latestDuration;
+            return latestDuration < 0 ? latestDuration : TimeUnit.NANOSECONDS.toMillis(latestDuration);
         }
 
-		public synchronized void start() {
-			_lastMark = System.currentTimeMillis();
+		/**
+		 * Marks the start of a duration, which {@link #end()} ends. The entry
+		 * keeps one mark, so durations measured on several threads at once
+		 * (tasks working for the request share its entries) should use
+		 * {@link #startNanos()} and {@link #end(long)} instead.
+		 */
+		public void start() {
+			_lastMark.set(System.nanoTime());
 		}
 
-		public synchronized void end() {
-			if (_lastMark > 0) {
-				add(System.currentTimeMillis() - _lastMark);
-				_lastMark = 0;
+		/**
+		 * Ends the duration started by {@link #start()}.
+		 */
+		public void end() {
+			long mark = _lastMark.getAndSet(0);
+			if (mark != 0) {
+				end(mark);
 			}
 			else {
 				log.info("You called ERXStats.end before calling ERXStats.start.");
 			}
 		}
 
-		public synchronized void add(long time) {
-            _latestDuration = time;
-			if (time < _min) {
-				_min = time;
-			}
-			if (time > _max) {
-				_max = time;
-			}
-			_count++;
-			_sum += time;
-			_avg = -1.0f;
-			if (traceCollectingEnabled()) {
+		/**
+		 * Marks the start of a duration without storing the mark in the entry.
+		 * 
+		 * @return the mark, for {@link #end(long)}
+		 */
+		public long startNanos() {
+			return System.nanoTime();
+		}
+
+		/**
+		 * @param mark the mark returned by {@link #startNanos()}
+		 */
+		public void end(long mark) {
+			addNanos(System.nanoTime() - mark);
+		}
+
+		/**
+		 * @param time the duration in milliseconds
+		 */
+		public void add(long time) {
+			addNanos(TimeUnit.MILLISECONDS.toNanos(time));
+		}
+
+		private void addNanos(long duration) {
+			record(duration);
+			if (traceCollectingEnabled() && _traces.size() < ERXStats.MAX_TRACES) {
 				// Throwable t = new RuntimeException();
 				// t.fillInStackTrace();
 				String trace = ERXExceptionUtilities.stackTrace(); 
 				_traces.add(trace);
 				_traceArray = null;
 			}
+			if (_total != null) {
+				_total.record(duration);
+			}
 		}
 
-		public synchronized float avg() {
-			if (_avg < 0.0f) {
-				_avg = (_count == 0 ? 0.0f : (_sum / ((float) _count)));
+		private void record(long duration) {
+			_latestDuration = duration;
+			_min.accumulate(duration);
+			_max.accumulate(duration);
+			_count.increment();
+			_sum.add(duration);
+			if (_histogram != null) {
+				_histogram.record(TimeUnit.NANOSECONDS.toMicros(duration));
 			}
-			return _avg;
+		}
+
+		public float avg() {
+			long count = count();
+			return count == 0 ? 0.0f : (_sum.sum() / 1000000.0f) / count;
+		}
+
+		/**
+		 * @param percentile the percentile, between 0 and 100 (for example 99.9)
+		 * @return the approximate duration in milliseconds at the given percentile
+		 */
+		public float percentile(double percentile) {
+			ERXLatencyHistogram histogram = _histogram != null ? _histogram : _total._histogram;
+			return histogram.valueAtPercentile(percentile) / 1000.0f;
 		}
 
 		public String key() {
@@ -445,16 +622,18 @@ public class ERXStats {
 		}
 
 		public NSArray traces() {
-			if(_traceArray == null) {
+			NSArray<String> traceArray = _traceArray;
+			if(traceArray == null) {
 				NSMutableSet<String> traces =  new NSMutableSet<>();
 				for (String trace : _traces) {
 					trace = trace.replaceAll("at\\s+(com.webobjects|java|er|sun)\\..*?\\n", "...\n");
 					trace = trace.replaceAll("(\\.\\.\\.\\s+)+", "...\n\t");
 					traces.addObject(trace);
 				}
-				_traceArray = traces.allObjects();
+				traceArray = traces.allObjects();
+				_traceArray = traceArray;
 			}
-			return _traceArray;
+			return traceArray;
 		}
 		
 		@Override
@@ -463,4 +642,4 @@ public class ERXStats {
 			// + "\n" + traces.iterator().next();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -26,6 +26,7 @@ import com.webobjects.foundation.NSMutableDictionary;
 
 import er.extensions.formatters.ERXUnitAwareDecimalFormat;
 import er.extensions.foundation.ERXExceptionUtilities;
+import er.extensions.foundation.ERXRequestStorage;
 import er.extensions.foundation.ERXSimpleTemplateParser;
 import er.extensions.foundation.ERXThreadStorage;
 
@@ -269,10 +270,16 @@ class ERXPatternParser extends PatternParser {
 		public String convert(LoggingEvent event) {
 			Object value = null;
 			if (!isKeyPath) {
-				value = key != null ? ERXThreadStorage.valueForKey(key) : ERXThreadStorage.map();
+				if (key != null) {
+					value = ERXThreadStorage.valueForKey(key);
+				}
+				else {
+					// Logging doesn't attach a storage to threads that don't have one
+					ERXRequestStorage storage = ERXThreadStorage.existingStorage();
+					value = storage != null ? storage.toMap() : Map.of();
+				}
 			}
 			else {
-				value = ERXThreadStorage.map();
 				for (int j = 0; j < keyParts.count(); j++) {
 					String part = (String) keyParts.objectAtIndex(j);
 					if (j == 0) {